@@ -8,11 +8,23 @@ import org.junit.runners.Suite.SuiteClasses;
                       RecognizerTest.class,
                       ParserTest.class,
                       tree.TreeTest.class,
+                      tree.TreeInternerTest.class,
                       TreeParserTest.class,
                       RecognizerTest1.class,
                       RecognizerTest2.class,
                       RecognizerTest3.class,
-                      BugTest.class})
+                      BugTest.class,
+                      CompilerTest.class,
+                      ContinuationTest.class,
+                      BatchRunnerTest.class,
+                      CommandLogTest.class,
+                      LexerTest.class,
+                      ProgramCacheTest.class,
+                      CheckerTest.class,
+                      OptimizerTest.class,
+                      TreeCodecTest.class,
+                      ClassGeneratorTest.class,
+                      RegisterMachineTest.class})
 public class AllTests {
     // Empty class
 }
\ No newline at end of file
@@ -0,0 +1,151 @@
+package bugs;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Runs a Bugs program to completion without a GUI, as fast as it can: there
+ * is no delay between rounds, and nothing is drawn. By default the Bugs are
+ * run cooperatively by the Interpreter, which also makes the result the same
+ * every time the program is run.
+ * <p>
+ * Usage: <code>java bugs.BatchRunner [--threads | --virtual-threads] [--cache directory] file</code>
+ * <p>
+ * With <code>--cache</code>, the parsed program is saved in the given
+ * directory, and later runs of the same program use it instead of parsing
+ * the program again.
+ * <p>
+ * Prints the number of rounds run, the number of drawing commands produced
+ * and the time taken.
+ *
+ * @author Anders Schneider
+ */
+public class BatchRunner {
+	private Interpreter interpreter;
+	private int rounds;
+	private long elapsedNanos;
+
+	/**
+	 * Constructs a BatchRunner for the given program.
+	 *
+	 * @param program the text of a Bugs program
+	 */
+	public BatchRunner(String program) {
+		interpreter = new Interpreter();
+		interpreter.program = program;
+		interpreter.setCooperative(true);
+	}
+
+	/**
+	 * Gives each Bug a thread of its own, instead of running the Bugs
+	 * cooperatively.
+	 *
+	 * @param virtual true to use virtual threads, false for platform threads
+	 */
+	public void useThreads(boolean virtual) {
+		interpreter.setCooperative(false);
+		interpreter.setVirtualThreads(virtual);
+	}
+
+	/**
+	 * Keeps the parsed program in the given directory, and uses what is
+	 * already there, as well as keeping it in memory.
+	 *
+	 * @param directory the directory for the cache
+	 */
+	public void useCache(File directory) {
+		interpreter.programCache = new ProgramCache(16, directory);
+	}
+
+	/**
+	 * Parses, checks and simplifies the program, initializes the Bugs and
+	 * runs rounds until none of the Bugs can act any more.
+	 */
+	public void run() {
+		long start = System.nanoTime();
+		interpreter.parseProgram();
+		interpreter.checkProgram();
+		interpreter.optimizeProgram();
+		interpreter.interpretAllbugs();
+		interpreter.initializeBugs();
+		rounds = interpreter.runToCompletion();
+		elapsedNanos = System.nanoTime() - start;
+	}
+
+	/**
+	 * @return the number of rounds run
+	 */
+	public int getRounds() {
+		return rounds;
+	}
+
+	/**
+	 * @return the number of drawing commands the Bugs produced
+	 */
+	public int getCommandCount() {
+		return interpreter.commands.size();
+	}
+
+	/**
+	 * @return the time taken to parse and run the program, in nanoseconds
+	 */
+	public long getElapsedNanos() {
+		return elapsedNanos;
+	}
+
+	/**
+	 * @return the Interpreter that ran the program
+	 */
+	public Interpreter getInterpreter() {
+		return interpreter;
+	}
+
+	public static void main(String[] args) {
+		// Nothing here needs a display
+		System.setProperty("java.awt.headless", "true");
+
+		String fileName = null;
+		boolean threads = false;
+		boolean virtual = false;
+		String cache = null;
+		for (int i = 0; i < args.length; i++) {
+			if ("--threads".equals(args[i])) {
+				threads = true;
+			} else if ("--virtual-threads".equals(args[i])) {
+				threads = true;
+				virtual = true;
+			} else if ("--cache".equals(args[i]) && i + 1 < args.length) {
+				cache = args[++i];
+			} else {
+				fileName = args[i];
+			}
+		}
+		if (fileName == null) {
+			System.err.println("Usage: java bugs.BatchRunner [--threads | --virtual-threads] "
+								+ "[--cache directory] file");
+			System.exit(2);
+		}
+
+		BatchRunner runner;
+		try {
+			runner = new BatchRunner(Interpreter.readProgram(new File(fileName)));
+		} catch (IOException e) {
+			System.err.println("Couldn't load " + fileName + ": " + e.getMessage());
+			System.exit(1);
+			return;
+		}
+		if (threads) {
+			runner.useThreads(virtual);
+		}
+		if (cache != null) {
+			runner.useCache(new File(cache));
+		}
+
+		runner.run();
+		System.out.println("rounds:   " + runner.getRounds());
+		System.out.println("commands: " + runner.getCommandCount());
+		System.out.printf("time:     %.3f ms%n", runner.getElapsedNanos() / 1e6);
+		// Bugs that stopped with an error may have left threads behind
+		System.exit(0);
+	}
+}
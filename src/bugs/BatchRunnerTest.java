@@ -0,0 +1,96 @@
+package bugs;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class BatchRunnerTest {
+	private static final String PROGRAM = "Bug Sally {\n"
+											+ "var n\n"
+											+ "loop {\n"
+												+ "move 1\n"
+												+ "turn 90\n"
+												+ "n = n + 1\n"
+												+ "exit if n = 4\n"
+											+ "}\n"
+										+ "}\n"
+										+ "Bug Fred {\n"
+											+ "turn 45\n"
+											+ "line 0, 0, 10, 10\n"
+										+ "}\n";
+
+	@Test
+	public void testRunToCompletion() {
+		BatchRunner runner = new BatchRunner(PROGRAM);
+		runner.run();
+		assertEquals(8, runner.getRounds());
+		assertEquals(5, runner.getCommandCount());
+		assertTrue(runner.getInterpreter().doneEvaluating);
+		assertTrue(runner.getElapsedNanos() > 0);
+	}
+
+	@Test
+	public void testRunToCompletionWithThreads() {
+		BatchRunner runner = new BatchRunner(PROGRAM);
+		runner.useThreads(false);
+		runner.run();
+		assertEquals(8, runner.getRounds());
+		assertEquals(5, runner.getCommandCount());
+		assertEquals(0, runner.getInterpreter().bugs.size());
+	}
+
+	@Test
+	public void testBugFinishingAfterItsLastActionEndsTheRun() {
+		// Sally is still working after her last action when the round ends
+		String program = "Bug Sally {\n"
+							+ "var n\n"
+							+ "move 1\n"
+							+ "loop {\n"
+								+ "n = n + 1\n"
+								+ "exit if n = 100000\n"
+							+ "}\n"
+						+ "}\n"
+						+ "Bug Fred {\n"
+							+ "move 1\n"
+						+ "}\n";
+		for (int i = 0; i < 5; i++) {
+			BatchRunner runner = new BatchRunner(program);
+			runner.useThreads(false);
+			runner.run();
+			assertEquals(1, runner.getRounds());
+		}
+		
+		// Sally gives Fred a turn, but finishes in the same round
+		BatchRunner runner = new BatchRunner(program);
+		runner.run();
+		assertEquals(1, runner.getRounds());
+	}
+
+	@Test
+	public void testBugWithErrorDoesNotStopTheRun() {
+		// An exit in a function is only found to have no loop when it is run
+		BatchRunner runner = new BatchRunner("Bug Sally {\n"
+												+ "move 1\n"
+												+ "do leave()\n"
+												+ "define leave {\n"
+													+ "exit if 1\n"
+												+ "}\n"
+											+ "}\n"
+											+ "Bug Fred {\n"
+												+ "move 1\n"
+												+ "move 1\n"
+											+ "}\n");
+		runner.run();
+		assertEquals(2, runner.getRounds());
+		assertEquals(3, runner.getCommandCount());
+		assertFalse(runner.getInterpreter().doneEvaluating);
+	}
+
+	@Test(expected=SemanticException.class)
+	public void testProgramIsCheckedBeforeItRuns() {
+		new BatchRunner("Bug Sally {\n"
+							+ "move 1\n"
+							+ "exit if 1\n"
+						+ "}\n").run();
+	}
+}
@@ -1,36 +1,68 @@
 package bugs;
 
 import java.awt.Color;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Stack;
+import java.util.IdentityHashMap;
+import java.util.concurrent.Phaser;
 
 import tree.Tree;
 
-public class Bug extends Thread {
+public class Bug implements Runnable {
+	
+	/** The number of function calls in progress at once that are executed on the Java stack. */
+	static final int NESTED_CALLS = 100;
 	
 	public double x, y, angle;
 	public String bugName;
 	public Color bugColor;
-	public Stack<HashMap<String, Double>> scopes;
-	private HashMap<String, Tree<Token>> functions;
-	private int numLoops;
+	public ArrayList<double[]> scopes;
+	double[] fields;
+	double[] frame;
+	private HashMap<String, Integer> fieldSlots;
+	private HashMap<String, Function> functions;
+	private IdentityHashMap<Tree<Token>, Function> allbugsFunctions;
+	// The number of functions defined, which tells each CallSite when the
+	// function it has found may no longer be the one its name refers to
+	int definitions;
+	// Calls in progress on the Java stack, and a call waiting to take the
+	// place of the function returning
+	private int callDepth;
+	private Function tailFunction;
+	private double[] tailFrame;
+	int numLoops;
 	private double returnValue;
-	private boolean afterFuncReturn;
-	private Interpreter interpreter;
-	private Tree<Token> bugTree;
-	private boolean blocked;
+	boolean afterFuncReturn;
+	Interpreter interpreter;
+	final int id;
+	int index = -1;
+	volatile boolean terminated;
+	private Compiler compiler;
+	private Statement mainBlock;
+	private Continuation continuation;
+	private RegisterMachine machine;
+	private volatile boolean blocked;
+	
+	// Used by the Interpreter when the Bug has a thread of its own
+	volatile Thread thread;
+	Phaser phaser;
 	
     /**
      * Constructs a Bug and positions it at the origin (0, 0), facing due east.
      */
 	public Bug(Interpreter interpreter) {
-		scopes = new Stack<HashMap<String, Double>>();
-
-		HashMap<String, Double> variables = new HashMap<String, Double>();
-		scopes.push(variables);
+		// The bottom of the stack of frames holds the Bug's own variables
+		fieldSlots = new HashMap<String, Integer>();
+		fields = new double[0];
+		frame = fields;
+		scopes = new ArrayList<double[]>();
+		scopes.add(fields);
 		
 		this.interpreter = interpreter;
-		functions = new HashMap<String, Tree<Token>>();
+		id = interpreter.nextBugId();
+		compiler = new Compiler(this);
+		functions = new HashMap<String, Function>();
+		allbugsFunctions = new IdentityHashMap<Tree<Token>, Function>();
 		x = 0;
 		y = 0;
 		angle = 0;
@@ -48,11 +80,13 @@ public class Bug extends Thread {
 	 */
 	public Bug(Interpreter interpreter, Tree<Token> bugTree) {
 		this(interpreter);
-		this.bugTree = bugTree;
 
 		// Bug name
 		String bugName = bugTree.getChild(0).getValue().value;
 		this.bugName = bugName;
+		if (interpreter.checker != null) {
+			index = interpreter.checker.bugs.get(bugName).index;
+		}
 		
 		// Var declarations
 		interpret(bugTree.getChild(1));
@@ -62,175 +96,60 @@ public class Bug extends Thread {
 		
 		// Initialization block
 		interpret(bugTree.getChild(2));
+		
+		// Main block, compiled once and executed by run(), or by resume() when the
+		// Interpreter runs the Bugs itself
+		if (interpreter.cooperative && interpreter.registerMachine) {
+			machine = new RegisterMachine(this, compiler.compileRegisters(bugTree.getChild(3)));
+		} else if (interpreter.cooperative) {
+			continuation = new Continuation(this, compiler.compileCode(bugTree.getChild(3)));
+		} else {
+			mainBlock = compiler.compileBlock(bugTree.getChild(3));
+		}
 	}
 
 	/**
-	 * Evaluates a tree that represents an expression or a case (in a switch statement),
-	 * and returns the resulting number as a double. In the case of a switch statement, 
-	 * if the expression evaluates to a 1 (true), then the associated block is interpreted.
+	 * Evaluates a tree that represents an expression, and returns the resulting
+	 * number as a double.
 	 * 
-	 * @param tree representing an expression or a case
+	 * @param tree representing an expression
 	 * @return the value represented by the input tree
 	 */
 	public double evaluate(Tree<Token> tree) {
-		String value = tree.getValue().value;
-		Token.Type type = tree.getValue().type;
-		
-		if (Token.Type.NUMBER.equals(type)) {
-			return Double.parseDouble(value);
-		}
-		
-		if (Token.Type.NAME.equals(type)) {
-			return fetch(value);
-		}
-		
-		if ("call".equals(value)) {
-			String funcName = tree.getChild(0).getValue().value;
-			
-			// Checks for special distance/direction functions
-			if ("distance".equals(funcName)) {
-				return distance(tree.getChild(1));
-			} else if ("direction".equals(funcName)) {
-				return direction(tree.getChild(1));
-			}
-			
-			interpretFunctionCall(tree);
-			return returnValue;
-		}
-		
-		if ("case".equals(value)) {
-			double first = evaluate(tree.getChild(0));
-			if (Math.abs(first - 1) <= 0.001) {
-				int numChil = tree.getNumberOfChildren();
-				for (int i = 1; i < numChil; i++) {
-					interpret(tree.getChild(i));
-				}
-			}
-			return first;
-		}
-		
-		if (".".equals(value)) {
-			String otherBugName = tree.getChild(0).getValue().value;
-			String otherBugVar = tree.getChild(1).getValue().value;
-			
-			// Checks it otherBug exists
-			if (!interpreter.bugs.containsKey(otherBugName)) {
-				throw new IllegalArgumentException("Using dot notation, but bug " + otherBugName +
-																			" does not exist");
-			}
-			Bug other = interpreter.bugs.get(otherBugName);
-			return other.dotNotationFetch(otherBugVar);
-		}
-		
-		int numChildren = tree.getNumberOfChildren();
-		
-		double first, second;
-		
-		if (numChildren > 0) {
-			first = evaluate(tree.getChild(0));
-			if (numChildren > 1) {
-				second = evaluate(tree.getChild(1));
-			} else {
-				second = 0;
-			}
-		} else {
-			first = 0;
-			second = 0;
-		}
-		
-		if ("+".equals(value)) {
-			if (numChildren == 1) {
-				return first;
-			} else {
-				return first + second;
-			}
-		}
-		
-		if ("-".equals(value)) {
-			if (numChildren == 1) {
-				return -1 * first;
-			} else {
-				return first - second;
-			}
-		}
-		
-		if ("*".equals(value)) {
-			return first * second;
-		}
-		
-		if ("/".equals(value)) {
-			return first / second;
-		}
-		
-		if ("=".equals(value)) {
-			if (Math.abs(first - second) <= 0.001) {
-				return 1;
-			} else {
-				return 0;
-			}
-		}
-		
-		if ("!=".equals(value)) {
-			if (Math.abs(first - second) <= 0.001) {
-				return 0;
-			} else {
-				return 1;
-			}
-		}
-		
-		if (">".equals(value)) {
-			if ((Math.abs(first - second) > 0.001) && (first > second)) {
-				return 1;
-			} else {
-				return 0;
-			}
-		}
-		
-		if ("<".equals(value)) {
-			if ((Math.abs(first - second) > 0.001) && (first < second)) {
-				return 1;
-			} else {
-				return 0;
-			}
-		}
-		
-		if (">=".equals(value)) {
-			if ((Math.abs(first - second) <= 0.001) || (first > second)) {
-				return 1;
-			} else {
-				return 0;
-			}
-		}
-		
-		if ("<=".equals(value)) {
-			if ((Math.abs(first - second) <= 0.001) || (first < second)) {
-				return 1;
-			} else {
-				return 0;
-			}
-		}
+		return compiler.compileExpression(tree).evaluate(this);
+	}
+	
+	/**
+	 * Interprets any tree created by the parser, except those which are designed to be
+	 * evaluated (those that produce a numeric result).
+	 * 
+	 * @param tree representing some Bugs language code
+	 */
+	public void interpret(Tree<Token> tree) {
+		// If this boolean is true, the code we are evaluating is AFTER a return statement
+		// and therefore should be disregarded
+		if (afterFuncReturn) return;
 		
-		throw new IllegalArgumentException("Unable to evaluate this tree. Root node has value: " + value);
+		compiler.compileStatement(tree).execute(this);
 	}
 	
 	/**
 	 * Finds the direction this Bug should point in order to face the other Bug
 	 * 
-	 * @param tree
+	 * @param otherBugName
 	 * @return
 	 */
-	private double direction(Tree<Token> tree) {
-		if (tree.getNumberOfChildren() != 1) {
-			throw new IllegalArgumentException("direction function takes exactly one input parameter");
-		}
-		
-		String otherBugName = tree.getChild(0).getValue().value;
-		
-		if (!interpreter.bugs.containsKey(otherBugName)) {
-			throw new IllegalArgumentException(otherBugName + " is not a defined bug");
-		}
-		
-		Bug otherBug = interpreter.bugs.get(otherBugName);
+	double direction(String otherBugName) {
+		return direction(otherBug(otherBugName, otherBugName + " is not a defined bug"));
+	}
+	
+	/**
+	 * Finds the direction this Bug should point in order to face the other Bug
+	 * 
+	 * @param otherBug
+	 * @return
+	 */
+	double direction(Bug otherBug) {
 		double yDif = otherBug.y - this.y;
 		double xDif = otherBug.x - this.x;
 		double angle = Math.atan(yDif / xDif) * (180 / Math.PI);
@@ -249,469 +168,351 @@ public class Bug extends Thread {
 	/**
 	 * Finds the distance between this Bug and the input Bug
 	 * 
-	 * @param tree
+	 * @param otherBugName
 	 * @return
 	 */
-	private double distance(Tree<Token> tree) {
-		if (tree.getNumberOfChildren() != 1) {
-			throw new IllegalArgumentException("distance function takes exactly one input parameter");
-		}
-		
-		String otherBugName = tree.getChild(0).getValue().value;
-		
-		if (!interpreter.bugs.containsKey(otherBugName)) {
-			throw new IllegalArgumentException(otherBugName + " is not a defined bug");
-		}
-		
-		Bug otherBug = interpreter.bugs.get(otherBugName);
+	double distance(String otherBugName) {
+		return distance(otherBug(otherBugName, otherBugName + " is not a defined bug"));
+	}
+	
+	/**
+	 * Finds the distance between this Bug and the other Bug
+	 * 
+	 * @param otherBug
+	 * @return
+	 */
+	double distance(Bug otherBug) {
 		double yDif = otherBug.y - this.y;
 		double xDif = otherBug.x - this.x;
 		return Math.sqrt(xDif * xDif + yDif * yDif);
 	}
-
+	
 	/**
-	 * Interprets a function call by creating a new stack frame, populating it with the
-	 * parameters and local variables, and executing the function call
+	 * Returns the Bug with the given name, or throws an IllegalArgumentException
+	 * with the given message if there is no such Bug.
 	 * 
-	 * @param tree
+	 * @param otherBugName
+	 * @param message
+	 * @return
 	 */
-	void interpretFunctionCall(Tree<Token> tree) {
-		HashMap<String, Double> variables = new HashMap<String, Double>();
-		scopes.push(variables);
-		
-		String functionName = tree.getChild(0).getValue().value;
-		Tree<Token> function;
-		if (functions.containsKey(functionName)) {
-			function = functions.get(functionName);
-		} else if (interpreter.functions.containsKey(functionName)) {
-			function = interpreter.functions.get(functionName);
-		} else {
-			scopes.pop();
-			throw new IllegalArgumentException("No function named " + functionName);
-		}
-		
-		Tree<Token> funcParam = function.getChild(1);
-		Tree<Token> funcParamValues = tree.getChild(1);
-		if (!(funcParam.getNumberOfChildren() == funcParamValues.getNumberOfChildren())) {
-			scopes.pop();
-			throw new RuntimeException("Number of input parameters does not match number "
-														+ "of required input parameters");
+	Bug otherBug(String otherBugName, String message) {
+		Bug otherBug = interpreter.bugs.get(otherBugName);
+		if (otherBug == null) {
+			throw new IllegalArgumentException(message);
 		}
-		interpret(funcParam);
-		for (int i = 0; i < funcParamValues.getNumberOfChildren(); i++) {
-			String varName = funcParam.getChild(i).getValue().value;
-			double varValue = evaluate(funcParamValues.getChild(i));
-			
-			store(varName, varValue);
+		return otherBug;
+	}
+	
+	/**
+	 * Returns the Bug with the given index, as given by the Checker, or looks
+	 * it up by name if the index is -1. Throws an IllegalArgumentException
+	 * with the given message if there is no such Bug, or it has finished.
+	 * 
+	 * @param index
+	 * @param otherBugName
+	 * @param message
+	 * @return
+	 */
+	Bug otherBug(int index, String otherBugName, String message) {
+		if (index < 0) {
+			return otherBug(otherBugName, message);
 		}
-		interpret(function.getChild(2));
-		
-		// If we did not reach a return statement, leave a 0 as the return value
-		if (!afterFuncReturn) returnValue = 0;
-		else afterFuncReturn = false;
-		
-		// If the same stack frame is still in scopes, pop it off before ending function call
-		if (scopes.peek() == variables) {
-			scopes.pop();
+		Bug otherBug = interpreter.bugTable[index];
+		if (otherBug == null || otherBug.terminated) {
+			throw new IllegalArgumentException(message);
 		}
+		return otherBug;
 	}
 
 	/**
-	 * Interprets any tree created by the parser, except those which are designed to be
-	 * evaluated (those that produce a numeric result).
+	 * Calls a function by creating a new stack frame, populating it with the
+	 * parameters, and executing the function's body
 	 * 
-	 * @param tree representing some Bugs language code
+	 * @param function the function being called, as found by its CallSite
+	 * @param arguments the expressions whose values are passed as parameters
+	 * @return the value returned by the function, or 0 if it did not return a value
 	 */
-	public void interpret(Tree<Token> tree) {
-		String value = tree.getValue().value;
-		
-		// If this boolean is true, the code we are evaluating is AFTER a return statement
-		// and therefore should be disregarded
-		if (afterFuncReturn) return;
-		
-		switch(value) {
-		case "list":
-			interpretList(tree);
-			break;
-		case "var":
-			interpretVar(tree);
-			break;
-		case "initially":
-			interpretInitially(tree);
-			break;
-		case "block":
-			interpretBlock(tree);
-			break;
-		case "move":
-			interpretMove(tree);
-			break;
-		case "moveto":
-			interpretMoveto(tree);
-			break;
-		case "turn":
-			interpretTurn(tree);
-			break;
-		case "turnto":
-			interpretTurnto(tree);
-			break;
-		case "return":
-			interpretReturn(tree);
-			break;
-		case "line":
-			interpretLine(tree);
-			break;
-		case "assign":
-			interpretAssign(tree);
-			break;
-		case "loop":
-			interpretLoop(tree);
-			break;
-		case "exit":
-			interpretExit(tree);
-			break;
-		case "switch":
-			interpretSwitch(tree);
-			break;
-		case "color":
-			interpretColor(tree);
-			break;
-		case "function":
-			interpretFunction(tree);
-			break;
-		case "call":
-			// Only useful in the case of do statements
-			evaluate(tree);
-			break;
+	double callFunction(Function function, Expression[] arguments) {
+		return invoke(function, bind(function, arguments));
+	}
+	
+	/**
+	 * Makes a new stack frame for a function, holding its parameters.
+	 * 
+	 * @param function the function being called
+	 * @param arguments the expressions whose values are passed as parameters
+	 * @return the new frame
+	 */
+	double[] bind(Function function, Expression[] arguments) {
+		// Arguments are evaluated in the caller's frame
+		double[] newFrame = new double[function.frameSize];
+		for (int i = 0; i < arguments.length; i++) {
+			function.parameters[i].bind(this, newFrame, arguments[i].evaluate(this));
 		}
+		return newFrame;
 	}
-		
+	
 	/**
-	 * Interprets a list tree. Interprets each subtree in order left to right.
+	 * Executes the body of a function whose arguments have been bound. The
+	 * first calls in progress at once are executed as Statements, on the Java
+	 * stack; deeper ones are executed as instructions, whose frames are kept
+	 * on the heap, so that only the Interpreter's limit on the number of calls
+	 * stops a Bug that recurses.
 	 * 
-	 * @param tree
+	 * @param function the function being called
+	 * @param newFrame the function's frame, holding its parameters
+	 * @return the value returned by the function, or 0 if it did not return a value
 	 */
-	void interpretList(Tree<Token> tree) {
-		int numChildren = tree.getNumberOfChildren();
-		
-		for (int i = 0; i < numChildren; i++) {
-			interpret(tree.getChild(i));
+	double invoke(Function function, double[] newFrame) {
+		if (callDepth >= interpreter.maxCallDepth) {
+			throw new RuntimeException("Too many function calls in progress");
+		}
+		double[] callerFrame = frame;
+		frame = newFrame;
+		scopes.add(newFrame);
+		callDepth++;
+		try {
+			while (true) {
+				if (callDepth <= NESTED_CALLS || function.code == null) {
+					function.body.execute(this);
+				} else {
+					returnValue = Continuation.run(this, function, frame, callDepth);
+				}
+				if (tailFunction == null) break;
+				
+				// The function returned by calling another, which takes its place
+				function = tailFunction;
+				frame = tailFrame;
+				tailFunction = null;
+				tailFrame = null;
+				afterFuncReturn = false;
+				scopes.set(scopes.size() - 1, frame);
+			}
+		} finally {
+			callDepth--;
+			tailFunction = null;
+			tailFrame = null;
+			scopes.remove(scopes.size() - 1);
+			frame = callerFrame;
 		}
+		
+		// If we did not reach a return statement, leave a 0 as the return value
+		if (!afterFuncReturn) returnValue = 0;
+		else afterFuncReturn = false;
+		
+		return returnValue;
 	}
 	
 	/**
-	 * Interprets a var declaration tree. Stores each newly declared var with a
-	 * value of 0.
+	 * Leaves the current function, which returns the value of the given
+	 * function once it has been called in its place.
 	 * 
-	 * @param tree
+	 * @param function the function being called
+	 * @param newFrame the function's frame, holding its parameters
 	 */
-	void interpretVar(Tree<Token> tree) {
-		int numChildren = tree.getNumberOfChildren();
+	void tailCall(Function function, double[] newFrame) {
+		tailFunction = function;
+		tailFrame = newFrame;
+		afterFuncReturn = true;
+	}
+	
+	/**
+	 * Finds the function with the given name: one defined in this Bug if there
+	 * is one, otherwise one defined in the Allbugs code. Allbugs functions are
+	 * compiled for this Bug the first time it calls them. Throws a RuntimeException
+	 * if the function does not take the given number of parameters.
+	 * 
+	 * @param functionName
+	 * @param numArgs the number of arguments the function is being called with
+	 * @return the compiled function
+	 */
+	Function lookupFunction(String functionName, int numArgs) {
+		Function function = lookupFunction(functionName);
 		
-		HashMap<String, Double> variables = scopes.peek();
+		if (function.parameters.length != numArgs) {
+			throw new RuntimeException("Number of input parameters does not match number "
+														+ "of required input parameters");
+		}
+		return function;
+	}
+	
+	private Function lookupFunction(String functionName) {
+		Function function = functions.get(functionName);
+		if (function != null) {
+			return function;
+		}
 		
-		for (int i = 0; i < numChildren; i++) {
-			String varName = tree.getChild(i).getValue().value;
-			variables.put(varName, 0.0);
+		Tree<Token> tree = interpreter.functions.get(functionName);
+		if (tree == null) {
+			throw new IllegalArgumentException("No function named " + functionName);
+		}
+		function = allbugsFunctions.get(tree);
+		if (function == null) {
+			function = compiler.compileFunction(tree);
+			allbugsFunctions.put(tree, function);
 		}
+		return function;
 	}
 	
 	/**
-	 * Interprets an initialization block tree.
+	 * Stores a function in this Bug's table of functions.
 	 * 
-	 * @param tree
+	 * @param function
 	 */
-	void interpretInitially(Tree<Token> tree) {
-		interpret(tree.getChild(0));
+	void defineFunction(Function function) {
+		functions.put(function.name, function);
+		definitions++;
 	}
 	
 	/**
-	 * Interprets a block tree. Interprets each command contained therein in order.
+	 * Declares a variable of this Bug, with a value of 0.
 	 * 
-	 * @param tree
+	 * @param varName
 	 */
-	void interpretBlock(Tree<Token> tree) {
-		int numChil = tree.getNumberOfChildren();
-		
-		for (int i = 0; i < numChil; i++) {
-			interpret(tree.getChild(i));
+	void declare(String varName) {
+		Integer slot = fieldSlots.get(varName);
+		if (slot != null) {
+			fields[slot] = 0;
+			return;
 		}
+		
+		fieldSlots.put(varName, fields.length);
+		double[] grown = new double[fields.length + 1];
+		System.arraycopy(fields, 0, grown, 0, fields.length);
+		if (frame == fields) frame = grown;
+		fields = grown;
+		scopes.set(0, fields);
 	}
 	
 	/**
-	 * Interprets a move tree. Updates the bug's x and y coordinates by advancing
-	 * the bug in the direction it was already facing.
+	 * Returns the slot in which the named variable of this Bug is kept.
 	 * 
-	 * @param tree
+	 * @param varName
+	 * @return the index into <code>fields</code>, or -1 if there is no such variable
+	 */
+	int fieldSlot(String varName) {
+		Integer slot = fieldSlots.get(varName);
+		return slot == null ? -1 : slot;
+	}
+	
+	/**
+	 * Waits for this Bug's turn to perform an action.
 	 */
-	void interpretMove(Tree<Token> tree) {
+	void beginAction() {
 		interpreter.getPermissionToAct(this);
-		double distance = evaluate(tree.getChild(0));
-		
+	}
+	
+	/**
+	 * Signals that this Bug has finished its action for this round.
+	 */
+	void endAction() {
+		interpreter.completeAction(this);
+	}
+	
+	/**
+	 * Advances the bug in the direction it is already facing, drawing a line.
+	 * 
+	 * @param distance
+	 */
+	void move(double distance) {
 		double oldX = x;
 		double oldY = y;
 		
 		x += distance * Math.cos(angle * (Math.PI / 180));
 		y -= distance * Math.sin(angle * (Math.PI / 180));
 		
-		Command newLine = new Command(oldX, oldY, x, y, bugColor);
-		interpreter.commands.add(newLine);
-		
-		interpreter.completeAction(this);
+		interpreter.commands.add(oldX, oldY, x, y, bugColor, id, interpreter.currentRound());
 	}
 	
 	/**
-	 * Interprets a moveto tree. Updates the bug's x and y coordinates by placing the
-	 * bug in the specified (x, y) location.
+	 * Places the bug in the specified (x, y) location, drawing a line.
 	 * 
-	 * @param tree
+	 * @param newX
+	 * @param newY
 	 */
-	void interpretMoveto(Tree<Token> tree) {
-		interpreter.getPermissionToAct(this);
-		double newX = evaluate(tree.getChild(0));
-		double newY = evaluate(tree.getChild(1));
-		
+	void moveto(double newX, double newY) {
 		double oldX = x;
 		double oldY = y;
 		
 		x = newX;
 		y = newY;
 		
-		Command newLine = new Command(oldX, oldY, x, y, bugColor);
-		interpreter.commands.add(newLine);
-		
-		interpreter.completeAction(this);
+		interpreter.commands.add(oldX, oldY, x, y, bugColor, id, interpreter.currentRound());
 	}
 	
 	/**
-	 * Interprets a turn tree. Updates the direction the bug is facing by increasing
-	 * the angle the bug is facing from due east by the specified amount.
+	 * Increases the angle the bug is facing from due east by the specified amount.
 	 * 
-	 * @param tree
+	 * @param angleDelta
 	 */
-	void interpretTurn(Tree<Token> tree) {
-		interpreter.getPermissionToAct(this);
-		double angleDelta = evaluate(tree.getChild(0));
-		
+	void turn(double angleDelta) {
 		angle += angleDelta;
 		
 		while (angle < 0) angle += 360;
 		while (angle >= 360) angle -= 360;
-		interpreter.completeAction(this);
 	}
 	
 	/**
-	 * Interprets a turnto tree. Updates the direction the bug is facing by setting
-	 * it to the specified value.
+	 * Sets the direction the bug is facing to the specified value.
 	 * 
-	 * @param tree
+	 * @param newAngle
 	 */
-	void interpretTurnto(Tree<Token> tree) {
-		interpreter.getPermissionToAct(this);
-		double newAngle = evaluate(tree.getChild(0));
-		
+	void turnto(double newAngle) {
 		while (newAngle < 0) newAngle += 360;
 		while (newAngle >= 360) newAngle -= 360;
 		
 		angle = newAngle;
-		interpreter.completeAction(this);
 	}
 	
 	/**
-	 * Interprets a return tree.
+	 * Draws a line between the specified points, in this bug's color.
 	 * 
-	 * @param tree
+	 * @param startX
+	 * @param startY
+	 * @param finishX
+	 * @param finishY
 	 */
-	void interpretReturn(Tree<Token> tree) {
-		returnValue = evaluate(tree.getChild(0));
-		scopes.pop();
-		afterFuncReturn = true;
-	}
-	
-	/**
-	 * Interprets a line tree.
-	 * 
-	 * @param tree
-	 */
-	void interpretLine(Tree<Token> tree) {
-		interpreter.getPermissionToAct(this);
-
-		double startX = evaluate(tree.getChild(0));
-		double startY = evaluate(tree.getChild(1));
-		
-		double finishX = evaluate(tree.getChild(2));
-		double finishY = evaluate(tree.getChild(3));
-		
-		Command newLine = new Command(startX, startY, finishX, finishY, bugColor);
-		interpreter.commands.add(newLine);
-		
-		interpreter.completeAction(this);
+	void line(double startX, double startY, double finishX, double finishY) {
+		interpreter.commands.add(startX, startY, finishX, finishY, bugColor, id, interpreter.currentRound());
 	}
 	
 	/**
-	 * Interprets an assign tree. Assigns the specified variable the specified value,
-	 * unless the variable has not been declared (in that case: throws an
-	 * IllegalArgumentException)
-	 * 
-	 * @param tree
+	 * Leaves the innermost loop being executed, once control is back between
+	 * the commands of its block.
 	 */
-	void interpretAssign(Tree<Token> tree) {
-		String varName = tree.getChild(0).getValue().value;
-		double varValue = evaluate(tree.getChild(1));
-		
-		if ("x".equals(varName) || "y".equals(varName) || "angle".equals(varName)) {
-			store(varName, varValue);
-			return;
-		}
-
-		boolean foundContainer = false;
-		for (int i = 0; i < scopes.size(); i++) {
-			HashMap<String, Double> variables = scopes.get(i);
-			if (variables.containsKey(varName)) {
-				variables.put(varName, varValue);
-				foundContainer = true;
-				break;
-			}
+	void exitLoop() {
+		if (numLoops == 0) {
+			throw new RuntimeException("No loop to exit from");
 		}
-		
-		if (interpreter.variables.containsKey(varName)) {
-			foundContainer = true;
-		}
-		
-		if (!foundContainer) {
-			throw new IllegalArgumentException("Variables must be declared before they "
-															+ "can be assigned values");
-		}
-		
-		store(varName, varValue);
+		numLoops--;
 	}
 	
 	/**
-	 * Interprets a loop tree. Loops through the commands in the loop until an "exit if"
-	 * statement is encountered and the condition evaluates to 1 (true).
+	 * Leaves the current function with the given value.
 	 * 
-	 * @param tree
-	 */
-	void interpretLoop(Tree<Token> tree) {
-		int numChil = tree.getChild(0).getNumberOfChildren();
-		numLoops++;
-		int loopID = numLoops;
-		while (true) {
-			for (int i = 0; i < numChil; i++) {
-				if (numLoops == loopID) {
-					interpret(tree.getChild(0).getChild(i));
-				} else {
-					return;
-				}
-			}
-		}
-	}
-	
-	/**
-	 * Interprets an exit if tree. Evaluates the condition and - if the condition
-	 * evaluates to 1 (true) - exits the most immediately enclosing loop.
-	 * 
-	 * @param tree
-	 */
-	void interpretExit(Tree<Token> tree) {
-		if (evaluate(tree.getChild(0)) == 1) {
-			if (numLoops == 0) {
-				throw new RuntimeException("No loop to exit from");
-			} else {
-				numLoops--;
-			}
-		}
-	}
-	
-	/**
-	 * Interprets a switch tree. Evaluates each case condition and interprets 
-	 * the associated commands if the condition is true. After the first true
-	 * case-condition is encountered, the switch statement terminates.
-	 * 
-	 * @param tree
+	 * @param value
 	 */
-	void interpretSwitch(Tree<Token> tree) {
-		int numChil = tree.getNumberOfChildren();
-		
-		for (int i = 0; i < numChil; i++) {
-			if (evaluate(tree.getChild(i)) == 1) {
-				return;
-			}
-		}
+	void returnFromFunction(double value) {
+		returnValue = value;
+		afterFuncReturn = true;
 	}
 	
 	/**
-	 * Interprets a color tree. Assigns the bug the specified color or throws
-	 * an IllegalArgumentException if the color is not one of the defined colors.
+	 * Assigns the specified variable the specified value, unless the variable
+	 * has not been declared (in that case: throws an IllegalArgumentException)
 	 * 
-	 * @param tree
+	 * @param varName
+	 * @param varValue
 	 */
-	void interpretColor(Tree<Token> tree) {
-		String colorName = tree.getChild(0).getValue().value;
-		
-		switch (colorName) {
-		case "black":
-			bugColor = Color.black;
-			return;
-		case "blue":
-			bugColor = Color.blue;
-			return;
-		case "cyan":
-			bugColor = Color.cyan;
-			return;
-		case "darkGray":
-			bugColor = Color.darkGray;
-			return;
-		case "gray":
-			bugColor = Color.gray;
-			return;
-		case "green":
-			bugColor = Color.green;
-			return;
-		case "lightGray":
-			bugColor = Color.lightGray;
-			return;
-		case "magenta":
-			bugColor = Color.magenta;
-			return;
-		case "orange":
-			bugColor = Color.orange;
-			return;
-		case "pink":
-			bugColor = Color.pink;
-			return;
-		case "red":
-			bugColor = Color.red;
-			return;
-		case "white":
-			bugColor = Color.white;
-			return;
-		case "yellow":
-			bugColor = Color.yellow;
-			return;
-		case "brown":
-			bugColor = new Color(139, 69, 19);
-			return;
-		case "purple":
-			bugColor = new Color(128, 0, 128);
-			return;
-		case "none":
-			bugColor = null;
+	void assign(String varName, double varValue) {
+		if ("x".equals(varName) || "y".equals(varName) || "angle".equals(varName)
+				|| fieldSlots.containsKey(varName) || interpreter.globalSlot(varName) >= 0) {
+			store(varName, varValue);
 			return;
 		}
 		
-		throw new IllegalArgumentException("Illegal color entered");
-	}
-	
-	/**
-	 * Interprets a function tree. Stores the name of the function and the
-	 * tree that represents it.
-	 * 
-	 * @param tree
-	 */
-	void interpretFunction(Tree<Token> tree) {
-		String funcName = tree.getChild(0).getValue().value;
-		
-		functions.put(funcName, tree);
+		throw new IllegalArgumentException("Variables must be declared before they "
+															+ "can be assigned values");
 	}
 	
 	/**
@@ -725,16 +526,15 @@ public class Bug extends Thread {
 		else if ("y".equals(variable)) y = value;
 		else if ("angle".equals(variable)) angle = value;
 		else {
-			for (int i = 0; i < scopes.size(); i++) {
-				HashMap<String, Double> variables = scopes.get(i);
-				if (variables.containsKey(variable)) {
-					variables.put(variable, value);
-					return;
-				}
+			Integer slot = fieldSlots.get(variable);
+			if (slot != null) {
+				fields[slot] = value;
+				return;
 			}
 			
-			if (interpreter.variables.containsKey(variable)) {
-				interpreter.variables.put(variable, value);
+			int global = interpreter.globalSlot(variable);
+			if (global >= 0) {
+				interpreter.globals[global] = value;
 				return;
 			}
 			
@@ -754,20 +554,43 @@ public class Bug extends Thread {
 		else if ("y".equals(variable)) return y;
 		else if ("angle".equals(variable)) return angle;
 		
-		for (int i = 0; i < scopes.size(); i++) {
-			HashMap<String, Double> variables = scopes.get(i);
-			if (variables.containsKey(variable)) {
-				return variables.get(variable);
-			}
+		Integer slot = fieldSlots.get(variable);
+		if (slot != null) {
+			return fields[slot];
 		}
 		
-		if (interpreter.variables.containsKey(variable)) {
-			return interpreter.variables.get(variable);
+		int global = interpreter.globalSlot(variable);
+		if (global >= 0) {
+			return interpreter.globals[global];
 		}
 		
 		throw new IllegalArgumentException("Trying to access an undeclared variable: " + variable);
 	}
 	
+	/**
+	 * Finds the place the input variable of this Bug is kept, searching in the
+	 * same order as <code>fetch</code>.
+	 * 
+	 * @param variable
+	 * @return the variable, or null if that variable has not yet been declared
+	 */
+	Expression.Variable locate(String variable) {
+		if ("x".equals(variable)) return new Expression.X();
+		else if ("y".equals(variable)) return new Expression.Y();
+		else if ("angle".equals(variable)) return new Expression.Angle();
+		
+		Integer slot = fieldSlots.get(variable);
+		if (slot != null) {
+			return new Expression.Field(slot);
+		}
+		
+		int global = interpreter.globalSlot(variable);
+		if (global >= 0) {
+			return new Expression.Global(global);
+		}
+		return null;
+	}
+	
 	/**
 	 * Method used to fetch from this Bug by another bug using dot notation (e.g. "Fred.x")
 	 * 
@@ -779,14 +602,14 @@ public class Bug extends Thread {
 		else if ("y".equals(variable)) return y;
 		else if ("angle".equals(variable)) return angle;
 		
-		
-		HashMap<String, Double> variables = scopes.get(0);
-		if (variables.containsKey(variable)) {
-			return variables.get(variable);
+		Integer slot = fieldSlots.get(variable);
+		if (slot != null) {
+			return fields[slot];
 		}
-				
-		if (interpreter.variables.containsKey(variable)) {
-			return interpreter.variables.get(variable);
+		
+		int global = interpreter.globalSlot(variable);
+		if (global >= 0) {
+			return interpreter.globals[global];
 		}
 		
 		throw new IllegalArgumentException("Using dot notation: "
@@ -795,15 +618,46 @@ public class Bug extends Thread {
 
 	@Override
 	public void run() {
+		thread = Thread.currentThread();
+		
 		// Executes all commands in the main block of the Bug tree
-		int numCommands = bugTree.getChild(3).getNumberOfChildren();
-		for (int i = 0; i < numCommands; i++) {
-			interpret(bugTree.getChild(3).getChild(i));
+		try {
+			if (!afterFuncReturn) {
+				mainBlock.execute(this);
+			}
+		} catch (RuntimeException e) {
+			interpreter.abandonBug(this);
+			throw e;
 		}
 		
 		interpreter.terminateBug(this);
 	}
 	
+	/**
+	 * Runs this Bug, when it is run by the Interpreter rather than by a thread of
+	 * its own, until it has to wait for permission to act, or to give the other
+	 * Bugs a turn.
+	 * 
+	 * @return true if the Bug has finished
+	 */
+	boolean advance() {
+		// A return in the initialization block means the main block is skipped
+		if (afterFuncReturn) return true;
+		
+		return machine != null ? machine.resume() : continuation.resume();
+	}
+	
+	/**
+	 * Tells whether this Bug, when it is run by the Interpreter, last stopped
+	 * only to give the other Bugs a turn, so that it still has to be resumed
+	 * before the round is over.
+	 * 
+	 * @return true if the Bug stopped before reaching its next action
+	 */
+	boolean yielded() {
+		return machine != null ? machine.outOfBudget() : continuation.outOfBudget();
+	}
+	
 	public void setBlocked(boolean b) {
 		blocked = b;
 	}
@@ -6,6 +6,7 @@ import java.awt.event.ActionListener;
 import java.io.IOException;
 
 import javax.swing.JButton;
+import javax.swing.JFileChooser;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
 import javax.swing.JMenu;
@@ -232,6 +233,8 @@ public class BugsGui extends JFrame {
     	interpreter = new Interpreter();
     	interpreter.program = programString;
     	interpreter.parseProgram();
+    	interpreter.checkProgram();
+    	interpreter.optimizeProgram();
     	interpreter.interpretAllbugs();
     	interpreter.initializeBugs();
     	
@@ -256,8 +259,15 @@ public class BugsGui extends JFrame {
     }
     
     protected void load() {    	
+        JFileChooser chooser = new JFileChooser();
+        chooser.setDialogTitle("Load which file?");
+        int result = chooser.showOpenDialog(null);
+        if (result != JFileChooser.APPROVE_OPTION || chooser.getSelectedFile() == null) {
+        	return;
+        }
+        
     	try {
-    		interpreter.load();
+    		interpreter.load(chooser.getSelectedFile());
     	} catch (IOException e) {
     		System.out.println("Couldn't load that file!");
     		return;
@@ -270,6 +280,14 @@ public class BugsGui extends JFrame {
     		return;
     	}
     	
+    	try {
+    		interpreter.checkProgram();
+    	} catch (SemanticException e) {
+    		System.out.println("Found errors in the program:\n" + e.getMessage());
+    		return;
+    	}
+    	interpreter.optimizeProgram();
+    	
     	try {
     		interpreter.interpretAllbugs();
     	} catch (RuntimeException e) {
@@ -0,0 +1,43 @@
+package bugs;
+
+/**
+ * A place in a Bug's code where a user-defined function is called. The
+ * function is looked up by name the first time the call is made, and the
+ * Function found is used by the calls after it, for as long as the Bug
+ * defines no other functions.
+ *
+ * @author Anders Schneider
+ */
+final class CallSite {
+	final String name;
+	final int numArgs;
+	private Function function;
+	private Bug owner;
+	private int definitions;
+
+	/**
+	 * Constructs a CallSite.
+	 *
+	 * @param name the name of the function called
+	 * @param numArgs the number of arguments it is called with
+	 */
+	CallSite(String name, int numArgs) {
+		this.name = name;
+		this.numArgs = numArgs;
+	}
+
+	/**
+	 * Finds the function called, as <code>Bug.lookupFunction</code> does.
+	 *
+	 * @param bug the Bug making the call
+	 * @return the compiled function
+	 */
+	Function lookup(Bug bug) {
+		if (bug != owner || bug.definitions != definitions) {
+			function = bug.lookupFunction(name, numArgs);
+			owner = bug;
+			definitions = bug.definitions;
+		}
+		return function;
+	}
+}
@@ -0,0 +1,370 @@
+package bugs;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+
+import tree.Tree;
+
+/**
+ * Checks a program after it has been parsed, and before any of it is run,
+ * for the mistakes that the Parser can't find: variables that are not
+ * declared, functions that don't exist or are called with the wrong number of
+ * parameters, references to Bugs that don't exist, unknown colors, and
+ * <code>exit if</code> outside of any loop. Every mistake is found, and they
+ * are all reported together.
+ * <p>
+ * The names found are kept, so that the Compiler can use them. The Allbugs
+ * variables and each Bug's variables are given the same slots, in the order
+ * they are declared, that the Interpreter and the Bug give them, and each Bug
+ * is given an index, so that a reference to another Bug, or to one of its
+ * variables, need not be looked up by name while the program runs.
+ * <p>
+ * An Allbugs function is run in the Bug that calls it, and may use that
+ * Bug's variables and functions. So it is checked once for each Bug that
+ * calls it; one that no Bug calls is checked with only the Allbugs variables
+ * and functions.
+ *
+ * @author Anders Schneider
+ */
+class Checker {
+
+	/**
+	 * The names declared by one Bug.
+	 */
+	static final class BugScope {
+		final String name;
+		final int index;
+		final HashMap<String, Integer> fieldSlots = new HashMap<String, Integer>();
+		final HashMap<String, Tree<Token>> functions = new HashMap<String, Tree<Token>>();
+
+		BugScope(String name, int index) {
+			this.name = name;
+			this.index = index;
+		}
+	}
+
+	/**
+	 * An Allbugs function still to be checked, and the Bug it is checked
+	 * for, or null if no Bug calls it.
+	 */
+	private static final class PendingCall {
+		final BugScope scope;
+		final String name;
+
+		PendingCall(BugScope scope, String name) {
+			this.scope = scope;
+			this.name = name;
+		}
+	}
+
+	final HashMap<String, Integer> globalSlots = new HashMap<String, Integer>();
+	final HashMap<String, Tree<Token>> functions = new HashMap<String, Tree<Token>>();
+	final LinkedHashMap<String, BugScope> bugs = new LinkedHashMap<String, BugScope>();
+
+	private final Tree<Token> allbugs;
+	private final Tree<Token> bugsList;
+	private final LinkedHashSet<String> errors = new LinkedHashSet<String>();
+
+	// The Allbugs functions still to be checked for some Bug, the Bugs each
+	// has been checked for, and those that are called at all
+	private final ArrayDeque<PendingCall> pendingCalls = new ArrayDeque<PendingCall>();
+	private final HashMap<String, HashSet<BugScope>> checkedCalls =
+		new HashMap<String, HashSet<BugScope>>();
+
+	// Where the code being checked is
+	private BugScope bug;
+	private HashSet<String> parameters;
+	private String where;
+	private int loopDepth;
+
+	/**
+	 * Constructs a Checker for a parsed program.
+	 *
+	 * @param allbugs the Allbugs part of the program's tree
+	 * @param bugsList the list of Bug definitions in the program's tree
+	 */
+	Checker(Tree<Token> allbugs, Tree<Token> bugsList) {
+		this.allbugs = allbugs;
+		this.bugsList = bugsList;
+	}
+
+	/**
+	 * Finds the names declared in the program, and checks every use of them.
+	 *
+	 * @throws SemanticException listing every mistake found, if there are any
+	 */
+	void check() {
+		declare();
+
+		for (BugScope scope : bugs.values()) {
+			Tree<Token> bugTree = bugsList.getChild(scope.index);
+			enter(scope, null, "Bug " + scope.name);
+			checkStatement(bugTree.getChild(2));
+			checkStatement(bugTree.getChild(3));
+
+			Tree<Token> funcList = bugTree.getChild(4);
+			for (int i = 0; i < funcList.getNumberOfChildren(); i++) {
+				Tree<Token> function = funcList.getChild(i);
+				checkFunction(scope, function, "function " + functionName(function)
+												+ " of Bug " + scope.name);
+			}
+			checkPendingCalls();
+		}
+
+		// Allbugs functions that no Bug calls
+		Tree<Token> funcList = allbugs.getChild(1);
+		for (int i = 0; i < funcList.getNumberOfChildren(); i++) {
+			String name = functionName(funcList.getChild(i));
+			if (!checkedCalls.containsKey(name)) {
+				pendingCalls.add(new PendingCall(null, name));
+				checkedCalls.put(name, new HashSet<BugScope>());
+				checkPendingCalls();
+			}
+		}
+
+		if (!errors.isEmpty()) {
+			throw new SemanticException(new ArrayList<String>(errors));
+		}
+	}
+
+	/**
+	 * Finds the Allbugs variables and functions, and each Bug's name,
+	 * variables and functions.
+	 */
+	private void declare() {
+		Tree<Token> varList = allbugs.getChild(0);
+		for (int i = 0; i < varList.getNumberOfChildren(); i++) {
+			declareAll(globalSlots, varList.getChild(i));
+		}
+		Tree<Token> funcList = allbugs.getChild(1);
+		for (int i = 0; i < funcList.getNumberOfChildren(); i++) {
+			functions.put(functionName(funcList.getChild(i)), funcList.getChild(i));
+		}
+
+		for (int i = 0; i < bugsList.getNumberOfChildren(); i++) {
+			Tree<Token> bugTree = bugsList.getChild(i);
+			String name = bugTree.getChild(0).getValue().value;
+			if (bugs.containsKey(name)) {
+				errors.add("Bugs must have distinct names! Two bugs were found to be named "
+							+ name);
+				continue;
+			}
+			BugScope scope = new BugScope(name, i);
+			bugs.put(name, scope);
+
+			varList = bugTree.getChild(1);
+			for (int j = 0; j < varList.getNumberOfChildren(); j++) {
+				declareAll(scope.fieldSlots, varList.getChild(j));
+			}
+			funcList = bugTree.getChild(4);
+			for (int j = 0; j < funcList.getNumberOfChildren(); j++) {
+				scope.functions.put(functionName(funcList.getChild(j)), funcList.getChild(j));
+			}
+		}
+	}
+
+	/**
+	 * Gives each name in a var declaration the next slot, unless it already has one.
+	 */
+	private static void declareAll(HashMap<String, Integer> slots, Tree<Token> varTree) {
+		for (int i = 0; i < varTree.getNumberOfChildren(); i++) {
+			String name = varTree.getChild(i).getValue().value;
+			if (!slots.containsKey(name)) {
+				slots.put(name, slots.size());
+			}
+		}
+	}
+
+	/**
+	 * Checks the body of a function, run by the given Bug, or by no Bug in particular.
+	 */
+	private void checkFunction(BugScope scope, Tree<Token> function, String where) {
+		HashSet<String> names = new HashSet<String>();
+		Tree<Token> varTree = function.getChild(1);
+		for (int i = 0; i < varTree.getNumberOfChildren(); i++) {
+			names.add(varTree.getChild(i).getValue().value);
+		}
+		enter(scope, names, where);
+		checkStatement(function.getChild(2));
+	}
+
+	/**
+	 * Checks the Allbugs functions that the code checked so far calls, and
+	 * those that they call in turn.
+	 */
+	private void checkPendingCalls() {
+		while (!pendingCalls.isEmpty()) {
+			PendingCall call = pendingCalls.remove();
+			checkFunction(call.scope, functions.get(call.name), "Allbugs function " + call.name
+							+ (call.scope == null ? "" : ", called by Bug " + call.scope.name));
+		}
+	}
+
+	private void enter(BugScope scope, HashSet<String> parameters, String where) {
+		this.bug = scope;
+		this.parameters = parameters;
+		this.where = where;
+		loopDepth = 0;
+	}
+
+	private void error(String message) {
+		errors.add("In " + where + ": " + message);
+	}
+
+	/**
+	 * Checks any tree that the Compiler compiles as a statement.
+	 */
+	private void checkStatement(Tree<Token> tree) {
+		switch (tree.getValue().value) {
+		case "list":
+		case "block":
+			checkChildren(tree, 0);
+			break;
+		case "initially":
+			checkStatement(tree.getChild(0));
+			break;
+		case "move":
+		case "turn":
+		case "turnto":
+		case "return":
+		case "moveto":
+		case "line":
+			for (int i = 0; i < tree.getNumberOfChildren(); i++) {
+				checkExpression(tree.getChild(i));
+			}
+			break;
+		case "assign":
+			checkVariable(tree.getChild(0).getValue().value);
+			checkExpression(tree.getChild(1));
+			break;
+		case "loop":
+			loopDepth++;
+			checkStatement(tree.getChild(0));
+			loopDepth--;
+			break;
+		case "exit":
+			// An exit in a function leaves the loop that the function was called from
+			if (loopDepth == 0 && parameters == null) {
+				error("No loop to exit from");
+			}
+			checkExpression(tree.getChild(0));
+			break;
+		case "switch":
+			for (int i = 0; i < tree.getNumberOfChildren(); i++) {
+				Tree<Token> caseTree = tree.getChild(i);
+				checkExpression(caseTree.getChild(0));
+				checkChildren(caseTree, 1);
+			}
+			break;
+		case "color":
+			if (!Compiler.isColor(tree.getChild(0).getValue().value)) {
+				error("Illegal color entered: " + tree.getChild(0).getValue().value);
+			}
+			break;
+		case "call":
+			checkCall(tree);
+			break;
+		}
+	}
+
+	private void checkChildren(Tree<Token> tree, int first) {
+		for (int i = first; i < tree.getNumberOfChildren(); i++) {
+			checkStatement(tree.getChild(i));
+		}
+	}
+
+	/**
+	 * Checks a tree that the Compiler compiles as an expression.
+	 */
+	private void checkExpression(Tree<Token> tree) {
+		Token token = tree.getValue();
+		if (token.type == Token.Type.NUMBER) return;
+		if (token.type == Token.Type.NAME) {
+			checkVariable(token.value);
+			return;
+		}
+
+		if ("call".equals(token.value)) {
+			checkCall(tree);
+		} else if (".".equals(token.value)) {
+			String otherBugName = tree.getChild(0).getValue().value;
+			String variable = tree.getChild(1).getValue().value;
+			BugScope other = bugs.get(otherBugName);
+			if (other == null) {
+				error("Using dot notation, but bug " + otherBugName + " does not exist");
+			} else if (!isBuiltIn(variable) && !other.fieldSlots.containsKey(variable)
+						&& !globalSlots.containsKey(variable)) {
+				error("Using dot notation: Bug " + otherBugName
+						+ " has no variable named " + variable);
+			}
+		} else {
+			for (int i = 0; i < tree.getNumberOfChildren(); i++) {
+				checkExpression(tree.getChild(i));
+			}
+		}
+	}
+
+	private void checkVariable(String name) {
+		if (isBuiltIn(name)) return;
+		if (bug != null && bug.fieldSlots.containsKey(name)) return;
+		if (parameters != null && parameters.contains(name)) return;
+		if (globalSlots.containsKey(name)) return;
+		error("Trying to access an undeclared variable: " + name);
+	}
+
+	private static boolean isBuiltIn(String name) {
+		return "x".equals(name) || "y".equals(name) || "angle".equals(name);
+	}
+
+	/**
+	 * Checks a call of a function, or of the distance and direction functions.
+	 */
+	private void checkCall(Tree<Token> tree) {
+		String name = tree.getChild(0).getValue().value;
+		Tree<Token> args = tree.getNumberOfChildren() > 1 ? tree.getChild(1) : null;
+		int numArgs = args == null ? 0 : args.getNumberOfChildren();
+
+		if ("distance".equals(name) || "direction".equals(name)) {
+			if (numArgs != 1) {
+				error(name + " function takes exactly one input parameter");
+			} else if (!bugs.containsKey(args.getChild(0).getValue().value)) {
+				error(args.getChild(0).getValue().value + " is not a defined bug");
+			}
+			return;
+		}
+
+		for (int i = 0; i < numArgs; i++) {
+			checkExpression(args.getChild(i));
+		}
+
+		// As when the program runs, the Bug's own functions come first
+		Tree<Token> function = bug == null ? null : bug.functions.get(name);
+		if (function == null) {
+			function = functions.get(name);
+			if (function != null) {
+				HashSet<BugScope> callers = checkedCalls.get(name);
+				if (callers == null) {
+					callers = new HashSet<BugScope>();
+					checkedCalls.put(name, callers);
+				}
+				if (callers.add(bug)) {
+					pendingCalls.add(new PendingCall(bug, name));
+				}
+			}
+		}
+		if (function == null) {
+			error("No function named " + name);
+		} else if (function.getChild(1).getNumberOfChildren() != numArgs) {
+			error("Function " + name + " takes " + function.getChild(1).getNumberOfChildren()
+					+ " input parameters, but is called with " + numArgs);
+		}
+	}
+
+	private static String functionName(Tree<Token> function) {
+		return function.getChild(0).getValue().value;
+	}
+}
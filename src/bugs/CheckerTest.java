@@ -0,0 +1,248 @@
+package bugs;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import tree.Tree;
+
+public class CheckerTest {
+	private static final String PROGRAM = "Allbugs {\n"
+											+ "var total, count\n"
+											+ "define average using a, b {\n"
+												+ "return (a + b) / 2 + total\n"
+											+ "}\n"
+											+ "define step {\n"
+												+ "move speed\n"
+												+ "return average(x, y)\n"
+											+ "}\n"
+										+ "}\n"
+										+ "Bug Sally {\n"
+											+ "var speed, n\n"
+											+ "var n, z\n"
+											+ "initially {\n"
+												+ "color red\n"
+											+ "}\n"
+											+ "loop {\n"
+												+ "do step()\n"
+												+ "n = n + Fred.heading + Fred.x + Fred.count\n"
+												+ "turn direction(Fred) + distance(Sally)\n"
+												+ "exit if half(n) > 4\n"
+											+ "}\n"
+											+ "define half using v {\n"
+												+ "exit if v > 100\n"
+												+ "return v / 2\n"
+											+ "}\n"
+										+ "}\n"
+										+ "Bug Fred {\n"
+											+ "var heading, speed\n"
+											+ "move 1\n"
+											+ "switch {\n"
+												+ "case Sally.z > 0\n"
+													+ "color none\n"
+													+ "do step()\n"
+											+ "}\n"
+										+ "}\n";
+
+	@Test
+	public void testValidProgram() {
+		Checker checker = check(PROGRAM);
+		assertEquals(0, (int) checker.globalSlots.get("total"));
+		assertEquals(1, (int) checker.globalSlots.get("count"));
+
+		Checker.BugScope sally = checker.bugs.get("Sally");
+		assertEquals(0, sally.index);
+		assertEquals(3, sally.fieldSlots.size());
+		assertEquals(1, (int) sally.fieldSlots.get("n"));
+		assertEquals(2, (int) sally.fieldSlots.get("z"));
+		assertNotNull(sally.functions.get("half"));
+		assertEquals(1, checker.bugs.get("Fred").index);
+		assertNotNull(checker.functions.get("average"));
+	}
+
+	@Test
+	public void testUndeclaredVariables() {
+		List<String> errors = errors("Allbugs {\n"
+										+ "define f {\n"
+											+ "return speed\n"
+										+ "}\n"
+									+ "}\n"
+									+ "Bug Sally {\n"
+										+ "var n\n"
+										+ "n = m + 1\n"
+										+ "q = n\n"
+										+ "define g using a {\n"
+											+ "return a + b\n"
+										+ "}\n"
+									+ "}\n");
+		assertEquals(4, errors.size());
+		assertEquals("In Bug Sally: Trying to access an undeclared variable: m", errors.get(0));
+		assertEquals("In Bug Sally: Trying to access an undeclared variable: q", errors.get(1));
+		assertEquals("In function g of Bug Sally: Trying to access an undeclared variable: b",
+						errors.get(2));
+		assertEquals("In Allbugs function f: Trying to access an undeclared variable: speed",
+						errors.get(3));
+	}
+
+	@Test
+	public void testAllbugsFunctionsAreCheckedForEachCaller() {
+		List<String> errors = errors("Allbugs {\n"
+										+ "define step {\n"
+											+ "move speed\n"
+										+ "}\n"
+									+ "}\n"
+									+ "Bug Sally {\n"
+										+ "var speed\n"
+										+ "do step()\n"
+									+ "}\n"
+									+ "Bug Fred {\n"
+										+ "do step()\n"
+									+ "}\n");
+		assertEquals(1, errors.size());
+		assertEquals("In Allbugs function step, called by Bug Fred: "
+						+ "Trying to access an undeclared variable: speed", errors.get(0));
+	}
+
+	@Test
+	public void testFunctionCalls() {
+		List<String> errors = errors("Allbugs {\n"
+										+ "define f using a, b {\n"
+											+ "return a + b\n"
+										+ "}\n"
+									+ "}\n"
+									+ "Bug Sally {\n"
+										+ "move f(1)\n"
+										+ "move f(1, 2)\n"
+										+ "do g()\n"
+										+ "move distance()\n"
+										+ "move direction(Nobody)\n"
+									+ "}\n");
+		assertEquals(4, errors.size());
+		assertEquals("In Bug Sally: Function f takes 2 input parameters, but is called with 1",
+						errors.get(0));
+		assertEquals("In Bug Sally: No function named g", errors.get(1));
+		assertEquals("In Bug Sally: distance function takes exactly one input parameter",
+						errors.get(2));
+		assertEquals("In Bug Sally: Nobody is not a defined bug", errors.get(3));
+	}
+
+	@Test
+	public void testBugsOwnFunctionComesFirst() {
+		check("Allbugs {\n"
+				+ "define f using a, b {\n"
+					+ "return a + b\n"
+				+ "}\n"
+			+ "}\n"
+			+ "Bug Sally {\n"
+				+ "move f(1)\n"
+				+ "define f using a {\n"
+					+ "return a\n"
+				+ "}\n"
+			+ "}\n");
+	}
+
+	@Test
+	public void testDotNotation() {
+		List<String> errors = errors("Bug Sally {\n"
+										+ "var n\n"
+										+ "n = Fred.n + Nobody.x\n"
+									+ "}\n"
+									+ "Bug Fred {\n"
+										+ "move Sally.n + Sally.angle\n"
+									+ "}\n");
+		assertEquals(2, errors.size());
+		assertEquals("In Bug Sally: Using dot notation: Bug Fred has no variable named n",
+						errors.get(0));
+		assertEquals("In Bug Sally: Using dot notation, but bug Nobody does not exist",
+						errors.get(1));
+	}
+
+	@Test
+	public void testOtherMistakes() {
+		List<String> errors = errors("Bug Sally {\n"
+										+ "color loop\n"
+										+ "exit if 1\n"
+										+ "loop {\n"
+											+ "exit if 1\n"
+										+ "}\n"
+									+ "}\n"
+									+ "Bug Sally {\n"
+										+ "move 1\n"
+									+ "}\n");
+		assertEquals(3, errors.size());
+		assertEquals("Bugs must have distinct names! Two bugs were found to be named Sally",
+						errors.get(0));
+		assertEquals("In Bug Sally: Illegal color entered: loop", errors.get(1));
+		assertEquals("In Bug Sally: No loop to exit from", errors.get(2));
+	}
+
+	@Test
+	public void testMessageListsEveryError() {
+		try {
+			check("Bug Sally {\n"
+					+ "move a\n"
+					+ "move b\n"
+				+ "}\n");
+			fail();
+		} catch (SemanticException e) {
+			assertEquals("In Bug Sally: Trying to access an undeclared variable: a\n"
+							+ "In Bug Sally: Trying to access an undeclared variable: b",
+							e.getMessage());
+		}
+	}
+
+	@Test
+	public void testInterpreterUsesBindings() {
+		Interpreter interpreter = new Interpreter();
+		interpreter.program = PROGRAM;
+		interpreter.parseProgram();
+		interpreter.checkProgram();
+		interpreter.interpretAllbugs();
+		interpreter.initializeBugs();
+		assertSame(interpreter.bugs.get("Sally"), interpreter.bugTable[0]);
+		assertSame(interpreter.bugs.get("Fred"), interpreter.bugTable[1]);
+
+		Bug sally = interpreter.bugTable[0];
+		Bug fred = interpreter.bugTable[1];
+		fred.x = 7;
+		fred.fields[0] = 3;
+		interpreter.globals[1] = 2;
+		assertEquals(12, sally.evaluate(useExpression("Fred.x + Fred.heading + Fred.count")), 0);
+		fred.y = 10;
+		assertEquals(Math.sqrt(149), sally.evaluate(useExpression("distance(Fred)")), 0.0001);
+
+		// A Bug that has finished can't be referred to
+		fred.terminated = true;
+		try {
+			sally.evaluate(useExpression("Fred.x"));
+			fail();
+		} catch (IllegalArgumentException e) {
+			assertEquals("Using dot notation, but bug Fred does not exist", e.getMessage());
+		}
+	}
+
+	private static Checker check(String program) {
+		Tree<Token> tree = ProgramCache.parse(program);
+		Checker checker = new Checker(tree.getChild(0), tree.getChild(1));
+		checker.check();
+		return checker;
+	}
+
+	private static List<String> errors(String program) {
+		try {
+			check(program);
+		} catch (SemanticException e) {
+			return e.getErrors();
+		}
+		fail();
+		return null;
+	}
+
+	private static Tree<Token> useExpression(String expression) {
+		Parser p = new Parser(expression + "\n");
+		assertTrue(p.isExpression());
+		return p.stack.pop();
+	}
+}
@@ -0,0 +1,418 @@
+package bugs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Writes the bytes of a JVM class file: just enough of the format to hold a
+ * class with a few fields and methods made of simple instructions. The class
+ * file version is 49, so that the methods need no stack map frames; the JVM
+ * verifies them by working out the types itself.
+ *
+ * @author Anders Schneider
+ */
+final class ClassFile {
+	static final int ACC_PRIVATE = 0x0002;
+	static final int ACC_FINAL = 0x0010;
+	static final int ACC_SUPER = 0x0020;
+
+	private static final int VERSION = 49;
+
+	private final ByteArrayOutputStream constants = new ByteArrayOutputStream();
+	private final DataOutputStream pool = new DataOutputStream(constants);
+	private final HashMap<String, Integer> poolIndex = new HashMap<String, Integer>();
+	private int poolCount = 1;
+
+	private final int thisClass;
+	private final int superClass;
+	private final ArrayList<byte[]> fields = new ArrayList<byte[]>();
+	private final ArrayList<MethodWriter> methods = new ArrayList<MethodWriter>();
+
+	/**
+	 * Constructs a class with no fields or methods.
+	 *
+	 * @param name the internal name of the class, such as "bugs/Compiled"
+	 * @param superName the internal name of its superclass
+	 */
+	ClassFile(String name, String superName) {
+		thisClass = classRef(name);
+		superClass = classRef(superName);
+	}
+
+	/**
+	 * Adds a field to the class.
+	 *
+	 * @param access the access flags
+	 * @param name the name of the field
+	 * @param descriptor the type of the field
+	 */
+	void addField(int access, String name, String descriptor) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeShort(access);
+			out.writeShort(utf8(name));
+			out.writeShort(utf8(descriptor));
+			out.writeShort(0);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		fields.add(bytes.toByteArray());
+	}
+
+	/**
+	 * Adds a method to the class. Its code is written with the MethodWriter
+	 * returned, before the class is turned into bytes.
+	 *
+	 * @param access the access flags
+	 * @param name the name of the method
+	 * @param descriptor the types of the parameters and result of the method
+	 * @param parameterSlots the number of local variable slots taken by
+	 *        <code>this</code> and the parameters
+	 * @return the writer of the method's code
+	 */
+	MethodWriter addMethod(int access, String name, String descriptor, int parameterSlots) {
+		MethodWriter method = new MethodWriter(access, utf8(name), utf8(descriptor), parameterSlots);
+		methods.add(method);
+		return method;
+	}
+
+	/**
+	 * Returns the class file.
+	 *
+	 * @return the bytes of the class file
+	 * @throws IllegalStateException if a method is too large for the class file format
+	 */
+	byte[] toByteArray() {
+		int code = utf8("Code");
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeInt(0xCAFEBABE);
+			out.writeShort(0);
+			out.writeShort(VERSION);
+			out.writeShort(poolCount);
+			constants.writeTo(out);
+
+			out.writeShort(ACC_FINAL | ACC_SUPER);
+			out.writeShort(thisClass);
+			out.writeShort(superClass);
+			out.writeShort(0);
+
+			out.writeShort(fields.size());
+			for (byte[] field : fields) {
+				out.write(field);
+			}
+			out.writeShort(methods.size());
+			for (MethodWriter method : methods) {
+				method.write(out, code);
+			}
+			out.writeShort(0);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+//	--------------- Constant pool ------------------
+
+	int classRef(String name) {
+		Integer index = poolIndex.get("C" + name);
+		if (index != null) return index;
+		int nameIndex = utf8(name);
+		return add("C" + name, 7, nameIndex, -1);
+	}
+
+	int fieldRef(String owner, String name, String descriptor) {
+		return memberRef(9, owner, name, descriptor);
+	}
+
+	int methodRef(String owner, String name, String descriptor) {
+		return memberRef(10, owner, name, descriptor);
+	}
+
+	int stringRef(String value) {
+		Integer index = poolIndex.get("S" + value);
+		if (index != null) return index;
+		int valueIndex = utf8(value);
+		return add("S" + value, 8, valueIndex, -1);
+	}
+
+	int intRef(int value) {
+		Integer index = poolIndex.get("I" + value);
+		if (index != null) return index;
+		try {
+			pool.writeByte(3);
+			pool.writeInt(value);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		poolIndex.put("I" + value, poolCount);
+		return poolCount++;
+	}
+
+	int doubleRef(double value) {
+		long bits = Double.doubleToRawLongBits(value);
+		Integer index = poolIndex.get("D" + bits);
+		if (index != null) return index;
+		try {
+			pool.writeByte(6);
+			pool.writeLong(bits);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		poolIndex.put("D" + bits, poolCount);
+		// A double takes two entries of the pool
+		int result = poolCount;
+		poolCount += 2;
+		return result;
+	}
+
+	private int memberRef(int tag, String owner, String name, String descriptor) {
+		String key = "M" + tag + owner + '.' + name + ':' + descriptor;
+		Integer index = poolIndex.get(key);
+		if (index != null) return index;
+		int ownerIndex = classRef(owner);
+		int nameAndType = nameAndType(name, descriptor);
+		return add(key, tag, ownerIndex, nameAndType);
+	}
+
+	private int nameAndType(String name, String descriptor) {
+		String key = "N" + name + ':' + descriptor;
+		Integer index = poolIndex.get(key);
+		if (index != null) return index;
+		int nameIndex = utf8(name);
+		int descriptorIndex = utf8(descriptor);
+		return add(key, 12, nameIndex, descriptorIndex);
+	}
+
+	private int utf8(String value) {
+		Integer index = poolIndex.get("U" + value);
+		if (index != null) return index;
+		try {
+			pool.writeByte(1);
+			pool.writeUTF(value);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		poolIndex.put("U" + value, poolCount);
+		return poolCount++;
+	}
+
+	/**
+	 * Adds an entry made of a tag and one or two indexes of other entries.
+	 */
+	private int add(String key, int tag, int first, int second) {
+		try {
+			pool.writeByte(tag);
+			pool.writeShort(first);
+			if (second >= 0) pool.writeShort(second);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		poolIndex.put(key, poolCount);
+		return poolCount++;
+	}
+
+//	--------------- Methods ------------------
+
+	/**
+	 * A position in the code of a method that can be jumped to. It can be
+	 * jumped to before it has been placed.
+	 */
+	static final class Label {
+		private int position = -1;
+		private final ArrayList<Integer> jumps = new ArrayList<Integer>();
+	}
+
+	/**
+	 * Writes the code of one method, keeping track of how deep the operand
+	 * stack gets and how many local variable slots are used. Every jump is
+	 * expected to be made with the operand stack empty.
+	 */
+	static final class MethodWriter {
+		// Opcodes used by the ClassGenerator
+		static final int ICONST_0 = 0x03, DCONST_0 = 0x0e, DCONST_1 = 0x0f;
+		static final int BIPUSH = 0x10, SIPUSH = 0x11, LDC_W = 0x13, LDC2_W = 0x14;
+		static final int ILOAD = 0x15, DLOAD = 0x18, ALOAD = 0x19;
+		static final int DALOAD = 0x31, AALOAD = 0x32;
+		static final int ISTORE = 0x36, DSTORE = 0x39, ASTORE = 0x3a, DASTORE = 0x52;
+		static final int POP = 0x57, POP2 = 0x58;
+		static final int IADD = 0x60, DADD = 0x63, ISUB = 0x64, DSUB = 0x67;
+		static final int DMUL = 0x6b, DDIV = 0x6f;
+		static final int DCMPL = 0x97, DCMPG = 0x98;
+		static final int IFEQ = 0x99, IFNE = 0x9a, IFGT = 0x9d;
+		static final int IF_ICMPNE = 0xa0, GOTO = 0xa7;
+		static final int IRETURN = 0xac, RETURN = 0xb1;
+		static final int GETFIELD = 0xb4, PUTFIELD = 0xb5;
+		static final int INVOKEVIRTUAL = 0xb6, INVOKESPECIAL = 0xb7, INVOKESTATIC = 0xb8;
+		static final int NEWARRAY = 0xbc;
+		static final int T_DOUBLE = 7;
+
+		private final int access;
+		private final int name;
+		private final int descriptor;
+		private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+		private final ArrayList<Label> labels = new ArrayList<Label>();
+		private int stack;
+		private int maxStack;
+		private int maxLocals;
+
+		private MethodWriter(int access, int name, int descriptor, int parameterSlots) {
+			this.access = access;
+			this.name = name;
+			this.descriptor = descriptor;
+			maxLocals = parameterSlots;
+		}
+
+		/**
+		 * Writes an instruction that has no operands.
+		 *
+		 * @param opcode the instruction
+		 * @param stackChange the number of slots it adds to the operand stack
+		 *        (negative if it takes more than it adds)
+		 */
+		void op(int opcode, int stackChange) {
+			code.write(opcode);
+			changeStack(stackChange);
+		}
+
+		/**
+		 * Writes an instruction whose operand is one byte.
+		 */
+		void op1(int opcode, int operand, int stackChange) {
+			code.write(opcode);
+			code.write(operand);
+			changeStack(stackChange);
+		}
+
+		/**
+		 * Writes an instruction whose operand is two bytes, such as the index
+		 * of an entry of the constant pool.
+		 */
+		void op2(int opcode, int operand, int stackChange) {
+			code.write(opcode);
+			code.write(operand >> 8);
+			code.write(operand);
+			changeStack(stackChange);
+		}
+
+		/**
+		 * Writes an instruction that reads or writes a local variable.
+		 *
+		 * @param opcode ILOAD, DLOAD, ALOAD, ISTORE, DSTORE or ASTORE
+		 * @param slot the local variable
+		 */
+		void local(int opcode, int slot) {
+			if (slot > 255) {
+				throw new IllegalStateException("Too many local variables");
+			}
+			int size = (opcode == DLOAD || opcode == DSTORE) ? 2 : 1;
+			boolean load = opcode == ILOAD || opcode == DLOAD || opcode == ALOAD;
+			op1(opcode, slot, load ? size : -size);
+			maxLocals = Math.max(maxLocals, slot + size);
+		}
+
+		/**
+		 * Pushes an int.
+		 */
+		void pushInt(int value, ClassFile classFile) {
+			if (value >= -1 && value <= 5) {
+				op(ICONST_0 + value, 1);
+			} else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+				op1(BIPUSH, value & 0xff, 1);
+			} else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+				op2(SIPUSH, value & 0xffff, 1);
+			} else {
+				op2(LDC_W, classFile.intRef(value), 1);
+			}
+		}
+
+		/**
+		 * Pushes a double.
+		 */
+		void pushDouble(double value, ClassFile classFile) {
+			if (Double.doubleToRawLongBits(value) == 0) {
+				op(DCONST_0, 2);
+			} else if (value == 1) {
+				op(DCONST_1, 2);
+			} else {
+				op2(LDC2_W, classFile.doubleRef(value), 2);
+			}
+		}
+
+		/**
+		 * Writes a jump to a label, which may be placed later.
+		 *
+		 * @param opcode the jump instruction
+		 * @param target where to jump to
+		 * @param stackChange the number of slots the instruction takes from
+		 *        the operand stack, as a negative number
+		 */
+		void jump(int opcode, Label target, int stackChange) {
+			target.jumps.add(code.size());
+			op2(opcode, 0, stackChange);
+		}
+
+		/**
+		 * Returns a new label, not yet placed.
+		 */
+		Label newLabel() {
+			Label label = new Label();
+			labels.add(label);
+			return label;
+		}
+
+		/**
+		 * Places a label at the next instruction to be written.
+		 */
+		void place(Label label) {
+			label.position = code.size();
+		}
+
+		/**
+		 * Returns the code, with the offsets of the jumps filled in.
+		 */
+		private byte[] finish() {
+			byte[] bytes = code.toByteArray();
+			if (bytes.length > 65535) {
+				throw new IllegalStateException("Method too large");
+			}
+			for (Label label : labels) {
+				for (int from : label.jumps) {
+					int offset = label.position - from;
+					if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) {
+						throw new IllegalStateException("Jump too far");
+					}
+					bytes[from + 1] = (byte) (offset >> 8);
+					bytes[from + 2] = (byte) offset;
+				}
+			}
+			return bytes;
+		}
+
+		private void changeStack(int change) {
+			stack += change;
+			maxStack = Math.max(maxStack, stack);
+		}
+
+		private void write(DataOutputStream out, int codeName) throws IOException {
+			byte[] bytes = finish();
+			out.writeShort(access);
+			out.writeShort(name);
+			out.writeShort(descriptor);
+			out.writeShort(1);
+			out.writeShort(codeName);
+			out.writeInt(12 + bytes.length);
+			out.writeShort(maxStack);
+			out.writeShort(maxLocals);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+			out.writeShort(0);
+			out.writeShort(0);
+		}
+	}
+}
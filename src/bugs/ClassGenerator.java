@@ -0,0 +1,643 @@
+package bugs;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+
+import tree.Tree;
+
+/**
+ * Compiles a block of Bugs code into a class of its own: a
+ * <code>Statement</code> whose <code>execute</code> method carries out the
+ * whole block as JVM bytecode. Variables are read and written where they are
+ * kept, arithmetic is done by the JVM's own instructions, loops and switch
+ * statements become jumps, and functions are called without going through
+ * Expressions. A Bug's thread runs the class like any other Java code, so the
+ * JIT can compile it and inline the methods of the Bug that it calls. An
+ * action still waits for its round by calling <code>beginAction</code>, just
+ * as a <code>Statement.Action</code> does.
+ * <p>
+ * The class is defined as a hidden class of this package, so that it can use
+ * the package-private parts of the Bug, and so that it is unloaded once the
+ * Bugs and functions that use it are gone, as they are when the Interpreter
+ * is replaced. The parts of a block that have no simple bytecode form (dot
+ * notation, the distance and direction functions, names that were not
+ * declared when the block was compiled, and so on) are compiled by the
+ * Compiler as usual and called from the class.
+ * <p>
+ * Exits and returns behave exactly as they do in Statements: the count of
+ * loops, and whether a return has been reached, are looked at after each
+ * command that may exit or return, and an exit takes effect between the
+ * commands of the loop's own block.
+ *
+ * @author Anders Schneider
+ */
+class ClassGenerator {
+	private static final String BUG = "bugs/Bug";
+	private static final String STATEMENT = "bugs/Statement";
+	private static final String EXPRESSION = "bugs/Expression";
+	private static final String VARIABLE = "bugs/Expression$Variable";
+	private static final String FUNCTION = "bugs/Function";
+	private static final String CALL_SITE = "bugs/CallSite";
+	private static final String INTERPRETER = "bugs/Interpreter";
+	private static final String NAME = "bugs/CompiledBlock";
+
+	// Lookup.defineHiddenClass, found by reflection since the program is also
+	// compiled for versions of Java that do not have it
+	private static final Method DEFINE_HIDDEN_CLASS;
+	private static final Object NO_OPTIONS;
+	static {
+		Method define = null;
+		Object options = null;
+		try {
+			Class<?> optionClass = Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+			options = Array.newInstance(optionClass, 0);
+			define = MethodHandles.Lookup.class.getMethod("defineHiddenClass", byte[].class,
+															boolean.class, options.getClass());
+		} catch (ReflectiveOperationException e) {
+			define = null;
+		}
+		DEFINE_HIDDEN_CLASS = define;
+		NO_OPTIONS = options;
+	}
+
+	// Local variables of the execute method
+	private static final int THIS = 0;
+	private static final int BUG_LOCAL = 1;
+
+	/**
+	 * The labels of a loop being generated, and where its number is kept.
+	 */
+	private static final class Loop {
+		final int id;
+		final ClassFile.Label boundary;
+		final ClassFile.Label left;
+		final ClassFile.Label end;
+
+		Loop(int id, ClassFile.MethodWriter m) {
+			this.id = id;
+			boundary = m.newLabel();
+			left = m.newLabel();
+			end = m.newLabel();
+		}
+	}
+
+	private final Compiler compiler;
+	private final ClassFile classFile;
+	private final ClassFile.MethodWriter m;
+	private final ArrayList<Expression> expressions = new ArrayList<Expression>();
+	private final ArrayList<Statement> statements = new ArrayList<Statement>();
+	private final ArrayList<Expression.Variable> variables = new ArrayList<Expression.Variable>();
+	private final ArrayList<CallSite> calls = new ArrayList<CallSite>();
+	private final ArrayList<Loop> loops = new ArrayList<Loop>();
+	private final ClassFile.Label returnTrue;
+	private int nextLocal = BUG_LOCAL + 1;
+
+	/**
+	 * Tells whether this version of Java can define hidden classes.
+	 *
+	 * @return true if code can be compiled into classes
+	 */
+	static boolean isAvailable() {
+		return DEFINE_HIDDEN_CLASS != null;
+	}
+
+	/**
+	 * Constructs a ClassGenerator.
+	 *
+	 * @param compiler the Compiler used to resolve names, and to compile the
+	 *        parts of the code that are not turned into bytecode
+	 */
+	ClassGenerator(Compiler compiler) {
+		this.compiler = compiler;
+		classFile = new ClassFile(NAME, STATEMENT);
+		m = classFile.addMethod(0, "execute", "(L" + BUG + ";)Z", 2);
+		returnTrue = m.newLabel();
+	}
+
+	/**
+	 * Compiles a block of code into a class, and makes an instance of it.
+	 *
+	 * @param tree the block
+	 * @return the compiled block, or null if it is too large to be compiled
+	 *         into a single method
+	 */
+	Statement generate(Tree<Token> tree) {
+		// A block reached after a return statement is disregarded
+		getField(BUG_LOCAL, BUG, "afterFuncReturn", "Z");
+		m.jump(ClassFile.MethodWriter.IFNE, returnTrue, -1);
+		generateCommands(tree, 0, false);
+		m.pushInt(CodeGenerator.mayExit(tree, true) ? 1 : 0, classFile);
+		m.op(ClassFile.MethodWriter.IRETURN, -1);
+		m.place(returnTrue);
+		m.pushInt(1, classFile);
+		m.op(ClassFile.MethodWriter.IRETURN, -1);
+
+		byte[] bytes;
+		try {
+			generateConstructor();
+			bytes = classFile.toByteArray();
+		} catch (IllegalStateException e) {
+			return null;
+		}
+		return instantiate(define(bytes));
+	}
+
+	/**
+	 * Generates the commands of a block, list or switch case, each followed
+	 * by a check of whether it exited or returned, if it may have.
+	 *
+	 * @param tree the parent of the commands
+	 * @param first the index of the first command among the children
+	 * @param loopBlock true if the commands are the block of the innermost loop
+	 */
+	private void generateCommands(Tree<Token> tree, int first, boolean loopBlock) {
+		for (int i = first; i < tree.getNumberOfChildren(); i++) {
+			Tree<Token> command = tree.getChild(i);
+			int mark = nextLocal;
+			generateStatement(command);
+			nextLocal = mark;
+			if (CodeGenerator.mayExit(command, true)) {
+				generateCheck(loopBlock);
+			}
+		}
+	}
+
+	/**
+	 * Generates what a Statement does when a command it has executed reports
+	 * that it has exited or returned.
+	 *
+	 * @param loopBlock true if the command is in the block of the innermost loop
+	 */
+	private void generateCheck(boolean loopBlock) {
+		Loop loop = loops.isEmpty() ? null : loops.get(loops.size() - 1);
+		if (loop != null && loopBlock) {
+			// The loop has been left if its number is no longer the count
+			getField(BUG_LOCAL, BUG, "numLoops", "I");
+			m.local(ClassFile.MethodWriter.ILOAD, loop.id);
+			m.jump(ClassFile.MethodWriter.IF_ICMPNE, loop.end, -2);
+		}
+		getField(BUG_LOCAL, BUG, "afterFuncReturn", "Z");
+		if (loop == null) {
+			m.jump(ClassFile.MethodWriter.IFNE, returnTrue, -1);
+		} else if (loopBlock) {
+			m.jump(ClassFile.MethodWriter.IFNE, loop.left, -1);
+		} else {
+			m.jump(ClassFile.MethodWriter.IFNE, loop.boundary, -1);
+		}
+	}
+
+	private void generateStatement(Tree<Token> tree) {
+		switch (tree.getValue().value) {
+		case "list":
+		case "block":
+			generateCommands(tree, 0, false);
+			break;
+		case "move":
+			generateAction(tree, "move", "(D)V");
+			break;
+		case "moveto":
+			generateAction(tree, "moveto", "(DD)V");
+			break;
+		case "turn":
+			generateAction(tree, "turn", "(D)V");
+			break;
+		case "turnto":
+			generateAction(tree, "turnto", "(D)V");
+			break;
+		case "line":
+			generateAction(tree, "line", "(DDDD)V");
+			break;
+		case "assign":
+			generateAssign(compiler.resolve(tree.getChild(0).getValue().value), tree.getChild(1));
+			break;
+		case "return":
+			if (compiler.isTailCall(tree, !loops.isEmpty())) {
+				generateCall(tree.getChild(0), true);
+				break;
+			}
+			m.local(ClassFile.MethodWriter.ALOAD, BUG_LOCAL);
+			generateExpression(tree.getChild(0));
+			invoke(ClassFile.MethodWriter.INVOKEVIRTUAL, BUG, "returnFromFunction", "(D)V", -3);
+			break;
+		case "loop":
+			generateLoop(tree);
+			break;
+		case "exit":
+			generateExit(tree);
+			break;
+		case "switch":
+			generateSwitch(tree);
+			break;
+		case "call":
+			// A do statement
+			generateExpression(tree);
+			m.op(ClassFile.MethodWriter.POP2, -2);
+			break;
+		default:
+			// Declarations and colors are run as Statements
+			m.local(ClassFile.MethodWriter.ALOAD, THIS);
+			getField(-1, NAME, "statements", "[L" + STATEMENT + ";");
+			m.pushInt(add(statements, compiler.compileStatement(tree)), classFile);
+			m.op(ClassFile.MethodWriter.AALOAD, -1);
+			m.local(ClassFile.MethodWriter.ALOAD, BUG_LOCAL);
+			invoke(ClassFile.MethodWriter.INVOKEVIRTUAL, STATEMENT, "execute", "(L" + BUG + ";)Z", -1);
+			m.op(ClassFile.MethodWriter.POP, -1);
+		}
+	}
+
+	/**
+	 * Generates an action. The Bug waits for permission before the
+	 * expressions of the action are evaluated.
+	 */
+	private void generateAction(Tree<Token> tree, String method, String descriptor) {
+		m.local(ClassFile.MethodWriter.ALOAD, BUG_LOCAL);
+		invoke(ClassFile.MethodWriter.INVOKEVIRTUAL, BUG, "beginAction", "()V", -1);
+		m.local(ClassFile.MethodWriter.ALOAD, BUG_LOCAL);
+		for (int i = 0; i < tree.getNumberOfChildren(); i++) {
+			generateExpression(tree.getChild(i));
+		}
+		invoke(ClassFile.MethodWriter.INVOKEVIRTUAL, BUG, method, descriptor,
+				-1 - 2 * tree.getNumberOfChildren());
+		m.local(ClassFile.MethodWriter.ALOAD, BUG_LOCAL);
+		invoke(ClassFile.MethodWriter.INVOKEVIRTUAL, BUG, "endAction", "()V", -1);
+	}
+
+	/**
+	 * Generates an assignment. The value is computed before the array that
+	 * holds the variable is found, since a function called while computing
+	 * it may declare new variables.
+	 */
+	private void generateAssign(Expression.Variable variable, Tree<Token> value) {
+		if (variable instanceof Expression.X || variable instanceof Expression.Y
+				|| variable instanceof Expression.Angle) {
+			m.local(ClassFile.MethodWriter.ALOAD, BUG_LOCAL);
+			generateExpression(value);
+			putField(BUG, coordinate(variable), "D");
+			return;
+		}
+		if (variable instanceof Expression.Named) {
+			pushConstant("variables", VARIABLE, add(variables, variable));
+			m.local(ClassFile.MethodWriter.ALOAD, BUG_LOCAL);
+			generateExpression(value);
+			invoke(ClassFile.MethodWriter.INVOKEVIRTUAL, VARIABLE, "store", "(L" + BUG + ";D)V", -4);
+			return;
+		}
+
+		int temporary = newLocal(2);
+		generateExpression(value);
+		m.local(ClassFile.MethodWriter.DSTORE, temporary);
+		int slot = generateArray(variable);
+		m.pushInt(slot, classFile);
+		m.local(ClassFile.MethodWriter.DLOAD, temporary);
+		m.op(ClassFile.MethodWriter.DASTORE, -4);
+	}
+
+	/**
+	 * Generates a loop. Each loop being executed has a number, kept in a
+	 * local variable; the loop has been left once the Bug's count of loops
+	 * is no longer its number.
+	 */
+	private void generateLoop(Tree<Token> tree) {
+		Loop loop = new Loop(newLocal(1), m);
+		m.local(ClassFile.MethodWriter.ALOAD, BUG_LOCAL);
+		getField(BUG_LOCAL, BUG, "numLoops", "I");
+		m.pushInt(1, classFile);
+		m.op(ClassFile.MethodWriter.IADD, -1);
+		putField(BUG, "numLoops", "I");
+		getField(BUG_LOCAL, BUG, "numLoops", "I");
+		m.local(ClassFile.MethodWriter.ISTORE, loop.id);
+
+		loops.add(loop);
+		ClassFile.Label start = m.newLabel();
+		m.place(start);
+		generateCommands(tree.getChild(0), 0, true);
+		m.jump(ClassFile.MethodWriter.GOTO, start, 0);
+		loops.remove(loops.size() - 1);
+
+		// A command inside a switch or block returned
+		m.place(loop.boundary);
+		getField(BUG_LOCAL, BUG, "numLoops", "I");
+		m.local(ClassFile.MethodWriter.ILOAD, loop.id);
+		m.jump(ClassFile.MethodWriter.IF_ICMPNE, loop.end, -2);
+		// A return leaves this loop as well as the function
+		m.place(loop.left);
+		m.local(ClassFile.MethodWriter.ALOAD, BUG_LOCAL);
+		m.local(ClassFile.MethodWriter.ILOAD, loop.id);
+		m.pushInt(1, classFile);
+		m.op(ClassFile.MethodWriter.ISUB, -1);
+		putField(BUG, "numLoops", "I");
+		m.place(loop.end);
+	}
+
+	private void generateExit(Tree<Token> tree) {
+		ClassFile.Label skip = m.newLabel();
+		generateExpression(tree.getChild(0));
+		m.op(ClassFile.MethodWriter.DCONST_1, 2);
+		m.op(ClassFile.MethodWriter.DCMPL, -3);
+		m.jump(ClassFile.MethodWriter.IFNE, skip, -1);
+		m.local(ClassFile.MethodWriter.ALOAD, BUG_LOCAL);
+		invoke(ClassFile.MethodWriter.INVOKEVIRTUAL, BUG, "exitLoop", "()V", -1);
+		m.place(skip);
+	}
+
+	/**
+	 * Generates a switch statement. The value of each case's condition is
+	 * kept while its commands are executed, since a value that is true but
+	 * not exactly 1 does not end the switch statement.
+	 */
+	private void generateSwitch(Tree<Token> tree) {
+		ClassFile.Label end = m.newLabel();
+		int condition = newLocal(2);
+		for (int i = 0; i < tree.getNumberOfChildren(); i++) {
+			Tree<Token> caseTree = tree.getChild(i);
+			ClassFile.Label skip = m.newLabel();
+			generateExpression(caseTree.getChild(0));
+			m.local(ClassFile.MethodWriter.DSTORE, condition);
+
+			// Skipped unless the condition is within EPSILON of 1
+			m.local(ClassFile.MethodWriter.DLOAD, condition);
+			m.op(ClassFile.MethodWriter.DCONST_1, 2);
+			m.op(ClassFile.MethodWriter.DSUB, -2);
+			invoke(ClassFile.MethodWriter.INVOKESTATIC, "java/lang/Math", "abs", "(D)D", 0);
+			m.pushDouble(Expression.EPSILON, classFile);
+			m.op(ClassFile.MethodWriter.DCMPG, -3);
+			m.jump(ClassFile.MethodWriter.IFGT, skip, -1);
+			generateCommands(caseTree, 1, false);
+			m.place(skip);
+
+			m.local(ClassFile.MethodWriter.DLOAD, condition);
+			m.op(ClassFile.MethodWriter.DCONST_1, 2);
+			m.op(ClassFile.MethodWriter.DCMPL, -3);
+			m.jump(ClassFile.MethodWriter.IFEQ, end, -1);
+		}
+		m.place(end);
+	}
+
+	/**
+	 * Generates the code that leaves the value of an expression on the stack.
+	 */
+	private void generateExpression(Tree<Token> tree) {
+		Token token = tree.getValue();
+		if (token.type == Token.Type.NUMBER) {
+			m.pushDouble(token.number, classFile);
+			return;
+		}
+		if (token.type == Token.Type.NAME) {
+			generateLoad(compiler.resolve(token.value));
+			return;
+		}
+		if ("call".equals(token.value)
+				&& !CodeGenerator.isBuiltIn(tree.getChild(0).getValue().value)) {
+			generateCall(tree, false);
+			return;
+		}
+
+		int numChildren = tree.getNumberOfChildren();
+		if (token.type == Token.Type.SYMBOL && numChildren == 1 && "+".equals(token.value)) {
+			generateExpression(tree.getChild(0));
+			return;
+		}
+		if (token.type == Token.Type.SYMBOL && numChildren == 1 && "-".equals(token.value)) {
+			m.pushDouble(-1, classFile);
+			generateExpression(tree.getChild(0));
+			m.op(ClassFile.MethodWriter.DMUL, -2);
+			return;
+		}
+		String comparison = comparison(token.value);
+		int arithmetic = arithmetic(token.value);
+		if (token.type == Token.Type.SYMBOL && numChildren == 2
+				&& (comparison != null || arithmetic != 0)) {
+			generateExpression(tree.getChild(0));
+			generateExpression(tree.getChild(1));
+			if (comparison != null) {
+				invoke(ClassFile.MethodWriter.INVOKESTATIC, EXPRESSION, comparison, "(DD)D", -2);
+			} else {
+				m.op(arithmetic, -2);
+			}
+			return;
+		}
+
+		// Anything else is evaluated by an Expression
+		pushConstant("expressions", EXPRESSION, add(expressions, compiler.compileExpression(tree)));
+		m.local(ClassFile.MethodWriter.ALOAD, BUG_LOCAL);
+		invoke(ClassFile.MethodWriter.INVOKEVIRTUAL, EXPRESSION, "evaluate", "(L" + BUG + ";)D", 0);
+	}
+
+	private void generateLoad(Expression.Variable variable) {
+		if (variable instanceof Expression.X || variable instanceof Expression.Y
+				|| variable instanceof Expression.Angle) {
+			getField(BUG_LOCAL, BUG, coordinate(variable), "D");
+		} else if (variable instanceof Expression.Named) {
+			pushConstant("variables", VARIABLE, add(variables, variable));
+			m.local(ClassFile.MethodWriter.ALOAD, BUG_LOCAL);
+			invoke(ClassFile.MethodWriter.INVOKEVIRTUAL, VARIABLE, "evaluate", "(L" + BUG + ";)D", 0);
+		} else {
+			int slot = generateArray(variable);
+			m.pushInt(slot, classFile);
+			m.op(ClassFile.MethodWriter.DALOAD, 0);
+		}
+	}
+
+	/**
+	 * Pushes the array that holds a variable declared in the Bug, in the
+	 * Allbugs code or as a parameter.
+	 *
+	 * @return the variable's slot in the array
+	 */
+	private int generateArray(Expression.Variable variable) {
+		if (variable instanceof Expression.Field) {
+			getField(BUG_LOCAL, BUG, "fields", "[D");
+			return ((Expression.Field) variable).slot;
+		}
+		if (variable instanceof Expression.Local) {
+			getField(BUG_LOCAL, BUG, "frame", "[D");
+			return ((Expression.Local) variable).slot;
+		}
+		getField(BUG_LOCAL, BUG, "interpreter", "L" + INTERPRETER + ";");
+		getField(-1, INTERPRETER, "globals", "[D");
+		return ((Expression.Global) variable).slot;
+	}
+
+	/**
+	 * Generates a call to a user-defined function, in the same steps as
+	 * <code>Bug.callFunction</code>: the function is found first, then each
+	 * argument is computed and bound in turn, and then the body is executed.
+	 * A tail call leaves the function being executed instead, to be replaced
+	 * by the one called, and leaves nothing on the stack.
+	 */
+	private void generateCall(Tree<Token> tree, boolean tail) {
+		String funcName = tree.getChild(0).getValue().value;
+		Tree<Token> args = tree.getNumberOfChildren() > 1 ? tree.getChild(1) : null;
+		int numArgs = args == null ? 0 : args.getNumberOfChildren();
+		int function = newLocal(1);
+		int frame = newLocal(1);
+
+		pushConstant("calls", CALL_SITE, add(calls, new CallSite(funcName, numArgs)));
+		m.local(ClassFile.MethodWriter.ALOAD, BUG_LOCAL);
+		invoke(ClassFile.MethodWriter.INVOKEVIRTUAL, CALL_SITE, "lookup",
+				"(L" + BUG + ";)L" + FUNCTION + ";", -1);
+		m.local(ClassFile.MethodWriter.ASTORE, function);
+		getField(function, FUNCTION, "frameSize", "I");
+		m.op1(ClassFile.MethodWriter.NEWARRAY, ClassFile.MethodWriter.T_DOUBLE, 0);
+		m.local(ClassFile.MethodWriter.ASTORE, frame);
+
+		for (int i = 0; i < numArgs; i++) {
+			// Arguments are evaluated in the caller's frame
+			getField(function, FUNCTION, "parameters", "[L" + VARIABLE + ";");
+			m.pushInt(i, classFile);
+			m.op(ClassFile.MethodWriter.AALOAD, -1);
+			m.local(ClassFile.MethodWriter.ALOAD, BUG_LOCAL);
+			m.local(ClassFile.MethodWriter.ALOAD, frame);
+			generateExpression(args.getChild(i));
+			invoke(ClassFile.MethodWriter.INVOKEVIRTUAL, VARIABLE, "bind",
+					"(L" + BUG + ";[DD)V", -5);
+		}
+
+		m.local(ClassFile.MethodWriter.ALOAD, BUG_LOCAL);
+		m.local(ClassFile.MethodWriter.ALOAD, function);
+		m.local(ClassFile.MethodWriter.ALOAD, frame);
+		if (tail) {
+			invoke(ClassFile.MethodWriter.INVOKEVIRTUAL, BUG, "tailCall",
+					"(L" + FUNCTION + ";[D)V", -3);
+		} else {
+			invoke(ClassFile.MethodWriter.INVOKEVIRTUAL, BUG, "invoke",
+					"(L" + FUNCTION + ";[D)D", -1);
+		}
+	}
+
+	/**
+	 * Generates the constructor, which keeps the Expressions, Statements,
+	 * Variables and CallSites that the code uses.
+	 */
+	private void generateConstructor() {
+		String[] names = { "expressions", "statements", "variables", "calls" };
+		String[] types = { "[L" + EXPRESSION + ";", "[L" + STATEMENT + ";", "[L" + VARIABLE + ";",
+							"[L" + CALL_SITE + ";" };
+		ClassFile.MethodWriter init = classFile.addMethod(0, "<init>",
+				"(" + types[0] + types[1] + types[2] + types[3] + ")V", 5);
+		init.local(ClassFile.MethodWriter.ALOAD, THIS);
+		init.op2(ClassFile.MethodWriter.INVOKESPECIAL,
+				classFile.methodRef(STATEMENT, "<init>", "()V"), -1);
+		for (int i = 0; i < names.length; i++) {
+			classFile.addField(ClassFile.ACC_PRIVATE | ClassFile.ACC_FINAL, names[i], types[i]);
+			init.local(ClassFile.MethodWriter.ALOAD, THIS);
+			init.local(ClassFile.MethodWriter.ALOAD, i + 1);
+			init.op2(ClassFile.MethodWriter.PUTFIELD, classFile.fieldRef(NAME, names[i], types[i]), -2);
+		}
+		init.op(ClassFile.MethodWriter.RETURN, 0);
+	}
+
+	/**
+	 * Defines the class, as a hidden class of this package.
+	 */
+	private static Class<?> define(byte[] bytes) {
+		try {
+			Object lookup = DEFINE_HIDDEN_CLASS.invoke(MethodHandles.lookup(), bytes, false, NO_OPTIONS);
+			return ((MethodHandles.Lookup) lookup).lookupClass();
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException(e);
+		} catch (InvocationTargetException e) {
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	private Statement instantiate(Class<?> compiled) {
+		try {
+			return (Statement) compiled.getDeclaredConstructor(Expression[].class, Statement[].class,
+															Expression.Variable[].class, CallSite[].class)
+				.newInstance(expressions.toArray(new Expression[expressions.size()]),
+							statements.toArray(new Statement[statements.size()]),
+							variables.toArray(new Expression.Variable[variables.size()]),
+							calls.toArray(new CallSite[calls.size()]));
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Pushes one of the objects kept by the class.
+	 *
+	 * @param field the array the object is kept in
+	 * @param type the internal name of the type of the objects in the array
+	 * @param index the object's index in the array
+	 */
+	private void pushConstant(String field, String type, int index) {
+		m.local(ClassFile.MethodWriter.ALOAD, THIS);
+		getField(-1, NAME, field, "[L" + type + ";");
+		m.pushInt(index, classFile);
+		m.op(ClassFile.MethodWriter.AALOAD, -1);
+	}
+
+	/**
+	 * Pushes the value of a field.
+	 *
+	 * @param object the local variable holding the object, or -1 if it is
+	 *        already on the stack
+	 */
+	private void getField(int object, String owner, String name, String descriptor) {
+		if (object >= 0) m.local(ClassFile.MethodWriter.ALOAD, object);
+		int size = "D".equals(descriptor) ? 2 : 1;
+		m.op2(ClassFile.MethodWriter.GETFIELD, classFile.fieldRef(owner, name, descriptor), size - 1);
+	}
+
+	private void putField(String owner, String name, String descriptor) {
+		int size = "D".equals(descriptor) ? 2 : 1;
+		m.op2(ClassFile.MethodWriter.PUTFIELD, classFile.fieldRef(owner, name, descriptor), -1 - size);
+	}
+
+	private void invoke(int opcode, String owner, String name, String descriptor, int stackChange) {
+		m.op2(opcode, classFile.methodRef(owner, name, descriptor), stackChange);
+	}
+
+	private int newLocal(int size) {
+		int slot = nextLocal;
+		nextLocal += size;
+		return slot;
+	}
+
+	private static <T> int add(ArrayList<T> list, T item) {
+		list.add(item);
+		return list.size() - 1;
+	}
+
+	private static String coordinate(Expression.Variable variable) {
+		if (variable instanceof Expression.X) return "x";
+		if (variable instanceof Expression.Y) return "y";
+		return "angle";
+	}
+
+	private static String comparison(String operator) {
+		switch (operator) {
+		case "=":
+			return "equal";
+		case "!=":
+			return "notEqual";
+		case ">":
+			return "greater";
+		case "<":
+			return "less";
+		case ">=":
+			return "greaterEqual";
+		case "<=":
+			return "lessEqual";
+		}
+		return null;
+	}
+
+	private static int arithmetic(String operator) {
+		switch (operator) {
+		case "+":
+			return ClassFile.MethodWriter.DADD;
+		case "-":
+			return ClassFile.MethodWriter.DSUB;
+		case "*":
+			return ClassFile.MethodWriter.DMUL;
+		case "/":
+			return ClassFile.MethodWriter.DDIV;
+		}
+		return 0;
+	}
+}
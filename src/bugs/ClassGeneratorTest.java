@@ -0,0 +1,245 @@
+package bugs;
+
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import tree.Tree;
+
+public class ClassGeneratorTest {
+	Compiler compiler;
+	Interpreter interpreter;
+	Bug bug;
+
+	@Before
+	public void setUp() {
+		interpreter = new Interpreter();
+		interpreter.setBytecode(true);
+		bug = new Bug(interpreter);
+		compiler = new Compiler(bug);
+	}
+
+	@Test
+	public void testBlockIsCompiledIntoAClass() {
+		Statement s = compile("{\n"
+								+ "x = 3\n"
+							+ "}\n");
+		assertFalse(s instanceof Statement.Sequence);
+		assertFalse(s.execute(bug));
+		assertEquals(3, bug.x, 0);
+	}
+
+	@Test
+	public void testArithmeticAndComparisons() {
+		interpreter.declareGlobal("total");
+		bug.declare("a");
+		bug.declare("b");
+		compile("{\n"
+					+ "a = 5 * 3 + 8 / 4 - 7\n"
+					+ "b = (a = 10.0001) + (a != 10) * 2 + (a > 9) * 4 + (a <= 9.9999) * 8\n"
+					+ "total = -a + b\n"
+					+ "angle = (a < 10) + (a >= 10.0001) * 2\n"
+				+ "}\n").execute(bug);
+		assertEquals(10, bug.fetch("a"), 0);
+		assertEquals(13, bug.fetch("b"), 0);
+		assertEquals(3, bug.fetch("total"), 0);
+		assertEquals(2, bug.angle, 0);
+	}
+
+	@Test
+	public void testExitTakesEffectBetweenCommandsOfTheLoop() {
+		bug.declare("a");
+		bug.declare("b");
+		compile("{\n"
+					+ "loop {\n"
+						+ "a = a + 1\n"
+						+ "switch {\n"
+							+ "case a = 3\n"
+								+ "exit if 1\n"
+								+ "b = b + 10\n"
+						+ "}\n"
+						+ "b = b + 1\n"
+					+ "}\n"
+				+ "}\n").execute(bug);
+		assertEquals(3, bug.fetch("a"), 0);
+		assertEquals(12, bug.fetch("b"), 0);
+		assertEquals(0, bug.numLoops);
+	}
+
+	@Test
+	public void testSwitchChoosesCasesLikeStatements() {
+		bug.declare("a");
+		compile("{\n"
+					+ "switch {\n"
+						+ "case 1.0005\n"
+							+ "a = a + 1\n"
+						+ "case 0\n"
+							+ "a = a + 10\n"
+						+ "case 1\n"
+							+ "a = a + 100\n"
+						+ "case 1\n"
+							+ "a = a + 1000\n"
+					+ "}\n"
+				+ "}\n").execute(bug);
+		assertEquals(101, bug.fetch("a"), 0);
+	}
+
+	@Test
+	public void testFunctions() {
+		bug.declare("a");
+		bug.interpret(useFunction("define twice using n {\n"
+										+ "return 2 * n\n"
+									+ "}\n"));
+		bug.interpret(useFunction("define leave {\n"
+										+ "exit if 1\n"
+									+ "}\n"));
+		compile("{\n"
+					+ "a = twice(twice(3)) + 1\n"
+					+ "loop {\n"
+						+ "a = a + 1\n"
+						+ "do leave()\n"
+						+ "a = a + 100\n"
+					+ "}\n"
+				+ "}\n").execute(bug);
+		assertEquals(14, bug.fetch("a"), 0);
+		assertEquals(0, bug.numLoops);
+	}
+
+	@Test
+	public void testReturnInsideLoopLeavesFunction() {
+		bug.interpret(useFunction("define first using n {\n"
+										+ "loop {\n"
+											+ "loop {\n"
+												+ "x = x + 1\n"
+												+ "switch {\n"
+													+ "case x > n\n"
+														+ "return x\n"
+												+ "}\n"
+											+ "}\n"
+										+ "}\n"
+									+ "}\n"));
+		assertEquals(6, bug.evaluate(useExpression("first(5)")), 0);
+		assertEquals(0, bug.numLoops);
+		assertFalse(bug.afterFuncReturn);
+	}
+
+	@Test
+	public void testExitOutsideLoopFails() {
+		Statement s = compile("{\n"
+								+ "exit if 1\n"
+							+ "}\n");
+		try {
+			s.execute(bug);
+			fail();
+		} catch (RuntimeException e) {
+			assertEquals("No loop to exit from", e.getMessage());
+		}
+	}
+
+	@Test
+	public void testRunSameAsCooperative() {
+		String program = "Allbugs {\n"
+							+ "var total\n"
+						+ "}\n"
+						+ "Bug Sally {\n"
+							+ "var n\n"
+							+ "loop {\n"
+								+ "n = n + 1\n"
+								+ "total = total + half(n)\n"
+								+ "exit if n = 4\n"
+								+ "moveto n * 10, total\n"
+							+ "}\n"
+							+ "line 0, 0, n, total\n"
+							+ "define half using m {\n"
+								+ "return m / 2\n"
+							+ "}\n"
+						+ "}\n";
+		Interpreter bytecode = run(program, false);
+		Interpreter cooperative = run(program, true);
+		assertEquals(cooperative.commands.size(), bytecode.commands.size());
+		for (int i = 0; i < cooperative.commands.size(); i++) {
+			assertEquals(cooperative.commands.get(i).x2, bytecode.commands.get(i).x2, 0);
+			assertEquals(cooperative.commands.get(i).y2, bytecode.commands.get(i).y2, 0);
+		}
+		assertEquals(5, bytecode.globals[0], 0);
+	}
+
+	@Test
+	public void testDeepRecursionAndTailCalls() {
+		bug.declare("a");
+		bug.interpret(useFunction("define sum using n {\n"
+										+ "switch {\n"
+											+ "case n = 0\n"
+												+ "return 0\n"
+										+ "}\n"
+										+ "return n + sum(n - 1)\n"
+									+ "}\n"));
+		bug.interpret(useFunction("define count using n, total {\n"
+										+ "switch {\n"
+											+ "case n = 0\n"
+												+ "return total\n"
+										+ "}\n"
+										+ "return count(n - 1, total + n)\n"
+									+ "}\n"));
+		Statement s = compile("{\n"
+								+ "a = sum(5000) + count(10000, 0)\n"
+							+ "}\n");
+		s.execute(bug);
+		assertEquals(12502500 + 50005000, bug.fetch("a"), 0);
+		assertEquals(1, bug.scopes.size());
+
+		interpreter.setMaxCallDepth(50);
+		s = compile("{\n"
+								+ "a = sum(50)\n"
+							+ "}\n");
+		try {
+			s.execute(bug);
+			fail();
+		} catch (RuntimeException e) {
+			assertEquals("Too many function calls in progress", e.getMessage());
+		}
+	}
+
+//	--------------- Helper methods ------------------
+
+	private Statement compile(String block) {
+		Parser p = new Parser(block);
+		if (p.isBlock()) {
+			return compiler.compileBlock(p.stack.pop());
+		} else {
+			throw new IllegalArgumentException("Input is not a valid block");
+		}
+	}
+
+	private Interpreter run(String program, boolean cooperative) {
+		Interpreter i = new Interpreter();
+		i.setCooperative(cooperative);
+		i.setBytecode(!cooperative);
+		i.program = program;
+		i.parseProgram();
+		i.checkProgram();
+		i.interpretAllbugs();
+		i.initializeBugs();
+		i.runToCompletion();
+		return i;
+	}
+
+	private Tree<Token> useExpression(String expression) {
+		Parser p = new Parser(expression);
+		if (p.isExpression()) {
+			return p.stack.pop();
+		} else {
+			throw new IllegalArgumentException("Input is not a valid expression");
+		}
+	}
+
+	private Tree<Token> useFunction(String func) {
+		Parser p = new Parser(func);
+		if (p.isFunctionDefinition()) {
+			return p.stack.pop();
+		} else {
+			throw new IllegalArgumentException("Input is not a valid function definition");
+		}
+	}
+}
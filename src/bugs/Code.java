@@ -0,0 +1,26 @@
+package bugs;
+
+/**
+ * A block of Bugs code compiled into a flat list of instructions, together
+ * with the amount of space a <code>Continuation</code> needs to run it.
+ *
+ * @author Anders Schneider
+ */
+final class Code {
+	final Instruction[] instructions;
+	final int frameSize;
+	final int loopCount;
+
+	/**
+	 * Constructs a block of compiled code.
+	 *
+	 * @param instructions the instructions, ending with one that leaves the block
+	 * @param frameSize the number of slots needed for parameters and temporary values
+	 * @param loopCount the greatest number of loops nested inside one another
+	 */
+	Code(Instruction[] instructions, int frameSize, int loopCount) {
+		this.instructions = instructions;
+		this.frameSize = frameSize;
+		this.loopCount = loopCount;
+	}
+}
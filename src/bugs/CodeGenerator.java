@@ -0,0 +1,393 @@
+package bugs;
+
+import java.util.ArrayList;
+
+import tree.Tree;
+
+/**
+ * Compiles a block of Bugs code into the flat list of instructions run by a
+ * <code>Continuation</code>. Loops and switch statements become jumps, and
+ * every call to a user-defined function becomes an instruction of its own:
+ * a call inside an expression is made first, its value is kept in a
+ * temporary slot of the frame, and the expression reads it from there. Any
+ * part of the expression that the tree-walking interpreter would have
+ * evaluated before the call is also kept in a temporary slot, so that values
+ * are computed in the same order as before.
+ *
+ * @author Anders Schneider
+ */
+class CodeGenerator {
+	private Compiler compiler;
+	private ArrayList<Instruction> instructions;
+	private int nextTemporary;
+	private int frameSize;
+	private int loopDepth;
+	private int loopCount;
+
+	/**
+	 * Constructs a CodeGenerator.
+	 *
+	 * @param compiler the Compiler used for expressions and simple statements
+	 * @param firstTemporary the first slot of the frame that is not a parameter
+	 */
+	CodeGenerator(Compiler compiler, int firstTemporary) {
+		this.compiler = compiler;
+		instructions = new ArrayList<Instruction>();
+		nextTemporary = firstTemporary;
+		frameSize = firstTemporary;
+	}
+
+	/**
+	 * Generates the instructions for a block of code.
+	 *
+	 * @param tree the block
+	 * @return the compiled code
+	 */
+	Code generate(Tree<Token> tree) {
+		generateStatement(tree);
+		instructions.add(new Instruction.End());
+		return new Code(instructions.toArray(new Instruction[instructions.size()]),
+						frameSize, loopCount);
+	}
+
+	/**
+	 * Generates the instructions for a command, block or list of commands.
+	 *
+	 * @param tree the tree to compile
+	 */
+	private void generateStatement(Tree<Token> tree) {
+		String value = tree.getValue().value;
+		// Temporary values do not outlive the command that needs them
+		int mark = nextTemporary;
+
+		switch (value) {
+		case "list":
+		case "block":
+			for (int i = 0; i < tree.getNumberOfChildren(); i++) {
+				generateStatement(tree.getChild(i));
+			}
+			break;
+		case "initially":
+			generateStatement(tree.getChild(0));
+			break;
+		case "move":
+		case "moveto":
+		case "turn":
+		case "turnto":
+		case "line":
+			generateAction(tree);
+			break;
+		case "return":
+			if (compiler.isTailCall(tree, loopDepth > 0)) {
+				generateTailCall(tree.getChild(0));
+			} else {
+				emit(new Instruction.Return(flatten(tree.getChild(0)), loopDepth > 0 ? 0 : -1));
+			}
+			break;
+		case "assign":
+			Expression.Variable variable = compiler.resolve(tree.getChild(0).getValue().value);
+			emit(new Instruction.Perform(new Statement.Assign(variable, flatten(tree.getChild(1)))));
+			break;
+		case "loop":
+			generateLoop(tree);
+			break;
+		case "exit":
+			emit(new Instruction.Perform(new Statement.Exit(flatten(tree.getChild(0)))));
+			break;
+		case "switch":
+			generateSwitch(tree);
+			break;
+		case "call":
+			// A do statement
+			generateCall(tree, -1);
+			break;
+		default:
+			emit(new Instruction.Perform(compiler.compileStatement(tree)));
+		}
+
+		nextTemporary = mark;
+	}
+
+	/**
+	 * Generates an action. The Bug waits for permission before the
+	 * expressions of the action are evaluated.
+	 *
+	 * @param tree the action
+	 */
+	private void generateAction(Tree<Token> tree) {
+		emit(new Instruction.AwaitPermission());
+		Expression[] args = flattenAll(tree, 0);
+
+		Statement.Action action;
+		switch (tree.getValue().value) {
+		case "move":
+			action = new Statement.Move(args[0]);
+			break;
+		case "moveto":
+			action = new Statement.Moveto(args[0], args[1]);
+			break;
+		case "turn":
+			action = new Statement.Turn(args[0]);
+			break;
+		case "turnto":
+			action = new Statement.Turnto(args[0]);
+			break;
+		default:
+			action = new Statement.Line(args[0], args[1], args[2], args[3]);
+		}
+		emit(new Instruction.Act(action));
+	}
+
+	/**
+	 * Generates a loop. Like the tree-walking interpreter, the loop checks
+	 * whether it has been exited between the commands of its block, but only
+	 * after a command that may exit it: one that contains an "exit if" or
+	 * calls a function.
+	 *
+	 * @param tree the loop
+	 */
+	private void generateLoop(Tree<Token> tree) {
+		int slot = loopDepth++;
+		loopCount = Math.max(loopCount, loopDepth);
+
+		emit(new Instruction.EnterLoop(slot));
+		int start = instructions.size();
+		Tree<Token> block = tree.getChild(0);
+		int numCommands = block.getNumberOfChildren();
+		ArrayList<Instruction.Jump> exits = new ArrayList<Instruction.Jump>();
+		for (int i = 0; i < numCommands; i++) {
+			// The last command is checked after going round, as it was before
+			if (mayExit(block.getChild(i == 0 ? numCommands - 1 : i - 1), false)) {
+				Instruction.CheckLoop check = new Instruction.CheckLoop(slot);
+				exits.add(check);
+				emit(check);
+			}
+			generateStatement(block.getChild(i));
+		}
+		emit(new Instruction.Repeat(start));
+		patch(exits);
+
+		loopDepth--;
+	}
+
+	/**
+	 * Generates a switch statement. The value of each case's condition is
+	 * kept while its commands are executed, since a value that is true but
+	 * not exactly 1 does not end the switch statement.
+	 *
+	 * @param tree the switch statement
+	 */
+	private void generateSwitch(Tree<Token> tree) {
+		ArrayList<Instruction.Jump> exits = new ArrayList<Instruction.Jump>();
+
+		for (int i = 0; i < tree.getNumberOfChildren(); i++) {
+			Tree<Token> caseTree = tree.getChild(i);
+			int slot = newTemporary();
+			emit(new Instruction.Spill(slot, flatten(caseTree.getChild(0))));
+			Expression condition = new Expression.Local(slot);
+
+			Instruction.Jump skip = new Instruction.JumpUnlessTrue(condition);
+			emit(skip);
+			for (int j = 1; j < caseTree.getNumberOfChildren(); j++) {
+				generateStatement(caseTree.getChild(j));
+			}
+			Instruction.Jump exit = new Instruction.JumpIfOne(condition);
+			exits.add(exit);
+			emit(exit);
+			skip.target = instructions.size();
+
+			nextTemporary = slot;
+		}
+		patch(exits);
+	}
+
+	/**
+	 * Generates a call to a user-defined function.
+	 *
+	 * @param tree a tree whose root is "call"
+	 * @param result the slot the returned value is kept in, or -1 to ignore it
+	 */
+	private void generateCall(Tree<Token> tree, int result) {
+		String funcName = tree.getChild(0).getValue().value;
+		if (isBuiltIn(funcName)) {
+			// Has no effect unless it fails
+			emit(new Instruction.Perform(new Statement.Do(compiler.compileExpression(tree))));
+			return;
+		}
+
+		if (tree.getNumberOfChildren() < 2) {
+			emit(new Instruction.Call(new CallSite(funcName, 0), new Expression[0], result));
+			return;
+		}
+
+		Tree<Token> args = tree.getChild(1);
+		CallSite site = new CallSite(funcName, args.getNumberOfChildren());
+		if (containsCall(args)) {
+			emit(new Instruction.CheckCall(site));
+		}
+		emit(new Instruction.Call(site, flattenAll(args, 0), result));
+	}
+
+	/**
+	 * Generates the call in a return statement that is a tail call, which
+	 * replaces the function returning.
+	 *
+	 * @param tree a tree whose root is "call"
+	 */
+	private void generateTailCall(Tree<Token> tree) {
+		String funcName = tree.getChild(0).getValue().value;
+		if (tree.getNumberOfChildren() < 2) {
+			emit(new Instruction.TailCall(new CallSite(funcName, 0), new Expression[0]));
+			return;
+		}
+
+		Tree<Token> args = tree.getChild(1);
+		CallSite site = new CallSite(funcName, args.getNumberOfChildren());
+		if (containsCall(args)) {
+			emit(new Instruction.CheckCall(site));
+		}
+		emit(new Instruction.TailCall(site, flattenAll(args, 0)));
+	}
+
+	/**
+	 * Compiles an expression, first generating instructions for any calls
+	 * to user-defined functions it contains.
+	 *
+	 * @param tree an expression tree
+	 * @return the compiled expression, which contains no calls
+	 */
+	private Expression flatten(Tree<Token> tree) {
+		if (!containsCall(tree)) {
+			return compiler.compileExpression(tree);
+		}
+
+		String value = tree.getValue().value;
+		if ("call".equals(value)) {
+			int slot = newTemporary();
+			generateCall(tree, slot);
+			return new Expression.Local(slot);
+		}
+
+		Expression[] operands = flattenAll(tree, 0);
+		Expression result = null;
+		if (operands.length == 1) {
+			result = Compiler.unary(value, operands[0]);
+		} else if (operands.length == 2) {
+			result = Compiler.binary(value, operands[0], operands[1]);
+		}
+		if (result == null) {
+			throw new IllegalArgumentException("Unable to evaluate this tree. Root node has value: "
+																					+ value);
+		}
+		return result;
+	}
+
+	/**
+	 * Compiles the children of a tree, in order, keeping the value of each
+	 * one that is followed by a call in a temporary slot.
+	 *
+	 * @param tree the parent of the expressions
+	 * @param first the index of the first child to compile
+	 * @return the compiled expressions
+	 */
+	private Expression[] flattenAll(Tree<Token> tree, int first) {
+		Expression[] result = new Expression[tree.getNumberOfChildren() - first];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = flatten(tree.getChild(first + i));
+			if (callFollows(tree, first + i + 1)) {
+				result[i] = spill(result[i]);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Keeps the value of an expression in a temporary slot, unless it cannot
+	 * be changed by calling a function.
+	 *
+	 * @param expression the compiled expression
+	 * @return an expression reading the kept value
+	 */
+	private Expression spill(Expression expression) {
+		// A function cannot change a constant, or a variable of its caller's frame
+		if (expression instanceof Expression.Constant || expression instanceof Expression.Local) {
+			return expression;
+		}
+		int slot = newTemporary();
+		emit(new Instruction.Spill(slot, expression));
+		return new Expression.Local(slot);
+	}
+
+	/**
+	 * Tells whether any of the children of a tree, from the given one on,
+	 * contains a call.
+	 *
+	 * @param tree the parent
+	 * @param from the index of the first child to look at
+	 * @return true if a call follows
+	 */
+	static boolean callFollows(Tree<Token> tree, int from) {
+		for (int i = from; i < tree.getNumberOfChildren(); i++) {
+			if (containsCall(tree.getChild(i))) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Tells whether an expression tree contains a call to a user-defined function.
+	 *
+	 * @param tree an expression tree
+	 * @return true if a user-defined function may be called
+	 */
+	static boolean containsCall(Tree<Token> tree) {
+		if ("call".equals(tree.getValue().value)
+				&& !isBuiltIn(tree.getChild(0).getValue().value)) {
+			return true;
+		}
+		return callFollows(tree, 0);
+	}
+
+	/**
+	 * Tells whether a command may exit the loop it is in, or, if returns
+	 * are counted too, leave the function it is in.
+	 *
+	 * @param tree a command tree
+	 * @param returns true if a return statement counts as well
+	 * @return true if the command contains an "exit if", a return that
+	 *         counts, or a call to a user-defined function
+	 */
+	static boolean mayExit(Tree<Token> tree, boolean returns) {
+		String value = tree.getValue().value;
+		if ("exit".equals(value) || (returns && "return".equals(value))) return true;
+		if ("call".equals(value) && !isBuiltIn(tree.getChild(0).getValue().value)) return true;
+		for (int i = 0; i < tree.getNumberOfChildren(); i++) {
+			if (mayExit(tree.getChild(i), returns)) return true;
+		}
+		return false;
+	}
+
+	static boolean isBuiltIn(String funcName) {
+		return "distance".equals(funcName) || "direction".equals(funcName);
+	}
+
+	private int newTemporary() {
+		int slot = nextTemporary++;
+		frameSize = Math.max(frameSize, nextTemporary);
+		return slot;
+	}
+
+	private void emit(Instruction instruction) {
+		instructions.add(instruction);
+	}
+
+	/**
+	 * Makes each of the given jumps go to the next instruction to be generated.
+	 *
+	 * @param jumps the jumps
+	 */
+	private void patch(ArrayList<Instruction.Jump> jumps) {
+		for (int i = 0; i < jumps.size(); i++) {
+			jumps.get(i).target = instructions.size();
+		}
+	}
+}
@@ -0,0 +1,263 @@
+package bugs;
+
+import java.awt.Color;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The lines drawn by the Bugs, in the order they were drawn. Any number of
+ * Bug threads may add lines at the same time, without locking, while the
+ * View reads them.
+ * <p>
+ * The lines are not kept as <code>Command</code> objects, but in columns of
+ * primitive values: the four coordinates, the color, the Bug that drew the
+ * line and the round it was drawn in. The columns are kept in chunks that
+ * are never moved or copied: the first chunk holds 1024 lines, and each
+ * chunk after that is twice the size of the one before. Adding a line
+ * reserves an index, fills in the columns and then publishes the line. The
+ * published size only counts lines whose index and every index before it
+ * have been filled in, so a reader never sees a gap, and a line that has
+ * been published never changes.
+ * <p>
+ * Lines are read with a <code>Cursor</code>, which does not create an object
+ * for each line.
+ *
+ * @author Anders Schneider
+ */
+class CommandLog {
+	private static final int FIRST_CHUNK_BITS = 10;
+	private static final int FIRST_CHUNK_SIZE = 1 << FIRST_CHUNK_BITS;
+	private static final int MAX_CHUNKS = 32 - FIRST_CHUNK_BITS;
+	private static final int CAPACITY = Integer.MAX_VALUE - FIRST_CHUNK_SIZE;
+
+	// A Bug with no color draws lines that cannot be seen
+	static final int NO_COLOR = 0;
+
+	private final AtomicReferenceArray<Chunk> chunks = new AtomicReferenceArray<Chunk>(MAX_CHUNKS);
+	private final AtomicInteger reserved = new AtomicInteger();
+	private final AtomicInteger published = new AtomicInteger();
+
+	/**
+	 * One chunk of each column. A line's Bug is stored last, as one more than
+	 * the Bug's id, so that a line has been filled in once its Bug is not 0.
+	 */
+	private static final class Chunk {
+		final float[] x1, y1, x2, y2;
+		final int[] color;
+		final int[] round;
+		final AtomicIntegerArray bug;
+
+		Chunk(int size) {
+			x1 = new float[size];
+			y1 = new float[size];
+			x2 = new float[size];
+			y2 = new float[size];
+			color = new int[size];
+			round = new int[size];
+			bug = new AtomicIntegerArray(size);
+		}
+	}
+
+	/**
+	 * Adds a line to the end of the log.
+	 *
+	 * @param x1 the x coordinate the line starts at
+	 * @param y1 the y coordinate the line starts at
+	 * @param x2 the x coordinate the line ends at
+	 * @param y2 the y coordinate the line ends at
+	 * @param color the color of the line, or null if the Bug has no color
+	 * @param bugId the id of the Bug that drew the line
+	 * @param round the round the line was drawn in
+	 */
+	void add(double x1, double y1, double x2, double y2, Color color, int bugId, int round) {
+		if (bugId < 0) {
+			throw new IllegalArgumentException("Bug id must not be negative");
+		}
+		int index = reserved.getAndIncrement();
+		if (index < 0 || index >= CAPACITY) {
+			throw new RuntimeException("Too many drawing commands");
+		}
+		Chunk chunk = chunkFor(index);
+		int i = offset(index);
+		chunk.x1[i] = (float) x1;
+		chunk.y1[i] = (float) y1;
+		chunk.x2[i] = (float) x2;
+		chunk.y2[i] = (float) y2;
+		chunk.color[i] = color == null ? NO_COLOR : color.getRGB();
+		chunk.round[i] = round;
+		chunk.bug.set(i, bugId + 1);
+
+		// Publishes this line, and any later ones that were filled in while
+		// waiting for this one. Whichever of two neighbouring lines is filled
+		// in last sees the other, so no line is left unpublished.
+		int size = published.get();
+		while (size < reserved.get() && chunkFor(size).bug.get(offset(size)) != 0) {
+			published.compareAndSet(size, size + 1);
+			size = published.get();
+		}
+	}
+
+	/**
+	 * @return the number of lines that have been published
+	 */
+	int size() {
+		return published.get();
+	}
+
+	/**
+	 * Returns a published line as a <code>Command</code>. This creates a new
+	 * object each time; to read many lines, use a <code>Cursor</code>.
+	 *
+	 * @param index the index of the line
+	 * @return the line
+	 */
+	Command get(int index) {
+		Cursor cursor = new Cursor(index, published.get());
+		if (!cursor.next()) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + cursor.end);
+		}
+		return new Command(cursor.x1(), cursor.y1(), cursor.x2(), cursor.y2(), cursor.color());
+	}
+
+	/**
+	 * Returns a cursor over all the lines published so far.
+	 *
+	 * @return a cursor positioned before the first line
+	 */
+	Cursor cursor() {
+		return cursor(0);
+	}
+
+	/**
+	 * Returns a cursor over the lines published so far, starting with the one
+	 * at the given index. Lines published later are not seen by the cursor.
+	 *
+	 * @param from the index of the first line to read
+	 * @return a cursor positioned before that line
+	 */
+	Cursor cursor(int from) {
+		if (from < 0) {
+			throw new IndexOutOfBoundsException("Index: " + from);
+		}
+		return new Cursor(from, published.get());
+	}
+
+	/**
+	 * Returns the chunk that holds the line with the given index, creating it
+	 * if no other thread has yet.
+	 */
+	private Chunk chunkFor(int index) {
+		int number = chunk(index);
+		Chunk chunk = chunks.get(number);
+		if (chunk == null) {
+			chunks.compareAndSet(number, null, new Chunk(FIRST_CHUNK_SIZE << number));
+			chunk = chunks.get(number);
+		}
+		return chunk;
+	}
+
+	private static int chunk(int index) {
+		int position = index + FIRST_CHUNK_SIZE;
+		return 31 - Integer.numberOfLeadingZeros(position) - FIRST_CHUNK_BITS;
+	}
+
+	private static int offset(int index) {
+		int position = index + FIRST_CHUNK_SIZE;
+		return position - Integer.highestOneBit(position);
+	}
+
+	/**
+	 * Reads the lines of a <code>CommandLog</code> one at a time. The values of
+	 * the current line are read with the accessors, after <code>next()</code>
+	 * has returned true.
+	 */
+	class Cursor {
+		private int index;
+		private final int end;
+		private Chunk chunk;
+		private int offset;
+
+		private Cursor(int from, int end) {
+			this.index = from - 1;
+			this.end = end;
+		}
+
+		/**
+		 * Moves to the next line.
+		 *
+		 * @return false if there are no more lines
+		 */
+		boolean next() {
+			if (index + 1 >= end) {
+				return false;
+			}
+			index++;
+			if (chunk == null || offset + 1 == chunk.x1.length) {
+				chunk = chunks.get(chunk(index));
+			}
+			offset = offset(index);
+			return true;
+		}
+
+		/**
+		 * @return the index of the current line
+		 */
+		int index() {
+			return index;
+		}
+
+		/**
+		 * @return the index just past the last line this cursor will read
+		 */
+		int end() {
+			return end;
+		}
+
+		double x1() {
+			return chunk.x1[offset];
+		}
+
+		double y1() {
+			return chunk.y1[offset];
+		}
+
+		double x2() {
+			return chunk.x2[offset];
+		}
+
+		double y2() {
+			return chunk.y2[offset];
+		}
+
+		/**
+		 * @return the color of the current line, as from <code>Color.getRGB()</code>,
+		 * or NO_COLOR, which is completely transparent
+		 */
+		int rgb() {
+			return chunk.color[offset];
+		}
+
+		/**
+		 * @return the color of the current line, or null if it has none; this
+		 * creates a new object
+		 */
+		Color color() {
+			return rgb() == NO_COLOR ? null : new Color(rgb(), true);
+		}
+
+		/**
+		 * @return the id of the Bug that drew the current line
+		 */
+		int bugId() {
+			return chunk.bug.get(offset) - 1;
+		}
+
+		/**
+		 * @return the round the current line was drawn in
+		 */
+		int round() {
+			return chunk.round[offset];
+		}
+	}
+}
@@ -0,0 +1,123 @@
+package bugs;
+
+import static org.junit.Assert.*;
+
+import java.awt.Color;
+
+import org.junit.Test;
+
+public class CommandLogTest {
+
+	@Test
+	public void testAddAndGet() {
+		CommandLog log = new CommandLog();
+		assertEquals(0, log.size());
+		// Enough to fill the first few chunks
+		for (int i = 0; i < 10000; i++) {
+			log.add(i, 0, 0, 0, Color.black, 0, 1);
+		}
+		assertEquals(10000, log.size());
+		for (int i = 0; i < 10000; i++) {
+			assertEquals(i, log.get(i).x1, 0);
+		}
+	}
+
+	@Test(expected=IndexOutOfBoundsException.class)
+	public void testGetPastEnd() {
+		CommandLog log = new CommandLog();
+		log.add(0, 0, 0, 0, Color.black, 0, 1);
+		log.get(1);
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testNegativeBugId() {
+		new CommandLog().add(0, 0, 0, 0, Color.black, -1, 1);
+	}
+
+	@Test
+	public void testCursor() {
+		CommandLog log = new CommandLog();
+		log.add(1, 2, 3, 4, Color.red, 7, 1);
+		log.add(5, 6, 7, 8, null, 3, 2);
+		CommandLog.Cursor cursor = log.cursor();
+		log.add(0, 0, 0, 0, Color.blue, 0, 3);
+
+		assertTrue(cursor.next());
+		assertEquals(0, cursor.index());
+		assertEquals(1, cursor.x1(), 0);
+		assertEquals(2, cursor.y1(), 0);
+		assertEquals(3, cursor.x2(), 0);
+		assertEquals(4, cursor.y2(), 0);
+		assertEquals(Color.red.getRGB(), cursor.rgb());
+		assertEquals(Color.red, cursor.color());
+		assertEquals(7, cursor.bugId());
+		assertEquals(1, cursor.round());
+
+		assertTrue(cursor.next());
+		assertEquals(CommandLog.NO_COLOR, cursor.rgb());
+		assertNull(cursor.color());
+		assertEquals(3, cursor.bugId());
+		assertEquals(2, cursor.round());
+		// The line added after the cursor was made is not seen
+		assertFalse(cursor.next());
+
+		cursor = log.cursor(2);
+		assertTrue(cursor.next());
+		assertEquals(Color.blue, cursor.color());
+		assertFalse(cursor.next());
+	}
+
+	@Test
+	public void testCursorDoesNotSeeLaterLines() {
+		CommandLog log = new CommandLog();
+		for (int i = 0; i < 1000; i++) {
+			log.add(i, 0, 0, 0, Color.black, 0, 1);
+		}
+		CommandLog.Cursor cursor = log.cursor();
+		for (int i = 0; i < 5000; i++) {
+			log.add(-1, 0, 0, 0, Color.black, 0, 1);
+		}
+		int count = 0;
+		while (cursor.next()) {
+			assertEquals(count, cursor.x1(), 0);
+			count++;
+		}
+		assertEquals(1000, count);
+		assertEquals(6000, log.size());
+	}
+
+	@Test
+	public void testConcurrentAdds() throws InterruptedException {
+		final CommandLog log = new CommandLog();
+		final int perThread = 20000;
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			final int id = t;
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					for (int i = 0; i < perThread; i++) {
+						log.add(0, i, 0, 0, Color.black, id, 1);
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (int t = 0; t < threads.length; t++) {
+			threads[t].join();
+		}
+
+		assertEquals(threads.length * perThread, log.size());
+		// Each thread's commands are all there, in the order it added them
+		int[] next = new int[threads.length];
+		CommandLog.Cursor cursor = log.cursor();
+		while (cursor.next()) {
+			int id = cursor.bugId();
+			assertEquals(next[id], cursor.y1(), 0);
+			next[id]++;
+		}
+		for (int t = 0; t < threads.length; t++) {
+			assertEquals(perThread, next[t]);
+		}
+	}
+}
@@ -0,0 +1,483 @@
+package bugs;
+
+import java.awt.Color;
+import java.util.HashMap;
+
+import tree.Tree;
+
+/**
+ * Translates the trees built by the <code>Parser</code> into executable
+ * <code>Statement</code>s and <code>Expression</code>s. All of the decisions
+ * that depend on the text of a node (which operator it is, which command it
+ * is, which color is named) are made here, once, so that the Bug threads
+ * never have to compare strings while they run.
+ *
+ * @author Anders Schneider
+ */
+class Compiler {
+	// The color each name stands for; "none" stands for no color at all
+	private static final HashMap<String, Color> COLORS = new HashMap<String, Color>();
+	static {
+		COLORS.put("black", Color.black);
+		COLORS.put("blue", Color.blue);
+		COLORS.put("cyan", Color.cyan);
+		COLORS.put("darkGray", Color.darkGray);
+		COLORS.put("gray", Color.gray);
+		COLORS.put("green", Color.green);
+		COLORS.put("lightGray", Color.lightGray);
+		COLORS.put("magenta", Color.magenta);
+		COLORS.put("orange", Color.orange);
+		COLORS.put("pink", Color.pink);
+		COLORS.put("red", Color.red);
+		COLORS.put("white", Color.white);
+		COLORS.put("yellow", Color.yellow);
+		COLORS.put("brown", new Color(139, 69, 19));
+		COLORS.put("purple", new Color(128, 0, 128));
+		COLORS.put("none", null);
+	}
+
+	private Bug bug;
+	private HashMap<String, Integer> locals;
+	private int loopDepth;
+
+	/**
+	 * Constructs a Compiler that resolves variable names for the given Bug.
+	 *
+	 * @param bug the Bug whose code is being compiled
+	 */
+	Compiler(Bug bug) {
+		this.bug = bug;
+	}
+
+	/**
+	 * Compiles a tree representing an expression.
+	 *
+	 * @param tree an expression tree
+	 * @return the executable form of the expression
+	 * @throws IllegalArgumentException if the tree is not an expression
+	 */
+	Expression compileExpression(Tree<Token> tree) {
+		String value = tree.getValue().value;
+		Token.Type type = tree.getValue().type;
+
+		if (Token.Type.NUMBER.equals(type)) {
+			return new Expression.Constant(tree.getValue().number);
+		}
+
+		if (Token.Type.NAME.equals(type)) {
+			return resolve(value);
+		}
+
+		if ("call".equals(value)) {
+			return compileCall(tree);
+		}
+
+		if (".".equals(value)) {
+			String otherBugName = tree.getChild(0).getValue().value;
+			String otherBugVar = tree.getChild(1).getValue().value;
+			Checker.BugScope other = otherBugScope(otherBugName);
+			Expression.Variable variable = other == null ? null : resolveIn(other, otherBugVar);
+			if (variable != null) {
+				return new Expression.DotVariable(otherBugName, other.index, variable);
+			}
+			return new Expression.DotFetch(otherBugName, otherBugVar);
+		}
+
+		int numChildren = tree.getNumberOfChildren();
+		Expression result = null;
+
+		if (numChildren == 1) {
+			result = unary(value, compileExpression(tree.getChild(0)));
+		}
+
+		if (numChildren == 2) {
+			result = binary(value, compileExpression(tree.getChild(0)),
+									compileExpression(tree.getChild(1)));
+		}
+
+		if (result != null) {
+			return result;
+		}
+		throw new IllegalArgumentException("Unable to evaluate this tree. Root node has value: " + value);
+	}
+
+	/**
+	 * Applies a unary operator to an already compiled operand.
+	 *
+	 * @param operator "+" or "-"
+	 * @param operand the compiled operand
+	 * @return the compiled expression, or null if the operator is not unary
+	 */
+	static Expression unary(String operator, Expression operand) {
+		if ("+".equals(operator)) return operand;
+		if ("-".equals(operator)) return new Expression.Negate(operand);
+		return null;
+	}
+
+	/**
+	 * Applies a binary operator to already compiled operands.
+	 *
+	 * @param operator an arithmetic or comparison operator
+	 * @param left the compiled left operand
+	 * @param right the compiled right operand
+	 * @return the compiled expression, or null if the operator is not binary
+	 */
+	static Expression binary(String operator, Expression left, Expression right) {
+		switch (operator) {
+		case "+":
+			return new Expression.Add(left, right);
+		case "-":
+			return new Expression.Subtract(left, right);
+		case "*":
+			return new Expression.Multiply(left, right);
+		case "/":
+			return new Expression.Divide(left, right);
+		case "=":
+			return new Expression.Equal(left, right);
+		case "!=":
+			return new Expression.NotEqual(left, right);
+		case ">":
+			return new Expression.Greater(left, right);
+		case "<":
+			return new Expression.Less(left, right);
+		case ">=":
+			return new Expression.GreaterEqual(left, right);
+		case "<=":
+			return new Expression.LessEqual(left, right);
+		}
+		return null;
+	}
+
+	/**
+	 * Compiles a call tree, recognizing the special distance and direction
+	 * functions.
+	 *
+	 * @param tree a tree whose root is "call"
+	 * @return the executable form of the call
+	 */
+	private Expression compileCall(Tree<Token> tree) {
+		String funcName = tree.getChild(0).getValue().value;
+		Tree<Token> args = tree.getNumberOfChildren() > 1 ? tree.getChild(1) : null;
+		int numArgs = args == null ? 0 : args.getNumberOfChildren();
+
+		// Checks for special distance/direction functions
+		if ("distance".equals(funcName) || "direction".equals(funcName)) {
+			if (numArgs != 1) {
+				return new Expression.Failure(funcName + " function takes exactly one input parameter");
+			}
+			String otherBugName = args.getChild(0).getValue().value;
+			Checker.BugScope other = otherBugScope(otherBugName);
+			int index = other == null ? -1 : other.index;
+			if ("distance".equals(funcName)) {
+				return new Expression.Distance(otherBugName, index);
+			}
+			return new Expression.Direction(otherBugName, index);
+		}
+
+		Expression[] arguments = new Expression[numArgs];
+		for (int i = 0; i < numArgs; i++) {
+			arguments[i] = compileExpression(args.getChild(i));
+		}
+		return new Expression.Call(funcName, arguments);
+	}
+
+	/**
+	 * Compiles any tree that represents a command, a block, a list of
+	 * commands, a declaration or a function definition. Trees that the
+	 * interpreter has no use for compile to a statement that does nothing.
+	 *
+	 * @param tree the tree to compile
+	 * @return the executable form of the tree
+	 */
+	Statement compileStatement(Tree<Token> tree) {
+		String value = tree.getValue().value;
+
+		switch (value) {
+		case "list":
+		case "block":
+			return new Statement.Sequence(compileChildren(tree));
+		case "initially":
+			return compileStatement(tree.getChild(0));
+		case "var":
+			return new Statement.VarDeclaration(names(tree));
+		case "move":
+			return new Statement.Move(compileExpression(tree.getChild(0)));
+		case "moveto":
+			return new Statement.Moveto(compileExpression(tree.getChild(0)),
+										compileExpression(tree.getChild(1)));
+		case "turn":
+			return new Statement.Turn(compileExpression(tree.getChild(0)));
+		case "turnto":
+			return new Statement.Turnto(compileExpression(tree.getChild(0)));
+		case "line":
+			return new Statement.Line(compileExpression(tree.getChild(0)),
+									compileExpression(tree.getChild(1)),
+									compileExpression(tree.getChild(2)),
+									compileExpression(tree.getChild(3)));
+		case "return":
+			if (isTailCall(tree, loopDepth > 0)) {
+				return new Statement.TailCall((Expression.Call) compileCall(tree.getChild(0)));
+			}
+			return new Statement.Return(compileExpression(tree.getChild(0)));
+		case "assign":
+			return new Statement.Assign(resolve(tree.getChild(0).getValue().value),
+										compileExpression(tree.getChild(1)));
+		case "loop":
+			loopDepth++;
+			try {
+				return new Statement.Loop(compileChildren(tree.getChild(0)));
+			} finally {
+				loopDepth--;
+			}
+		case "exit":
+			return new Statement.Exit(compileExpression(tree.getChild(0)));
+		case "switch":
+			return compileSwitch(tree);
+		case "color":
+			return compileColor(tree.getChild(0).getValue().value);
+		case "function":
+			return new Statement.Define(compileFunction(tree));
+		case "call":
+			// Only useful in the case of do statements
+			return new Statement.Do(compileCall(tree));
+		}
+		return new Statement.NoOp();
+	}
+
+	/**
+	 * Compiles a function definition tree.
+	 *
+	 * @param tree a tree whose root is "function"
+	 * @return the compiled function
+	 */
+	Function compileFunction(Tree<Token> tree) {
+		String funcName = tree.getChild(0).getValue().value;
+		String[] names = names(tree.getChild(1));
+
+		HashMap<String, Integer> enclosing = locals;
+		int enclosingLoops = loopDepth;
+		locals = new HashMap<String, Integer>();
+		loopDepth = 0;
+		try {
+			for (int i = 0; i < names.length; i++) {
+				if (!locals.containsKey(names[i])) {
+					locals.put(names[i], locals.size());
+				}
+			}
+			Expression.Variable[] parameters = new Expression.Variable[names.length];
+			for (int i = 0; i < names.length; i++) {
+				parameters[i] = resolve(names[i]);
+			}
+			Statement body = compileBlock(tree.getChild(2));
+			// Instructions are also needed by a thread, for calls nested too
+			// deeply for the Java stack
+			Code code = null;
+			RegisterCode registerCode = null;
+			if (bug.interpreter.cooperative && bug.interpreter.registerMachine) {
+				registerCode = compileRegisters(tree.getChild(2));
+			} else {
+				code = compileCode(tree.getChild(2));
+			}
+			int frameSize = code == null ? locals.size() : code.frameSize;
+			return new Function(funcName, parameters, frameSize, body, code, registerCode);
+		} finally {
+			locals = enclosing;
+			loopDepth = enclosingLoops;
+		}
+	}
+
+	/**
+	 * Tells whether a return statement is a tail call: one that returns the
+	 * value of a call to a user-defined function, from inside a function.
+	 * Such a call can take the place of the function returning, unless the
+	 * return is inside a loop, whose count of loops must be restored before
+	 * the function called could exit any of its caller's loops.
+	 *
+	 * @param tree a tree whose root is "return"
+	 * @param inLoop true if the return is inside a loop of the function
+	 * @return true if the call may replace the function returning
+	 */
+	boolean isTailCall(Tree<Token> tree, boolean inLoop) {
+		Tree<Token> value = tree.getChild(0);
+		return locals != null && !inLoop && "call".equals(value.getValue().value)
+				&& !CodeGenerator.isBuiltIn(value.getChild(0).getValue().value);
+	}
+
+	/**
+	 * Compiles the main block of a Bug, or the block of a function, into a
+	 * Statement. If the Interpreter has been asked to, the block is compiled
+	 * into a class of its own, as JVM bytecode; a block too large for that is
+	 * compiled as usual.
+	 *
+	 * @param tree a block
+	 * @return the executable form of the block
+	 */
+	Statement compileBlock(Tree<Token> tree) {
+		if (bug.interpreter.bytecode && !bug.interpreter.cooperative) {
+			Statement compiled = new ClassGenerator(this).generate(tree);
+			if (compiled != null) return compiled;
+		}
+		return compileStatement(tree);
+	}
+
+	/**
+	 * Compiles a block into the instructions used when the Bug is run as a
+	 * continuation by the Interpreter's scheduler, rather than by a thread of
+	 * its own.
+	 *
+	 * @param tree a block, or any other tree that can be compiled as a statement
+	 * @return the compiled instructions
+	 */
+	Code compileCode(Tree<Token> tree) {
+		int firstTemporary = locals == null ? 0 : locals.size();
+		return new CodeGenerator(this, firstTemporary).generate(tree);
+	}
+
+	/**
+	 * Compiles a block into the register code used when the Bug is run by a
+	 * <code>RegisterMachine</code>.
+	 *
+	 * @param tree a block, or any other tree that can be compiled as a statement
+	 * @return the compiled code
+	 */
+	RegisterCode compileRegisters(Tree<Token> tree) {
+		int firstTemporary = locals == null ? 0 : locals.size();
+		return new RegisterCompiler(this, firstTemporary).compile(tree);
+	}
+
+	/**
+	 * Resolves a variable name to the place its value is kept. Names are
+	 * searched for in the same order the interpreter has always used: the
+	 * Bug's own x, y and angle, then the variables declared in the Bug, then
+	 * the parameters of the function being compiled, and finally the Allbugs
+	 * variables. A name that is not declared anywhere yet is left to be looked
+	 * up when it is used.
+	 *
+	 * @param name a variable name
+	 * @return the resolved variable
+	 */
+	Expression.Variable resolve(String name) {
+		if ("x".equals(name)) return new Expression.X();
+		if ("y".equals(name)) return new Expression.Y();
+		if ("angle".equals(name)) return new Expression.Angle();
+
+		int slot = bug.fieldSlot(name);
+		if (slot >= 0) return new Expression.Field(slot);
+
+		if (locals != null && locals.containsKey(name)) {
+			return new Expression.Local(locals.get(name));
+		}
+
+		slot = bug.interpreter.globalSlot(name);
+		if (slot >= 0) return new Expression.Global(slot);
+
+		return new Expression.Named(name);
+	}
+
+	/**
+	 * Returns what the Checker found out about the named Bug, if the program
+	 * has been checked.
+	 *
+	 * @param bugName the name of a Bug
+	 * @return the Bug's names, or null if the program has not been checked
+	 */
+	private Checker.BugScope otherBugScope(String bugName) {
+		Checker checker = bug.interpreter.checker;
+		return checker == null ? null : checker.bugs.get(bugName);
+	}
+
+	/**
+	 * Resolves the name of a variable of another Bug, in the same order as
+	 * the Bug itself would.
+	 *
+	 * @param other the other Bug's names
+	 * @param name a variable name
+	 * @return the resolved variable, to be evaluated by the other Bug, or
+	 *         null if it is not declared
+	 */
+	private Expression.Variable resolveIn(Checker.BugScope other, String name) {
+		if ("x".equals(name)) return new Expression.X();
+		if ("y".equals(name)) return new Expression.Y();
+		if ("angle".equals(name)) return new Expression.Angle();
+
+		Integer slot = other.fieldSlots.get(name);
+		if (slot != null) return new Expression.Field(slot);
+		slot = bug.interpreter.checker.globalSlots.get(name);
+		return slot == null ? null : new Expression.Global(slot);
+	}
+
+	/**
+	 * Compiles a switch tree into its cases.
+	 *
+	 * @param tree a tree whose root is "switch"
+	 * @return the compiled switch statement
+	 */
+	private Statement compileSwitch(Tree<Token> tree) {
+		int numCases = tree.getNumberOfChildren();
+		Statement.Case[] cases = new Statement.Case[numCases];
+
+		for (int i = 0; i < numCases; i++) {
+			Tree<Token> caseTree = tree.getChild(i);
+			Expression condition = compileExpression(caseTree.getChild(0));
+			Statement[] body = new Statement[caseTree.getNumberOfChildren() - 1];
+			for (int j = 0; j < body.length; j++) {
+				body[j] = compileStatement(caseTree.getChild(j + 1));
+			}
+			cases[i] = new Statement.Case(condition, body);
+		}
+		return new Statement.Switch(cases);
+	}
+
+	/**
+	 * Compiles a color statement, or a statement that reports the error if
+	 * the color is not one of the defined colors.
+	 *
+	 * @param colorName the name of the color
+	 * @return the compiled color statement
+	 */
+	private Statement compileColor(String colorName) {
+		if (isColor(colorName)) {
+			return new Statement.SetColor(COLORS.get(colorName));
+		}
+		return new Statement.Failure("Illegal color entered");
+	}
+
+	/**
+	 * Tests whether a name is one of the colors a Bug can be given.
+	 *
+	 * @param colorName the name
+	 * @return true if it is the name of a color, or "none"
+	 */
+	static boolean isColor(String colorName) {
+		return COLORS.containsKey(colorName);
+	}
+
+	/**
+	 * Compiles each child of the given tree.
+	 *
+	 * @param tree the parent of the trees to compile
+	 * @return the compiled children, in order
+	 */
+	private Statement[] compileChildren(Tree<Token> tree) {
+		Statement[] statements = new Statement[tree.getNumberOfChildren()];
+		for (int i = 0; i < statements.length; i++) {
+			statements[i] = compileStatement(tree.getChild(i));
+		}
+		return statements;
+	}
+
+	/**
+	 * Returns the values of the children of the given tree, which are
+	 * expected to be names (as in a var declaration or parameter list).
+	 *
+	 * @param tree the parent of the names
+	 * @return the names, in order
+	 */
+	private static String[] names(Tree<Token> tree) {
+		String[] names = new String[tree.getNumberOfChildren()];
+		for (int i = 0; i < names.length; i++) {
+			names[i] = tree.getChild(i).getValue().value;
+		}
+		return names;
+	}
+}
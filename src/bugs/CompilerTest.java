@@ -0,0 +1,346 @@
+package bugs;
+
+import static org.junit.Assert.*;
+
+import java.awt.Color;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import tree.Tree;
+
+public class CompilerTest {
+	Compiler compiler;
+	Interpreter interpreter;
+	Bug bug;
+
+	@Before
+	public void setUp() {
+		interpreter = new Interpreter();
+		bug = new Bug(interpreter);
+		compiler = new Compiler(bug);
+	}
+
+	@Test
+	public void testCompileArithmetic() {
+		assertEquals(3, evaluate("3"), 0);
+		assertEquals(-3, evaluate("- 3"), 0);
+		assertEquals(3, evaluate("+ 3"), 0);
+		assertEquals(10, evaluate("5 * 3 + 8 / 4 - 7"), 0);
+		assertEquals(2.5, evaluate("(2 + 3) / 2"), 0);
+	}
+
+	@Test
+	public void testCompileComparisons() {
+		assertEquals(1, evaluate("5 = 5.0001"), 0);
+		assertEquals(0, evaluate("5 != 5.0001"), 0);
+		assertEquals(0, evaluate("5 > 5.0001"), 0);
+		assertEquals(0, evaluate("5.0001 < 5"), 0);
+		assertEquals(1, evaluate("5 >= 5.0001"), 0);
+		assertEquals(1, evaluate("5.0001 <= 5"), 0);
+		assertEquals(1, evaluate("25 / 5 * 4 - 17 > 2 * 2 * 2 - 7"), 0);
+	}
+
+	@Test
+	public void testCompiledExpressionIsReusable() {
+		Expression e = compiler.compileExpression(useExpression("x * 2"));
+		assertEquals(0, e.evaluate(bug), 0);
+		bug.store("x", 4);
+		assertEquals(8, e.evaluate(bug), 0);
+		bug.store("x", 5);
+		assertEquals(10, e.evaluate(bug), 0);
+	}
+
+	@Test
+	public void testUndeclaredVariableFailsWhenEvaluated() {
+		Expression e = compiler.compileExpression(useExpression("foo + 1"));
+		try {
+			e.evaluate(bug);
+			fail();
+		} catch (IllegalArgumentException ex) { }
+	}
+
+	@Test
+	public void testCompileStatements() {
+		Statement s = compiler.compileStatement(useCommand("loop {\n"
+															+ "x = x + 1\n"
+															+ "exit if x >= 10\n"
+														+ "}\n"));
+		s.execute(bug);
+		assertEquals(10, bug.fetch("x"), 0);
+
+		s = compiler.compileStatement(useCommand("color purple\n"));
+		s.execute(bug);
+		assertEquals(new Color(128, 0, 128), bug.bugColor);
+	}
+
+	@Test
+	public void testResolveVariables() {
+		interpreter.declareGlobal("total");
+		bug.declare("foo");
+
+		assertTrue(compiler.resolve("x") instanceof Expression.X);
+		assertTrue(compiler.resolve("angle") instanceof Expression.Angle);
+		assertTrue(compiler.resolve("foo") instanceof Expression.Field);
+		assertTrue(compiler.resolve("total") instanceof Expression.Global);
+		assertTrue(compiler.resolve("bar") instanceof Expression.Named);
+
+		Statement s = compiler.compileStatement(useCommand("total = foo + 3\n"));
+		bug.store("foo", 4);
+		s.execute(bug);
+		assertEquals(7, bug.fetch("total"), 0);
+	}
+
+	@Test
+	public void testNamedVariableIsFoundWhenUsed() {
+		Expression bar = compiler.resolve("bar");
+		try {
+			bar.evaluate(bug);
+			fail();
+		} catch (IllegalArgumentException e) {
+			assertEquals("Trying to access an undeclared variable: bar", e.getMessage());
+		}
+
+		interpreter.declareGlobal("bar");
+		((Expression.Variable) bar).store(bug, 5);
+		assertEquals(5, interpreter.globals[interpreter.globalSlot("bar")], 0);
+		assertEquals(5, bar.evaluate(bug), 0);
+
+		// A variable of the Bug declared later hides the Allbugs variable
+		bug.declare("bar");
+		((Expression.Variable) bar).store(bug, 7);
+		assertEquals(7, bug.fields[bug.fieldSlot("bar")], 0);
+		assertEquals(5, interpreter.globals[interpreter.globalSlot("bar")], 0);
+		assertEquals(7, bar.evaluate(bug), 0);
+	}
+
+	@Test
+	public void testNamedVariableUsedByAnotherBug() {
+		Expression bar = compiler.resolve("bar");
+		bug.declare("bar");
+		bug.store("bar", 1);
+		assertEquals(1, bar.evaluate(bug), 0);
+
+		Bug other = new Bug(interpreter);
+		other.declare("foo");
+		other.declare("bar");
+		other.store("bar", 2);
+		assertEquals(2, bar.evaluate(other), 0);
+		assertEquals(1, bar.evaluate(bug), 0);
+	}
+
+	@Test
+	public void testCallFindsFunctionDefinedAgain() {
+		bug.interpret(useFunction("define f {\n"
+										+ "return 1\n"
+									+ "}\n"));
+		Expression call = compiler.compileExpression(useExpression("f()"));
+		assertEquals(1, call.evaluate(bug), 0);
+		assertEquals(1, call.evaluate(bug), 0);
+
+		bug.interpret(useFunction("define f {\n"
+										+ "return 2\n"
+									+ "}\n"));
+		assertEquals(2, call.evaluate(bug), 0);
+	}
+
+	@Test
+	public void testDotNotationLooksAgainAfterBugTerminates() {
+		Bug fred = new Bug(interpreter);
+		fred.bugName = "Fred";
+		interpreter.bugs.put("Fred", fred);
+		Expression fredX = compiler.compileExpression(useExpression("Fred.x"));
+		fred.x = 3;
+		assertEquals(3, fredX.evaluate(bug), 0);
+		fred.x = 4;
+		assertEquals(4, fredX.evaluate(bug), 0);
+
+		interpreter.terminateBug(fred);
+		try {
+			fredX.evaluate(bug);
+			fail();
+		} catch (IllegalArgumentException e) {
+			assertEquals("Using dot notation, but bug Fred does not exist", e.getMessage());
+		}
+	}
+
+	@Test
+	public void testParameterNamedLikeBugVariable() {
+		// As in the tree-walking interpreter, a Bug's own variables are
+		// found before the parameters of a function
+		bug.declare("size");
+		bug.interpret(useFunction("define grow using size {\n"
+										+ "return size + 20\n"
+									+ "}\n"));
+		assertEquals(25, evaluate("grow(5)"), 0);
+		assertEquals(5, bug.fetch("size"), 0);
+	}
+
+	@Test
+	public void testIllegalColorFailsWhenExecuted() {
+		Statement s = compiler.compileStatement(useCommand("color loop\n"));
+		try {
+			s.execute(bug);
+			fail();
+		} catch (IllegalArgumentException e) { }
+	}
+
+	@Test
+	public void testCompileFunction() {
+		Function f = compiler.compileFunction(useFunction("define double using u {\n"
+																+ "return 2 * u\n"
+															+ "}\n"));
+		assertEquals("double", f.name);
+		assertEquals(1, f.parameters.length);
+		assertEquals(1, f.frameSize);
+		assertTrue(f.parameters[0] instanceof Expression.Local);
+
+		bug.defineFunction(f);
+		assertEquals(14, evaluate("double(7)"), 0);
+	}
+
+	@Test
+	public void testReturnInsideLoopLeavesFunction() {
+		bug.interpret(useFunction("define first using n {\n"
+										+ "loop {\n"
+											+ "x = x + 1\n"
+											+ "exit if x > 100\n"
+											+ "return x\n"
+										+ "}\n"
+									+ "}\n"));
+		assertEquals(1, evaluate("first(0)"), 0);
+		assertEquals(0, bug.numLoops);
+	}
+
+	@Test
+	public void testExitTakesEffectBetweenCommandsOfTheLoop() {
+		bug.declare("a");
+		bug.declare("b");
+		Statement s = compiler.compileStatement(useCommand("loop {\n"
+															+ "switch {\n"
+																+ "case a = 0\n"
+																	+ "exit if 1\n"
+																	+ "a = a + 1\n"
+															+ "}\n"
+															+ "b = 5\n"
+														+ "}\n"));
+		assertTrue(s.execute(bug));
+		assertEquals(1, bug.fetch("a"), 0);
+		assertEquals(0, bug.fetch("b"), 0);
+		assertEquals(0, bug.numLoops);
+	}
+
+	@Test
+	public void testStatementsReportLeavingLoops() {
+		bug.declare("a");
+		assertFalse(compiler.compileStatement(useCommand("a = a + 1\n")).execute(bug));
+		assertFalse(compiler.compileStatement(useCommand("exit if a = 0\n")).execute(bug));
+
+		bug.interpret(useFunction("define leave {\n"
+										+ "exit if 1\n"
+									+ "}\n"));
+		Statement s = compiler.compileStatement(useCommand("loop {\n"
+															+ "a = a + 1\n"
+															+ "a = a + leave()\n"
+															+ "a = a + 1\n"
+														+ "}\n"));
+		assertTrue(s.execute(bug));
+		assertEquals(2, bug.fetch("a"), 0);
+		assertEquals(0, bug.numLoops);
+	}
+
+	@Test
+	public void testDeepRecursionKeepsFramesOnTheHeap() {
+		bug.interpret(useFunction("define sum using n {\n"
+										+ "switch {\n"
+											+ "case n = 0\n"
+												+ "return 0\n"
+										+ "}\n"
+										+ "return n + sum(n - 1)\n"
+									+ "}\n"));
+		bug.interpret(useFunction("define count using n, total {\n"
+										+ "switch {\n"
+											+ "case n = 0\n"
+												+ "return total\n"
+										+ "}\n"
+										+ "return count(n - 1, total + n)\n"
+									+ "}\n"));
+		assertEquals(12502500, evaluate("sum(5000)"), 0);
+		assertEquals(1, bug.scopes.size());
+	}
+
+	@Test
+	public void testTailCallsDoNotCountTowardsTheLimit() {
+		interpreter.setMaxCallDepth(50);
+		bug.interpret(useFunction("define sum using n {\n"
+										+ "switch {\n"
+											+ "case n = 0\n"
+												+ "return 0\n"
+										+ "}\n"
+										+ "return n + sum(n - 1)\n"
+									+ "}\n"));
+		bug.interpret(useFunction("define count using n, total {\n"
+										+ "switch {\n"
+											+ "case n = 0\n"
+												+ "return total\n"
+										+ "}\n"
+										+ "return count(n - 1, total + n)\n"
+									+ "}\n"));
+		assertEquals(50005000, evaluate("count(10000, 0)"), 0);
+		assertEquals(1225, evaluate("sum(49)"), 0);
+		try {
+			evaluate("sum(50)");
+			fail();
+		} catch (RuntimeException e) {
+			assertEquals("Too many function calls in progress", e.getMessage());
+		}
+		assertEquals(1, bug.scopes.size());
+	}
+
+	@Test
+	public void testReturnInsideLoopIsNotATailCall() {
+		bug.interpret(useFunction("define leave {\n"
+										+ "exit if 1\n"
+									+ "}\n"));
+		bug.interpret(useFunction("define first {\n"
+										+ "loop {\n"
+											+ "return leave()\n"
+										+ "}\n"
+									+ "}\n"));
+		assertEquals(0, evaluate("first()"), 0);
+		assertEquals(0, bug.numLoops);
+	}
+
+//	--------------- Helper methods ------------------
+
+	private double evaluate(String expression) {
+		return compiler.compileExpression(useExpression(expression)).evaluate(bug);
+	}
+
+	private Tree<Token> useExpression(String expression) {
+		Parser p = new Parser(expression);
+		if (p.isExpression()) {
+			return p.stack.pop();
+		} else {
+			throw new IllegalArgumentException("Input is not a valid expression");
+		}
+	}
+
+	private Tree<Token> useCommand(String command) {
+		Parser p = new Parser(command);
+		if (p.isCommand()) {
+			return p.stack.pop();
+		} else {
+			throw new IllegalArgumentException("Input is not a valid command");
+		}
+	}
+
+	private Tree<Token> useFunction(String func) {
+		Parser p = new Parser(func);
+		if (p.isFunctionDefinition()) {
+			return p.stack.pop();
+		} else {
+			throw new IllegalArgumentException("Input is not a valid function definition");
+		}
+	}
+}
@@ -0,0 +1,174 @@
+package bugs;
+
+/**
+ * The state of a Bug that is run by the Interpreter's scheduler instead of by
+ * a thread of its own: an explicit stack of frames, one for the main block and
+ * one for each function being called, each with the position of the next
+ * instruction to execute. Because nothing is kept on the Java stack between
+ * rounds, a Bug costs only these few objects, and a great many Bugs can be run
+ * by a single thread.
+ *
+ * @author Anders Schneider
+ */
+final class Continuation {
+
+	/** The number of times a Bug may go round a loop without acting before the other Bugs are given a turn. */
+	static final int BUDGET = 100000;
+
+	/** The greatest number of function calls that may be in progress at once, unless the Interpreter is given another. */
+	static final int MAX_DEPTH = 10000;
+
+	/**
+	 * The frame of one block of code being executed.
+	 */
+	static final class Activation {
+		final Instruction[] code;
+		final double[] frame;
+		final int[] loops;
+		final Activation caller;
+		final int result;
+		final int depth;
+		int pc;
+
+		Activation(Code code, double[] frame, Activation caller, int result, int depth) {
+			this.code = code.instructions;
+			this.frame = frame;
+			this.loops = new int[code.loopCount];
+			this.caller = caller;
+			this.result = result;
+			this.depth = depth;
+		}
+	}
+
+	private final Bug bug;
+	Activation top;
+	int budget;
+	// True when the Bug has a thread of its own, which waits for permission
+	// to act instead of stopping
+	final boolean threaded;
+	private double value;
+
+	/**
+	 * Constructs a Continuation that will run the given code from the start.
+	 *
+	 * @param bug the Bug being run
+	 * @param main the Bug's main block
+	 */
+	Continuation(Bug bug, Code main) {
+		this.bug = bug;
+		threaded = false;
+		top = new Activation(main, new double[main.frameSize], null, -1, 0);
+	}
+
+	private Continuation(Bug bug, Function function, double[] frame, int depth) {
+		this.bug = bug;
+		threaded = true;
+		top = new Activation(function.code, frame, null, -1, depth);
+	}
+
+	/**
+	 * Calls a function on the Bug's own thread, keeping the frames of the
+	 * calls it makes on the heap rather than on the Java stack, and returns
+	 * once the function does. A return statement in the function sets the
+	 * Bug's afterFuncReturn, just as it does when the function's Statements
+	 * are executed.
+	 *
+	 * @param bug the Bug making the call
+	 * @param function the function, which must have been compiled into instructions
+	 * @param frame the function's frame, holding its arguments, and already
+	 *        the Bug's current frame
+	 * @param depth the number of calls in progress, this one included
+	 * @return the value returned by the function, or 0 if it did not return a value
+	 */
+	static double run(Bug bug, Function function, double[] frame, int depth) {
+		Continuation k = new Continuation(bug, function, frame, depth);
+		k.budget = BUDGET;
+		while (k.top != null) {
+			Activation current = k.top;
+			if (!current.code[current.pc++].execute(bug, k)) {
+				// Only a loop's budget stops a thread, and it just goes on
+				k.budget = BUDGET;
+			}
+		}
+		return k.value;
+	}
+
+	/**
+	 * Runs the Bug until it has to wait for permission to act, until it has
+	 * gone round loops for long enough that the other Bugs should be given a
+	 * turn, or until it reaches the end of its main block.
+	 *
+	 * @return true if the Bug has finished
+	 */
+	boolean resume() {
+		budget = BUDGET;
+		if (top != null) bug.frame = top.frame;
+
+		while (top != null) {
+			Activation current = top;
+			if (!current.code[current.pc++].execute(bug, this)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Tells whether the Bug last stopped only to give the other Bugs a turn,
+	 * rather than to wait for permission to act.
+	 *
+	 * @return true if the Bug used up its budget
+	 */
+	boolean outOfBudget() {
+		return budget <= 0;
+	}
+
+	/**
+	 * Starts executing a function.
+	 *
+	 * @param code the body of the function
+	 * @param frame the new frame, holding the arguments
+	 * @param result the slot of the caller's frame that the returned value is
+	 * kept in, or -1 if it is not needed
+	 */
+	void call(Code code, double[] frame, int result) {
+		if (top.depth >= bug.interpreter.maxCallDepth) {
+			throw new RuntimeException("Too many function calls in progress");
+		}
+		top = new Activation(code, frame, top, result, top.depth + 1);
+		bug.frame = frame;
+		bug.scopes.add(frame);
+	}
+
+	/**
+	 * Starts executing a function in place of the one being executed, which
+	 * returns whatever the new one does.
+	 *
+	 * @param code the body of the function
+	 * @param frame the new frame, holding the arguments
+	 */
+	void replace(Code code, double[] frame) {
+		top = new Activation(code, frame, top.caller, top.result, top.depth);
+		bug.frame = frame;
+		bug.scopes.set(bug.scopes.size() - 1, frame);
+	}
+
+	/**
+	 * Leaves the code currently being executed.
+	 *
+	 * @param value the value returned to the caller
+	 */
+	void ret(double value) {
+		Activation finished = top;
+		top = finished.caller;
+		if (top == null) {
+			this.value = value;
+		} else {
+			bug.scopes.remove(bug.scopes.size() - 1);
+			bug.frame = top.frame;
+			if (finished.result >= 0) {
+				top.frame[finished.result] = value;
+			}
+		}
+	}
+}
@@ -0,0 +1,294 @@
+package bugs;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class ContinuationTest {
+	Interpreter interpreter;
+
+	@Test
+	public void testOneActionPerRound() {
+		load("Bug Sally {\n"
+				+ "move 10\n"
+				+ "turn 90\n"
+				+ "move 10\n"
+			+ "}\n"
+			+ "Bug Fred {\n"
+				+ "y = 50\n"
+				+ "line 0, 0, 5, 5\n"
+			+ "}\n");
+		Bug sally = interpreter.bugs.get("Sally");
+		assertEquals(50, interpreter.bugs.get("Fred").y, 0);
+		assertEquals(0, interpreter.commands.size());
+
+		interpreter.runSingleStep();
+		assertEquals(2, interpreter.commands.size());
+		assertEquals(10, sally.x, 0.001);
+		assertFalse(interpreter.bugs.containsKey("Fred"));
+
+		interpreter.runSingleStep();
+		assertEquals(2, interpreter.commands.size());
+		assertEquals(90, sally.angle, 0);
+		assertFalse(interpreter.doneEvaluating);
+
+		interpreter.runSingleStep();
+		assertEquals(3, interpreter.commands.size());
+		assertTrue(interpreter.bugs.isEmpty());
+		assertTrue(interpreter.doneEvaluating);
+	}
+
+	@Test
+	public void testSuspendInsideFunctionCalledFromExpression() {
+		load("Bug Sally {\n"
+				+ "var size\n"
+				+ "size = 5 + square(10) * 2\n"
+				+ "define square using side {\n"
+					+ "loop {\n"
+						+ "move side\n"
+						+ "turn 90\n"
+						+ "exit if angle = 0\n"
+					+ "}\n"
+					+ "return side\n"
+				+ "}\n"
+			+ "}\n");
+		Bug sally = interpreter.bugs.get("Sally");
+
+		for (int i = 0; i < 7; i++) {
+			interpreter.runSingleStep();
+		}
+		assertEquals(0, sally.fetch("size"), 0);
+		assertEquals(2, sally.scopes.size());
+
+		interpreter.runSingleStep();
+		assertEquals(25, sally.fetch("size"), 0);
+		assertEquals(1, sally.scopes.size());
+		assertEquals(4, interpreter.commands.size());
+		assertTrue(interpreter.doneEvaluating);
+	}
+
+	@Test
+	public void testValuesComputedBeforeCallAreKept() {
+		load("Allbugs {\n"
+				+ "var total\n"
+				+ "define grow using amount {\n"
+					+ "total = total + amount\n"
+					+ "return total\n"
+				+ "}\n"
+			+ "}\n"
+			+ "Bug Sally {\n"
+				+ "total = 1\n"
+				+ "x = total + grow(10)\n"
+				+ "y = grow(100) + total\n"
+				+ "move 0\n"
+			+ "}\n");
+		Bug sally = interpreter.bugs.get("Sally");
+		assertEquals(12, sally.x, 0);
+		assertEquals(222, sally.y, 0);
+	}
+
+	@Test
+	public void testReturnInsideLoopLeavesFunction() {
+		load("Bug Sally {\n"
+				+ "var count\n"
+				+ "loop {\n"
+					+ "count = count + first()\n"
+					+ "exit if count = 3\n"
+				+ "}\n"
+				+ "move count\n"
+				+ "define first {\n"
+					+ "loop {\n"
+						+ "turn 90\n"
+						+ "return 1\n"
+					+ "}\n"
+				+ "}\n"
+			+ "}\n");
+		Bug sally = interpreter.bugs.get("Sally");
+
+		interpreter.runSingleStep();
+		interpreter.runSingleStep();
+		interpreter.runSingleStep();
+		assertEquals(270, sally.angle, 0);
+		assertEquals(0, interpreter.commands.size());
+
+		interpreter.runSingleStep();
+		assertEquals(0, sally.numLoops);
+		assertEquals(1, interpreter.commands.size());
+	}
+
+	@Test
+	public void testExitInsideFunctionLeavesCallersLoop() {
+		load("Bug Sally {\n"
+				+ "var n\n"
+				+ "loop {\n"
+					+ "n = n + 1\n"
+					+ "moveto n, 0\n"
+					+ "do stop(n)\n"
+					+ "moveto 0, n\n"
+				+ "}\n"
+				+ "turn 90\n"
+				+ "define stop using m {\n"
+					+ "exit if m = 2\n"
+				+ "}\n"
+			+ "}\n");
+		Bug sally = interpreter.bugs.get("Sally");
+		for (int i = 0; i < 6; i++) {
+			interpreter.runSingleStep();
+		}
+		assertEquals(3, interpreter.commands.size());
+		assertEquals(1, interpreter.commands.get(1).y2, 0);
+		assertEquals(2, interpreter.commands.get(2).x2, 0);
+		assertEquals(90, sally.angle, 0);
+		assertEquals(0, sally.numLoops);
+	}
+
+	@Test
+	public void testSwitch() {
+		load("Bug Sally {\n"
+				+ "var n\n"
+				+ "loop {\n"
+					+ "n = n + 1\n"
+					+ "switch {\n"
+						+ "case n = 1\n"
+							+ "moveto 1, 0\n"
+						+ "case n > 1\n"
+							+ "moveto n, n\n"
+						+ "case n = 2\n"
+							+ "moveto 10, 10\n"
+					+ "}\n"
+					+ "exit if n = 3\n"
+				+ "}\n"
+			+ "}\n");
+		for (int i = 0; i < 5; i++) {
+			interpreter.runSingleStep();
+		}
+		assertEquals(3, interpreter.commands.size());
+		assertEquals(1, interpreter.commands.get(0).x2, 0);
+		assertEquals(2, interpreter.commands.get(1).x2, 0);
+		assertEquals(3, interpreter.commands.get(2).y2, 0);
+		assertTrue(interpreter.doneEvaluating);
+	}
+
+	@Test
+	public void testLongLoopDoesNotHoldUpOthers() {
+		load("Bug Sally {\n"
+				+ "var n\n"
+				+ "loop {\n"
+					+ "n = n + 1\n"
+					+ "exit if n = 250000\n"
+				+ "}\n"
+				+ "move 1\n"
+			+ "}\n"
+			+ "Bug Fred {\n"
+				+ "y = Sally.n\n"
+				+ "move 1\n"
+			+ "}\n");
+		// Fred has his turn while Sally is still looping
+		Bug sally = interpreter.bugs.get("Sally");
+		Bug fred = interpreter.bugs.get("Fred");
+		assertTrue(fred.y > 0);
+		assertTrue(fred.y < 250000);
+		assertEquals(250000, sally.fetch("n"), 0);
+		
+		interpreter.runSingleStep();
+		assertEquals(2, interpreter.commands.size());
+		assertTrue(interpreter.bugs.isEmpty());
+	}
+
+	@Test
+	public void testErrorStopsOnlyThatBug() {
+		load("Bug Sally {\n"
+				+ "move 1\n"
+				+ "exit if 1\n"
+				+ "move 1\n"
+			+ "}\n"
+			+ "Bug Fred {\n"
+				+ "move 1\n"
+				+ "move 1\n"
+			+ "}\n");
+		interpreter.runSingleStep();
+		interpreter.runSingleStep();
+		assertEquals(3, interpreter.commands.size());
+		assertTrue(interpreter.bugs.containsKey("Sally"));
+		assertFalse(interpreter.bugs.containsKey("Fred"));
+	}
+
+	@Test
+	public void testLinesRecordBugAndRound() {
+		load("Bug Sally {\n"
+				+ "move 1\n"
+				+ "turn 90\n"
+				+ "move 1\n"
+			+ "}\n"
+			+ "Bug Fred {\n"
+				+ "turn 90\n"
+				+ "line 0, 0, 1, 1\n"
+			+ "}\n");
+		interpreter.runToCompletion();
+		CommandLog.Cursor cursor = interpreter.commands.cursor();
+		assertTrue(cursor.next());
+		assertEquals(0, cursor.bugId());
+		assertEquals(1, cursor.round());
+		assertTrue(cursor.next());
+		assertEquals(1, cursor.bugId());
+		assertEquals(2, cursor.round());
+		assertTrue(cursor.next());
+		assertEquals(0, cursor.bugId());
+		assertEquals(3, cursor.round());
+		assertFalse(cursor.next());
+	}
+
+	@Test
+	public void testLongLoopKeepsItsRound() {
+		load("Bug Sally {\n"
+				+ "var n\n"
+				+ "move 1\n"
+				+ "loop {\n"
+					+ "n = n + 1\n"
+					+ "exit if n = 250000\n"
+				+ "}\n"
+				+ "move 1\n"
+			+ "}\n"
+			+ "Bug Fred {\n"
+				+ "turn 90\n"
+				+ "turn 90\n"
+			+ "}\n");
+		Bug sally = interpreter.bugs.get("Sally");
+		Bug fred = interpreter.bugs.get("Fred");
+		interpreter.runSingleStep();
+		interpreter.runSingleStep();
+		assertEquals(2, sally.x, 0.001);
+		assertEquals(180, fred.angle, 0);
+		assertEquals(2, interpreter.currentRound());
+	}
+
+	@Test
+	public void testManyBugs() {
+		StringBuilder program = new StringBuilder();
+		for (int i = 0; i < 2000; i++) {
+			program.append("Bug B" + i + " {\n"
+								+ "loop {\n"
+									+ "move 1\n"
+									+ "exit if x >= 3\n"
+								+ "}\n"
+							+ "}\n");
+		}
+		load(program.toString());
+		for (int i = 0; i < 4; i++) {
+			interpreter.runSingleStep();
+		}
+		assertEquals(6000, interpreter.commands.size());
+		assertTrue(interpreter.doneEvaluating);
+	}
+
+//	--------------- Helper methods ------------------
+
+	private void load(String program) {
+		interpreter = new Interpreter();
+		interpreter.setCooperative(true);
+		interpreter.program = program;
+		interpreter.parseProgram();
+		interpreter.interpretAllbugs();
+		interpreter.initializeBugs();
+	}
+}
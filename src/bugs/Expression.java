@@ -0,0 +1,614 @@
+package bugs;
+
+/**
+ * An executable form of a Bugs expression. The <code>Compiler</code> turns
+ * each expression tree produced by the <code>Parser</code> into a tree of
+ * Expressions, so that the operator of each node is resolved once, when the
+ * program is loaded, rather than every time the node is evaluated.
+ *
+ * @author Anders Schneider
+ */
+abstract class Expression {
+
+	/** Tolerance used by all of the comparison operators. */
+	static final double EPSILON = 0.001;
+
+	/**
+	 * Computes the value of this expression on behalf of the given Bug.
+	 *
+	 * @param bug the Bug whose variables and functions are used
+	 * @return the value of this expression
+	 */
+	abstract double evaluate(Bug bug);
+
+	/**
+	 * Tells whether evaluating this expression may call a user-defined
+	 * function, which may in turn exit the loop the expression is in.
+	 *
+	 * @return true if a user-defined function may be called
+	 */
+	boolean callsFunction() {
+		return false;
+	}
+
+	// The comparisons, also called by code compiled into bytecode. Each gives
+	// 1 if it is true and 0 if it is false.
+
+	static double equal(double first, double second) {
+		return Math.abs(first - second) <= EPSILON ? 1 : 0;
+	}
+
+	static double notEqual(double first, double second) {
+		return Math.abs(first - second) <= EPSILON ? 0 : 1;
+	}
+
+	static double greater(double first, double second) {
+		return (Math.abs(first - second) > EPSILON && first > second) ? 1 : 0;
+	}
+
+	static double less(double first, double second) {
+		return (Math.abs(first - second) > EPSILON && first < second) ? 1 : 0;
+	}
+
+	static double greaterEqual(double first, double second) {
+		return (Math.abs(first - second) <= EPSILON || first > second) ? 1 : 0;
+	}
+
+	static double lessEqual(double first, double second) {
+		return (Math.abs(first - second) <= EPSILON || first < second) ? 1 : 0;
+	}
+
+	/**
+	 * A numeric literal.
+	 */
+	static final class Constant extends Expression {
+		private final double value;
+
+		Constant(double value) {
+			this.value = value;
+		}
+
+		@Override
+		double evaluate(Bug bug) {
+			return value;
+		}
+	}
+
+	/**
+	 * A reference to a variable. The Compiler resolves each variable name to
+	 * one of the subclasses below, so that reading or writing it is a field
+	 * access or an array access rather than a search by name.
+	 */
+	abstract static class Variable extends Expression {
+
+		/**
+		 * Assigns a new value to this variable.
+		 *
+		 * @param bug the Bug making the assignment
+		 * @param value the new value
+		 */
+		abstract void store(Bug bug, double value);
+
+		/**
+		 * Assigns the value of a parameter as a function is called. Only
+		 * function-local variables live in the new frame; every other kind of
+		 * variable is simply stored.
+		 *
+		 * @param bug the Bug calling the function
+		 * @param frame the frame being built for the call
+		 * @param value the value of the argument
+		 */
+		void bind(Bug bug, double[] frame, double value) {
+			store(bug, value);
+		}
+	}
+
+	/**
+	 * The Bug's x coordinate.
+	 */
+	static final class X extends Variable {
+		@Override
+		double evaluate(Bug bug) {
+			return bug.x;
+		}
+
+		@Override
+		void store(Bug bug, double value) {
+			bug.x = value;
+		}
+	}
+
+	/**
+	 * The Bug's y coordinate.
+	 */
+	static final class Y extends Variable {
+		@Override
+		double evaluate(Bug bug) {
+			return bug.y;
+		}
+
+		@Override
+		void store(Bug bug, double value) {
+			bug.y = value;
+		}
+	}
+
+	/**
+	 * The direction the Bug is facing.
+	 */
+	static final class Angle extends Variable {
+		@Override
+		double evaluate(Bug bug) {
+			return bug.angle;
+		}
+
+		@Override
+		void store(Bug bug, double value) {
+			bug.angle = value;
+		}
+	}
+
+	/**
+	 * A variable declared in the Bug definition, held in the Bug's
+	 * <code>fields</code> array.
+	 */
+	static final class Field extends Variable {
+		final int slot;
+
+		Field(int slot) {
+			this.slot = slot;
+		}
+
+		@Override
+		double evaluate(Bug bug) {
+			return bug.fields[slot];
+		}
+
+		@Override
+		void store(Bug bug, double value) {
+			bug.fields[slot] = value;
+		}
+	}
+
+	/**
+	 * A parameter of the function being executed, held in the current frame.
+	 */
+	static final class Local extends Variable {
+		final int slot;
+
+		Local(int slot) {
+			this.slot = slot;
+		}
+
+		@Override
+		double evaluate(Bug bug) {
+			return bug.frame[slot];
+		}
+
+		@Override
+		void store(Bug bug, double value) {
+			bug.frame[slot] = value;
+		}
+
+		@Override
+		void bind(Bug bug, double[] frame, double value) {
+			frame[slot] = value;
+		}
+	}
+
+	/**
+	 * A variable declared in the Allbugs code, held in the Interpreter's
+	 * <code>globals</code> array.
+	 */
+	static final class Global extends Variable {
+		final int slot;
+
+		Global(int slot) {
+			this.slot = slot;
+		}
+
+		@Override
+		double evaluate(Bug bug) {
+			return bug.interpreter.globals[slot];
+		}
+
+		@Override
+		void store(Bug bug, double value) {
+			bug.interpreter.globals[slot] = value;
+		}
+	}
+
+	/**
+	 * Where a name that could not be resolved when its code was compiled was
+	 * found, the first time it was used. Later uses go straight to the
+	 * variable found, as long as they are on behalf of the same Bug and that
+	 * Bug has declared no new variables since, which might hide an Allbugs
+	 * variable of the same name. Used on behalf of some other Bug, the name is
+	 * looked up every time from then on.
+	 */
+	static final class Lookup {
+		private final String name;
+		private Variable resolved;
+		private Bug owner;
+		private int fieldCount;
+		private boolean generic;
+
+		Lookup(String name) {
+			this.name = name;
+		}
+
+		/**
+		 * Finds the variable the name refers to in the given Bug.
+		 *
+		 * @param bug the Bug the name is used in
+		 * @return the variable, or null if the name is not declared, or is
+		 *         now looked up every time
+		 */
+		Variable resolve(Bug bug) {
+			if (bug == owner && resolved != null && bug.fields.length == fieldCount) {
+				return resolved;
+			}
+			if (generic) return null;
+			if (owner != null && bug != owner) {
+				// Falls back to looking the name up by itself
+				generic = true;
+				resolved = null;
+				return null;
+			}
+			owner = bug;
+			fieldCount = bug.fields.length;
+			resolved = bug.locate(name);
+			return resolved;
+		}
+	}
+
+	/**
+	 * A reference by name to another Bug, as in "Fred.x" or "distance(Fred)".
+	 * The Bug found is used until it terminates. Then it is looked up again,
+	 * so that a reference to a Bug that has finished fails as it always has.
+	 */
+	static final class BugReference {
+		private final String name;
+		private final int index;
+		private final String message;
+		private Bug target;
+
+		/**
+		 * @param name the name of the other Bug
+		 * @param index the other Bug's index, or -1 to look it up by name
+		 * @param message the error reported if there is no such Bug
+		 */
+		BugReference(String name, int index, String message) {
+			this.name = name;
+			this.index = index;
+			this.message = message;
+		}
+
+		Bug find(Bug bug) {
+			Bug other = target;
+			if (other == null || other.terminated) {
+				other = bug.otherBug(index, name, message);
+				target = other;
+			}
+			return other;
+		}
+	}
+
+	/**
+	 * A variable that had not been declared when its code was compiled. It is
+	 * looked up by name when it is used, and fails if it still has not been
+	 * declared; once found, it is used like a variable that was resolved when
+	 * it was compiled.
+	 */
+	static final class Named extends Variable {
+		private final String name;
+		private final Lookup lookup;
+
+		Named(String name) {
+			this.name = name;
+			lookup = new Lookup(name);
+		}
+
+		@Override
+		double evaluate(Bug bug) {
+			Variable variable = lookup.resolve(bug);
+			return variable != null ? variable.evaluate(bug) : bug.fetch(name);
+		}
+
+		@Override
+		void store(Bug bug, double value) {
+			Variable variable = lookup.resolve(bug);
+			if (variable != null) {
+				variable.store(bug, value);
+			} else {
+				bug.assign(name, value);
+			}
+		}
+	}
+
+	/**
+	 * A reference to a variable of another Bug, using dot notation (e.g.
+	 * "Fred.x"). The variable is found in the other Bug the first time it is
+	 * used, in the same way as a <code>Named</code> variable.
+	 */
+	static final class DotFetch extends Expression {
+		private final BugReference other;
+		private final String variable;
+		private final Lookup lookup;
+
+		DotFetch(String bugName, String variable) {
+			other = new BugReference(bugName, -1, "Using dot notation, but bug " + bugName
+																			+ " does not exist");
+			this.variable = variable;
+			lookup = new Lookup(variable);
+		}
+
+		@Override
+		double evaluate(Bug bug) {
+			Bug target = other.find(bug);
+			Variable resolved = lookup.resolve(target);
+			return resolved != null ? resolved.evaluate(target) : target.dotNotationFetch(variable);
+		}
+	}
+
+	/**
+	 * A reference to a variable of another Bug, using dot notation, in a
+	 * program that has been checked. The Bug is found by its index, and the
+	 * variable is already resolved to the place it is kept in that Bug.
+	 */
+	static final class DotVariable extends Expression {
+		private final BugReference other;
+		private final Variable variable;
+
+		DotVariable(String bugName, int index, Variable variable) {
+			other = new BugReference(bugName, index, "Using dot notation, but bug " + bugName
+																			+ " does not exist");
+			this.variable = variable;
+		}
+
+		@Override
+		double evaluate(Bug bug) {
+			return variable.evaluate(other.find(bug));
+		}
+	}
+
+	/**
+	 * A call to a user-defined function.
+	 */
+	static final class Call extends Expression {
+		private final CallSite site;
+		private final Expression[] arguments;
+
+		Call(String name, Expression[] arguments) {
+			site = new CallSite(name, arguments.length);
+			this.arguments = arguments;
+		}
+
+		@Override
+		double evaluate(Bug bug) {
+			return bug.callFunction(site.lookup(bug), arguments);
+		}
+
+		/**
+		 * Makes this call in place of the function being executed, once
+		 * that function has returned.
+		 *
+		 * @param bug the Bug making the call
+		 */
+		void replaceCaller(Bug bug) {
+			Function function = site.lookup(bug);
+			bug.tailCall(function, bug.bind(function, arguments));
+		}
+
+		@Override
+		boolean callsFunction() {
+			return true;
+		}
+	}
+
+	/**
+	 * A call to the built-in distance function.
+	 */
+	static final class Distance extends Expression {
+		private final BugReference other;
+
+		/**
+		 * @param bugName the name of the other Bug
+		 * @param index the other Bug's index, or -1 to look it up by name
+		 */
+		Distance(String bugName, int index) {
+			other = new BugReference(bugName, index, bugName + " is not a defined bug");
+		}
+
+		@Override
+		double evaluate(Bug bug) {
+			return bug.distance(other.find(bug));
+		}
+	}
+
+	/**
+	 * A call to the built-in direction function.
+	 */
+	static final class Direction extends Expression {
+		private final BugReference other;
+
+		/**
+		 * @param bugName the name of the other Bug
+		 * @param index the other Bug's index, or -1 to look it up by name
+		 */
+		Direction(String bugName, int index) {
+			other = new BugReference(bugName, index, bugName + " is not a defined bug");
+		}
+
+		@Override
+		double evaluate(Bug bug) {
+			return bug.direction(other.find(bug));
+		}
+	}
+
+	/**
+	 * An expression that cannot be evaluated; the error is reported when (and
+	 * if) the expression is reached, just as the tree-walking interpreter did.
+	 */
+	static final class Failure extends Expression {
+		private final String message;
+
+		Failure(String message) {
+			this.message = message;
+		}
+
+		@Override
+		double evaluate(Bug bug) {
+			throw new IllegalArgumentException(message);
+		}
+	}
+
+	/**
+	 * Unary minus.
+	 */
+	static final class Negate extends Expression {
+		private final Expression operand;
+
+		Negate(Expression operand) {
+			this.operand = operand;
+		}
+
+		@Override
+		double evaluate(Bug bug) {
+			return -1 * operand.evaluate(bug);
+		}
+
+		@Override
+		boolean callsFunction() {
+			return operand.callsFunction();
+		}
+	}
+
+	/**
+	 * Superclass of all operators that take two operands.
+	 */
+	abstract static class Binary extends Expression {
+		final Expression left;
+		final Expression right;
+
+		Binary(Expression left, Expression right) {
+			this.left = left;
+			this.right = right;
+		}
+
+		@Override
+		boolean callsFunction() {
+			return left.callsFunction() || right.callsFunction();
+		}
+	}
+
+	static final class Add extends Binary {
+		Add(Expression left, Expression right) {
+			super(left, right);
+		}
+
+		@Override
+		double evaluate(Bug bug) {
+			return left.evaluate(bug) + right.evaluate(bug);
+		}
+	}
+
+	static final class Subtract extends Binary {
+		Subtract(Expression left, Expression right) {
+			super(left, right);
+		}
+
+		@Override
+		double evaluate(Bug bug) {
+			return left.evaluate(bug) - right.evaluate(bug);
+		}
+	}
+
+	static final class Multiply extends Binary {
+		Multiply(Expression left, Expression right) {
+			super(left, right);
+		}
+
+		@Override
+		double evaluate(Bug bug) {
+			return left.evaluate(bug) * right.evaluate(bug);
+		}
+	}
+
+	static final class Divide extends Binary {
+		Divide(Expression left, Expression right) {
+			super(left, right);
+		}
+
+		@Override
+		double evaluate(Bug bug) {
+			return left.evaluate(bug) / right.evaluate(bug);
+		}
+	}
+
+	static final class Equal extends Binary {
+		Equal(Expression left, Expression right) {
+			super(left, right);
+		}
+
+		@Override
+		double evaluate(Bug bug) {
+			return equal(left.evaluate(bug), right.evaluate(bug));
+		}
+	}
+
+	static final class NotEqual extends Binary {
+		NotEqual(Expression left, Expression right) {
+			super(left, right);
+		}
+
+		@Override
+		double evaluate(Bug bug) {
+			return notEqual(left.evaluate(bug), right.evaluate(bug));
+		}
+	}
+
+	static final class Greater extends Binary {
+		Greater(Expression left, Expression right) {
+			super(left, right);
+		}
+
+		@Override
+		double evaluate(Bug bug) {
+			return greater(left.evaluate(bug), right.evaluate(bug));
+		}
+	}
+
+	static final class Less extends Binary {
+		Less(Expression left, Expression right) {
+			super(left, right);
+		}
+
+		@Override
+		double evaluate(Bug bug) {
+			return less(left.evaluate(bug), right.evaluate(bug));
+		}
+	}
+
+	static final class GreaterEqual extends Binary {
+		GreaterEqual(Expression left, Expression right) {
+			super(left, right);
+		}
+
+		@Override
+		double evaluate(Bug bug) {
+			return greaterEqual(left.evaluate(bug), right.evaluate(bug));
+		}
+	}
+
+	static final class LessEqual extends Binary {
+		LessEqual(Expression left, Expression right) {
+			super(left, right);
+		}
+
+		@Override
+		double evaluate(Bug bug) {
+			return lessEqual(left.evaluate(bug), right.evaluate(bug));
+		}
+	}
+}
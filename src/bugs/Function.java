@@ -0,0 +1,41 @@
+package bugs;
+
+/**
+ * A compiled function definition: the function's name, where each of its
+ * parameters is stored, and its compiled body. Since names are resolved when
+ * a function is compiled, a Function belongs to the Bug it was compiled for.
+ * When Bugs are run by the Interpreter's scheduler, the function is also
+ * compiled into instructions, or into register code, that can be suspended
+ * part way through.
+ *
+ * @author Anders Schneider
+ */
+class Function {
+	final String name;
+	final Expression.Variable[] parameters;
+	final int frameSize;
+	final Statement body;
+	final Code code;
+	final RegisterCode registerCode;
+
+	/**
+	 * Constructs a compiled function.
+	 *
+	 * @param name the name the function is called by
+	 * @param parameters the variables the arguments are stored in, in order
+	 * @param frameSize the number of local slots needed by a call, including
+	 *        the temporary slots of its instructions
+	 * @param body the compiled block of the function
+	 * @param code the block compiled into instructions, or null if not needed
+	 * @param registerCode the block compiled into register code, or null if not needed
+	 */
+	Function(String name, Expression.Variable[] parameters, int frameSize, Statement body, Code code,
+			RegisterCode registerCode) {
+		this.name = name;
+		this.parameters = parameters;
+		this.frameSize = frameSize;
+		this.body = body;
+		this.code = code;
+		this.registerCode = registerCode;
+	}
+}
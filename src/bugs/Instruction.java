@@ -0,0 +1,332 @@
+package bugs;
+
+/**
+ * One step of a Bug's code, as run by a <code>Continuation</code>. Unlike a
+ * <code>Statement</code>, an Instruction never executes other Instructions
+ * itself: loops, switches and function calls are turned into jumps and into
+ * frames pushed on the Continuation, so that a Bug can be stopped at any
+ * instruction and picked up again in a later round.
+ *
+ * @author Anders Schneider
+ */
+abstract class Instruction {
+
+	/**
+	 * Carries out this instruction. The Continuation has already been moved on
+	 * to the next instruction, so only instructions that jump need to change it.
+	 *
+	 * @param bug the Bug executing this instruction
+	 * @param k the Continuation the instruction is part of
+	 * @return false if the Bug has to stop, to wait for the next round or to
+	 *         give the other Bugs a turn
+	 */
+	abstract boolean execute(Bug bug, Continuation k);
+
+	/**
+	 * Executes a statement that cannot suspend the Bug (an assignment, a
+	 * declaration, a color change, an "exit if", and so on).
+	 */
+	static final class Perform extends Instruction {
+		private final Statement statement;
+
+		Perform(Statement statement) {
+			this.statement = statement;
+		}
+
+		@Override
+		boolean execute(Bug bug, Continuation k) {
+			statement.execute(bug);
+			return true;
+		}
+	}
+
+	/**
+	 * Waits for permission to act. This is the only place a Bug stops: if it
+	 * has already acted this round, it is suspended here, and this
+	 * instruction is executed again when the Bug is resumed. A Bug with a
+	 * thread of its own waits here instead.
+	 */
+	static final class AwaitPermission extends Instruction {
+		@Override
+		boolean execute(Bug bug, Continuation k) {
+			if (k.threaded) {
+				bug.beginAction();
+			} else if (bug.isBlocked()) {
+				k.top.pc--;
+				return false;
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Carries out an action, once permission has been given.
+	 */
+	static final class Act extends Instruction {
+		private final Statement.Action action;
+
+		Act(Statement.Action action) {
+			this.action = action;
+		}
+
+		@Override
+		boolean execute(Bug bug, Continuation k) {
+			action.perform(bug);
+			bug.endAction();
+			return true;
+		}
+	}
+
+	/**
+	 * Keeps the value of an expression in a slot of the current frame, so that
+	 * a function called later in the same expression cannot change it.
+	 */
+	static final class Spill extends Instruction {
+		private final int slot;
+		private final Expression value;
+
+		Spill(int slot, Expression value) {
+			this.slot = slot;
+			this.value = value;
+		}
+
+		@Override
+		boolean execute(Bug bug, Continuation k) {
+			bug.frame[slot] = value.evaluate(bug);
+			return true;
+		}
+	}
+
+	/**
+	 * Makes sure a function exists and takes the given number of parameters.
+	 * Used before the arguments of a call are computed, when computing them
+	 * calls other functions, so that errors are found in the same order as by
+	 * the tree-walking interpreter.
+	 */
+	static final class CheckCall extends Instruction {
+		private final CallSite site;
+
+		CheckCall(CallSite site) {
+			this.site = site;
+		}
+
+		@Override
+		boolean execute(Bug bug, Continuation k) {
+			site.lookup(bug);
+			return true;
+		}
+	}
+
+	/**
+	 * Calls a function, pushing a new frame on the Continuation.
+	 */
+	static final class Call extends Instruction {
+		private final CallSite site;
+		private final Expression[] arguments;
+		private final int result;
+
+		/**
+		 * @param site the place the function is called
+		 * @param arguments the arguments, which do not contain calls
+		 * @param result the slot the returned value is kept in, or -1 to ignore it
+		 */
+		Call(CallSite site, Expression[] arguments, int result) {
+			this.site = site;
+			this.arguments = arguments;
+			this.result = result;
+		}
+
+		@Override
+		boolean execute(Bug bug, Continuation k) {
+			Function function = site.lookup(bug);
+
+			// Arguments are evaluated in the caller's frame
+			double[] newFrame = new double[function.code.frameSize];
+			for (int i = 0; i < arguments.length; i++) {
+				function.parameters[i].bind(bug, newFrame, arguments[i].evaluate(bug));
+			}
+			k.call(function.code, newFrame, result);
+			return true;
+		}
+	}
+
+	/**
+	 * A return statement whose value is that of a call, outside any loop of
+	 * a function: the function called takes the place of the one returning,
+	 * so that recursion in a return statement uses no more frames.
+	 */
+	static final class TailCall extends Instruction {
+		private final CallSite site;
+		private final Expression[] arguments;
+
+		/**
+		 * @param site the place the function is called
+		 * @param arguments the arguments, which do not contain calls
+		 */
+		TailCall(CallSite site, Expression[] arguments) {
+			this.site = site;
+			this.arguments = arguments;
+		}
+
+		@Override
+		boolean execute(Bug bug, Continuation k) {
+			Function function = site.lookup(bug);
+
+			// Arguments are evaluated in the frame being replaced
+			double[] newFrame = new double[function.code.frameSize];
+			for (int i = 0; i < arguments.length; i++) {
+				function.parameters[i].bind(bug, newFrame, arguments[i].evaluate(bug));
+			}
+			k.replace(function.code, newFrame);
+			return true;
+		}
+	}
+
+	/**
+	 * A return statement: leaves the current function, or ends the Bug if it
+	 * is not inside a function.
+	 */
+	static final class Return extends Instruction {
+		private final Expression value;
+		private final int outermostLoop;
+
+		/**
+		 * @param value the value returned
+		 * @param outermostLoop the loop slot of the outermost loop the return
+		 * is inside of, or -1 if it is not inside a loop
+		 */
+		Return(Expression value, int outermostLoop) {
+			this.value = value;
+			this.outermostLoop = outermostLoop;
+		}
+
+		@Override
+		boolean execute(Bug bug, Continuation k) {
+			double result = value.evaluate(bug);
+			// The loops being left count as exited
+			if (outermostLoop >= 0) {
+				bug.numLoops = k.top.loops[outermostLoop] - 1;
+			}
+			if (k.top.caller == null) {
+				bug.afterFuncReturn = true;
+			}
+			k.ret(result);
+			return true;
+		}
+	}
+
+	/**
+	 * The end of a block of code. A function that reaches its end without a
+	 * return statement returns 0.
+	 */
+	static final class End extends Instruction {
+		@Override
+		boolean execute(Bug bug, Continuation k) {
+			k.ret(0);
+			return true;
+		}
+	}
+
+	/**
+	 * Superclass of the instructions that may jump. The target is filled in
+	 * once the code it jumps to has been generated.
+	 */
+	abstract static class Jump extends Instruction {
+		int target;
+	}
+
+	/**
+	 * Starts a loop, giving it the next loop number.
+	 */
+	static final class EnterLoop extends Instruction {
+		private final int slot;
+
+		EnterLoop(int slot) {
+			this.slot = slot;
+		}
+
+		@Override
+		boolean execute(Bug bug, Continuation k) {
+			k.top.loops[slot] = ++bug.numLoops;
+			return true;
+		}
+	}
+
+	/**
+	 * Leaves a loop if an "exit if" statement has exited it. Placed before
+	 * each command of the loop's block that follows one that may exit it.
+	 */
+	static final class CheckLoop extends Jump {
+		private final int slot;
+
+		CheckLoop(int slot) {
+			this.slot = slot;
+		}
+
+		@Override
+		boolean execute(Bug bug, Continuation k) {
+			if (bug.numLoops != k.top.loops[slot]) {
+				k.top.pc = target;
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Jumps back to the start of a loop. A Bug that has gone round loops for
+	 * a long time without acting is stopped here, so that the other Bugs are
+	 * not held up. It is resumed again in the same round, and carries on from
+	 * the start of the loop, so its next action is not put off.
+	 */
+	static final class Repeat extends Jump {
+		Repeat(int target) {
+			this.target = target;
+		}
+
+		@Override
+		boolean execute(Bug bug, Continuation k) {
+			k.top.pc = target;
+			return --k.budget > 0;
+		}
+	}
+
+	/**
+	 * Jumps unless the condition is true (within EPSILON of 1), skipping the
+	 * commands of a switch case.
+	 */
+	static final class JumpUnlessTrue extends Jump {
+		private final Expression condition;
+
+		JumpUnlessTrue(Expression condition) {
+			this.condition = condition;
+		}
+
+		@Override
+		boolean execute(Bug bug, Continuation k) {
+			if (Math.abs(condition.evaluate(bug) - 1) > Expression.EPSILON) {
+				k.top.pc = target;
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Jumps if the condition is exactly 1, leaving a switch statement after
+	 * the commands of a case.
+	 */
+	static final class JumpIfOne extends Jump {
+		private final Expression condition;
+
+		JumpIfOne(Expression condition) {
+			this.condition = condition;
+		}
+
+		@Override
+		boolean execute(Bug bug, Continuation k) {
+			if (condition.evaluate(bug) == 1) {
+				k.top.pc = target;
+			}
+			return true;
+		}
+	}
+}
@@ -7,8 +7,11 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
-
-import javax.swing.JFileChooser;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 
 import tree.Tree;
 
@@ -17,46 +20,194 @@ public class Interpreter extends Thread {
 	String program;
 	Tree<Token> allbugs;
 	Tree<Token> bugsList;
-	HashMap<String, Bug> bugs;
-	HashMap<String, Double> variables;
+	ConcurrentHashMap<String, Bug> bugs;
+	Checker checker;
+	Bug[] bugTable;
+	HashMap<String, Integer> globalSlots;
+	double[] globals;
 	HashMap<String, Tree<Token>> functions;
-	ArrayList<Command> commands;
+	CommandLog commands;
 	boolean paused;
 	boolean doneEvaluating;
+	boolean cooperative;
+	boolean bytecode;
+	boolean registerMachine;
+	int maxCallDepth = Continuation.MAX_DEPTH;
 	int delay;
+	private ArrayList<Bug> schedule;
+	private ThreadFactory threadFactory;
+	ProgramCache programCache;
+	private int rounds;
+	private int bugCount;
+	
+	// Each Bug arrives at a Phaser when it is ready for its next action, or
+	// deregisters when it finishes, and the round is over when the phase
+	// advances. Phase 0 runs each Bug up to its first action. A Phaser can
+	// have at most 65535 parties, so the Bugs are spread over Phasers that
+	// are children of this one.
+	private Phaser actionsCompleted;
+	private int roundPhase;
+	private static final int BUGS_PER_PHASER = 1000;
+	
+	// Only one round is handed out at a time. Unlike synchronized methods, a
+	// lock does not tie a virtual thread to its carrier thread while it waits.
+	private final ReentrantLock lock = new ReentrantLock();
+	
+	/** Creates a platform thread for each Bug. */
+	private static final ThreadFactory PLATFORM_THREADS = new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			return new Thread(r);
+		}
+	};
 		
 	/**
 	 * Constructs a new Interpreter and initializes all of its data structures.
 	 */
 	public Interpreter() {
-		variables = new HashMap<String, Double>();
+		globalSlots = new HashMap<String, Integer>();
+		globals = new double[0];
 		functions = new HashMap<String, Tree<Token>>();
-		bugs = new HashMap<String, Bug>();
-		commands = new ArrayList<Command>();
+		bugs = new ConcurrentHashMap<String, Bug>();
+		commands = new CommandLog();
 		paused = false;
 		doneEvaluating = false;
 		delay = 600;
+		threadFactory = PLATFORM_THREADS;
+		programCache = ProgramCache.DEFAULT;
 	}
 	
 	/**
 	 * Makes the stored program string into an AST
 	 */
 	public void parseProgram() {
-		Parser p = new Parser(program);
-		if (!p.isProgram()) {
-			throw new RuntimeException("Input program is not a valid program");
-		}
-		
-		Tree<Token> programTree = p.stack.pop();
+		Tree<Token> programTree = programCache.get(program);
 		
 		allbugs = programTree.getChild(0);
 		bugsList = programTree.getChild(1);
 	}
 	
+	/**
+	 * Checks the parsed program for undeclared names, unknown functions and
+	 * the other mistakes that can be found before it is run, and keeps what
+	 * the check finds, so that the Bugs are compiled without having to look
+	 * up other Bugs by name.
+	 * 
+	 * @throws SemanticException listing every mistake found
+	 */
+	public void checkProgram() {
+		Checker c = new Checker(allbugs, bugsList);
+		c.check();
+		checker = c;
+		bugTable = new Bug[bugsList.getNumberOfChildren()];
+	}
+	
+	/**
+	 * Simplifies the program, folding constants and removing code whose
+	 * result is already known. The program should be checked first, since
+	 * code that is removed is no longer checked.
+	 */
+	public void optimizeProgram() {
+		allbugs = Optimizer.optimize(allbugs);
+		bugsList = Optimizer.optimize(bugsList);
+	}
+	
+	/**
+	 * Chooses whether each Bug is run by a thread of its own (the default), or
+	 * whether all of the Bugs are run by the Interpreter itself, one after
+	 * another, each round. Must be called before the Bugs are initialized.
+	 * 
+	 * @param cooperative true to run the Bugs without threads of their own
+	 */
+	public void setCooperative(boolean cooperative) {
+		this.cooperative = cooperative;
+	}
+	
+	/**
+	 * Chooses whether the main block and functions of each Bug are compiled
+	 * into JVM bytecode, which the JIT then compiles like any other Java
+	 * code, rather than run as a tree of Statements. Only Bugs that have
+	 * threads of their own are compiled this way. Must be called before the
+	 * Bugs are initialized.
+	 * 
+	 * @param bytecode true to compile the Bugs' code into bytecode
+	 * @throws UnsupportedOperationException if this version of Java cannot define hidden classes
+	 */
+	public void setBytecode(boolean bytecode) {
+		if (bytecode && !ClassGenerator.isAvailable()) {
+			throw new UnsupportedOperationException("Hidden classes are not available "
+														+ "in this version of Java");
+		}
+		this.bytecode = bytecode;
+	}
+	
+	/**
+	 * Chooses whether the Bugs run by the Interpreter itself are compiled
+	 * into register code, run by a <code>RegisterMachine</code>, rather than
+	 * into Instructions. Has no effect unless the Bugs are run cooperatively.
+	 * Must be called before the Bugs are initialized.
+	 * 
+	 * @param registerMachine true to run the Bugs' code on a register machine
+	 */
+	public void setRegisterMachine(boolean registerMachine) {
+		this.registerMachine = registerMachine;
+	}
+	
+	/**
+	 * Sets the greatest number of function calls a Bug may have in progress
+	 * at once. The frames of calls are kept on the heap, so a Bug that
+	 * recurses deeply needs no more than memory; one that goes deeper than
+	 * this fails with an error.
+	 * 
+	 * @param maxCallDepth the number of calls allowed
+	 */
+	public void setMaxCallDepth(int maxCallDepth) {
+		this.maxCallDepth = maxCallDepth;
+	}
+	
+	/**
+	 * Chooses whether each Bug is run by a virtual thread or by a platform thread
+	 * (the default). Must be called before the Bugs are initialized.
+	 * 
+	 * @param virtual true to use virtual threads
+	 * @throws UnsupportedOperationException if this version of Java has no virtual threads
+	 */
+	public void setVirtualThreads(boolean virtual) {
+		if (!virtual) {
+			threadFactory = PLATFORM_THREADS;
+			return;
+		}
+		
+		ThreadFactory factory = virtualThreadFactory();
+		if (factory == null) {
+			throw new UnsupportedOperationException("Virtual threads are not available "
+														+ "in this version of Java");
+		}
+		threadFactory = factory;
+	}
+	
+	/**
+	 * Returns a factory for virtual threads, or null if this version of Java has
+	 * none. Virtual threads are looked up by reflection, since the program is
+	 * also compiled for versions of Java that do not have them.
+	 * 
+	 * @return the factory, or null
+	 */
+	static ThreadFactory virtualThreadFactory() {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+	
 	/**
 	 * Interprets the parts of the program tree corresponding to the initialization of Bugs
 	 */
 	public void initializeBugs() {
+		schedule = new ArrayList<Bug>();
 		
 		for (int i = 0; i < bugsList.getNumberOfChildren(); i++) {
 			Tree<Token> bugTree = bugsList.getChild(i);
@@ -68,14 +219,37 @@ public class Interpreter extends Thread {
 			}
 			
 			bugs.put(b.bugName, b);
+			if (b.index >= 0) {
+				bugTable[b.index] = b;
+			}
+			schedule.add(b);
 			b.setBlocked(true);
 		}
 		
+		if (cooperative) {
+			// Each Bug runs up to its first action, as it would in its own thread
+			resumeBugs();
+			return;
+		}
+		
+		// The Interpreter itself is a party, so that a round cannot end before it
+		// has been started
+		actionsCompleted = new Phaser(1);
+		Phaser phaser = null;
+		for (int i = 0; i < schedule.size(); i++) {
+			if (i % BUGS_PER_PHASER == 0) {
+				phaser = new Phaser(actionsCompleted);
+			}
+			phaser.register();
+			schedule.get(i).phaser = phaser;
+		}
+		
 		Iterator bugsIter = bugs.keySet().iterator();
 		while (bugsIter.hasNext()) {
 			Bug b = bugs.get(bugsIter.next());
-			b.start();
+			threadFactory.newThread(b).start();
 		}
+		roundPhase = actionsCompleted.arrive();
 	}
 	
 	@Override
@@ -118,35 +292,149 @@ public class Interpreter extends Thread {
 	public void runSingleStep() {
 		roundOfActions();
 	}
+	
+	/**
+	 * Returns the number of the round being run. The first round is round 1;
+	 * anything done before that is done in round 0.
+	 * 
+	 * @return the number of the round
+	 */
+	int currentRound() {
+		return rounds;
+	}
+	
+	/**
+	 * Gives out the ids of Bugs, starting from 0, in the order the Bugs are made
+	 * 
+	 * @return the id for a new Bug
+	 */
+	int nextBugId() {
+		return bugCount++;
+	}
+	
+	/**
+	 * Runs rounds of action one after another, with no delay, until none of the
+	 * Bugs can act any more.
+	 * 
+	 * @return the number of rounds run
+	 */
+	public int runToCompletion() {
+		int count = 0;
+		while (roundOfActions()) {
+			count++;
+		}
+		return count;
+	}
 		
 	/**
-	 * Waits until all Bugs are blocked, then unblocks all bugs and allows them
-	 * to each perform one action
+	 * Waits until every Bug is ready to act or has finished, then unblocks all
+	 * bugs and allows them to each perform one action
+	 * 
+	 * @return false if no Bug was left to act, so no round was started
 	 */
-	synchronized private void roundOfActions() {
-		while (countBlockedBugs() < bugs.size()) {
-			try {
-				wait();
-			} catch (InterruptedException e) { }
+	private boolean roundOfActions() {
+		lock.lock();
+		try {
+			if (cooperative) {
+				if (schedule.isEmpty()) return false;
+				
+				for (int i = 0; i < schedule.size(); i++) {
+					schedule.get(i).setBlocked(false);
+				}
+				rounds++;
+				resumeBugs();
+				return true;
+			}
+			
+			// Waits until every Bug is either ready for its next action or finished,
+			// as the cooperative scheduler does
+			actionsCompleted.awaitAdvance(roundPhase);
+			// The Interpreter is the only party left once every Bug has deregistered
+			if (actionsCompleted.getRegisteredParties() == 1) return false;
+			rounds++;
+			
+			ArrayList<Bug> stillRunning = new ArrayList<Bug>(schedule.size());
+			for (int i = 0; i < schedule.size(); i++) {
+				Bug b = schedule.get(i);
+				if (!bugs.containsKey(b.bugName)) {
+					continue;
+				}
+				b.setBlocked(false);
+				LockSupport.unpark(b.thread);
+				stillRunning.add(b);
+			}
+			schedule = stillRunning;
+			roundPhase = actionsCompleted.arrive();
+			return true;
+		} finally {
+			lock.unlock();
 		}
+	}
+	
+	/**
+	 * Resumes each Bug in turn, in the order they were defined, until it has to
+	 * wait for permission to act. Bugs that finish are terminated.
+	 */
+	private void resumeBugs() {
+		ArrayList<Bug> stillRunning = new ArrayList<Bug>(schedule.size());
+		ArrayList<Bug> yielded = new ArrayList<Bug>();
 		
-		Iterator bugsIter = bugs.keySet().iterator();
-		while(bugsIter.hasNext()) {
-			bugs.get(bugsIter.next()).setBlocked(false);
+		for (int i = 0; i < schedule.size(); i++) {
+			Bug b = schedule.get(i);
+			if (resumeBug(b)) {
+				stillRunning.add(b);
+				if (b.yielded()) yielded.add(b);
+			}
 		}
 		
-		notifyAll();
+		// A Bug that gave the others a turn is resumed again until it is ready
+		// for its next action, so that the action is not put off to a later round
+		while (!yielded.isEmpty()) {
+			ArrayList<Bug> again = new ArrayList<Bug>();
+			for (int i = 0; i < yielded.size(); i++) {
+				Bug b = yielded.get(i);
+				if (!resumeBug(b)) {
+					stillRunning.remove(b);
+				} else if (b.yielded()) {
+					again.add(b);
+				}
+			}
+			yielded = again;
+		}
+		schedule = stillRunning;
+	}
+	
+	/**
+	 * Resumes a Bug until it stops, terminating it if it finishes.
+	 * 
+	 * @param b
+	 * @return false if the Bug has finished, or has stopped with an error
+	 */
+	private boolean resumeBug(Bug b) {
+		try {
+			if (b.advance()) {
+				terminateBug(b);
+				return false;
+			}
+			return true;
+		} catch (RuntimeException e) {
+			// As when a Bug's thread dies, the Bug is left where it is
+			e.printStackTrace();
+			return false;
+		}
 	}
 	
 	/**
 	 * Blocks the Bug until all Bugs are unblocked
 	 * @param b
 	 */
-	synchronized void getPermissionToAct(Bug b) {
+	void getPermissionToAct(Bug b) {
+		// The Bug is ready for its next action, so this round need not wait for it
+		if (b.phaser != null) {
+			b.phaser.arrive();
+		}
 		while (b.isBlocked()) {
-			try {
-				wait();
-			} catch (InterruptedException e) { }
+			LockSupport.park(this);
 		}
 	}
 	
@@ -154,31 +442,44 @@ public class Interpreter extends Thread {
 	 * Blocks the Bug after it completes its action
 	 * @param b
 	 */
-	synchronized void completeAction(Bug b) {
+	void completeAction(Bug b) {
+		// The Bug must be blocked before the next round can start
 		b.setBlocked(true);
-		notifyAll();
 	}
 	
 	/**
 	 * Removes the Bug from the pool of Bugs still executing
 	 * @param b
 	 */
-	synchronized void terminateBug(Bug b) {
+	void terminateBug(Bug b) {
+		b.terminated = true;
 		bugs.remove(b.bugName);
 		if (bugs.isEmpty()) {
 			doneEvaluating = true;
 		}
+		leaveRounds(b);
 	}
-
-	private int countBlockedBugs() {
-		int result = 0;
-		Iterator bugsIter = bugs.keySet().iterator();
-		while(bugsIter.hasNext()) {
-			if (bugs.get(bugsIter.next()).isBlocked()) {
-				result++;
-			}
-		}
-		return result;
+	
+	/**
+	 * Stops waiting for a Bug whose thread has died of an error. The Bug is
+	 * left where it is, but the other Bugs carry on without it.
+	 * @param b
+	 */
+	void abandonBug(Bug b) {
+		leaveRounds(b);
+	}
+	
+	/**
+	 * Deregisters a Bug that will not act again, so that rounds no longer wait
+	 * for it. A Bug arrives only when it waits for its next action, so it has
+	 * not yet arrived for the round in which it finishes, and leaves in that
+	 * same round.
+	 * @param b
+	 */
+	private void leaveRounds(Bug b) {
+		if (b.phaser == null) return;
+		
+		b.phaser.arriveAndDeregister();
 	}
 
 	public void interpretAllbugs() {
@@ -204,32 +505,69 @@ public class Interpreter extends Thread {
 		
 		for (int i = 0; i < numChildren; i++) {
 			String varName = tree.getChild(i).getValue().value;
-			variables.put(varName, 0.0);
+			declareGlobal(varName);
 		}
 	}
 	
-	public void load() throws IOException {
+	/**
+	 * Declares an Allbugs variable, with a value of 0. Each Allbugs variable
+	 * is given a fixed slot in the <code>globals</code> array.
+	 * 
+	 * @param varName
+	 */
+	void declareGlobal(String varName) {
+		Integer slot = globalSlots.get(varName);
+		if (slot != null) {
+			globals[slot] = 0;
+			return;
+		}
+		
+		globalSlots.put(varName, globals.length);
+		double[] grown = new double[globals.length + 1];
+		System.arraycopy(globals, 0, grown, 0, globals.length);
+		globals = grown;
+	}
+	
+	/**
+	 * Returns the slot in which the named Allbugs variable is kept.
+	 * 
+	 * @param varName
+	 * @return the index into <code>globals</code>, or -1 if there is no such variable
+	 */
+	int globalSlot(String varName) {
+		Integer slot = globalSlots.get(varName);
+		return slot == null ? -1 : slot;
+	}
+	
+	/**
+	 * Reads the program to be interpreted from a file.
+	 * 
+	 * @param file
+	 * @throws IOException
+	 */
+	public void load(File file) throws IOException {
+		program = readProgram(file);
+	}
+	
+	/**
+	 * Returns the text of the program in the given file.
+	 * 
+	 * @param file
+	 * @return the program, with each line ending in a newline
+	 * @throws IOException
+	 */
+	public static String readProgram(File file) throws IOException {
 		StringBuilder sb = new StringBuilder();
-        BufferedReader reader;
-        String fileName;
-
-        JFileChooser chooser = new JFileChooser();
-        chooser.setDialogTitle("Load which file?");
-        int result = chooser.showOpenDialog(null);
-        if (result == JFileChooser.APPROVE_OPTION) {
-            File file = chooser.getSelectedFile();
-            if (file != null) {
-                fileName = file.getCanonicalPath();
-                reader =
-                    new BufferedReader(new FileReader(fileName));
-                String line;
-                while ((line = reader.readLine()) != null) {
-                	sb.append(line);
-                	sb.append('\n');
-                }
-                reader.close();
-                program = sb.toString();
-            }
-        }
-    }
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				sb.append(line);
+				sb.append('\n');
+			}
+		} finally {
+			reader.close();
+		}
+		return sb.toString();
+	}
 }
@@ -223,8 +223,97 @@ public class InterpreterTest {
 
 	}
 	
+	@Test
+	public void testRoundsContinueAfterBugsStop() {
+		Interpreter interpreter = new Interpreter();
+		interpreter.program = "Bug Sally {\n"
+								+ "move 1\n"
+								+ "move 1\n"
+								+ "move 1\n"
+							+ "}\n"
+							+ "Bug Fred {\n"
+								+ "turn 90\n"
+							+ "}\n"
+							+ "Bug George {\n"
+								+ "turn 90\n"
+								+ "exit if 1\n"
+							+ "}\n";
+		interpreter.parseProgram();
+		interpreter.interpretAllbugs();
+		interpreter.initializeBugs();
+		Bug sally = interpreter.bugs.get("Sally");
+		
+		// Each round waits for the one before it to finish
+		for (int round = 0; round < 5; round++) {
+			interpreter.runSingleStep();
+		}
+		assertEquals(3, sally.x, 0.001);
+		assertEquals(3, interpreter.commands.size());
+		assertFalse(interpreter.bugs.containsKey("Sally"));
+		assertFalse(interpreter.bugs.containsKey("Fred"));
+		
+		// George stopped with an error, so the program never finishes
+		assertTrue(interpreter.bugs.containsKey("George"));
+		assertFalse(interpreter.doneEvaluating);
+	}
+	
+	@Test
+	public void testPlatformThreads() {
+		Interpreter interpreter = threadedInterpreter();
+		interpreter.setVirtualThreads(false);
+		interpreter.initializeBugs();
+		Bug sally = interpreter.bugs.get("Sally");
+		Bug fred = interpreter.bugs.get("Fred");
+		
+		assertEquals(2, interpreter.runToCompletion());
+		assertEquals(3, interpreter.commands.size());
+		assertTrue(interpreter.doneEvaluating);
+		
+		// Each Bug was run by a thread of its own, made by the Interpreter
+		assertNotNull(sally.thread);
+		assertNotNull(fred.thread);
+		assertNotSame(sally.thread, fred.thread);
+		assertNotSame(Thread.currentThread(), sally.thread);
+	}
+	
+	@Test
+	public void testVirtualThreadsWhenUnavailable() {
+		Interpreter interpreter = threadedInterpreter();
+		if (Interpreter.virtualThreadFactory() != null) {
+			// This version of Java has virtual threads, so they are used
+			interpreter.setVirtualThreads(true);
+		} else {
+			try {
+				interpreter.setVirtualThreads(true);
+				fail();
+			} catch (UnsupportedOperationException e) { }
+		}
+		
+		// Either way the Interpreter can still run the Bugs
+		interpreter.initializeBugs();
+		assertEquals(2, interpreter.runToCompletion());
+		assertEquals(3, interpreter.commands.size());
+		assertTrue(interpreter.doneEvaluating);
+	}
+	
 //	--------------- Helper methods ------------------
 	
+	private Interpreter threadedInterpreter() {
+		Interpreter interpreter = new Interpreter();
+		interpreter.program = "Bug Sally {\n"
+								+ "move 1\n"
+								+ "move 1\n"
+							+ "}\n"
+							+ "Bug Fred {\n"
+								+ "turn 90\n"
+								+ "line 0, 0, 1, 1\n"
+							+ "}\n";
+		interpreter.parseProgram();
+		interpreter.checkProgram();
+		interpreter.interpretAllbugs();
+		return interpreter;
+	}
+	
 	private Tree<Token> useAllbugs(String allbugs) {
 		Parser p = new Parser(allbugs);
 		if (p.isAllbugsCode()) {
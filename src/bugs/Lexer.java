@@ -0,0 +1,335 @@
+package bugs;
+
+import java.util.Arrays;
+
+/**
+ * Breaks the text of a Bugs program into tokens, all at once. The tokens are
+ * kept in parallel arrays, as their type, where they start in the text, how
+ * long they are, the line they are on and, for numbers, their value; no
+ * <code>Token</code> or <code>String</code> is made until one is asked for.
+ * A Parser or Recognizer walks the tokens by index, so putting back tokens
+ * it has read only means moving back to an earlier index.
+ * <p>
+ * The tokens are exactly those that <code>java.io.StreamTokenizer</code>
+ * returned when it was set up as the Parser used to set it up:
+ * <ul>
+ *   <li>A word is a letter, or a character from 160 up, followed by any
+ *       number of those and digits. Underscores are symbols.</li>
+ *   <li>A number is a digit followed by digits and at most one decimal
+ *       point. There are no negative numbers; a minus sign is a symbol.</li>
+ *   <li>A quoted string is a single <code>"</code> symbol; the rest of
+ *       the string, up to the closing quote or the end of the line, is
+ *       skipped.</li>
+ *   <li><code>//</code> and <code>/* ... *&#47;</code> comments are
+ *       skipped.</li>
+ *   <li>A line ends with <code>\n</code>, <code>\r</code> or
+ *       <code>\r\n</code>. The line that each token is on counts only the
+ *       line ends that were returned as tokens, so lines inside comments
+ *       are not counted, as they were not before.</li>
+ *   <li>Any other character that is not white space is a symbol.</li>
+ * </ul>
+ * The last token is always EOF.
+ *
+ * @author Anders Schneider
+ */
+final class Lexer {
+	private static final int INITIAL_CAPACITY = 64;
+
+	private static final Token.Type[] TYPES = Token.Type.values();
+
+	// The keywords, by length, so that a word can be checked against them
+	// without making a String of it, and their shared Tokens
+	private static final char[][][] KEYWORDS_BY_LENGTH = keywordsByLength();
+	private static final Token[][] KEYWORD_TOKENS_BY_LENGTH = keywordTokens();
+
+	private final char[] text;
+	private int count;
+	private byte[] types;
+	private int[] starts;
+	private int[] lengths;
+	private int[] lines;
+	private double[] numbers;
+
+	/**
+	 * Breaks the given text into tokens.
+	 *
+	 * @param text the text of a program, or part of one
+	 */
+	Lexer(String text) {
+		this.text = text.toCharArray();
+		types = new byte[INITIAL_CAPACITY];
+		starts = new int[INITIAL_CAPACITY];
+		lengths = new int[INITIAL_CAPACITY];
+		lines = new int[INITIAL_CAPACITY];
+		numbers = new double[INITIAL_CAPACITY];
+		scan();
+	}
+
+	/**
+	 * @return the number of tokens, including the EOF token at the end
+	 */
+	int size() {
+		return count;
+	}
+
+	/**
+	 * @param index the index of a token
+	 * @return the type of the token
+	 */
+	Token.Type type(int index) {
+		return TYPES[types[index]];
+	}
+
+	/**
+	 * @param index the index of a token
+	 * @return the number of line ends returned as tokens before this token, plus one
+	 */
+	int line(int index) {
+		return lines[index];
+	}
+
+	/**
+	 * @param index the index of a token
+	 * @return the value of the token if it is a number, otherwise NaN
+	 */
+	double number(int index) {
+		return types[index] == Token.Type.NUMBER.ordinal() ? numbers[index] : Double.NaN;
+	}
+
+	/**
+	 * Tells whether the token has the given value, as <code>Token.value</code>
+	 * would hold it, without making a <code>String</code> for the token.
+	 *
+	 * @param index the index of a token
+	 * @param value the value to compare with
+	 * @return true if the token's value equals the given value
+	 */
+	boolean hasValue(int index, String value) {
+		switch (type(index)) {
+		case KEYWORD:
+		case NAME:
+			if (value.length() != lengths[index]) return false;
+			int start = starts[index];
+			for (int i = 0; i < value.length(); i++) {
+				if (text[start + i] != value.charAt(i)) return false;
+			}
+			return true;
+		case SYMBOL:
+			return value.length() == 1 && value.charAt(0) == text[starts[index]];
+		default:
+			return value.equals(token(index).value);
+		}
+	}
+
+	/**
+	 * Returns a <code>Token</code> for the token at the given index. Only
+	 * names and numbers need new Tokens; the rest are shared.
+	 *
+	 * @param index the index of a token
+	 * @return a Token
+	 */
+	Token token(int index) {
+		switch (type(index)) {
+		case KEYWORD:
+			return keyword(starts[index], lengths[index]);
+		case NAME:
+			return new Token(Token.Type.NAME, new String(text, starts[index], lengths[index]));
+		case NUMBER:
+			return new Token(numbers[index]);
+		case SYMBOL:
+			return Token.symbol(text[starts[index]]);
+		case EOL:
+			return Token.END_OF_LINE;
+		default:
+			return Token.END_OF_FILE;
+		}
+	}
+
+	/**
+	 * Reads the whole text, following the steps <code>StreamTokenizer</code>
+	 * takes so that the same tokens come out.
+	 */
+	private void scan() {
+		int line = 1;
+		int i = 0;
+		int end = text.length;
+		while (true) {
+			// White space, which includes the control characters
+			while (i < end && text[i] <= ' ' && text[i] != '\n' && text[i] != '\r') {
+				i++;
+			}
+			if (i >= end) {
+				break;
+			}
+			int start = i;
+			char c = text[i];
+
+			if (c == '\n' || c == '\r') {
+				i++;
+				if (c == '\r' && i < end && text[i] == '\n') {
+					i++;
+				}
+				add(Token.Type.EOL, start, i - start, line, 0);
+				line++;
+			} else if (c >= '0' && c <= '9') {
+				// Computed exactly as StreamTokenizer computes it
+				double v = 0;
+				int decexp = 0;
+				int seendot = 0;
+				while (i < end) {
+					c = text[i];
+					if (c == '.' && seendot == 0) {
+						seendot = 1;
+					} else if ('0' <= c && c <= '9') {
+						v = v * 10 + (c - '0');
+						decexp += seendot;
+					} else {
+						break;
+					}
+					i++;
+				}
+				if (decexp != 0) {
+					double denom = 10;
+					decexp--;
+					while (decexp > 0) {
+						denom *= 10;
+						decexp--;
+					}
+					v = v / denom;
+				}
+				add(Token.Type.NUMBER, start, i - start, line, v);
+			} else if (isWordStart(c)) {
+				i++;
+				while (i < end && (isWordStart(text[i]) || (text[i] >= '0' && text[i] <= '9'))) {
+					i++;
+				}
+				Token.Type type = keyword(start, i - start) != null ? Token.Type.KEYWORD : Token.Type.NAME;
+				add(type, start, i - start, line, 0);
+			} else if (c == '"') {
+				// Only the quote itself is kept
+				add(Token.Type.SYMBOL, start, 1, line, 0);
+				i++;
+				while (i < end && text[i] != '"' && text[i] != '\n' && text[i] != '\r') {
+					if (text[i] == '\\') {
+						i++;
+					}
+					i++;
+				}
+				if (i < end && text[i] == '"') {
+					i++;
+				}
+			} else if (c == '/' && i + 1 < end && text[i + 1] == '/') {
+				i += 2;
+				while (i < end && text[i] != '\n' && text[i] != '\r') {
+					i++;
+				}
+			} else if (c == '/' && i + 1 < end && text[i + 1] == '*') {
+				i = skipComment(i + 2);
+			} else {
+				add(Token.Type.SYMBOL, start, 1, line, 0);
+				i++;
+			}
+		}
+		add(Token.Type.EOF, end, 0, line, 0);
+	}
+
+	/**
+	 * Skips a <code>/* ... *&#47;</code> comment. As in StreamTokenizer, the
+	 * character after a line end is never taken as the end of the comment,
+	 * and a comment that is not closed runs to the end of the text.
+	 *
+	 * @param i the index just after the opening of the comment
+	 * @return the index just after the comment
+	 */
+	private int skipComment(int i) {
+		int end = text.length;
+		int prevc = 0;
+		while (true) {
+			if (i >= end) return end;
+			int c = text[i++];
+			if (c == '/' && prevc == '*') return i;
+			if (c == '\r') {
+				if (i >= end) return end;
+				c = text[i++];
+				if (c == '\n') {
+					if (i >= end) return end;
+					c = text[i++];
+				}
+			} else if (c == '\n') {
+				if (i >= end) return end;
+				c = text[i++];
+			}
+			prevc = c;
+		}
+	}
+
+	private static boolean isWordStart(char c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c >= 160;
+	}
+
+	/**
+	 * Returns the shared Token for the keyword at the given place in the
+	 * text, or null if the word there is not a keyword.
+	 */
+	private Token keyword(int start, int length) {
+		if (length >= KEYWORDS_BY_LENGTH.length) return null;
+		char[][] candidates = KEYWORDS_BY_LENGTH[length];
+		for (int k = 0; k < candidates.length; k++) {
+			char[] keyword = candidates[k];
+			int i = 0;
+			while (i < length && text[start + i] == keyword[i]) {
+				i++;
+			}
+			if (i == length) return KEYWORD_TOKENS_BY_LENGTH[length][k];
+		}
+		return null;
+	}
+
+	private static char[][][] keywordsByLength() {
+		int longest = 0;
+		for (String keyword : Token.KEYWORDS) {
+			longest = Math.max(longest, keyword.length());
+		}
+		char[][][] byLength = new char[longest + 1][][];
+		for (int length = 0; length <= longest; length++) {
+			int n = 0;
+			for (String keyword : Token.KEYWORDS) {
+				if (keyword.length() == length) n++;
+			}
+			byLength[length] = new char[n][];
+			n = 0;
+			for (String keyword : Token.KEYWORDS) {
+				if (keyword.length() == length) byLength[length][n++] = keyword.toCharArray();
+			}
+		}
+		return byLength;
+	}
+
+	private static Token[][] keywordTokens() {
+		Token[][] tokens = new Token[KEYWORDS_BY_LENGTH.length][];
+		for (int length = 0; length < tokens.length; length++) {
+			tokens[length] = new Token[KEYWORDS_BY_LENGTH[length].length];
+			for (int k = 0; k < tokens[length].length; k++) {
+				tokens[length][k] = Token.shared(new String(KEYWORDS_BY_LENGTH[length][k]));
+			}
+		}
+		return tokens;
+	}
+
+	private void add(Token.Type type, int start, int length, int line, double number) {
+		if (count == types.length) {
+			int capacity = count * 2;
+			types = Arrays.copyOf(types, capacity);
+			starts = Arrays.copyOf(starts, capacity);
+			lengths = Arrays.copyOf(lengths, capacity);
+			lines = Arrays.copyOf(lines, capacity);
+			numbers = Arrays.copyOf(numbers, capacity);
+		}
+		types[count] = (byte) type.ordinal();
+		starts[count] = start;
+		lengths[count] = length;
+		lines[count] = line;
+		numbers[count] = number;
+		count++;
+	}
+}
@@ -0,0 +1,154 @@
+package bugs;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.StreamTokenizer;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class LexerTest {
+
+	@Test
+	public void testTokens() {
+		Lexer lexer = new Lexer("Bug Sally {\n  x = 12.5 * foo\n}");
+		assertEquals(12, lexer.size());
+		assertEquals(new Token(Token.Type.KEYWORD, "Bug"), lexer.token(0));
+		assertEquals(new Token(Token.Type.NAME, "Sally"), lexer.token(1));
+		assertEquals(new Token(Token.Type.SYMBOL, "{"), lexer.token(2));
+		assertEquals(new Token(Token.Type.EOL, "\n"), lexer.token(3));
+		assertEquals(Token.Type.NUMBER, lexer.type(6));
+		assertEquals(12.5, lexer.number(6), 0);
+		assertEquals(Double.NaN, lexer.number(7), 0);
+		assertEquals(new Token(Token.Type.EOF, "EOF"), lexer.token(11));
+	}
+
+	@Test
+	public void testLines() {
+		Lexer lexer = new Lexer("a\nb /* \n */ c\r\nd");
+		assertEquals(1, lexer.line(0));
+		assertEquals(1, lexer.line(1));
+		assertEquals(2, lexer.line(2));
+		// Line ends inside comments are not counted
+		assertEquals(2, lexer.line(3));
+		assertEquals(3, lexer.line(5));
+	}
+
+	@Test
+	public void testHasValue() {
+		Lexer lexer = new Lexer("move moveto + 5");
+		assertTrue(lexer.hasValue(0, "move"));
+		assertFalse(lexer.hasValue(0, "moveto"));
+		assertFalse(lexer.hasValue(1, "move"));
+		assertTrue(lexer.hasValue(2, "+"));
+		assertFalse(lexer.hasValue(2, "++"));
+		assertTrue(lexer.hasValue(3, "5.0"));
+	}
+
+	@Test
+	public void testSameTokensAsStreamTokenizer() {
+		String[] programs = {
+			"",
+			"   \t ",
+			"x=1.5.2 .5 12. 007 3_000",
+			"my_var $foo @ ` ~ \u007f \u0085 caf\u00e9 \u4e2d\u6587 x\u00a0y",
+			"a // comment\nb //\r\nc",
+			"a / b /= c",
+			"a /* one */ b /* two\nlines */ c /***/ d /* * / */ e",
+			"a /* not closed",
+			"a /* x *\n/ still */ b",
+			"a /* x \n\n*/ b",
+			"x \"quoted string\" y \"unclosed\n z \"esc\\\"aped\" w \"\\",
+			"\"a\\\nb\" c",
+			"a\rb\r\nc\n\rd\n\ne",
+			"/",
+			"a /",
+			"/*",
+			"\"",
+			"Bug Sally {\n"
+				+ "    var a, b\n"
+				+ "    initially { x = 50 }\n"
+				+ "    loop { move 10.25 turn -90 exit if a >= 3 }\n"
+				+ "    define f using n { return n * 2 }\n"
+				+ "}\n",
+		};
+		for (String program : programs) {
+			assertSameTokens(program);
+		}
+	}
+
+	@Test
+	public void testSameTokensAsStreamTokenizerOnRandomText() {
+		String alphabet = "ab Z09._-/*\"\\\n\r\t {}=<>!\u00e9";
+		Random random = new Random(594);
+		for (int n = 0; n < 2000; n++) {
+			StringBuilder sb = new StringBuilder();
+			int length = random.nextInt(40);
+			for (int i = 0; i < length; i++) {
+				sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+			}
+			assertSameTokens(sb.toString());
+		}
+	}
+
+//	--------------- Helper methods ------------------
+
+	/**
+	 * Checks that the Lexer finds the same tokens, with the same values and
+	 * on the same lines, as the StreamTokenizer the Parser used to use.
+	 */
+	private void assertSameTokens(String program) {
+		List<Token> expected = new ArrayList<Token>();
+		List<Integer> expectedLines = new ArrayList<Integer>();
+		StreamTokenizer tokenizer = new StreamTokenizer(new StringReader(program));
+		tokenizer.parseNumbers();
+		tokenizer.eolIsSignificant(true);
+		tokenizer.slashStarComments(true);
+		tokenizer.slashSlashComments(true);
+		tokenizer.lowerCaseMode(false);
+		tokenizer.ordinaryChars(33, 47);
+		tokenizer.ordinaryChars(58, 64);
+		tokenizer.ordinaryChars(91, 96);
+		tokenizer.ordinaryChars(123, 126);
+		tokenizer.quoteChar('\"');
+		int line = 1;
+		while (true) {
+			int code;
+			try {
+				code = tokenizer.nextToken();
+			} catch (IOException e) {
+				throw new Error(e);
+			}
+			expectedLines.add(line);
+			if (code == StreamTokenizer.TT_WORD) {
+				Token.Type type = Token.KEYWORDS.contains(tokenizer.sval) ? Token.Type.KEYWORD : Token.Type.NAME;
+				expected.add(new Token(type, tokenizer.sval));
+			} else if (code == StreamTokenizer.TT_NUMBER) {
+				expected.add(new Token(tokenizer.nval));
+			} else if (code == StreamTokenizer.TT_EOL) {
+				expected.add(new Token(Token.Type.EOL, "\n"));
+				line++;
+			} else if (code == StreamTokenizer.TT_EOF) {
+				expected.add(new Token(Token.Type.EOF, "EOF"));
+				break;
+			} else {
+				expected.add(new Token(Token.Type.SYMBOL, ((char) code) + ""));
+			}
+		}
+
+		Lexer lexer = new Lexer(program);
+		String where = "in " + program.replace("\n", "\\n").replace("\r", "\\r");
+		assertEquals(where, expected.size(), lexer.size());
+		for (int i = 0; i < lexer.size(); i++) {
+			Token token = lexer.token(i);
+			assertEquals(where, expected.get(i), token);
+			assertEquals(where, expected.get(i).number, token.number, 0);
+			assertEquals(where, (int) expectedLines.get(i), lexer.line(i));
+			assertTrue(where, lexer.hasValue(i, token.value));
+		}
+	}
+}
@@ -0,0 +1,237 @@
+package bugs;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import tree.Tree;
+
+/**
+ * Simplifies the tree of a program once it has been checked, so that work
+ * whose result is already known is not done again every time the code runs.
+ * <ul>
+ *   <li>Operators whose operands are all numbers are replaced by their
+ *       results. These are worked out by the same Expressions the program
+ *       would run, so comparisons keep their tolerance of 0.001.</li>
+ *   <li>Adding or subtracting 0, multiplying or dividing by 1, and negating
+ *       twice are removed. An expression subtracted from itself becomes 0 if
+ *       it calls no functions; this assumes the expression's value is a
+ *       finite number, as it is unless something has been divided by 0.</li>
+ *   <li>An <code>exit if</code> whose condition is a number other than 1
+ *       can never exit, and is removed. One whose condition is 1 always
+ *       exits, so the commands after it in the same loop are removed.</li>
+ *   <li>A switch case whose condition is a number that is not true is
+ *       removed, and so are the cases after one whose condition is 1. A
+ *       switch left with no cases is removed, and one whose first case is
+ *       always chosen becomes a block.</li>
+ * </ul>
+ * The tree given is not changed; the parts of it that are simplified are
+ * copied, and the rest are shared.
+ *
+ * @author Anders Schneider
+ */
+final class Optimizer {
+
+	private Optimizer() {}
+
+	/**
+	 * Simplifies a tree, which may be a whole program or any part of one.
+	 *
+	 * @param tree the tree
+	 * @return the simplified tree, which is the given tree if nothing could be simplified
+	 */
+	static Tree<Token> optimize(Tree<Token> tree) {
+		ArrayList<Tree<Token>> children = new ArrayList<Tree<Token>>(tree.getNumberOfChildren());
+		boolean changed = false;
+		for (int i = 0; i < tree.getNumberOfChildren(); i++) {
+			Tree<Token> child = optimize(tree.getChild(i));
+			children.add(child);
+			changed |= child != tree.getChild(i);
+		}
+
+		Token token = tree.getValue();
+		Tree<Token> simplified = null;
+		if (token.type == Token.Type.SYMBOL) {
+			simplified = simplifyOperator(token.value, children);
+		} else if (token.type == Token.Type.KEYWORD) {
+			switch (token.value) {
+			case "list":
+			case "block":
+				simplified = simplifyCommands(token, children, 0);
+				break;
+			case "case":
+				simplified = simplifyCommands(token, children, 1);
+				break;
+			case "loop":
+				simplified = simplifyLoop(token, children.get(0));
+				break;
+			case "switch":
+				simplified = simplifySwitch(token, children);
+				break;
+			}
+		}
+
+		if (simplified != null) return simplified;
+		return changed ? new Tree<Token>(token, children) : tree;
+	}
+
+	/**
+	 * Simplifies an operator whose operands have already been simplified.
+	 *
+	 * @return the simplified expression, or null if it can't be simplified
+	 */
+	private static Tree<Token> simplifyOperator(String operator, List<Tree<Token>> operands) {
+		if (operands.size() == 1) {
+			Tree<Token> operand = operands.get(0);
+			if ("+".equals(operator)) return operand;
+			if (!"-".equals(operator)) return null;
+			if (isNumber(operand)) {
+				return number(-1 * operand.getValue().number);
+			}
+			if (isNegation(operand)) return operand.getChild(0);
+			return null;
+		}
+		if (operands.size() != 2) return null;
+
+		Tree<Token> left = operands.get(0);
+		Tree<Token> right = operands.get(1);
+		if (isNumber(left) && isNumber(right)) {
+			Expression folded = Compiler.binary(operator,
+												new Expression.Constant(left.getValue().number),
+												new Expression.Constant(right.getValue().number));
+			// Not an arithmetic or comparison operator
+			if (folded == null) return null;
+			return number(folded.evaluate(null));
+		}
+
+		switch (operator) {
+		case "+":
+			if (isNumber(right, 0)) return left;
+			if (isNumber(left, 0)) return right;
+			break;
+		case "-":
+			if (isNumber(right, 0)) return left;
+			if (left.equals(right) && !callsFunction(left)) return number(0);
+			break;
+		case "*":
+			if (isNumber(right, 1)) return left;
+			if (isNumber(left, 1)) return right;
+			break;
+		case "/":
+			if (isNumber(right, 1)) return left;
+			break;
+		}
+		return null;
+	}
+
+	/**
+	 * Removes the exits that can never exit, and the switches that have no
+	 * cases left, from a list of commands.
+	 *
+	 * @param first the index of the first command among the children
+	 * @return the simplified tree, or null if nothing was removed
+	 */
+	private static Tree<Token> simplifyCommands(Token token, List<Tree<Token>> children, int first) {
+		ArrayList<Tree<Token>> kept = new ArrayList<Tree<Token>>(children.size());
+		for (int i = 0; i < children.size(); i++) {
+			Tree<Token> child = children.get(i);
+			if (i >= first && (isNeverExit(child) || isEmptySwitch(child))) continue;
+			kept.add(child);
+		}
+		if (kept.size() == children.size()) return null;
+		return new Tree<Token>(token, kept);
+	}
+
+	/**
+	 * Removes the commands that follow an exit that always exits, from the
+	 * block of a loop. Exits further in, as in a switch, are not followed,
+	 * since the loop only checks whether it has been exited between its own
+	 * commands.
+	 *
+	 * @return the simplified loop, or null if nothing was removed
+	 */
+	private static Tree<Token> simplifyLoop(Token token, Tree<Token> block) {
+		for (int i = 0; i < block.getNumberOfChildren() - 1; i++) {
+			if (isAlwaysExit(block.getChild(i))) {
+				ArrayList<Tree<Token>> kept = new ArrayList<Tree<Token>>(i + 1);
+				for (int j = 0; j <= i; j++) {
+					kept.add(block.getChild(j));
+				}
+				return new Tree<Token>(token, new Tree<Token>(block.getValue(), kept));
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Removes the cases of a switch that can never be chosen, and the cases
+	 * after one that is always chosen. A switch whose first case is always
+	 * chosen becomes a block of that case's commands.
+	 *
+	 * @return the simplified tree, or null if nothing was removed
+	 */
+	private static Tree<Token> simplifySwitch(Token token, List<Tree<Token>> cases) {
+		ArrayList<Tree<Token>> kept = new ArrayList<Tree<Token>>(cases.size());
+		for (Tree<Token> caseTree : cases) {
+			Tree<Token> condition = caseTree.getChild(0);
+			if (isNumber(condition)) {
+				double value = condition.getValue().number;
+				// A case runs if its condition is true, but only a 1 ends the switch
+				if (Math.abs(value - 1) > Expression.EPSILON) continue;
+				if (value == 1) {
+					kept.add(caseTree);
+					break;
+				}
+			}
+			kept.add(caseTree);
+		}
+
+		if (!kept.isEmpty() && isNumber(kept.get(0).getChild(0), 1)) {
+			Tree<Token> caseTree = kept.get(0);
+			ArrayList<Tree<Token>> commands = new ArrayList<Tree<Token>>(caseTree.getNumberOfChildren() - 1);
+			for (int i = 1; i < caseTree.getNumberOfChildren(); i++) {
+				commands.add(caseTree.getChild(i));
+			}
+			return new Tree<Token>(Token.of("block"), commands);
+		}
+		if (kept.size() == cases.size()) return null;
+		return new Tree<Token>(token, kept);
+	}
+
+	private static boolean isNumber(Tree<Token> tree) {
+		return tree.getValue().type == Token.Type.NUMBER;
+	}
+
+	private static boolean isNumber(Tree<Token> tree, double value) {
+		return isNumber(tree) && tree.getValue().number == value;
+	}
+
+	private static boolean isNegation(Tree<Token> tree) {
+		return tree.getValue().type == Token.Type.SYMBOL && "-".equals(tree.getValue().value)
+				&& tree.getNumberOfChildren() == 1;
+	}
+
+	private static boolean isNeverExit(Tree<Token> tree) {
+		return "exit".equals(tree.getValue().value) && isNumber(tree.getChild(0))
+				&& tree.getChild(0).getValue().number != 1;
+	}
+
+	private static boolean isAlwaysExit(Tree<Token> tree) {
+		return "exit".equals(tree.getValue().value) && isNumber(tree.getChild(0), 1);
+	}
+
+	private static boolean isEmptySwitch(Tree<Token> tree) {
+		return "switch".equals(tree.getValue().value) && tree.getNumberOfChildren() == 0;
+	}
+
+	private static boolean callsFunction(Tree<Token> tree) {
+		if ("call".equals(tree.getValue().value)) return true;
+		for (int i = 0; i < tree.getNumberOfChildren(); i++) {
+			if (callsFunction(tree.getChild(i))) return true;
+		}
+		return false;
+	}
+
+	private static Tree<Token> number(double value) {
+		return new Tree<Token>(new Token(value));
+	}
+}
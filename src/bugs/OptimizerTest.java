@@ -0,0 +1,188 @@
+package bugs;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import tree.Tree;
+
+public class OptimizerTest {
+
+	@Test
+	public void testFoldsConstants() {
+		assertSimplified("90", "2 * 45");
+		assertSimplified("0.5", "1 / 2");
+		assertSimplified("x + 12", "x + 3 * 4");
+		assertSimplified("f(6)", "f(2 + 4)");
+		assertSimplified("x + y", "x + y");
+	}
+
+	@Test
+	public void testFoldsNegation() {
+		assertEquals(new Token(-3), Optimizer.optimize(expression("-(1 + 2)")).getValue());
+		assertEquals(new Token(3), Optimizer.optimize(expression("-(-3)")).getValue());
+	}
+
+	@Test
+	public void testFoldsComparisonsWithTolerance() {
+		assertSimplified("1", "2 = 2.0005");
+		assertSimplified("0", "2 != 2.0005");
+		assertSimplified("0", "2 < 2.0005");
+		assertSimplified("1", "2 <= 2.0005");
+		assertSimplified("0", "2.0005 > 2");
+		assertSimplified("1", "3 > 2");
+		assertSimplified("0", "3 < 2");
+		assertSimplified("1", "2 >= 2.0005");
+	}
+
+	@Test
+	public void testRemovesIdentities() {
+		assertSimplified("angle", "angle + 0");
+		assertSimplified("angle", "0 + angle");
+		assertSimplified("angle", "angle - 0");
+		assertSimplified("angle", "angle * 1");
+		assertSimplified("angle", "1 * angle");
+		assertSimplified("angle", "angle / 1");
+		assertSimplified("angle", "angle * (3 - 2)");
+		assertSimplified("angle", "-(-angle)");
+		assertSimplified("10", "(x - x) + 10");
+		assertSimplified("10", "(Fred.x * 2 - Fred.x * 2) + 10");
+		// A function could return something different each time
+		assertSimplified("f() - f()", "f() - f()");
+		// Multiplying by 0 is kept, since infinity times 0 is not 0
+		assertSimplified("x * 0", "x * 0");
+		assertSimplified("1 - angle", "1 - angle");
+	}
+
+	@Test
+	public void testExits() {
+		Tree<Token> loop = optimizeCommand("loop {\n"
+												+ "move 1\n"
+												+ "exit if 0\n"
+												+ "exit if 1.0005\n"
+												+ "exit if 2 > 1\n"
+												+ "turn 90\n"
+											+ "}\n");
+		assertEquals(command("loop {\n"
+								+ "move 1\n"
+								+ "exit if 1\n"
+							+ "}\n"), loop);
+
+		// Only the loop's own commands are removed
+		Tree<Token> nested = command("loop {\n"
+										+ "move 1\n"
+										+ "switch {\n"
+											+ "case x > 5\n"
+												+ "exit if 1\n"
+												+ "move 2\n"
+										+ "}\n"
+										+ "turn 90\n"
+									+ "}\n");
+		assertSame(nested, Optimizer.optimize(nested));
+	}
+
+	@Test
+	public void testSwitches() {
+		Tree<Token> tree = optimizeCommand("switch {\n"
+												+ "case 0\n"
+													+ "move 1\n"
+												+ "case 1.0005\n"
+													+ "move 2\n"
+												+ "case x > 5\n"
+													+ "move 3\n"
+												+ "case 1 + 0\n"
+													+ "move 4\n"
+												+ "case x < 5\n"
+													+ "move 5\n"
+											+ "}\n");
+		assertEquals(command("switch {\n"
+								+ "case 1.0005\n"
+									+ "move 2\n"
+								+ "case x > 5\n"
+									+ "move 3\n"
+								+ "case 1\n"
+									+ "move 4\n"
+							+ "}\n"), tree);
+
+		tree = optimizeCommand("switch {\n"
+									+ "case 2 > 1\n"
+										+ "move 4\n"
+										+ "turn 5\n"
+									+ "case x < 5\n"
+										+ "move 5\n"
+								+ "}\n");
+		assertEquals(command("{\n"
+								+ "move 4\n"
+								+ "turn 5\n"
+							+ "}\n"), tree);
+
+		tree = optimizeCommand("{\n"
+									+ "move 1\n"
+									+ "switch {\n"
+										+ "case 2 < 1\n"
+											+ "move 5\n"
+									+ "}\n"
+								+ "}\n");
+		assertEquals(command("{\n"
+								+ "move 1\n"
+							+ "}\n"), tree);
+	}
+
+	@Test
+	public void testTreeIsNotChanged() {
+		Tree<Token> tree = expression("x + 2 * 3").freeze();
+		Tree<Token> optimized = Optimizer.optimize(tree);
+		assertEquals(expression("x + 2 * 3"), tree);
+		assertSame(tree.getChild(0), optimized.getChild(0));
+	}
+
+	@Test
+	public void testProgramRunsTheSame() {
+		String program = "Bug Sally {\n"
+							+ "var n\n"
+							+ "loop {\n"
+								+ "move 2 * 5 + n * 0 + 0\n"
+								+ "turn 45 + 45\n"
+								+ "n = (n + 1) * 1\n"
+								+ "switch {\n"
+									+ "case 1 = 0\n"
+										+ "move 100\n"
+									+ "case n - n + 1\n"
+										+ "exit if n >= 4 + 0\n"
+								+ "}\n"
+							+ "}\n"
+						+ "}\n";
+		BatchRunner plain = new BatchRunner(program);
+		plain.getInterpreter().parseProgram();
+		plain.getInterpreter().interpretAllbugs();
+		plain.getInterpreter().initializeBugs();
+		int rounds = plain.getInterpreter().runToCompletion();
+
+		BatchRunner optimized = new BatchRunner(program);
+		optimized.run();
+		assertEquals(rounds, optimized.getRounds());
+		assertEquals(plain.getCommandCount(), optimized.getCommandCount());
+		assertEquals(4, optimized.getCommandCount());
+	}
+
+	private static void assertSimplified(String expected, String expression) {
+		assertEquals(expression(expected).toString(),
+					Optimizer.optimize(expression(expression)).toString());
+	}
+
+	private static Tree<Token> expression(String expression) {
+		Parser p = new Parser(expression + "\n");
+		assertTrue(p.isExpression());
+		return p.stack.pop();
+	}
+
+	private static Tree<Token> command(String command) {
+		Parser p = new Parser(command);
+		assertTrue(p.isCommand() || p.isBlock());
+		return p.stack.pop();
+	}
+
+	private static Tree<Token> optimizeCommand(String command) {
+		return Optimizer.optimize(command(command));
+	}
+}
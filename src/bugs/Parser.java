@@ -1,9 +1,5 @@
 package bugs;
 
-import java.io.IOException;
-import java.io.Reader;
-import java.io.StreamTokenizer;
-import java.io.StringReader;
 import java.util.*;
 
 import tree.Tree;
@@ -16,10 +12,20 @@ import tree.Tree;
  * @version February 2015
  */
 public class Parser {
-    /** The tokenizer used by this Parser. */
-    StreamTokenizer tokenizer = null;
-    /** The number of the line of source code currently being processed. */
-    private int lineNumber = 1;
+    /**
+     * The version of the trees this Parser builds. This must be increased
+     * whenever a change to the Parser or Lexer changes the tree built for
+     * any program, so that trees saved by <code>ProgramCache</code> are
+     * not used any more.
+     */
+    public static final int VERSION = 1;
+
+    /** The tokens of the text being parsed. */
+    final Lexer lexer;
+    /** The index of the next token to be read. */
+    private int position = 0;
+    /** The index of the token most recently read. */
+    private int previous = 0;
 
     /**
      * The stack used for holding Trees as they are created.
@@ -31,19 +37,7 @@ public class Parser {
      * @param text The string to be parsed.
      */
     public Parser(String text) {
-        Reader reader = new StringReader(text);
-        tokenizer = new StreamTokenizer(reader);
-        tokenizer.parseNumbers();
-        tokenizer.eolIsSignificant(true);
-        tokenizer.slashStarComments(true);
-        tokenizer.slashSlashComments(true);
-        tokenizer.lowerCaseMode(false);
-        tokenizer.ordinaryChars(33, 47);
-        tokenizer.ordinaryChars(58, 64);
-        tokenizer.ordinaryChars(91, 96);
-        tokenizer.ordinaryChars(123, 126);
-        tokenizer.quoteChar('\"');
-        lineNumber = 1;
+        lexer = new Lexer(text);
     }
 
     /**
@@ -866,7 +860,7 @@ public class Parser {
      * @param value The value of the token to be pushed onto the global stack.
      */
     private void pushNewNode(String value) {
-        stack.push(new Tree<>(new Token(Token.typeOf(value), value)));
+        stack.push(new Tree<>(Token.of(value)));
     }
 
     /**
@@ -933,12 +927,10 @@ public class Parser {
      * @return <code>true</code> if the next token has the expected type.
      */
     private boolean nextTokenMatches(Token.Type type) {
-        Token t = nextToken();
-        if (t.type == type) {
-            stack.push(new Tree<>(t));
+        if (lexer.type(position) == type) {
+            stack.push(new Tree<>(nextToken()));
             return true;
         }
-        pushBack();
         return false;
     }
 
@@ -954,50 +946,38 @@ public class Parser {
      * @return <code>true</code> if the next token has the expected type.
      */
     private boolean nextTokenMatches(Token.Type type, String value) {
-        Token t = nextToken();
-        if (type == t.type && value.equals(t.value)) {
-            stack.push(new Tree<>(t));
+        if (lexer.type(position) == type && lexer.hasValue(position, value)) {
+            stack.push(new Tree<>(nextToken()));
             return true;
         }
-        pushBack();
         return false;
     }
 
     /**
-     * Returns the next Token. Increments the global variable
-     * <code>lineNumber</code> when an EOL is returned.
+     * Returns the next Token. Once the end of the text is reached,
+     * the EOF Token is returned every time.
      * 
      * @return The next Token.
      */
     Token nextToken() {
-        int code;
-        try { code = tokenizer.nextToken(); }
-        catch (IOException e) { throw new Error(e); } // Should never happen
-        switch (code) {
-            case StreamTokenizer.TT_WORD:
-                if (Token.KEYWORDS.contains(tokenizer.sval)) {
-                    return new Token(Token.Type.KEYWORD, tokenizer.sval);
-                }
-                return new Token(Token.Type.NAME, tokenizer.sval);
-            case StreamTokenizer.TT_NUMBER:
-                return new Token(Token.Type.NUMBER, tokenizer.nval + "");
-            case StreamTokenizer.TT_EOL:
-                lineNumber++;
-                return new Token(Token.Type.EOL, "\n");
-            case StreamTokenizer.TT_EOF:
-                return new Token(Token.Type.EOF, "EOF");
-            default:
-                return new Token(Token.Type.SYMBOL, ((char) code) + "");
-        }
+        advance();
+        return lexer.token(previous);
+    }
+
+    /**
+     * Moves past the next token, remembering where it was.
+     */
+    private void advance() {
+        previous = position;
+        if (lexer.type(position) != Token.Type.EOF) position++;
     }
 
     /**
-     * Returns the most recent Token to the tokenizer. Decrements the global
-     * variable <code>lineNumber</code> if an EOL is pushed back.
+     * Returns the most recent Token to the tokenizer, so that it will be
+     * read again.
      */
     void pushBack() {
-        tokenizer.pushBack();
-        if (tokenizer.ttype == StreamTokenizer.TT_EOL) lineNumber--;
+        position = previous;
     }
 
     /**
@@ -1044,6 +1024,6 @@ public class Parser {
      * @param message The text to put in the <code>SyntaxException</code>.
      */
     private void error(String message) {
-        throw new SyntaxException("Line " + lineNumber + ": " + message);
+        throw new SyntaxException("Line " + lexer.line(position) + ": " + message);
     }
 }
\ No newline at end of file
@@ -1374,7 +1374,7 @@ public class ParserTest {
     private void followedBy(Parser parser, String expectedTokens) {
         int expectedType;
         int actualType;
-        StreamTokenizer actual = parser.tokenizer;
+        Token actual;
 
         Reader reader = new StringReader(expectedTokens);
         StreamTokenizer expected = new StreamTokenizer(reader);
@@ -1383,13 +1383,14 @@ public class ParserTest {
             while (true) {
                 expectedType = expected.nextToken();
                 if (expectedType == StreamTokenizer.TT_EOF) break;
-                actualType = actual.nextToken();
+                actual = parser.nextToken();
+                actualType = code(actual);
                 assertEquals(typeName(expectedType), typeName(actualType));
                 if (actualType == StreamTokenizer.TT_WORD) {
-                    assertEquals(expected.sval, actual.sval);
+                    assertEquals(expected.sval, actual.value);
                 }
                 else if (actualType == StreamTokenizer.TT_NUMBER) {
-                    assertEquals(expected.nval, actual.nval, 0.001);
+                    assertEquals(expected.nval, actual.number, 0.001);
                 }
             }
         }
@@ -1397,6 +1398,23 @@ public class ParserTest {
             e.printStackTrace();
         }
     }
+
+    /**
+     * Returns the code a <code>StreamTokenizer</code> would have returned
+     * for the given Token, so that it can be compared with one.
+     * @param token The Token.
+     * @return The StreamTokenizer code for the Token.
+     */
+    private int code(Token token) {
+        switch (token.type) {
+            case KEYWORD:
+            case NAME: return StreamTokenizer.TT_WORD;
+            case NUMBER: return StreamTokenizer.TT_NUMBER;
+            case EOL: return StreamTokenizer.TT_EOL;
+            case EOF: return StreamTokenizer.TT_EOF;
+            default: return token.value.charAt(0);
+        }
+    }
     
     private String typeName(int type) {
         switch(type) {
@@ -0,0 +1,194 @@
+package bugs;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import tree.Tree;
+import tree.TreeInterner;
+
+/**
+ * Keeps the trees of programs that have been parsed, so that a program that
+ * is run again, as when the animation is reset, or when a batch job runs the
+ * same program many times, is not lexed and parsed again.
+ * <p>
+ * A program is found by the SHA-256 hash of its text. The most recently used
+ * trees are kept in memory. If the cache has a directory, each tree is also
+ * saved there in the binary form of {@link TreeCodec}, so that it can be used
+ * by later runs. Saved trees record the version of the Parser that built them,
+ * and are not used once the version has changed.
+ * <p>
+ * The trees are shared by everything that gets them from the cache, so they
+ * are frozen. They are also interned, so that parts that programs have in
+ * common, such as the same function, are kept only once.
+ *
+ * @author Anders Schneider
+ */
+public class ProgramCache {
+	/** The cache used by an Interpreter unless it is given another. */
+	static final ProgramCache DEFAULT = new ProgramCache(64, null);
+
+	private static final String SUFFIX = ".bugtree";
+
+	private final int capacity;
+	private final File directory;
+	private final int version;
+	private final LinkedHashMap<String, Tree<Token>> trees;
+	private final TreeInterner<Token> interner = new TreeInterner<Token>();
+
+	int memoryHits;
+	int diskHits;
+	int misses;
+
+	/**
+	 * Constructs a cache.
+	 *
+	 * @param capacity the number of trees to keep in memory
+	 * @param directory where to save trees, or null to keep them only in memory
+	 */
+	public ProgramCache(int capacity, File directory) {
+		this(capacity, directory, Parser.VERSION);
+	}
+
+	/**
+	 * Constructs a cache whose saved trees are for the given Parser version.
+	 */
+	ProgramCache(int capacity, File directory, int version) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("A cache must hold at least one program");
+		}
+		if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+			throw new IllegalArgumentException("Can't make a cache directory at " + directory);
+		}
+		this.capacity = capacity;
+		this.directory = directory;
+		this.version = version;
+		trees = new LinkedHashMap<String, Tree<Token>>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Tree<Token>> eldest) {
+				return size() > ProgramCache.this.capacity;
+			}
+		};
+	}
+
+	/**
+	 * Returns the tree of the given program, parsing it only if it is not in
+	 * the cache.
+	 *
+	 * @param program the text of a program
+	 * @return the frozen tree of the program
+	 * @throws SyntaxException if the program is not valid
+	 */
+	public Tree<Token> get(String program) {
+		String key = hash(program);
+		synchronized (this) {
+			Tree<Token> tree = trees.get(key);
+			if (tree != null) {
+				memoryHits++;
+				return tree;
+			}
+		}
+
+		Tree<Token> tree = load(key);
+		synchronized (this) {
+			if (tree != null) {
+				diskHits++;
+			} else {
+				misses++;
+			}
+		}
+		if (tree == null) {
+			tree = parse(program);
+			save(key, tree);
+		}
+		tree = interner.intern(tree);
+
+		synchronized (this) {
+			trees.put(key, tree);
+		}
+		return tree;
+	}
+
+	/**
+	 * Parses a program.
+	 *
+	 * @param program the text of a program
+	 * @return the tree of the program
+	 * @throws SyntaxException if the program is not valid
+	 */
+	static Tree<Token> parse(String program) {
+		Parser p = new Parser(program);
+		if (!p.isProgram()) {
+			throw new RuntimeException("Input program is not a valid program");
+		}
+		return p.stack.pop();
+	}
+
+	/**
+	 * Returns the SHA-256 hash of the program's text, in hexadecimal.
+	 */
+	private static String hash(String program) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new Error(e); // Every Java has SHA-256
+		}
+		byte[] bytes = digest.digest(program.getBytes(StandardCharsets.UTF_8));
+		StringBuilder sb = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+			sb.append(Character.forDigit(b & 0xF, 16));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Reads a saved tree, if there is one for this version of the Parser.
+	 *
+	 * @return the tree, or null
+	 */
+	private Tree<Token> load(String key) {
+		if (directory == null) return null;
+		File file = new File(directory, key + SUFFIX);
+		if (!file.isFile()) return null;
+
+		try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			return TreeCodec.read(in, version);
+		} catch (IOException | RuntimeException e) {
+			// A file that can't be read is parsed again, and replaced
+			return null;
+		}
+	}
+
+	/**
+	 * Saves a tree, if the cache has a directory. The tree is written to a
+	 * temporary file first, so that another run never sees half a tree.
+	 */
+	private void save(String key, Tree<Token> tree) {
+		if (directory == null) return;
+		File file = new File(directory, key + SUFFIX);
+		File temp = null;
+		try {
+			temp = File.createTempFile(key, ".tmp", directory);
+			try (FileChannel out = FileChannel.open(temp.toPath(), StandardOpenOption.WRITE)) {
+				TreeCodec.write(tree, version, out);
+			}
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			// The tree is still kept in memory
+			if (temp != null) {
+				temp.delete();
+			}
+		}
+	}
+}
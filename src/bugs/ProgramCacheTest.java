@@ -0,0 +1,168 @@
+package bugs;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import tree.Tree;
+
+public class ProgramCacheTest {
+	private static final String PROGRAM = "Allbugs {\n"
+											+ "var total\n"
+										+ "}\n"
+										+ "Bug Sally {\n"
+											+ "var n\n"
+											+ "loop {\n"
+												+ "move 2.5\n"
+												+ "turn -90\n"
+												+ "n = n + 1\n"
+												+ "exit if n >= 4\n"
+											+ "}\n"
+											+ "define f using a, b {\n"
+												+ "return a * (b + 1)\n"
+											+ "}\n"
+										+ "}\n";
+	File directory;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = Files.createTempDirectory("programcache").toFile();
+	}
+
+	@After
+	public void tearDown() {
+		for (File file : directory.listFiles()) {
+			file.delete();
+		}
+		directory.delete();
+	}
+
+	@Test
+	public void testMemoryTier() {
+		ProgramCache cache = new ProgramCache(4, null);
+		Tree<Token> tree = cache.get(PROGRAM);
+		assertEquals(ProgramCache.parse(PROGRAM), tree);
+		assertSame(tree, cache.get(PROGRAM));
+		assertEquals(1, cache.misses);
+		assertEquals(1, cache.memoryHits);
+	}
+
+	@Test
+	public void testLeastRecentlyUsedIsDropped() {
+		ProgramCache cache = new ProgramCache(2, null);
+		Tree<Token> a = cache.get("Bug A {\nmove 1\n}\n");
+		cache.get("Bug B {\nmove 1\n}\n");
+		cache.get("Bug A {\nmove 1\n}\n");
+		cache.get("Bug C {\nmove 1\n}\n");
+		assertEquals(3, cache.misses);
+
+		// B was used least recently, so it is gone, but A is not
+		assertSame(a, cache.get("Bug A {\nmove 1\n}\n"));
+		cache.get("Bug B {\nmove 1\n}\n");
+		assertEquals(4, cache.misses);
+	}
+
+	@Test
+	public void testDiskTier() {
+		Tree<Token> tree = new ProgramCache(4, directory).get(PROGRAM);
+		assertEquals(1, directory.listFiles().length);
+
+		ProgramCache cache = new ProgramCache(4, directory);
+		Tree<Token> loaded = cache.get(PROGRAM);
+		assertEquals(1, cache.diskHits);
+		assertEquals(0, cache.misses);
+		assertNotSame(tree, loaded);
+		assertEquals(tree, loaded);
+		assertEquals(tree.toString(), loaded.toString());
+		// Shared Tokens are used again when a tree is read
+		assertSame(Token.of("loop"), loaded.getChild(1).getChild(0).getChild(3).getChild(0).getValue());
+	}
+
+	@Test
+	public void testProgramsShareSubtrees() {
+		ProgramCache cache = new ProgramCache(4, null);
+		Tree<Token> tree = cache.get(PROGRAM);
+		assertTrue(tree.isFrozen());
+
+		// The same function, in another program
+		Tree<Token> other = cache.get("Bug Fred {\n"
+											+ "move 1\n"
+											+ "define f using a, b {\n"
+												+ "return a * (b + 1)\n"
+											+ "}\n"
+										+ "}\n");
+		Tree<Token> f = tree.getChild(1).getChild(0).getChild(4).getChild(0);
+		assertEquals("f", f.getChild(0).getValue().value);
+		assertSame(f, other.getChild(1).getChild(0).getChild(4).getChild(0));
+	}
+
+	@Test
+	public void testOtherParserVersionIsNotUsed() {
+		new ProgramCache(4, directory, 1).get(PROGRAM);
+
+		ProgramCache cache = new ProgramCache(4, directory, 2);
+		cache.get(PROGRAM);
+		assertEquals(0, cache.diskHits);
+		assertEquals(1, cache.misses);
+
+		// The tree saved for version 2 replaced the old one
+		cache = new ProgramCache(4, directory, 2);
+		cache.get(PROGRAM);
+		assertEquals(1, cache.diskHits);
+	}
+
+	@Test
+	public void testDamagedFileIsParsedAgain() throws IOException {
+		new ProgramCache(4, directory).get(PROGRAM);
+		File file = directory.listFiles()[0];
+		try (FileOutputStream out = new FileOutputStream(file)) {
+			out.write(new byte[] { 0x42, 0x55, 0x47, 0x54, 0, 0, 0, 1, 3 });
+		}
+
+		ProgramCache cache = new ProgramCache(4, directory);
+		assertEquals(ProgramCache.parse(PROGRAM), cache.get(PROGRAM));
+		assertEquals(1, cache.misses);
+	}
+
+	@Test
+	public void testFileWithDamagedCountIsParsedAgain() throws IOException {
+		new ProgramCache(4, directory).get(PROGRAM);
+		File file = directory.listFiles()[0];
+		try (FileOutputStream out = new FileOutputStream(file)) {
+			// A table of 2^31 - 1 strings, in a file of eleven bytes
+			out.write(new byte[] { 0x42, 0x55, 0x47, 0x54, 1, 1,
+									(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07 });
+		}
+
+		ProgramCache cache = new ProgramCache(4, directory);
+		assertEquals(ProgramCache.parse(PROGRAM), cache.get(PROGRAM));
+		assertEquals(1, cache.misses);
+	}
+
+	@Test(expected=SyntaxException.class)
+	public void testInvalidProgram() {
+		new ProgramCache(4, directory).get("Bug Sally {\nmove\n}\n");
+	}
+
+	@Test
+	public void testInterpreterUsesCache() {
+		Interpreter interpreter = new Interpreter();
+		interpreter.programCache = new ProgramCache(4, null);
+		interpreter.program = PROGRAM;
+		interpreter.parseProgram();
+		Tree<Token> allbugs = interpreter.allbugs;
+
+		interpreter = new Interpreter();
+		interpreter.programCache = new ProgramCache(4, null);
+		interpreter.program = PROGRAM;
+		interpreter.parseProgram();
+		assertEquals(allbugs, interpreter.allbugs);
+	}
+}
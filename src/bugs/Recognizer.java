@@ -1,10 +1,5 @@
 package bugs;
 
-import java.io.IOException;
-import java.io.Reader;
-import java.io.StreamTokenizer;
-import java.io.StringReader;
-
 /**
  * This class consists of a number of methods that "recognize" strings
  * composed of Tokens that follow the indicated grammar rules for each
@@ -23,27 +18,19 @@ import java.io.StringReader;
  * @version February 2015
  */
 public class Recognizer {
-    StreamTokenizer tokenizer = null;
-    int lineNumber;
+    /** The tokens of the text being recognized. */
+    final Lexer lexer;
+    /** The index of the next token to be read. */
+    private int position = 0;
+    /** The index of the token most recently read. */
+    private int previous = 0;
     
     /**
      * Constructs a Recognizer for the given string.
      * @param text The string to be recognized.
      */
     public Recognizer(String text) {
-        Reader reader = new StringReader(text);
-        tokenizer = new StreamTokenizer(reader);
-        tokenizer.parseNumbers();
-        tokenizer.eolIsSignificant(true);
-        tokenizer.slashStarComments(true);
-        tokenizer.slashSlashComments(true);
-        tokenizer.lowerCaseMode(false);
-        tokenizer.ordinaryChars(33, 47);
-        tokenizer.ordinaryChars(58, 64);
-        tokenizer.ordinaryChars(91, 96);
-        tokenizer.ordinaryChars(123, 126);
-        tokenizer.quoteChar('\"');
-        lineNumber = 1;
+        lexer = new Lexer(text);
     }
 
     /** 
@@ -724,10 +711,9 @@ public class Recognizer {
      * @return <code>true</code> if the next token has the expected type.
      */
     boolean nextTokenMatches(Token.Type type) {
-        Token t = nextToken();
-        if (t.type == type) return true;
-        pushBack();
-        return false;
+        if (lexer.type(position) != type) return false;
+        advance();
+        return true;
     }
 
     /**
@@ -742,42 +728,34 @@ public class Recognizer {
      * @return <code>true</code> if the next token has the expected type.
      */
     boolean nextTokenMatches(Token.Type type, String value) {
-        Token t = nextToken();
-        if (type == t.type && value.equals(t.value)) return true;
-        pushBack();
-        return false;
+        if (lexer.type(position) != type || !lexer.hasValue(position, value)) return false;
+        advance();
+        return true;
     }
 
     /**
-     * Returns the next Token.
+     * Returns the next Token. Once the end of the text is reached,
+     * the EOF Token is returned every time.
      * @return The next Token.
      */
     Token nextToken() {
-        int code;
-        try { code = tokenizer.nextToken(); }
-        catch (IOException e) { throw new Error(e); } // Should never happen
-        switch (code) {
-            case StreamTokenizer.TT_WORD:
-                if (Token.KEYWORDS.contains(tokenizer.sval)) {
-                    return new Token(Token.Type.KEYWORD, tokenizer.sval);
-                }
-                return new Token(Token.Type.NAME, tokenizer.sval);
-            case StreamTokenizer.TT_NUMBER:
-                return new Token(Token.Type.NUMBER, tokenizer.nval + "");
-            case StreamTokenizer.TT_EOL:
-                return new Token(Token.Type.EOL, "\n");
-            case StreamTokenizer.TT_EOF:
-                return new Token(Token.Type.EOF, "EOF");
-            default:
-                return new Token(Token.Type.SYMBOL, ((char) code) + "");
-        }
+        advance();
+        return lexer.token(previous);
+    }
+
+    /**
+     * Moves past the next token, remembering where it was.
+     */
+    private void advance() {
+        previous = position;
+        if (lexer.type(position) != Token.Type.EOF) position++;
     }
 
     /**
      * Returns the most recent Token to the tokenizer.
      */
     void pushBack() {
-        tokenizer.pushBack();
+        position = previous;
     }
 
     /**
@@ -786,6 +764,6 @@ public class Recognizer {
      * @param message The text to put in the <code>SyntaxException</code>.
      */
     private void error(String message) {
-        throw new SyntaxException("Line " + lineNumber + ": " + message);
+        throw new SyntaxException("Line " + lexer.line(position) + ": " + message);
     }
 }
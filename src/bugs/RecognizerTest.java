@@ -1014,7 +1014,7 @@ public class RecognizerTest {
     private void followedBy(Recognizer recognizer, String expectedTokens) {
         int expectedType;
         int actualType;
-        StreamTokenizer actual = recognizer.tokenizer;
+        Token actual;
 
         Reader reader = new StringReader(expectedTokens);
         StreamTokenizer expected = new StreamTokenizer(reader);
@@ -1025,13 +1025,14 @@ public class RecognizerTest {
             while (true) {
                 expectedType = expected.nextToken();
                 if (expectedType == StreamTokenizer.TT_EOF) break;
-                actualType = actual.nextToken();
+                actual = recognizer.nextToken();
+                actualType = code(actual);
                 assertEquals(expectedType, actualType);
                 if (actualType == StreamTokenizer.TT_WORD) {
-                    assertEquals(expected.sval, actual.sval);
+                    assertEquals(expected.sval, actual.value);
                 }
                 else if (actualType == StreamTokenizer.TT_NUMBER) {
-                    assertEquals(expected.nval, actual.nval, 0.001);
+                    assertEquals(expected.nval, actual.number, 0.001);
                 }
             }
         }
@@ -1039,4 +1040,21 @@ public class RecognizerTest {
             e.printStackTrace();
         }
     }
+
+    /**
+     * Returns the code a <code>StreamTokenizer</code> would have returned
+     * for the given Token, so that it can be compared with one.
+     * @param token The Token.
+     * @return The StreamTokenizer code for the Token.
+     */
+    private int code(Token token) {
+        switch (token.type) {
+            case KEYWORD:
+            case NAME: return StreamTokenizer.TT_WORD;
+            case NUMBER: return StreamTokenizer.TT_NUMBER;
+            case EOL: return StreamTokenizer.TT_EOL;
+            case EOF: return StreamTokenizer.TT_EOF;
+            default: return token.value.charAt(0);
+        }
+    }
 }
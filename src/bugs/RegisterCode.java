@@ -0,0 +1,140 @@
+package bugs;
+
+/**
+ * A block of Bugs code compiled for the <code>RegisterMachine</code>: a flat
+ * array of ints, made of an opcode followed by its operands, together with the
+ * constants and objects the code refers to by index.
+ * <p>
+ * Every value is kept in a register, which is a slot of the frame of the
+ * block being run. The parameters of a function are its first registers, and
+ * the values computed along the way take the registers after them. The last
+ * registers hold the constants, which are put there when the frame is made,
+ * so that using a number takes no opcode of its own. An operand
+ * named <i>dst</i>, <i>a</i>, <i>b</i> ... is the number of a register or,
+ * if it is negative, <code>~slot</code> for the Bug's variable in that slot,
+ * which is read and written in place; <i>r[a]</i> stands for either. One
+ * named <i>target</i> is the index in the code of an opcode to jump to, or -1
+ * to go on to the next opcode.
+ *
+ * @author Anders Schneider
+ */
+final class RegisterCode {
+	/** The dst of a call whose value is not kept */
+	static final int NONE = Integer.MIN_VALUE;
+
+	/** MOVE dst a: r[dst] = r[a] */
+	static final int MOVE = 0;
+	/** GET_X dst, GET_Y dst, GET_ANGLE dst: r[dst] = the Bug's position or angle */
+	static final int GET_X = 1, GET_Y = 2, GET_ANGLE = 3;
+	/** SET_X a, SET_Y a, SET_ANGLE a: sets the Bug's position or angle to r[a] */
+	static final int SET_X = 4, SET_Y = 5, SET_ANGLE = 6;
+	/** GET_GLOBAL dst slot: r[dst] = the Allbugs variable in the given slot */
+	static final int GET_GLOBAL = 7;
+	/** SET_GLOBAL slot a: sets the Allbugs variable in the given slot to r[a] */
+	static final int SET_GLOBAL = 8;
+	/** EVAL dst e: r[dst] = expressions[e] evaluated by the Bug */
+	static final int EVAL = 9;
+	/** STORE v a: stores r[a] in the variable expressions[v] */
+	static final int STORE = 10;
+	/** ADD dst a b, and so on: r[dst] = r[a] op r[b] */
+	static final int ADD = 11, SUB = 12, MUL = 13, DIV = 14;
+	/** EQ dst a b, and so on: r[dst] = 1 if r[a] op r[b], within EPSILON, else 0 */
+	static final int EQ = 15, NE = 16, GT = 17, LT = 18, GE = 19, LE = 20;
+	/** NEG dst a: r[dst] = -1 * r[a] */
+	static final int NEG = 21;
+	/** BEGIN_CALL c: finds the function called at calls[c], and makes its frame */
+	static final int BEGIN_CALL = 22;
+	/** BIND i a: gives the function's i-th parameter the value r[a] */
+	static final int BIND = 23;
+	/** CALL dst: calls the function, keeping its value in r[dst], or nowhere if dst is NONE */
+	static final int CALL = 24;
+	/** TAIL_CALL: calls the function in place of the one returning, outside any loop */
+	static final int TAIL_CALL = 25;
+	/**
+	 * INVOKE dst c a1 ... an: finds the function called at calls[c], gives
+	 * its parameters the values r[a1] ... r[an] in turn, and calls it as CALL
+	 * does, all at once
+	 */
+	static final int INVOKE = 26;
+	/** TAIL_INVOKE c a1 ... an: the same, in place of the function returning, as TAIL_CALL */
+	static final int TAIL_INVOKE = 27;
+	/** RETURN a loop: returns r[a], leaving the loops from the given loop slot in, if it is not -1 */
+	static final int RETURN = 28;
+	/** END: returns 0 */
+	static final int END = 29;
+	/** AWAIT: stops the Bug until it is allowed to act */
+	static final int AWAIT = 30;
+	/** MOVE_BY a, MOVE_TO a b, TURN a, TURN_TO a, LINE a b c d: carries out an action */
+	static final int MOVE_BY = 31, MOVE_TO = 32, TURN = 33, TURN_TO = 34, LINE = 35;
+	/** EXIT a target: leaves the innermost loop, and jumps, if r[a] is exactly 1 */
+	static final int EXIT = 36;
+	/** EXIT_EQ a b target, and so on: leaves the innermost loop, and jumps, if r[a] op r[b] */
+	static final int EXIT_EQ = 37, EXIT_NE = 38, EXIT_GT = 39, EXIT_LT = 40, EXIT_GE = 41, EXIT_LE = 42;
+	/** ENTER_LOOP loop: gives the loop in the given loop slot the next loop number */
+	static final int ENTER_LOOP = 43;
+	/** CHECK_LOOP loop target: jumps if the loop in the given slot has been exited */
+	static final int CHECK_LOOP = 44;
+	/** REPEAT target: jumps back to the start of a loop */
+	static final int REPEAT = 45;
+	/**
+	 * REPEAT_UNLESS_EQ a b target, and so on: leaves the innermost loop if
+	 * r[a] op r[b], and otherwise jumps back to its start, for a loop whose
+	 * last command is an "exit if"
+	 */
+	static final int REPEAT_UNLESS_EQ = 46, REPEAT_UNLESS_NE = 47, REPEAT_UNLESS_GT = 48,
+			REPEAT_UNLESS_LT = 49, REPEAT_UNLESS_GE = 50, REPEAT_UNLESS_LE = 51;
+	/** JUMP target: jumps */
+	static final int JUMP = 52;
+	/** JUMP_UNLESS_TRUE a target: jumps unless r[a] is within EPSILON of 1 */
+	static final int JUMP_UNLESS_TRUE = 53;
+	/** JUMP_IF_ONE a target: jumps if r[a] is exactly 1 */
+	static final int JUMP_IF_ONE = 54;
+	/** JUMP_UNLESS_EQ a b target, and so on: jumps unless r[a] op r[b] */
+	static final int JUMP_UNLESS_EQ = 55, JUMP_UNLESS_NE = 56, JUMP_UNLESS_GT = 57,
+			JUMP_UNLESS_LT = 58, JUMP_UNLESS_GE = 59, JUMP_UNLESS_LE = 60;
+	/** PERFORM s: executes statements[s] */
+	static final int PERFORM = 61;
+
+	final int[] code;
+	final double[] constants;
+	final Expression[] expressions;
+	final Statement[] statements;
+	final CallSite[] calls;
+	final int frameSize;
+	final int loopCount;
+
+	/**
+	 * Constructs a block of compiled code.
+	 *
+	 * @param code the opcodes and operands, ending with one that leaves the block
+	 * @param constants the numbers used by the code, kept in its last registers
+	 * @param expressions the Expressions evaluated, and Variables stored, by the code
+	 * @param statements the Statements executed by the code
+	 * @param calls the places the code calls functions
+	 * @param frameSize the number of registers, constants included
+	 * @param loopCount the greatest number of loops nested inside one another
+	 */
+	RegisterCode(int[] code, double[] constants, Expression[] expressions, Statement[] statements,
+				CallSite[] calls, int frameSize, int loopCount) {
+		this.code = code;
+		this.constants = constants;
+		this.expressions = expressions;
+		this.statements = statements;
+		this.calls = calls;
+		this.frameSize = frameSize;
+		this.loopCount = loopCount;
+	}
+
+	/**
+	 * Makes a frame to run the code in, holding its constants.
+	 *
+	 * @return the new frame
+	 */
+	double[] newFrame() {
+		double[] frame = new double[frameSize];
+		if (constants.length > 0) {
+			System.arraycopy(constants, 0, frame, frameSize - constants.length, constants.length);
+		}
+		return frame;
+	}
+}
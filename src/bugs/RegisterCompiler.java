@@ -0,0 +1,639 @@
+package bugs;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import tree.Tree;
+
+/**
+ * Compiles a block of Bugs code into the <code>RegisterCode</code> run by a
+ * <code>RegisterMachine</code>. Each expression is computed into registers
+ * from left to right, a call to a user-defined function included, so values
+ * are computed, and errors found, in the same order as by the tree-walking
+ * interpreter. A variable of the Bug is used in place, unless a call made
+ * later in the same expression could change it first. An expression with
+ * more than one operator is computed by one Expression, once the calls it
+ * contains have been made, as it is by a <code>CodeGenerator</code>. Loops
+ * and switch statements become jumps, as they do for a CodeGenerator, and a
+ * comparison that decides one is tested by the jump itself.
+ *
+ * @author Anders Schneider
+ */
+class RegisterCompiler {
+	/** Constants are numbered from here until their registers are known. */
+	private static final int CONSTANT_REGISTERS = 1 << 24;
+
+	private static final HashMap<String, Integer> OPERATORS = new HashMap<String, Integer>();
+	static {
+		OPERATORS.put("+", RegisterCode.ADD);
+		OPERATORS.put("-", RegisterCode.SUB);
+		OPERATORS.put("*", RegisterCode.MUL);
+		OPERATORS.put("/", RegisterCode.DIV);
+		OPERATORS.put("=", RegisterCode.EQ);
+		OPERATORS.put("!=", RegisterCode.NE);
+		OPERATORS.put(">", RegisterCode.GT);
+		OPERATORS.put("<", RegisterCode.LT);
+		OPERATORS.put(">=", RegisterCode.GE);
+		OPERATORS.put("<=", RegisterCode.LE);
+	}
+
+	private Compiler compiler;
+	private int[] code = new int[64];
+	private int size;
+	private ArrayList<Double> constants = new ArrayList<Double>();
+	private HashMap<Double, Integer> constantIndex = new HashMap<Double, Integer>();
+	private ArrayList<Integer> constantOperands = new ArrayList<Integer>();
+	private ArrayList<Expression> expressions = new ArrayList<Expression>();
+	private ArrayList<Statement> statements = new ArrayList<Statement>();
+	private ArrayList<CallSite> calls = new ArrayList<CallSite>();
+	private final int firstTemporary;
+	private int nextRegister;
+	private int frameSize;
+	private int loopDepth;
+	private int loopCount;
+
+	/**
+	 * Constructs a RegisterCompiler.
+	 *
+	 * @param compiler the Compiler used to resolve names, and for the parts
+	 *        of the code that are not compiled into registers
+	 * @param firstTemporary the first register that is not a parameter
+	 */
+	RegisterCompiler(Compiler compiler, int firstTemporary) {
+		this.compiler = compiler;
+		this.firstTemporary = firstTemporary;
+		nextRegister = firstTemporary;
+		frameSize = firstTemporary;
+	}
+
+	/**
+	 * Compiles a block of code.
+	 *
+	 * @param tree the block
+	 * @return the compiled code
+	 */
+	RegisterCode compile(Tree<Token> tree) {
+		compileStatement(tree);
+		emit(RegisterCode.END);
+
+		// The constants take the registers after all of the others
+		for (int i = 0; i < constantOperands.size(); i++) {
+			code[constantOperands.get(i)] += frameSize - CONSTANT_REGISTERS;
+		}
+
+		int[] result = new int[size];
+		System.arraycopy(code, 0, result, 0, size);
+		double[] values = new double[constants.size()];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = constants.get(i);
+		}
+		return new RegisterCode(result, values,
+								expressions.toArray(new Expression[expressions.size()]),
+								statements.toArray(new Statement[statements.size()]),
+								calls.toArray(new CallSite[calls.size()]),
+								frameSize + values.length, loopCount);
+	}
+
+	/**
+	 * Compiles a command, block or list of commands.
+	 *
+	 * @param tree the tree to compile
+	 */
+	private void compileStatement(Tree<Token> tree) {
+		String value = tree.getValue().value;
+		// Registers do not outlive the command that needs them
+		int mark = nextRegister;
+
+		switch (value) {
+		case "list":
+		case "block":
+			for (int i = 0; i < tree.getNumberOfChildren(); i++) {
+				compileStatement(tree.getChild(i));
+			}
+			break;
+		case "initially":
+			compileStatement(tree.getChild(0));
+			break;
+		case "move":
+			compileAction(tree, RegisterCode.MOVE_BY);
+			break;
+		case "moveto":
+			compileAction(tree, RegisterCode.MOVE_TO);
+			break;
+		case "turn":
+			compileAction(tree, RegisterCode.TURN);
+			break;
+		case "turnto":
+			compileAction(tree, RegisterCode.TURN_TO);
+			break;
+		case "line":
+			compileAction(tree, RegisterCode.LINE);
+			break;
+		case "return":
+			if (compiler.isTailCall(tree, loopDepth > 0)) {
+				compileCall(tree.getChild(0), RegisterCode.NONE, true);
+			} else {
+				emit(RegisterCode.RETURN, compileExpression(tree.getChild(0), false), loopDepth > 0 ? 0 : -1);
+			}
+			break;
+		case "assign":
+			compileAssign(compiler.resolve(tree.getChild(0).getValue().value), tree.getChild(1));
+			break;
+		case "loop":
+			compileLoop(tree);
+			break;
+		case "exit":
+			compileExit(tree, null);
+			break;
+		case "switch":
+			compileSwitch(tree);
+			break;
+		case "call":
+			// A do statement
+			compileCall(tree, RegisterCode.NONE, false);
+			break;
+		default:
+			emit(RegisterCode.PERFORM, add(statements, compiler.compileStatement(tree)));
+		}
+
+		nextRegister = mark;
+	}
+
+	/**
+	 * Compiles an action. The Bug waits for permission before the
+	 * expressions of the action are computed.
+	 */
+	private void compileAction(Tree<Token> tree, int opcode) {
+		emit(RegisterCode.AWAIT);
+		int[] instruction = new int[tree.getNumberOfChildren() + 1];
+		instruction[0] = opcode;
+		for (int i = 0; i < tree.getNumberOfChildren(); i++) {
+			instruction[i + 1] = compileExpression(tree.getChild(i), CodeGenerator.callFollows(tree, i + 1));
+		}
+		emit(instruction);
+	}
+
+	private void compileAssign(Expression.Variable variable, Tree<Token> value) {
+		if (variable instanceof Expression.Local) {
+			compileInto(value, ((Expression.Local) variable).slot);
+			return;
+		}
+		if (variable instanceof Expression.Field) {
+			compileInto(value, ~((Expression.Field) variable).slot);
+			return;
+		}
+
+		int a = compileExpression(value, false);
+		if (variable instanceof Expression.X) {
+			emit(RegisterCode.SET_X, a);
+		} else if (variable instanceof Expression.Y) {
+			emit(RegisterCode.SET_Y, a);
+		} else if (variable instanceof Expression.Angle) {
+			emit(RegisterCode.SET_ANGLE, a);
+		} else if (variable instanceof Expression.Global) {
+			emit(RegisterCode.SET_GLOBAL, ((Expression.Global) variable).slot, a);
+		} else {
+			emit(RegisterCode.STORE, add(expressions, variable), a);
+		}
+	}
+
+	/**
+	 * Compiles a loop. Like the tree-walking interpreter, the loop checks
+	 * whether it has been exited between the commands of its block, after a
+	 * command that may exit it. An "exit if" among the commands of the block
+	 * jumps out of the loop itself.
+	 */
+	private void compileLoop(Tree<Token> tree) {
+		int slot = loopDepth++;
+		loopCount = Math.max(loopCount, loopDepth);
+
+		emit(RegisterCode.ENTER_LOOP, slot);
+		int start = size;
+		Tree<Token> block = tree.getChild(0);
+		int numCommands = block.getNumberOfChildren();
+		// An "exit if" comparing two values at the end of the loop also
+		// decides whether to go round again
+		Tree<Token> last = numCommands > 0 ? block.getChild(numCommands - 1) : null;
+		boolean closing = last != null && isExit(last) && isComparison(last.getChild(0));
+		ArrayList<Integer> exits = new ArrayList<Integer>();
+		for (int i = 0; i < numCommands; i++) {
+			// The last command is checked after going round, as it was before
+			Tree<Token> previous = block.getChild(i == 0 ? numCommands - 1 : i - 1);
+			if (!isExit(previous) && CodeGenerator.mayExit(previous, false)) {
+				emit(RegisterCode.CHECK_LOOP, slot, -1);
+				exits.add(size - 1);
+			}
+			Tree<Token> command = block.getChild(i);
+			if (closing && command == last) {
+				int mark = nextRegister;
+				compileComparison(last.getChild(0), RegisterCode.REPEAT_UNLESS_EQ, start);
+				nextRegister = mark;
+			} else if (isExit(command)) {
+				compileExit(command, exits);
+			} else {
+				compileStatement(command);
+			}
+		}
+		if (!closing) {
+			emit(RegisterCode.REPEAT, start);
+		}
+		patch(exits);
+
+		loopDepth--;
+	}
+
+	/**
+	 * Compiles an "exit if".
+	 *
+	 * @param tree a tree whose root is "exit"
+	 * @param exits the jumps to the end of the loop the command is directly
+	 *        inside of, or null if the loop is to be left between commands
+	 */
+	private void compileExit(Tree<Token> tree, ArrayList<Integer> exits) {
+		int mark = nextRegister;
+		Tree<Token> condition = tree.getChild(0);
+		if (isComparison(condition)) {
+			compileComparison(condition, RegisterCode.EXIT_EQ, -1);
+		} else {
+			emit(RegisterCode.EXIT, compileExpression(condition, false), -1);
+		}
+		if (exits != null) {
+			exits.add(size - 1);
+		}
+		nextRegister = mark;
+	}
+
+	/**
+	 * Compiles a comparison that is tested by the opcode using its value.
+	 *
+	 * @param tree a comparison of two values
+	 * @param equal the opcode used for "=", which the opcodes for the other
+	 *        comparisons follow in the same order as EQ ... LE
+	 * @param target the target of the opcode
+	 */
+	private void compileComparison(Tree<Token> tree, int equal, int target) {
+		int a = compileExpression(tree.getChild(0), CodeGenerator.containsCall(tree.getChild(1)));
+		int b = compileExpression(tree.getChild(1), false);
+		emit(equal + OPERATORS.get(tree.getValue().value) - RegisterCode.EQ, a, b, target);
+	}
+
+	/**
+	 * Compiles a switch statement. The value of each case's condition is
+	 * kept while its commands are executed, since a value that is true but
+	 * not exactly 1 does not end the switch statement. A comparison is 1
+	 * whenever it is true, so its case always ends the switch statement.
+	 */
+	private void compileSwitch(Tree<Token> tree) {
+		ArrayList<Integer> exits = new ArrayList<Integer>();
+
+		for (int i = 0; i < tree.getNumberOfChildren(); i++) {
+			Tree<Token> caseTree = tree.getChild(i);
+			Tree<Token> conditionTree = caseTree.getChild(0);
+			int mark = nextRegister;
+			int condition = 0;
+			if (isComparison(conditionTree)) {
+				compileComparison(conditionTree, RegisterCode.JUMP_UNLESS_EQ, -1);
+			} else {
+				condition = compileExpression(conditionTree, false);
+				if (condition < firstTemporary) {
+					// A variable may be changed by the commands of the case
+					int copy = newRegister();
+					emit(RegisterCode.MOVE, copy, condition);
+					condition = copy;
+				}
+				emit(RegisterCode.JUMP_UNLESS_TRUE, condition, -1);
+			}
+
+			int skip = size - 1;
+			for (int j = 1; j < caseTree.getNumberOfChildren(); j++) {
+				compileStatement(caseTree.getChild(j));
+			}
+			if (isComparison(conditionTree)) {
+				emit(RegisterCode.JUMP, -1);
+			} else {
+				emit(RegisterCode.JUMP_IF_ONE, condition, -1);
+			}
+			exits.add(size - 1);
+			code[skip] = size;
+
+			nextRegister = mark;
+		}
+		patch(exits);
+	}
+
+	/**
+	 * Compiles an expression.
+	 *
+	 * @param tree an expression tree
+	 * @param callFollows true if a call made later in the expression using
+	 *        the value could change it before it is used
+	 * @return the operand that holds the value of the expression
+	 */
+	private int compileExpression(Tree<Token> tree, boolean callFollows) {
+		Token token = tree.getValue();
+		if (token.type == Token.Type.NUMBER) {
+			return constant(token.number);
+		}
+		if (token.type == Token.Type.NAME) {
+			return compileLoad(compiler.resolve(token.value), callFollows);
+		}
+		if (token.type == Token.Type.SYMBOL && tree.getNumberOfChildren() == 1 && "+".equals(token.value)) {
+			return compileExpression(tree.getChild(0), callFollows);
+		}
+		int dst = newRegister();
+		compileInto(tree, dst);
+		return dst;
+	}
+
+	/**
+	 * Compiles an expression whose value is kept in the given place.
+	 *
+	 * @param tree an expression tree
+	 * @param dst the operand the value is kept in
+	 */
+	private void compileInto(Tree<Token> tree, int dst) {
+		Token token = tree.getValue();
+		if ("call".equals(token.value)) {
+			compileCall(tree, dst, false);
+			return;
+		}
+
+		int numChildren = tree.getNumberOfChildren();
+		if (token.type == Token.Type.SYMBOL && numChildren == 1 && "+".equals(token.value)) {
+			compileInto(tree.getChild(0), dst);
+			return;
+		}
+		if (countOperators(tree) > 1) {
+			// One Expression costs less than an opcode for each operator
+			emit(RegisterCode.EVAL, dst, add(expressions, flatten(tree, false)));
+			return;
+		}
+		if (token.type == Token.Type.SYMBOL && numChildren == 1 && "-".equals(token.value)) {
+			emit(RegisterCode.NEG, dst, compileExpression(tree.getChild(0), false));
+			return;
+		}
+		Integer opcode = OPERATORS.get(token.value);
+		if (token.type == Token.Type.SYMBOL && numChildren == 2 && opcode != null) {
+			int a = compileExpression(tree.getChild(0), CodeGenerator.containsCall(tree.getChild(1)));
+			int b = compileExpression(tree.getChild(1), false);
+			emit(opcode, dst, a, b);
+			return;
+		}
+		if (token.type == Token.Type.NUMBER || token.type == Token.Type.NAME) {
+			emit(RegisterCode.MOVE, dst, compileExpression(tree, false));
+			return;
+		}
+
+		// Anything else is evaluated by an Expression
+		emit(RegisterCode.EVAL, dst, add(expressions, compiler.compileExpression(tree)));
+	}
+
+	/**
+	 * Compiles an expression into an Expression that contains no calls, first
+	 * computing each call into a register, as well as each value that has to
+	 * be computed before a call that follows it.
+	 *
+	 * @param tree an expression tree
+	 * @param callFollows true if a call made later in the expression using
+	 *        the value could change it before it is used
+	 * @return the compiled expression
+	 */
+	private Expression flatten(Tree<Token> tree, boolean callFollows) {
+		String value = tree.getValue().value;
+		if (tree.getValue().type == Token.Type.NUMBER) {
+			return compiler.compileExpression(tree);
+		}
+		if (callFollows) {
+			return new Expression.Local(compileExpression(tree, true));
+		}
+		if (!CodeGenerator.containsCall(tree)) {
+			return compiler.compileExpression(tree);
+		}
+		if ("call".equals(value)) {
+			int dst = newRegister();
+			compileCall(tree, dst, false);
+			return new Expression.Local(dst);
+		}
+
+		int numChildren = tree.getNumberOfChildren();
+		Expression[] operands = new Expression[numChildren];
+		for (int i = 0; i < numChildren; i++) {
+			operands[i] = flatten(tree.getChild(i), CodeGenerator.callFollows(tree, i + 1));
+		}
+		return numChildren == 1 ? Compiler.unary(value, operands[0])
+								: Compiler.binary(value, operands[0], operands[1]);
+	}
+
+	/**
+	 * Counts the operators of an expression that are left once the calls it
+	 * contains have been computed.
+	 *
+	 * @param tree an expression tree
+	 * @return the number of operators outside any call
+	 */
+	private static int countOperators(Tree<Token> tree) {
+		Token token = tree.getValue();
+		int numChildren = tree.getNumberOfChildren();
+		if (token.type != Token.Type.SYMBOL
+				|| !(numChildren == 1 && ("+".equals(token.value) || "-".equals(token.value)))
+						&& !(numChildren == 2 && OPERATORS.containsKey(token.value))) {
+			return 0;
+		}
+		int count = 1;
+		for (int i = 0; i < numChildren; i++) {
+			count += countOperators(tree.getChild(i));
+		}
+		return count;
+	}
+
+	private int compileLoad(Expression.Variable variable, boolean callFollows) {
+		if (variable instanceof Expression.Local) {
+			return ((Expression.Local) variable).slot;
+		}
+		if (variable instanceof Expression.Field && !callFollows) {
+			return ~((Expression.Field) variable).slot;
+		}
+		int dst = newRegister();
+		if (variable instanceof Expression.X) {
+			emit(RegisterCode.GET_X, dst);
+		} else if (variable instanceof Expression.Y) {
+			emit(RegisterCode.GET_Y, dst);
+		} else if (variable instanceof Expression.Angle) {
+			emit(RegisterCode.GET_ANGLE, dst);
+		} else if (variable instanceof Expression.Field) {
+			emit(RegisterCode.MOVE, dst, ~((Expression.Field) variable).slot);
+		} else if (variable instanceof Expression.Global) {
+			emit(RegisterCode.GET_GLOBAL, dst, ((Expression.Global) variable).slot);
+		} else {
+			emit(RegisterCode.EVAL, dst, add(expressions, variable));
+		}
+		return dst;
+	}
+
+	/**
+	 * Compiles a call, in the same steps as <code>Bug.callFunction</code>:
+	 * the function is found first, then each argument is computed and bound
+	 * in turn, and then the function is called. When no argument can fail,
+	 * or see a parameter bound before it, the arguments are computed first
+	 * and the rest is done by one INVOKE.
+	 *
+	 * @param tree a tree whose root is "call"
+	 * @param dst the operand the returned value is kept in, or NONE to ignore it
+	 * @param tail true if the function called takes the place of the one returning
+	 */
+	private void compileCall(Tree<Token> tree, int dst, boolean tail) {
+		String funcName = tree.getChild(0).getValue().value;
+		if (CodeGenerator.isBuiltIn(funcName)) {
+			// Has no effect unless it fails, when it is a do statement
+			emit(RegisterCode.EVAL, dst != RegisterCode.NONE ? dst : newRegister(),
+				add(expressions, compiler.compileExpression(tree)));
+			return;
+		}
+
+		Tree<Token> args = tree.getNumberOfChildren() > 1 ? tree.getChild(1) : null;
+		int numArgs = args == null ? 0 : args.getNumberOfChildren();
+		int site = add(calls, new CallSite(funcName, numArgs));
+		int mark = nextRegister;
+
+		boolean simple = true;
+		for (int i = 0; i < numArgs; i++) {
+			simple &= isSimpleArgument(args.getChild(i), i == 0);
+		}
+		if (simple) {
+			int[] instruction = new int[numArgs + (tail ? 2 : 3)];
+			int next = 0;
+			instruction[next++] = tail ? RegisterCode.TAIL_INVOKE : RegisterCode.INVOKE;
+			if (!tail) {
+				instruction[next++] = dst;
+			}
+			instruction[next++] = site;
+			for (int i = 0; i < numArgs; i++) {
+				instruction[next++] = compileExpression(args.getChild(i), false);
+			}
+			emit(instruction);
+		} else {
+			emit(RegisterCode.BEGIN_CALL, site);
+			for (int i = 0; i < numArgs; i++) {
+				int argumentMark = nextRegister;
+				emit(RegisterCode.BIND, i, compileExpression(args.getChild(i), false));
+				nextRegister = argumentMark;
+			}
+			if (tail) {
+				emit(RegisterCode.TAIL_CALL);
+			} else {
+				emit(RegisterCode.CALL, dst);
+			}
+		}
+		nextRegister = mark;
+	}
+
+	/**
+	 * Tells whether an argument can be computed before the function is found
+	 * and the arguments before it are bound: it cannot fail, and, unless it
+	 * is the first, it reads nothing a parameter could be bound to other than
+	 * a variable of the Bug used as the whole argument, which is read as it
+	 * is bound.
+	 *
+	 * @param tree an argument
+	 * @param first true if it is the first argument
+	 * @return true if the argument may be computed early
+	 */
+	private boolean isSimpleArgument(Tree<Token> tree, boolean first) {
+		Token token = tree.getValue();
+		if (token.type == Token.Type.NUMBER) {
+			return true;
+		}
+		if (token.type == Token.Type.NAME) {
+			Expression.Variable variable = compiler.resolve(token.value);
+			return variable instanceof Expression.Local || variable instanceof Expression.Global
+					|| variable instanceof Expression.Field
+					|| (first && (variable instanceof Expression.X || variable instanceof Expression.Y
+									|| variable instanceof Expression.Angle));
+		}
+		int numChildren = tree.getNumberOfChildren();
+		if (token.type != Token.Type.SYMBOL
+				|| !(numChildren == 1 && ("+".equals(token.value) || "-".equals(token.value)))
+						&& !(numChildren == 2 && OPERATORS.containsKey(token.value))) {
+			return false;
+		}
+		for (int i = 0; i < numChildren; i++) {
+			Tree<Token> child = tree.getChild(i);
+			if (!first && child.getValue().type == Token.Type.NAME
+					&& compiler.resolve(child.getValue().value) instanceof Expression.Field) {
+				return false;
+			}
+			if (!isSimpleArgument(child, first)) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Tells whether a tree is a comparison of two values.
+	 *
+	 * @param tree an expression tree
+	 * @return true if the value of the tree is 1 or 0
+	 */
+	private static boolean isComparison(Tree<Token> tree) {
+		Integer opcode = OPERATORS.get(tree.getValue().value);
+		return tree.getValue().type == Token.Type.SYMBOL && tree.getNumberOfChildren() == 2
+				&& opcode != null && opcode >= RegisterCode.EQ;
+	}
+
+	private static boolean isExit(Tree<Token> tree) {
+		return "exit".equals(tree.getValue().value);
+	}
+
+	private int newRegister() {
+		int register = nextRegister++;
+		frameSize = Math.max(frameSize, nextRegister);
+		return register;
+	}
+
+	/**
+	 * Finds the register holding a constant.
+	 *
+	 * @param value the constant
+	 * @return the register, numbered from CONSTANT_REGISTERS until the code
+	 *         is complete
+	 */
+	private int constant(double value) {
+		Integer index = constantIndex.get(value);
+		if (index == null) {
+			index = constants.size();
+			constants.add(value);
+			constantIndex.put(value, index);
+		}
+		return CONSTANT_REGISTERS + index;
+	}
+
+	private static <T> int add(ArrayList<T> list, T item) {
+		list.add(item);
+		return list.size() - 1;
+	}
+
+	private void emit(int... words) {
+		while (size + words.length > code.length) {
+			int[] larger = new int[code.length * 2];
+			System.arraycopy(code, 0, larger, 0, size);
+			code = larger;
+		}
+		for (int i = 0; i < words.length; i++) {
+			if (words[i] >= CONSTANT_REGISTERS) {
+				constantOperands.add(size + i);
+			}
+			code[size + i] = words[i];
+		}
+		size += words.length;
+	}
+
+	/**
+	 * Makes each of the given jump targets the next opcode to be compiled.
+	 *
+	 * @param targets the indexes in the code of the targets to fill in
+	 */
+	private void patch(ArrayList<Integer> targets) {
+		for (int i = 0; i < targets.size(); i++) {
+			code[targets.get(i)] = size;
+		}
+	}
+}
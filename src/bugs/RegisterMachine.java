@@ -0,0 +1,570 @@
+package bugs;
+
+import java.util.Arrays;
+
+/**
+ * Runs a Bug's <code>RegisterCode</code>, when the Bug is run by the
+ * Interpreter's scheduler. Like a <code>Continuation</code>, the state of the
+ * Bug is an explicit stack of frames, one for the main block and one for each
+ * function being called, so the Bug can be stopped whenever it has to wait for
+ * permission to act. Instead of a virtual call for each instruction, the whole
+ * block is run by one loop that switches on the opcodes of an array of ints,
+ * with the values computed along the way kept in the registers of the frame.
+ * The stack is kept in arrays that are only ever made larger, so calling a
+ * function makes nothing but its frame.
+ *
+ * @author Anders Schneider
+ */
+final class RegisterMachine {
+	private final Bug bug;
+
+	// The stack of blocks being executed, the main block at the bottom
+	private RegisterCode[] blocks = new RegisterCode[8];
+	private double[][] frames = new double[8][];
+	private int[] pcs = new int[8];
+	// Where the value returned by each block is kept in its caller's frame
+	private int[] results = new int[8];
+	// Where the loop slots of each block start in loops
+	private int[] loopBases = new int[8];
+	private int[] loops;
+	// The index of the block being executed, or -1 when the Bug has finished
+	private int top;
+
+	// The functions being called whose arguments are still being computed
+	private Function[] pendingFunctions = new Function[8];
+	private double[][] pendingFrames = new double[8][];
+	private int pending;
+
+	private boolean outOfBudget;
+
+	/**
+	 * Constructs a RegisterMachine that will run the given code from the start.
+	 *
+	 * @param bug the Bug being run
+	 * @param main the Bug's main block
+	 */
+	RegisterMachine(Bug bug, RegisterCode main) {
+		this.bug = bug;
+		blocks[0] = main;
+		frames[0] = main.newFrame();
+		results[0] = RegisterCode.NONE;
+		loops = new int[Math.max(8, main.loopCount)];
+	}
+
+	/**
+	 * Runs the Bug until it has to wait for permission to act, until it has
+	 * gone round loops for long enough that the other Bugs should be given a
+	 * turn, or until it reaches the end of its main block.
+	 *
+	 * @return true if the Bug has finished
+	 */
+	boolean resume() {
+		if (top < 0) return true;
+		int budget = Continuation.BUDGET;
+		outOfBudget = false;
+		bug.frame = frames[top];
+
+		// The code and frame being run are kept in locals, and only reloaded
+		// when a function is called or returns, as are the Bug's variables,
+		// which are reloaded whenever they could have been declared
+		RegisterCode block = blocks[top];
+		int[] code = block.code;
+		double[] r = frames[top];
+		int pc = pcs[top];
+		int base = loopBases[top];
+		double[] fields = bug.fields;
+
+		while (true) {
+			switch (code[pc]) {
+			case RegisterCode.MOVE:
+				store(r, fields, code[pc + 1], load(r, fields, code[pc + 2]));
+				pc += 3;
+				break;
+			case RegisterCode.GET_X:
+				store(r, fields, code[pc + 1], bug.x);
+				pc += 2;
+				break;
+			case RegisterCode.GET_Y:
+				store(r, fields, code[pc + 1], bug.y);
+				pc += 2;
+				break;
+			case RegisterCode.GET_ANGLE:
+				store(r, fields, code[pc + 1], bug.angle);
+				pc += 2;
+				break;
+			case RegisterCode.SET_X:
+				bug.x = load(r, fields, code[pc + 1]);
+				pc += 2;
+				break;
+			case RegisterCode.SET_Y:
+				bug.y = load(r, fields, code[pc + 1]);
+				pc += 2;
+				break;
+			case RegisterCode.SET_ANGLE:
+				bug.angle = load(r, fields, code[pc + 1]);
+				pc += 2;
+				break;
+			case RegisterCode.GET_GLOBAL:
+				store(r, fields, code[pc + 1], bug.interpreter.globals[code[pc + 2]]);
+				pc += 3;
+				break;
+			case RegisterCode.SET_GLOBAL:
+				bug.interpreter.globals[code[pc + 1]] = load(r, fields, code[pc + 2]);
+				pc += 3;
+				break;
+			case RegisterCode.EVAL: {
+				double value = block.expressions[code[pc + 2]].evaluate(bug);
+				fields = bug.fields;
+				store(r, fields, code[pc + 1], value);
+				pc += 3;
+				break;
+			}
+			case RegisterCode.STORE:
+				((Expression.Variable) block.expressions[code[pc + 1]]).store(bug, load(r, fields, code[pc + 2]));
+				fields = bug.fields;
+				pc += 3;
+				break;
+			case RegisterCode.ADD:
+				store(r, fields, code[pc + 1], load(r, fields, code[pc + 2]) + load(r, fields, code[pc + 3]));
+				pc += 4;
+				break;
+			case RegisterCode.SUB:
+				store(r, fields, code[pc + 1], load(r, fields, code[pc + 2]) - load(r, fields, code[pc + 3]));
+				pc += 4;
+				break;
+			case RegisterCode.MUL:
+				store(r, fields, code[pc + 1], load(r, fields, code[pc + 2]) * load(r, fields, code[pc + 3]));
+				pc += 4;
+				break;
+			case RegisterCode.DIV:
+				store(r, fields, code[pc + 1], load(r, fields, code[pc + 2]) / load(r, fields, code[pc + 3]));
+				pc += 4;
+				break;
+			case RegisterCode.EQ:
+				store(r, fields, code[pc + 1],
+					Expression.equal(load(r, fields, code[pc + 2]), load(r, fields, code[pc + 3])));
+				pc += 4;
+				break;
+			case RegisterCode.NE:
+				store(r, fields, code[pc + 1],
+					Expression.notEqual(load(r, fields, code[pc + 2]), load(r, fields, code[pc + 3])));
+				pc += 4;
+				break;
+			case RegisterCode.GT:
+				store(r, fields, code[pc + 1],
+					Expression.greater(load(r, fields, code[pc + 2]), load(r, fields, code[pc + 3])));
+				pc += 4;
+				break;
+			case RegisterCode.LT:
+				store(r, fields, code[pc + 1],
+					Expression.less(load(r, fields, code[pc + 2]), load(r, fields, code[pc + 3])));
+				pc += 4;
+				break;
+			case RegisterCode.GE:
+				store(r, fields, code[pc + 1],
+					Expression.greaterEqual(load(r, fields, code[pc + 2]), load(r, fields, code[pc + 3])));
+				pc += 4;
+				break;
+			case RegisterCode.LE:
+				store(r, fields, code[pc + 1],
+					Expression.lessEqual(load(r, fields, code[pc + 2]), load(r, fields, code[pc + 3])));
+				pc += 4;
+				break;
+			case RegisterCode.NEG:
+				store(r, fields, code[pc + 1], -1 * load(r, fields, code[pc + 2]));
+				pc += 3;
+				break;
+			case RegisterCode.BEGIN_CALL: {
+				Function function = block.calls[code[pc + 1]].lookup(bug);
+				if (pending == pendingFunctions.length) {
+					pendingFunctions = Arrays.copyOf(pendingFunctions, pending * 2);
+					pendingFrames = Arrays.copyOf(pendingFrames, pending * 2);
+				}
+				pendingFunctions[pending] = function;
+				pendingFrames[pending++] = function.registerCode.newFrame();
+				pc += 2;
+				break;
+			}
+			case RegisterCode.BIND: {
+				// Arguments are computed in the caller's frame
+				int i = pending - 1;
+				pendingFunctions[i].parameters[code[pc + 1]].bind(bug, pendingFrames[i], load(r, fields, code[pc + 2]));
+				pc += 3;
+				break;
+			}
+			case RegisterCode.CALL: {
+				Function function = pendingFunctions[--pending];
+				double[] frame = pendingFrames[pending];
+				pendingFunctions[pending] = null;
+				pendingFrames[pending] = null;
+				pcs[top] = pc + 2;
+				block = function.registerCode;
+				call(block, frame, code[pc + 1]);
+				code = block.code;
+				r = frame;
+				pc = 0;
+				base = loopBases[top];
+				break;
+			}
+			case RegisterCode.TAIL_CALL: {
+				Function function = pendingFunctions[--pending];
+				double[] frame = pendingFrames[pending];
+				pendingFunctions[pending] = null;
+				pendingFrames[pending] = null;
+				block = function.registerCode;
+				replace(block, frame);
+				code = block.code;
+				r = frame;
+				pc = 0;
+				break;
+			}
+			case RegisterCode.INVOKE: {
+				CallSite site = block.calls[code[pc + 2]];
+				Function function = site.lookup(bug);
+				block = function.registerCode;
+				double[] frame = block.newFrame();
+				int numArgs = site.numArgs;
+				for (int i = 0; i < numArgs; i++) {
+					function.parameters[i].bind(bug, frame, load(r, fields, code[pc + 3 + i]));
+				}
+				pcs[top] = pc + 3 + numArgs;
+				call(block, frame, code[pc + 1]);
+				code = block.code;
+				r = frame;
+				pc = 0;
+				base = loopBases[top];
+				break;
+			}
+			case RegisterCode.TAIL_INVOKE: {
+				CallSite site = block.calls[code[pc + 1]];
+				Function function = site.lookup(bug);
+				block = function.registerCode;
+				double[] frame = block.newFrame();
+				int numArgs = site.numArgs;
+				for (int i = 0; i < numArgs; i++) {
+					function.parameters[i].bind(bug, frame, load(r, fields, code[pc + 2 + i]));
+				}
+				replace(block, frame);
+				code = block.code;
+				r = frame;
+				pc = 0;
+				break;
+			}
+			case RegisterCode.RETURN: {
+				double value = load(r, fields, code[pc + 1]);
+				// The loops being left count as exited
+				if (code[pc + 2] >= 0) {
+					bug.numLoops = loops[base + code[pc + 2]] - 1;
+				}
+				if (top == 0) {
+					bug.afterFuncReturn = true;
+				}
+				if (ret(value)) return true;
+				block = blocks[top];
+				code = block.code;
+				r = frames[top];
+				pc = pcs[top];
+				base = loopBases[top];
+				break;
+			}
+			case RegisterCode.END:
+				if (ret(0)) return true;
+				block = blocks[top];
+				code = block.code;
+				r = frames[top];
+				pc = pcs[top];
+				base = loopBases[top];
+				break;
+			case RegisterCode.AWAIT:
+				if (bug.isBlocked()) {
+					pcs[top] = pc;
+					return false;
+				}
+				pc++;
+				break;
+			case RegisterCode.MOVE_BY:
+				bug.move(load(r, fields, code[pc + 1]));
+				bug.endAction();
+				pc += 2;
+				break;
+			case RegisterCode.MOVE_TO:
+				bug.moveto(load(r, fields, code[pc + 1]), load(r, fields, code[pc + 2]));
+				bug.endAction();
+				pc += 3;
+				break;
+			case RegisterCode.TURN:
+				bug.turn(load(r, fields, code[pc + 1]));
+				bug.endAction();
+				pc += 2;
+				break;
+			case RegisterCode.TURN_TO:
+				bug.turnto(load(r, fields, code[pc + 1]));
+				bug.endAction();
+				pc += 2;
+				break;
+			case RegisterCode.LINE:
+				bug.line(load(r, fields, code[pc + 1]), load(r, fields, code[pc + 2]),
+						load(r, fields, code[pc + 3]), load(r, fields, code[pc + 4]));
+				bug.endAction();
+				pc += 5;
+				break;
+			case RegisterCode.EXIT:
+				pc = load(r, fields, code[pc + 1]) == 1 ? exit(code[pc + 2], pc + 3) : pc + 3;
+				break;
+			case RegisterCode.EXIT_EQ:
+				pc = Expression.equal(load(r, fields, code[pc + 1]), load(r, fields, code[pc + 2])) == 1
+						? exit(code[pc + 3], pc + 4) : pc + 4;
+				break;
+			case RegisterCode.EXIT_NE:
+				pc = Expression.notEqual(load(r, fields, code[pc + 1]), load(r, fields, code[pc + 2])) == 1
+						? exit(code[pc + 3], pc + 4) : pc + 4;
+				break;
+			case RegisterCode.EXIT_GT:
+				pc = Expression.greater(load(r, fields, code[pc + 1]), load(r, fields, code[pc + 2])) == 1
+						? exit(code[pc + 3], pc + 4) : pc + 4;
+				break;
+			case RegisterCode.EXIT_LT:
+				pc = Expression.less(load(r, fields, code[pc + 1]), load(r, fields, code[pc + 2])) == 1
+						? exit(code[pc + 3], pc + 4) : pc + 4;
+				break;
+			case RegisterCode.EXIT_GE:
+				pc = Expression.greaterEqual(load(r, fields, code[pc + 1]), load(r, fields, code[pc + 2])) == 1
+						? exit(code[pc + 3], pc + 4) : pc + 4;
+				break;
+			case RegisterCode.EXIT_LE:
+				pc = Expression.lessEqual(load(r, fields, code[pc + 1]), load(r, fields, code[pc + 2])) == 1
+						? exit(code[pc + 3], pc + 4) : pc + 4;
+				break;
+			case RegisterCode.ENTER_LOOP:
+				loops[base + code[pc + 1]] = ++bug.numLoops;
+				pc += 2;
+				break;
+			case RegisterCode.CHECK_LOOP:
+				pc = bug.numLoops != loops[base + code[pc + 1]] ? code[pc + 2] : pc + 3;
+				break;
+			case RegisterCode.REPEAT:
+				pc = code[pc + 1];
+				if (--budget <= 0) {
+					pcs[top] = pc;
+					outOfBudget = true;
+					return false;
+				}
+				break;
+			case RegisterCode.REPEAT_UNLESS_EQ:
+				if (Expression.equal(load(r, fields, code[pc + 1]), load(r, fields, code[pc + 2])) == 1) {
+					pc = exit(-1, pc + 4);
+					break;
+				}
+				pc = code[pc + 3];
+				if (--budget <= 0) {
+					pcs[top] = pc;
+					outOfBudget = true;
+					return false;
+				}
+				break;
+			case RegisterCode.REPEAT_UNLESS_NE:
+				if (Expression.notEqual(load(r, fields, code[pc + 1]), load(r, fields, code[pc + 2])) == 1) {
+					pc = exit(-1, pc + 4);
+					break;
+				}
+				pc = code[pc + 3];
+				if (--budget <= 0) {
+					pcs[top] = pc;
+					outOfBudget = true;
+					return false;
+				}
+				break;
+			case RegisterCode.REPEAT_UNLESS_GT:
+				if (Expression.greater(load(r, fields, code[pc + 1]), load(r, fields, code[pc + 2])) == 1) {
+					pc = exit(-1, pc + 4);
+					break;
+				}
+				pc = code[pc + 3];
+				if (--budget <= 0) {
+					pcs[top] = pc;
+					outOfBudget = true;
+					return false;
+				}
+				break;
+			case RegisterCode.REPEAT_UNLESS_LT:
+				if (Expression.less(load(r, fields, code[pc + 1]), load(r, fields, code[pc + 2])) == 1) {
+					pc = exit(-1, pc + 4);
+					break;
+				}
+				pc = code[pc + 3];
+				if (--budget <= 0) {
+					pcs[top] = pc;
+					outOfBudget = true;
+					return false;
+				}
+				break;
+			case RegisterCode.REPEAT_UNLESS_GE:
+				if (Expression.greaterEqual(load(r, fields, code[pc + 1]), load(r, fields, code[pc + 2])) == 1) {
+					pc = exit(-1, pc + 4);
+					break;
+				}
+				pc = code[pc + 3];
+				if (--budget <= 0) {
+					pcs[top] = pc;
+					outOfBudget = true;
+					return false;
+				}
+				break;
+			case RegisterCode.REPEAT_UNLESS_LE:
+				if (Expression.lessEqual(load(r, fields, code[pc + 1]), load(r, fields, code[pc + 2])) == 1) {
+					pc = exit(-1, pc + 4);
+					break;
+				}
+				pc = code[pc + 3];
+				if (--budget <= 0) {
+					pcs[top] = pc;
+					outOfBudget = true;
+					return false;
+				}
+				break;
+			case RegisterCode.JUMP:
+				pc = code[pc + 1];
+				break;
+			case RegisterCode.JUMP_UNLESS_TRUE:
+				pc = Math.abs(load(r, fields, code[pc + 1]) - 1) > Expression.EPSILON ? code[pc + 2] : pc + 3;
+				break;
+			case RegisterCode.JUMP_IF_ONE:
+				pc = load(r, fields, code[pc + 1]) == 1 ? code[pc + 2] : pc + 3;
+				break;
+			case RegisterCode.JUMP_UNLESS_EQ:
+				pc = Expression.equal(load(r, fields, code[pc + 1]), load(r, fields, code[pc + 2])) == 1
+						? pc + 4 : code[pc + 3];
+				break;
+			case RegisterCode.JUMP_UNLESS_NE:
+				pc = Expression.notEqual(load(r, fields, code[pc + 1]), load(r, fields, code[pc + 2])) == 1
+						? pc + 4 : code[pc + 3];
+				break;
+			case RegisterCode.JUMP_UNLESS_GT:
+				pc = Expression.greater(load(r, fields, code[pc + 1]), load(r, fields, code[pc + 2])) == 1
+						? pc + 4 : code[pc + 3];
+				break;
+			case RegisterCode.JUMP_UNLESS_LT:
+				pc = Expression.less(load(r, fields, code[pc + 1]), load(r, fields, code[pc + 2])) == 1
+						? pc + 4 : code[pc + 3];
+				break;
+			case RegisterCode.JUMP_UNLESS_GE:
+				pc = Expression.greaterEqual(load(r, fields, code[pc + 1]), load(r, fields, code[pc + 2])) == 1
+						? pc + 4 : code[pc + 3];
+				break;
+			case RegisterCode.JUMP_UNLESS_LE:
+				pc = Expression.lessEqual(load(r, fields, code[pc + 1]), load(r, fields, code[pc + 2])) == 1
+						? pc + 4 : code[pc + 3];
+				break;
+			case RegisterCode.PERFORM:
+				block.statements[code[pc + 1]].execute(bug);
+				fields = bug.fields;
+				pc += 2;
+				break;
+			default:
+				throw new IllegalStateException("Unknown opcode " + code[pc]);
+			}
+		}
+	}
+
+	/**
+	 * Tells whether the Bug last stopped only to give the other Bugs a turn,
+	 * rather than to wait for permission to act.
+	 *
+	 * @return true if the Bug used up its budget
+	 */
+	boolean outOfBudget() {
+		return outOfBudget;
+	}
+
+	private static double load(double[] r, double[] fields, int a) {
+		return a >= 0 ? r[a] : fields[~a];
+	}
+
+	private static void store(double[] r, double[] fields, int dst, double value) {
+		if (dst >= 0) {
+			r[dst] = value;
+		} else {
+			fields[~dst] = value;
+		}
+	}
+
+	/**
+	 * Leaves the innermost loop.
+	 *
+	 * @param target the end of the loop, or -1 to leave it between commands
+	 * @param next the opcode after the one leaving the loop
+	 * @return the index of the opcode to go on with
+	 */
+	private int exit(int target, int next) {
+		bug.exitLoop();
+		return target >= 0 ? target : next;
+	}
+
+	/**
+	 * Starts executing a function. The pc of the caller must already be
+	 * where it will go on once the function returns.
+	 *
+	 * @param code the body of the function
+	 * @param frame the new frame, holding the arguments
+	 * @param result where the value returned is kept in the caller's frame,
+	 *        or NONE if it is not needed
+	 */
+	private void call(RegisterCode code, double[] frame, int result) {
+		if (top >= bug.interpreter.maxCallDepth) {
+			throw new RuntimeException("Too many function calls in progress");
+		}
+		int base = loopBases[top] + blocks[top].loopCount;
+		if (++top == blocks.length) {
+			int length = blocks.length * 2;
+			blocks = Arrays.copyOf(blocks, length);
+			frames = Arrays.copyOf(frames, length);
+			pcs = Arrays.copyOf(pcs, length);
+			results = Arrays.copyOf(results, length);
+			loopBases = Arrays.copyOf(loopBases, length);
+		}
+		results[top] = result;
+		loopBases[top] = base;
+		start(code, frame);
+		bug.scopes.add(frame);
+	}
+
+	/**
+	 * Leaves the block being executed.
+	 *
+	 * @param value the value returned to the caller
+	 * @return true if the block was the main block, and the Bug has finished
+	 */
+	private boolean ret(double value) {
+		int result = results[top];
+		frames[top] = null;
+		if (--top < 0) return true;
+		bug.scopes.remove(bug.scopes.size() - 1);
+		bug.frame = frames[top];
+		if (result != RegisterCode.NONE) {
+			store(frames[top], bug.fields, result, value);
+		}
+		return false;
+	}
+
+	/**
+	 * Starts executing a function in place of the one being executed, which
+	 * returns whatever the new one does.
+	 *
+	 * @param code the body of the function
+	 * @param frame the new frame, holding the arguments
+	 */
+	private void replace(RegisterCode code, double[] frame) {
+		start(code, frame);
+		bug.scopes.set(bug.scopes.size() - 1, frame);
+	}
+
+	private void start(RegisterCode code, double[] frame) {
+		blocks[top] = code;
+		frames[top] = frame;
+		pcs[top] = 0;
+		if (loopBases[top] + code.loopCount > loops.length) {
+			loops = Arrays.copyOf(loops, Math.max(loops.length * 2, loopBases[top] + code.loopCount));
+		}
+		bug.frame = frame;
+	}
+}
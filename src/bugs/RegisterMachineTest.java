@@ -0,0 +1,309 @@
+package bugs;
+
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import tree.Tree;
+
+public class RegisterMachineTest {
+	Compiler compiler;
+	Interpreter interpreter;
+	Bug bug;
+
+	@Before
+	public void setUp() {
+		interpreter = new Interpreter();
+		interpreter.setCooperative(true);
+		interpreter.setRegisterMachine(true);
+		bug = new Bug(interpreter);
+		compiler = new Compiler(bug);
+	}
+
+	@Test
+	public void testConstantsAreKeptInRegisters() {
+		RegisterCode code = compile("{\n"
+										+ "x = 3\n"
+									+ "}\n");
+		assertEquals(3, code.code.length);
+		assertEquals(RegisterCode.SET_X, code.code[0]);
+		assertEquals(RegisterCode.END, code.code[2]);
+		assertEquals(3, code.newFrame()[code.code[1]], 0);
+
+		run(code);
+		assertEquals(3, bug.x, 0);
+	}
+
+	@Test
+	public void testArithmeticAndComparisons() {
+		interpreter.declareGlobal("total");
+		bug.declare("a");
+		bug.declare("b");
+		run(compile("{\n"
+						+ "a = 5 * 3 + 8 / 4 - 7\n"
+						+ "b = (a = 10.0001) + (a != 10) * 2 + (a > 9) * 4 + (a <= 9.9999) * 8\n"
+						+ "total = -a + b\n"
+						+ "angle = (a < 10) + (a >= 10.0001) * 2\n"
+					+ "}\n"));
+		assertEquals(10, bug.fetch("a"), 0);
+		assertEquals(13, bug.fetch("b"), 0);
+		assertEquals(3, bug.fetch("total"), 0);
+		assertEquals(2, bug.angle, 0);
+	}
+
+	@Test
+	public void testExitTakesEffectBetweenCommandsOfTheLoop() {
+		bug.declare("a");
+		bug.declare("b");
+		run(compile("{\n"
+						+ "loop {\n"
+							+ "a = a + 1\n"
+							+ "switch {\n"
+								+ "case a = 3\n"
+									+ "exit if 1\n"
+									+ "b = b + 10\n"
+							+ "}\n"
+							+ "b = b + 1\n"
+						+ "}\n"
+					+ "}\n"));
+		assertEquals(3, bug.fetch("a"), 0);
+		assertEquals(12, bug.fetch("b"), 0);
+		assertEquals(0, bug.numLoops);
+	}
+
+	@Test
+	public void testSwitchChoosesCasesLikeStatements() {
+		bug.declare("a");
+		run(compile("{\n"
+						+ "switch {\n"
+							+ "case 1.0005\n"
+								+ "a = a + 1\n"
+							+ "case 0\n"
+								+ "a = a + 10\n"
+							+ "case 1\n"
+								+ "a = a + 100\n"
+							+ "case 1\n"
+								+ "a = a + 1000\n"
+						+ "}\n"
+					+ "}\n"));
+		assertEquals(101, bug.fetch("a"), 0);
+	}
+
+	@Test
+	public void testCaseKeepsValueOfParameter() {
+		bug.declare("a");
+		bug.interpret(useFunction("define count using n {\n"
+										+ "switch {\n"
+											+ "case n\n"
+												+ "n = 1.0005\n"
+										+ "}\n"
+										+ "return n\n"
+									+ "}\n"));
+		run(compile("{\n"
+						+ "a = count(1)\n"
+					+ "}\n"));
+		assertEquals(1.0005, bug.fetch("a"), 0);
+	}
+
+	@Test
+	public void testFunctions() {
+		bug.declare("a");
+		bug.interpret(useFunction("define twice using n {\n"
+										+ "return 2 * n\n"
+									+ "}\n"));
+		bug.interpret(useFunction("define leave {\n"
+										+ "exit if 1\n"
+									+ "}\n"));
+		run(compile("{\n"
+						+ "a = twice(twice(3)) + 1\n"
+						+ "loop {\n"
+							+ "a = a + 1\n"
+							+ "do leave()\n"
+							+ "a = a + 100\n"
+						+ "}\n"
+					+ "}\n"));
+		assertEquals(14, bug.fetch("a"), 0);
+		assertEquals(0, bug.numLoops);
+		assertEquals(1, bug.scopes.size());
+	}
+
+	@Test
+	public void testOperandsAreComputedBeforeLaterCalls() {
+		bug.declare("a");
+		bug.declare("b");
+		bug.interpret(useFunction("define change {\n"
+										+ "b = 10\n"
+										+ "return 1\n"
+									+ "}\n"));
+		run(compile("{\n"
+						+ "b = 2\n"
+						+ "a = b + change() * b\n"
+					+ "}\n"));
+		assertEquals(12, bug.fetch("a"), 0);
+	}
+
+	@Test
+	public void testArgumentsSeeParametersBoundBeforeThem() {
+		bug.declare("a");
+		bug.declare("b");
+		bug.declare("c");
+		bug.interpret(useFunction("define first using a, n {\n"
+										+ "return a + n\n"
+									+ "}\n"));
+		bug.interpret(useFunction("define second using x, n {\n"
+										+ "return n\n"
+									+ "}\n"));
+		run(compile("{\n"
+						+ "a = 3\n"
+						+ "x = 7\n"
+						+ "b = first(5, a + 1)\n"
+						+ "c = second(1, x + 1)\n"
+					+ "}\n"));
+		assertEquals(5, bug.fetch("a"), 0);
+		assertEquals(11, bug.fetch("b"), 0);
+		assertEquals(1, bug.x, 0);
+		assertEquals(2, bug.fetch("c"), 0);
+	}
+
+	@Test
+	public void testReturnInsideLoopLeavesFunction() {
+		bug.declare("a");
+		bug.interpret(useFunction("define first using n {\n"
+										+ "loop {\n"
+											+ "loop {\n"
+												+ "x = x + 1\n"
+												+ "switch {\n"
+													+ "case x > n\n"
+														+ "return x\n"
+												+ "}\n"
+											+ "}\n"
+										+ "}\n"
+									+ "}\n"));
+		run(compile("{\n"
+						+ "a = first(5)\n"
+					+ "}\n"));
+		assertEquals(6, bug.fetch("a"), 0);
+		assertEquals(0, bug.numLoops);
+		assertFalse(bug.afterFuncReturn);
+	}
+
+	@Test
+	public void testExitOutsideLoopFails() {
+		RegisterCode code = compile("{\n"
+										+ "exit if 1\n"
+									+ "}\n");
+		try {
+			run(code);
+			fail();
+		} catch (RuntimeException e) {
+			assertEquals("No loop to exit from", e.getMessage());
+		}
+	}
+
+	@Test
+	public void testRunSameAsInstructions() {
+		String program = "Allbugs {\n"
+							+ "var total\n"
+						+ "}\n"
+						+ "Bug Sally {\n"
+							+ "var n\n"
+							+ "loop {\n"
+								+ "n = n + 1\n"
+								+ "total = total + half(n)\n"
+								+ "exit if n = 4\n"
+								+ "moveto n * 10, total\n"
+							+ "}\n"
+							+ "line 0, 0, n, total\n"
+							+ "define half using m {\n"
+								+ "return m / 2\n"
+							+ "}\n"
+						+ "}\n"
+						+ "Bug Fred {\n"
+							+ "loop {\n"
+								+ "turn 30\n"
+								+ "move 5\n"
+								+ "exit if angle >= 90\n"
+							+ "}\n"
+						+ "}\n";
+		Interpreter registers = run(program, true);
+		Interpreter instructions = run(program, false);
+		assertEquals(instructions.commands.size(), registers.commands.size());
+		for (int i = 0; i < instructions.commands.size(); i++) {
+			assertEquals(instructions.commands.get(i).x2, registers.commands.get(i).x2, 0);
+			assertEquals(instructions.commands.get(i).y2, registers.commands.get(i).y2, 0);
+		}
+		assertEquals(5, registers.globals[0], 0);
+	}
+
+	@Test
+	public void testDeepRecursionAndTailCalls() {
+		bug.declare("a");
+		bug.interpret(useFunction("define sum using n {\n"
+										+ "switch {\n"
+											+ "case n = 0\n"
+												+ "return 0\n"
+										+ "}\n"
+										+ "return n + sum(n - 1)\n"
+									+ "}\n"));
+		bug.interpret(useFunction("define count using n, total {\n"
+										+ "switch {\n"
+											+ "case n = 0\n"
+												+ "return total\n"
+										+ "}\n"
+										+ "return count(n - 1, total + n)\n"
+									+ "}\n"));
+		run(compile("{\n"
+						+ "a = sum(5000) + count(10000, 0)\n"
+					+ "}\n"));
+		assertEquals(12502500 + 50005000, bug.fetch("a"), 0);
+		assertEquals(1, bug.scopes.size());
+
+		interpreter.setMaxCallDepth(50);
+		try {
+			run(compile("{\n"
+							+ "a = sum(50)\n"
+						+ "}\n"));
+			fail();
+		} catch (RuntimeException e) {
+			assertEquals("Too many function calls in progress", e.getMessage());
+		}
+	}
+
+//	--------------- Helper methods ------------------
+
+	private RegisterCode compile(String block) {
+		Parser p = new Parser(block);
+		if (p.isBlock()) {
+			return compiler.compileRegisters(p.stack.pop());
+		} else {
+			throw new IllegalArgumentException("Input is not a valid block");
+		}
+	}
+
+	private void run(RegisterCode code) {
+		assertTrue(new RegisterMachine(bug, code).resume());
+	}
+
+	private Interpreter run(String program, boolean registerMachine) {
+		Interpreter i = new Interpreter();
+		i.setCooperative(true);
+		i.setRegisterMachine(registerMachine);
+		i.program = program;
+		i.parseProgram();
+		i.checkProgram();
+		i.interpretAllbugs();
+		i.initializeBugs();
+		i.runToCompletion();
+		return i;
+	}
+
+	private Tree<Token> useFunction(String func) {
+		Parser p = new Parser(func);
+		if (p.isFunctionDefinition()) {
+			return p.stack.pop();
+		} else {
+			throw new IllegalArgumentException("Input is not a valid function definition");
+		}
+	}
+}
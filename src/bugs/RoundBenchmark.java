@@ -0,0 +1,119 @@
+package bugs;
+
+/**
+ * Measures how many rounds per second the Interpreter can run with 1,000,
+ * 10,000 and 100,000 Bugs, when each Bug has a platform thread, when each Bug
+ * has a virtual thread (if this version of Java has them), and when the Bugs
+ * are run cooperatively by the Interpreter itself. Each Bug simply turns once
+ * per round, so the time measured is almost all spent in handing out
+ * permission to act.
+ * <p>
+ * Usage: <code>java bugs.RoundBenchmark [rounds] [seconds]</code>, where
+ * <code>seconds</code> is how long to wait for each measurement before giving up.
+ *
+ * @author Anders Schneider
+ */
+public class RoundBenchmark {
+	private static final int[] SIZES = { 1000, 10000, 100000 };
+	// Platform threads come last, since a run that cannot start all of its
+	// threads leaves the ones it did start behind
+	private static final String[] MODES = { "cooperative", "virtual threads", "platform threads" };
+
+	public static void main(String[] args) throws InterruptedException {
+		int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+		int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 60;
+
+		System.out.printf("%8s  %-18s %s%n", "bugs", "mode", "rounds/second");
+		for (int i = 0; i < SIZES.length; i++) {
+			String program = program(SIZES[i], rounds);
+			for (int j = 0; j < MODES.length; j++) {
+				System.out.printf("%8d  %-18s %s%n", SIZES[i], MODES[j],
+									measure(program, MODES[j], rounds, seconds));
+			}
+		}
+		// Bugs that did not finish in time would keep the program running
+		System.exit(0);
+	}
+
+	/**
+	 * Returns a program with the given number of Bugs, each of which turns once
+	 * per round, for one more round than the number measured.
+	 *
+	 * @param numBugs the number of Bugs
+	 * @param rounds the number of rounds measured
+	 * @return the text of the program
+	 */
+	private static String program(int numBugs, int rounds) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < numBugs; i++) {
+			sb.append("Bug B").append(i).append(" {\n"
+					+ "var n\n"
+					+ "loop {\n"
+					+ "turn 1\n"
+					+ "n = n + 1\n"
+					+ "exit if n > ").append(rounds).append("\n"
+					+ "}\n"
+				+ "}\n");
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Runs the program in the given mode and returns the rounds per second,
+	 * or the reason there is no result.
+	 *
+	 * @param program the text of the program
+	 * @param mode one of MODES
+	 * @param rounds the number of rounds to time
+	 * @param seconds how long to wait before giving up
+	 * @return the result, as it is to be printed
+	 */
+	private static String measure(final String program, final String mode,
+									final int rounds, int seconds) throws InterruptedException {
+		if ("virtual threads".equals(mode) && Interpreter.virtualThreadFactory() == null) {
+			return "not available in this version of Java";
+		}
+
+		final long[] elapsed = new long[1];
+		final Throwable[] failure = new Throwable[1];
+		Thread runner = new Thread() {
+			@Override
+			public void run() {
+				try {
+					Interpreter interpreter = new Interpreter();
+					interpreter.setVirtualThreads("virtual threads".equals(mode));
+					interpreter.setCooperative("cooperative".equals(mode));
+					interpreter.program = program;
+					interpreter.parseProgram();
+					interpreter.checkProgram();
+					interpreter.optimizeProgram();
+					interpreter.interpretAllbugs();
+					interpreter.initializeBugs();
+
+					// The first round also waits for every Bug to get started
+					interpreter.runSingleStep();
+					long start = System.nanoTime();
+					for (int i = 0; i < rounds; i++) {
+						interpreter.runSingleStep();
+					}
+					// Waits for the last round to be finished
+					interpreter.runSingleStep();
+					elapsed[0] = System.nanoTime() - start;
+				} catch (Throwable e) {
+					failure[0] = e;
+				}
+			}
+		};
+		runner.setDaemon(true);
+		runner.start();
+		runner.join(seconds * 1000L);
+
+		if (runner.isAlive()) {
+			return "did not finish in " + seconds + " seconds";
+		}
+		if (failure[0] != null) {
+			return "failed: " + failure[0];
+		}
+		return String.format("%.1f", rounds / (elapsed[0] / 1e9));
+	}
+}
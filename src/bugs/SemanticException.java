@@ -0,0 +1,44 @@
+package bugs;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Represents the errors found in a program that parses, but that uses names
+ * that are not declared, calls functions that do not exist or with the wrong
+ * number of parameters, or makes some other mistake that can be found before
+ * the program is run. All of the errors are reported together.
+ *
+ * @author Anders Schneider
+ */
+public class SemanticException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+    private final List<String> errors;
+
+    /**
+     * Constructor for SemanticException.
+     * @param errors A message for each error found, in the order found.
+     */
+    public SemanticException(List<String> errors) {
+        super(join(errors));
+        this.errors = Collections.unmodifiableList(new ArrayList<String>(errors));
+    }
+
+    /**
+     * Returns the messages for each error found.
+     * @return The messages, in the order the errors were found.
+     */
+    public List<String> getErrors() {
+        return errors;
+    }
+
+    private static String join(List<String> errors) {
+        StringBuilder sb = new StringBuilder();
+        for (String error : errors) {
+            if (sb.length() > 0) sb.append('\n');
+            sb.append(error);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,431 @@
+package bugs;
+
+import java.awt.Color;
+
+/**
+ * An executable form of a Bugs command. The <code>Compiler</code> turns each
+ * command tree produced by the <code>Parser</code> into a tree of Statements,
+ * each of which knows how to carry itself out without looking at the text of
+ * the original tokens.
+ * <p>
+ * Leaving a loop or a function is reported by the statement that does it:
+ * <code>execute</code> returns true, and only then do the statements around
+ * it look at the Bug to see whether to stop. A statement that ends normally
+ * returns false, so a loop whose block has no exit costs nothing more for each
+ * command than the commands themselves.
+ *
+ * @author Anders Schneider
+ */
+abstract class Statement {
+
+	/**
+	 * Carries out this statement on behalf of the given Bug.
+	 *
+	 * @param bug the Bug executing this statement
+	 * @return true if the statement exited a loop or returned, or may have (as
+	 *         it may when it calls a function); false if it ended normally
+	 */
+	abstract boolean execute(Bug bug);
+
+	/**
+	 * Executes statements in order. As in a loop, an exit does not stop the
+	 * statements that follow it here; only the loop notices it, once control
+	 * is back between the commands of its own block.
+	 *
+	 * @param statements the statements
+	 * @param bug the Bug executing them
+	 * @return true if any of them exited a loop or returned, or may have
+	 */
+	static boolean executeAll(Statement[] statements, Bug bug) {
+		boolean transferred = false;
+		for (int i = 0; i < statements.length; i++) {
+			if (statements[i].execute(bug)) {
+				// Code after a return statement is disregarded
+				if (bug.afterFuncReturn) return true;
+				transferred = true;
+			}
+		}
+		return transferred;
+	}
+
+	/**
+	 * A statement that does nothing; used for trees the interpreter ignores.
+	 */
+	static final class NoOp extends Statement {
+		@Override
+		boolean execute(Bug bug) {
+			return false;
+		}
+	}
+
+	/**
+	 * A list, block or initialization block: executes each statement in order.
+	 */
+	static final class Sequence extends Statement {
+		private final Statement[] statements;
+
+		Sequence(Statement[] statements) {
+			this.statements = statements;
+		}
+
+		@Override
+		boolean execute(Bug bug) {
+			// A block reached after a return statement is disregarded
+			if (bug.afterFuncReturn) return true;
+			return executeAll(statements, bug);
+		}
+	}
+
+	/**
+	 * Declares each named variable in the current scope, with a value of 0.
+	 */
+	static final class VarDeclaration extends Statement {
+		private final String[] names;
+
+		VarDeclaration(String[] names) {
+			this.names = names;
+		}
+
+		@Override
+		boolean execute(Bug bug) {
+			for (int i = 0; i < names.length; i++) {
+				bug.declare(names[i]);
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Superclass of the commands that make up a Bug's turn: move, moveto,
+	 * turn, turnto and line. The Bug waits for permission before evaluating
+	 * the expressions of the command.
+	 */
+	abstract static class Action extends Statement {
+		private final boolean callsFunction;
+
+		/**
+		 * @param expressions the expressions of the command
+		 */
+		Action(Expression... expressions) {
+			callsFunction = callsFunction(expressions);
+		}
+
+		@Override
+		final boolean execute(Bug bug) {
+			bug.beginAction();
+			perform(bug);
+			bug.endAction();
+			return callsFunction;
+		}
+
+		/**
+		 * Evaluates the expressions of this command and carries it out, once
+		 * the Bug has been given permission to act.
+		 *
+		 * @param bug the Bug performing the action
+		 */
+		abstract void perform(Bug bug);
+	}
+
+	static final class Move extends Action {
+		private final Expression distance;
+
+		Move(Expression distance) {
+			super(distance);
+			this.distance = distance;
+		}
+
+		@Override
+		void perform(Bug bug) {
+			bug.move(distance.evaluate(bug));
+		}
+	}
+
+	static final class Moveto extends Action {
+		private final Expression newX;
+		private final Expression newY;
+
+		Moveto(Expression newX, Expression newY) {
+			super(newX, newY);
+			this.newX = newX;
+			this.newY = newY;
+		}
+
+		@Override
+		void perform(Bug bug) {
+			double x = newX.evaluate(bug);
+			double y = newY.evaluate(bug);
+			bug.moveto(x, y);
+		}
+	}
+
+	static final class Turn extends Action {
+		private final Expression angleDelta;
+
+		Turn(Expression angleDelta) {
+			super(angleDelta);
+			this.angleDelta = angleDelta;
+		}
+
+		@Override
+		void perform(Bug bug) {
+			bug.turn(angleDelta.evaluate(bug));
+		}
+	}
+
+	static final class Turnto extends Action {
+		private final Expression newAngle;
+
+		Turnto(Expression newAngle) {
+			super(newAngle);
+			this.newAngle = newAngle;
+		}
+
+		@Override
+		void perform(Bug bug) {
+			bug.turnto(newAngle.evaluate(bug));
+		}
+	}
+
+	static final class Line extends Action {
+		private final Expression startX, startY;
+		private final Expression finishX, finishY;
+
+		Line(Expression startX, Expression startY, Expression finishX, Expression finishY) {
+			super(startX, startY, finishX, finishY);
+			this.startX = startX;
+			this.startY = startY;
+			this.finishX = finishX;
+			this.finishY = finishY;
+		}
+
+		@Override
+		void perform(Bug bug) {
+			double x1 = startX.evaluate(bug);
+			double y1 = startY.evaluate(bug);
+			double x2 = finishX.evaluate(bug);
+			double y2 = finishY.evaluate(bug);
+			bug.line(x1, y1, x2, y2);
+		}
+	}
+
+	static final class Assign extends Statement {
+		private final Expression.Variable variable;
+		private final Expression value;
+		private final boolean callsFunction;
+
+		Assign(Expression.Variable variable, Expression value) {
+			this.variable = variable;
+			this.value = value;
+			callsFunction = value.callsFunction();
+		}
+
+		@Override
+		boolean execute(Bug bug) {
+			variable.store(bug, value.evaluate(bug));
+			return callsFunction;
+		}
+	}
+
+	static final class Return extends Statement {
+		private final Expression value;
+
+		Return(Expression value) {
+			this.value = value;
+		}
+
+		@Override
+		boolean execute(Bug bug) {
+			bug.returnFromFunction(value.evaluate(bug));
+			return true;
+		}
+	}
+
+	/**
+	 * A return statement whose value is that of a call, outside any loop of a
+	 * function. The call is made once the function returning has been left,
+	 * so that recursion in a return statement does not go deeper.
+	 */
+	static final class TailCall extends Statement {
+		private final Expression.Call call;
+
+		TailCall(Expression.Call call) {
+			this.call = call;
+		}
+
+		@Override
+		boolean execute(Bug bug) {
+			call.replaceCaller(bug);
+			return true;
+		}
+	}
+
+	/**
+	 * Repeats its body until an "exit if" statement (or a return) leaves it.
+	 * Each loop being executed has a number, one more than the loop it is
+	 * inside of; an exit takes one from the Bug's count of loops, and a loop
+	 * has been left once the count is no longer its own number. The count is
+	 * only looked at after a command that reports having exited or returned.
+	 */
+	static final class Loop extends Statement {
+		private final Statement[] body;
+
+		Loop(Statement[] body) {
+			this.body = body;
+		}
+
+		@Override
+		boolean execute(Bug bug) {
+			int loopID = ++bug.numLoops;
+			while (true) {
+				for (int i = 0; i < body.length; i++) {
+					if (body[i].execute(bug)) {
+						if (bug.numLoops != loopID) return true;
+						if (bug.afterFuncReturn) {
+							// A return leaves this loop as well as the function
+							bug.numLoops = loopID - 1;
+							return true;
+						}
+					}
+				}
+			}
+		}
+	}
+
+	static final class Exit extends Statement {
+		private final Expression condition;
+		private final boolean callsFunction;
+
+		Exit(Expression condition) {
+			this.condition = condition;
+			callsFunction = condition.callsFunction();
+		}
+
+		@Override
+		boolean execute(Bug bug) {
+			if (condition.evaluate(bug) == 1) {
+				bug.exitLoop();
+				return true;
+			}
+			return callsFunction;
+		}
+	}
+
+	/**
+	 * One case of a switch statement: a condition and the commands that are
+	 * executed when the condition is true.
+	 */
+	static final class Case {
+		private final Expression condition;
+		private final Statement[] body;
+		private final boolean callsFunction;
+
+		Case(Expression condition, Statement[] body) {
+			this.condition = condition;
+			this.body = body;
+			callsFunction = condition.callsFunction();
+		}
+	}
+
+	/**
+	 * Evaluates each case in turn, stopping after the first true one.
+	 */
+	static final class Switch extends Statement {
+		private final Case[] cases;
+
+		Switch(Case[] cases) {
+			this.cases = cases;
+		}
+
+		@Override
+		boolean execute(Bug bug) {
+			boolean transferred = false;
+			for (int i = 0; i < cases.length; i++) {
+				Case c = cases[i];
+				double first = c.condition.evaluate(bug);
+				transferred |= c.callsFunction;
+				if (Math.abs(first - 1) <= Expression.EPSILON
+						&& executeAll(c.body, bug)) {
+					if (bug.afterFuncReturn) return true;
+					transferred = true;
+				}
+				if (first == 1) break;
+			}
+			return transferred;
+		}
+	}
+
+	static final class SetColor extends Statement {
+		private final Color color;
+
+		SetColor(Color color) {
+			this.color = color;
+		}
+
+		@Override
+		boolean execute(Bug bug) {
+			bug.bugColor = color;
+			return false;
+		}
+	}
+
+	/**
+	 * A statement that always fails; the error is reported when (and if)
+	 * the statement is reached.
+	 */
+	static final class Failure extends Statement {
+		private final String message;
+
+		Failure(String message) {
+			this.message = message;
+		}
+
+		@Override
+		boolean execute(Bug bug) {
+			throw new IllegalArgumentException(message);
+		}
+	}
+
+	/**
+	 * Stores a function in the Bug's table of functions.
+	 */
+	static final class Define extends Statement {
+		private final Function function;
+
+		Define(Function function) {
+			this.function = function;
+		}
+
+		@Override
+		boolean execute(Bug bug) {
+			bug.defineFunction(function);
+			return false;
+		}
+	}
+
+	/**
+	 * A "do" statement: calls a function and ignores its result.
+	 */
+	static final class Do extends Statement {
+		private final Expression call;
+		private final boolean callsFunction;
+
+		Do(Expression call) {
+			this.call = call;
+			callsFunction = call.callsFunction();
+		}
+
+		@Override
+		boolean execute(Bug bug) {
+			call.evaluate(bug);
+			return callsFunction;
+		}
+	}
+
+	private static boolean callsFunction(Expression[] expressions) {
+		for (int i = 0; i < expressions.length; i++) {
+			if (expressions[i].callsFunction()) return true;
+		}
+		return false;
+	}
+}
@@ -1,7 +1,11 @@
 package bugs;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.regex.Pattern;
 
@@ -45,10 +49,61 @@ public class Token {
     public static final Set<String> COLORS =
         new HashSet<>(Arrays.asList(COLOR_LIST));
 
+    /**
+     * The keywords and pseudo keywords, each in the slot given by
+     * <code>keywordSlot</code>. The multiplier is chosen so that no two of
+     * them land in the same slot, so looking up a word takes one probe.
+     */
+    private static final String[] KEYWORD_TABLE = new String[256];
+    private static final int KEYWORD_SHIFT = 32 - 8;
+    private static final int KEYWORD_MULTIPLIER = findKeywordMultiplier();
+
+    /** Symbols that are made of more than one character. */
+    private static final String[] LONG_SYMBOL_LIST = new String[] {
+        "!=", "<=", ">=" };
+
+    /**
+     * One shared Token for each keyword, pseudo keyword and symbol, by
+     * value. These are the Tokens the Parser puts in its trees, so that the
+     * same Token is not made over and over, and so that they can be compared
+     * by identity. The end of a line and the end of the file are shared too,
+     * but are not looked up by value: only the Lexer makes them, and the
+     * name "EOF" in a program is an ordinary name.
+     */
+    private static final Map<String, Token> SHARED = new HashMap<>();
+    /** The shared Tokens for single-character symbols, by character. */
+    private static final Token[] SHARED_SYMBOLS = new Token[128];
+
+    /** The shared Token for the end of a line. */
+    public static final Token END_OF_LINE = mark(new Token(Type.EOL, "\n"));
+    /** The shared Token for the end of the file. */
+    public static final Token END_OF_FILE = mark(new Token(Type.EOF, "EOF"));
+
+    static {
+        for (String keyword : KEYWORD_LIST) {
+            share(new Token(Type.KEYWORD, keyword));
+        }
+        for (String keyword : PSEUDO_KEYWORD_LIST) {
+            share(new Token(Type.KEYWORD, keyword));
+        }
+        for (char c = 33; c < 127; c++) {
+            if (!Character.isLetterOrDigit(c)) {
+                SHARED_SYMBOLS[c] = share(new Token(Type.SYMBOL, c + ""));
+            }
+        }
+        for (String symbol : LONG_SYMBOL_LIST) {
+            share(new Token(Type.SYMBOL, symbol));
+        }
+    }
+
     /** The type of this token (name, number, etc.). */
     final Type type;
     /** The characters that make up this token. */
     final String value;
+    /** The value of this token if it is a number, otherwise NaN. */
+    final double number;
+    /** Whether this is one of the shared Tokens. */
+    private boolean shared;
 
     /**
      * Constructor for Tokens.
@@ -59,6 +114,7 @@ public class Token {
     public Token(Type type, String value) {
         this.type = type;
         this.value = value;
+        this.number = numberOf(type, value);
     }
 
     /**
@@ -70,15 +126,145 @@ public class Token {
     public Token(String value) {
         this.type = typeOf(value);
         this.value = value;
+        this.number = numberOf(type, value);
+    }
+
+    /**
+     * Constructor for number Tokens whose value is already known, as
+     * when the number has been read by a tokenizer. The characters of
+     * the token are only needed for printing.
+     * 
+     * @param number The value of the token.
+     */
+    public Token(double number) {
+        this.type = Type.NUMBER;
+        this.value = number + "";
+        this.number = number;
+    }
+
+    /**
+     * Returns a Token with the given value, whose type is determined from
+     * the value. For a keyword, pseudo keyword or symbol, this is the
+     * shared Token, and nothing new is made.
+     * 
+     * @param value The characters making up the token.
+     * @return A Token with the given value.
+     */
+    public static Token of(String value) {
+        Token token = SHARED.get(value);
+        return token != null ? token : new Token(value);
+    }
+
+    /**
+     * Returns a Token with the given type and value. If there is a shared
+     * Token that has them, that Token is returned, and nothing new is made.
+     * 
+     * @param type The type of the token.
+     * @param value The characters making up the token.
+     * @return A Token with the given type and value.
+     */
+    public static Token of(Type type, String value) {
+        Token token = SHARED.get(value);
+        return token != null && token.type == type ? token : new Token(type, value);
+    }
+
+    /**
+     * Returns the shared Token for a single-character symbol, if there is one.
+     * 
+     * @param c The character of the symbol.
+     * @return A symbol Token.
+     */
+    static Token symbol(char c) {
+        Token token = c < SHARED_SYMBOLS.length ? SHARED_SYMBOLS[c] : null;
+        return token != null ? token : new Token(Type.SYMBOL, c + "");
+    }
+
+    /**
+     * Returns the shared Token with the given value, if there is one.
+     * 
+     * @param value The characters making up the token.
+     * @return The shared Token, or <code>null</code>.
+     */
+    static Token shared(String value) {
+        return SHARED.get(value);
+    }
+
+    private static Token share(Token token) {
+        SHARED.put(token.value, mark(token));
+        return token;
+    }
+
+    private static Token mark(Token token) {
+        token.shared = true;
+        return token;
+    }
+
+    /**
+     * Returns the numeric value of a token, or NaN if it isn't a number.
+     * @param type The type of the token.
+     * @param value The characters making up the token.
+     * @return The numeric value of the token.
+     */
+    private static double numberOf(Type type, String value) {
+        if (type != Type.NUMBER) return Double.NaN;
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
     }
 
     /**
      * Determine the token type of the given string. A null string
      * is considered to represent the end of file.
+     * <p>
+     * This gives the same result as <code>typeOfByRegex</code>, in a
+     * single pass over the string.
      * @param s The string to classify.
      * @return The type of the string.
      */
     public static Token.Type typeOf(String s) {
+        if (s == null) return Token.Type.EOF;
+        int length = s.length();
+        if (length == 0) return Token.Type.ERROR;
+        char first = s.charAt(0);
+        if (length == 1 && first == '\n') return Token.Type.EOL;
+
+        if (isLetter(first) || first == '_') {
+            for (int i = 1; i < length; i++) {
+                if (!isWordChar(s.charAt(i))) return Token.Type.ERROR;
+            }
+            return isKeywordOrPseudoKeyword(s) ? Token.Type.KEYWORD : Token.Type.NAME;
+        }
+
+        // Digits, with at most one decimal point that is not both first and last
+        int i = 0;
+        while (i < length && isDigit(s.charAt(i))) i++;
+        boolean digitsBeforePoint = i > 0;
+        if (i < length && s.charAt(i) == '.') {
+            i++;
+            int digitsStart = i;
+            while (i < length && isDigit(s.charAt(i))) i++;
+            if (i == length && (digitsBeforePoint || i > digitsStart)) return Token.Type.NUMBER;
+        } else if (i == length) {
+            return Token.Type.NUMBER;
+        }
+
+        for (i = 0; i < length; i++) {
+            if (isWordChar(s.charAt(i))) return Token.Type.ERROR;
+        }
+        return Token.Type.SYMBOL;
+    }
+
+    /**
+     * The original definition of <code>typeOf</code>, by regular
+     * expressions. It is kept as the specification of
+     * <code>typeOf</code>, for the tests and for
+     * <code>TypeOfBenchmark</code>.
+     * @param s The string to classify.
+     * @return The type of the string.
+     */
+    static Token.Type typeOfByRegex(String s) {
         if (s == null) return Token.Type.EOF;
         if (s.equals("\n")) return Token.Type.EOL;
         if (SYMBOL_REGEX.matcher(s).matches()) return Token.Type.SYMBOL;
@@ -91,13 +277,64 @@ public class Token {
         return Token.Type.ERROR;
     }
 
+    private static boolean isLetter(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    /** The characters matched by <code>\w</code> in a regular expression. */
+    private static boolean isWordChar(char c) {
+        return isLetter(c) || isDigit(c) || c == '_';
+    }
+
+    private static boolean isKeywordOrPseudoKeyword(String s) {
+        return s.equals(KEYWORD_TABLE[keywordSlot(s, KEYWORD_MULTIPLIER)]);
+    }
+
+    private static int keywordSlot(String s, int multiplier) {
+        return (s.hashCode() * multiplier) >>> KEYWORD_SHIFT;
+    }
+
+    /**
+     * Finds a multiplier that puts each keyword and pseudo keyword in a
+     * slot of its own, and fills in <code>KEYWORD_TABLE</code>.
+     * @return The multiplier.
+     */
+    private static int findKeywordMultiplier() {
+        List<String> keywords = new ArrayList<>(Arrays.asList(KEYWORD_LIST));
+        keywords.addAll(Arrays.asList(PSEUDO_KEYWORD_LIST));
+        // Odd multipliers, starting from the golden ratio, which spreads the
+        // bits of the hash codes well; with this many slots, only a few
+        // need to be tried
+        for (int multiplier = 0x9E3779B9; multiplier != 0x9E3779B7; multiplier += 2) {
+            Arrays.fill(KEYWORD_TABLE, null);
+            boolean collision = false;
+            for (String keyword : keywords) {
+                int slot = keywordSlot(keyword, multiplier);
+                if (KEYWORD_TABLE[slot] != null) {
+                    collision = true;
+                    break;
+                }
+                KEYWORD_TABLE[slot] = keyword;
+            }
+            if (!collision) return multiplier;
+        }
+        throw new IllegalStateException("No perfect hash for the keywords");
+    }
+
     /**
      * @see java.lang.Object#equals(java.lang.Object)
      */
     @Override
     public boolean equals(Object o) {
+        if (o == this) return true;
         if (o instanceof Token) {
             Token that = (Token) o;
+            // There is only one shared Token with each type and value
+            if (this.shared && that.shared) return false;
             return this.type == that.type && this.value.equals(that.value);
         }
         return false;
@@ -5,6 +5,8 @@ import static org.junit.Assert.*;
 import org.junit.Before;
 import org.junit.Test;
 
+import tree.Tree;
+
 /**
  * @author David Matuszek
  * @version February 2015
@@ -63,6 +65,20 @@ public class TokenTest {
         assertEquals("5.0", t.value);
     }
 
+    /**
+     * Test method for {@link bugs.Token#Token(double)}.
+     */
+    @Test
+    public final void testToken_Number() {
+        Token t = new Token(12.5);
+        assertEquals(Token.Type.NUMBER, t.type);
+        assertEquals("12.5", t.value);
+        assertEquals(12.5, t.number, 0);
+        assertEquals(new Token("12.5"), t);
+        assertEquals(5, new Token("5").number, 0);
+        assertTrue(Double.isNaN(new Token("loop").number));
+    }
+
     /**
      * Test method for {@link bugs.Token#typeOf(java.lang.String)}.
      */
@@ -107,6 +123,83 @@ public class TokenTest {
         assertTrue(new Token("123").equals(new Token("123")));
     }
 
+    /**
+     * Test that {@link bugs.Token#typeOf(java.lang.String)} agrees with
+     * the regular expressions it replaced, on every string used in these
+     * tests, every keyword, and every string of up to four characters
+     * made from letters, digits, and the characters that the regular
+     * expressions treat specially.
+     */
+    @Test
+    public final void testTypeOfSameAsRegex() {
+        String[] strings = { null, "", "abc", "Abc_123", "123", "123.45",
+            "123.", ".45", "Allbugs", "move", "red", "list", "call", "*",
+            "?", "<=", "\n", "\n\n", "123abc", "123.45.6", "=7", "switch",
+            "loop", "5", "5.0", "12.5", "program", "_", "__init", "caf\u00e9",
+            "\u00e9", "..", ". 5", "moves", "Move", "lis", "functions" };
+        for (String string : strings) {
+            assertEquals(string, Token.typeOfByRegex(string), Token.typeOf(string));
+        }
+        for (String keyword : Token.KEYWORDS) {
+            assertEquals(Token.Type.KEYWORD, Token.typeOf(keyword));
+        }
+        for (String keyword : Token.PSEUDO_KEYWORDS) {
+            assertEquals(Token.Type.KEYWORD, Token.typeOf(keyword));
+        }
+
+        String alphabet = "aZ_09.-\n \u00e9";
+        int n = alphabet.length();
+        int count = n + n * n + n * n * n + n * n * n * n;
+        for (int i = 0; i < count; i++) {
+            StringBuilder sb = new StringBuilder();
+            int k = i;
+            do {
+                sb.append(alphabet.charAt(k % n));
+                k = k / n - 1;
+            } while (k >= 0);
+            String string = sb.toString();
+            assertEquals(string, Token.typeOfByRegex(string), Token.typeOf(string));
+        }
+    }
+
+    /**
+     * Test method for {@link bugs.Token#of(java.lang.String)}.
+     */
+    @Test
+    public final void testOf() {
+        assertSame(Token.of("list"), Token.of("list"));
+        assertSame(Token.of("move"), Token.of(Token.Type.KEYWORD, "move"));
+        assertSame(Token.of("<="), Token.of("<="));
+        assertSame(Token.of("("), Token.symbol('('));
+        assertEquals(new Token(Token.Type.KEYWORD, "list"), Token.of("list"));
+        assertEquals(Token.of("list"), new Token(Token.Type.KEYWORD, "list"));
+        assertFalse(Token.of("list").equals(Token.of("var")));
+        assertEquals(Token.Type.NAME, Token.of("fred").type);
+        assertEquals(12, Token.of("12").number, 0);
+        // Not the shared keyword, since the type is different
+        assertEquals(Token.Type.NAME, Token.of(Token.Type.NAME, "move").type);
+        // Only the Lexer makes the end of the file
+        assertEquals(Token.Type.NAME, Token.of("EOF").type);
+        assertEquals(new Token("EOF"), Token.of("EOF"));
+    }
+
+    /**
+     * Test that the Parser only makes new Tokens for names and numbers.
+     */
+    @Test
+    public final void testParserSharesTokens() {
+        Parser parser = new Parser("Bug Sally {\n    var n\n    move n + 1\n}\n");
+        assertTrue(parser.isProgram());
+        Tree<Token> tree = parser.stack.pop();
+        assertEquals(new Token("program"), tree.getValue());
+        Tree<Token> bug = tree.getChild(1).getChild(0);
+        assertSame(Token.of("Bug"), bug.getValue());
+        assertSame(Token.of("list"), bug.getChild(1).getValue());
+        Tree<Token> move = bug.getChild(3).getChild(0);
+        assertSame(Token.of("move"), move.getValue());
+        assertSame(Token.of("+"), move.getChild(0).getValue());
+    }
+
     /**
      * Test method for {@link bugs.Token#toString()}.
      */
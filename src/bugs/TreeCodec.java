@@ -0,0 +1,366 @@
+package bugs;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import tree.Tree;
+
+/**
+ * Writes the tree of a program in a compact binary form, and reads it back,
+ * so that a program can be saved once it has been parsed and loaded later
+ * without being parsed again.
+ * <p>
+ * The form is:
+ * <ul>
+ *   <li>the four bytes <code>BUGT</code>, the version of this form, and the
+ *       version of the Parser that built the tree;</li>
+ *   <li>a table of the strings used by the tree, each written once, as a
+ *       count followed by each string's length and UTF-8 bytes;</li>
+ *   <li>the nodes in pre-order. Each node is its token type, then either
+ *       the eight bytes of the number, for a number, or the index of its
+ *       value in the string table, then the number of its children.</li>
+ * </ul>
+ * All counts, lengths, indexes and versions are written as variable-length
+ * integers, seven bits to a byte, low bits first. Trees are written and read
+ * without recursion, so that a very deep tree needs no more stack than a
+ * shallow one. When the size of what is read is known, no count is trusted
+ * to be larger than the number of bytes left, so a damaged count is an
+ * IOException rather than an attempt to allocate gigabytes.
+ *
+ * @author Anders Schneider
+ */
+final class TreeCodec {
+	/** The version of the form; increased whenever the form changes. */
+	static final int FORMAT_VERSION = 1;
+
+	private static final byte[] MAGIC = { 'B', 'U', 'G', 'T' };
+	private static final int BUFFER_SIZE = 8192;
+	private static final Token.Type[] TYPES = Token.Type.values();
+
+	private TreeCodec() {}
+
+	/**
+	 * Writes a tree to a channel.
+	 *
+	 * @param tree the tree of a program
+	 * @param parserVersion the version of the Parser that built the tree
+	 * @param channel where to write the tree
+	 * @throws IOException if the channel can't be written to
+	 */
+	static void write(Tree<Token> tree, int parserVersion, WritableByteChannel channel)
+			throws IOException {
+		Writer out = new Writer(channel);
+		for (byte b : MAGIC) {
+			out.writeByte(b);
+		}
+		out.writeVarint(FORMAT_VERSION);
+		out.writeVarint(parserVersion);
+
+		// The string table
+		HashMap<String, Integer> indexes = new HashMap<String, Integer>();
+		ArrayList<String> strings = new ArrayList<String>();
+		ArrayList<Tree<Token>> pending = new ArrayList<Tree<Token>>();
+		pending.add(tree);
+		while (!pending.isEmpty()) {
+			Tree<Token> node = pending.remove(pending.size() - 1);
+			Token token = node.getValue();
+			if (token.type != Token.Type.NUMBER && !indexes.containsKey(token.value)) {
+				indexes.put(token.value, strings.size());
+				strings.add(token.value);
+			}
+			for (int i = 0; i < node.getNumberOfChildren(); i++) {
+				pending.add(node.getChild(i));
+			}
+		}
+		out.writeVarint(strings.size());
+		for (String s : strings) {
+			byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+			out.writeVarint(bytes.length);
+			out.writeBytes(bytes);
+		}
+
+		// The nodes, in pre-order; children are pushed last first
+		pending.add(tree);
+		while (!pending.isEmpty()) {
+			Tree<Token> node = pending.remove(pending.size() - 1);
+			Token token = node.getValue();
+			out.writeByte(token.type.ordinal());
+			if (token.type == Token.Type.NUMBER) {
+				out.writeDouble(token.number);
+			} else {
+				out.writeVarint(indexes.get(token.value));
+			}
+			out.writeVarint(node.getNumberOfChildren());
+			for (int i = node.getNumberOfChildren() - 1; i >= 0; i--) {
+				pending.add(node.getChild(i));
+			}
+		}
+		out.flush();
+	}
+
+	/**
+	 * Writes a tree to an array of bytes.
+	 *
+	 * @param tree the tree of a program
+	 * @param parserVersion the version of the Parser that built the tree
+	 * @return the bytes
+	 */
+	static byte[] encode(Tree<Token> tree, int parserVersion) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try {
+			write(tree, parserVersion, Channels.newChannel(bytes));
+		} catch (IOException e) {
+			throw new Error(e); // Should never happen
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Reads a tree from a channel. Keywords, symbols and the other tokens
+	 * that the Parser shares are shared in the tree that is read, too. The
+	 * counts read from a seekable channel, such as a file, are checked
+	 * against the number of bytes left in it.
+	 *
+	 * @param channel where to read the tree from
+	 * @param parserVersion the version of the Parser the tree must have been built by
+	 * @return the tree
+	 * @throws IOException if the channel can't be read, if what is read is not
+	 *         a tree, or if it was written by a different version of this
+	 *         class or for a different version of the Parser
+	 */
+	static Tree<Token> read(ReadableByteChannel channel, int parserVersion) throws IOException {
+		long size = Long.MAX_VALUE;
+		if (channel instanceof SeekableByteChannel) {
+			SeekableByteChannel seekable = (SeekableByteChannel) channel;
+			size = seekable.size() - seekable.position();
+		}
+		return read(new Reader(channel, size), parserVersion);
+	}
+
+	private static Tree<Token> read(Reader in, int parserVersion) throws IOException {
+		for (byte b : MAGIC) {
+			if (in.readByte() != b) {
+				throw new IOException("Not a saved Bugs program");
+			}
+		}
+		int formatVersion = in.readVarint();
+		if (formatVersion != FORMAT_VERSION) {
+			throw new IOException("Saved in form " + formatVersion + ", not " + FORMAT_VERSION);
+		}
+		int savedParserVersion = in.readVarint();
+		if (savedParserVersion != parserVersion) {
+			throw new IOException("Saved by Parser version " + savedParserVersion
+									+ ", not " + parserVersion);
+		}
+
+		String[] strings = new String[in.readCount()];
+		for (int i = 0; i < strings.length; i++) {
+			strings[i] = new String(in.readBytes(in.readCount()), StandardCharsets.UTF_8);
+		}
+
+		// Each node that still needs children is kept on a stack, with its
+		// children so far; a node is made once its last child has been read
+		ArrayList<Token> tokens = new ArrayList<Token>();
+		ArrayList<ArrayList<Tree<Token>>> children = new ArrayList<ArrayList<Tree<Token>>>();
+		ArrayList<Integer> sizes = new ArrayList<Integer>();
+		Tree<Token> node = null;
+		do {
+			Token token = readToken(in, strings);
+			int size = in.readCount();
+			if (size > 0) {
+				tokens.add(token);
+				children.add(new ArrayList<Tree<Token>>(size));
+				sizes.add(size);
+				continue;
+			}
+			node = new Tree<Token>(token);
+
+			// Hands the finished node to its parent, which may then be finished too
+			while (!tokens.isEmpty()) {
+				int top = tokens.size() - 1;
+				ArrayList<Tree<Token>> siblings = children.get(top);
+				siblings.add(node);
+				if (siblings.size() < sizes.get(top)) {
+					node = null;
+					break;
+				}
+				node = new Tree<Token>(tokens.remove(top), children.remove(top));
+				sizes.remove(top);
+			}
+		} while (!tokens.isEmpty() || node == null);
+		return node;
+	}
+
+	/**
+	 * Reads a tree from an array of bytes.
+	 *
+	 * @param bytes the bytes
+	 * @param parserVersion the version of the Parser the tree must have been built by
+	 * @return the tree
+	 * @throws IOException if the bytes are not a tree, or are for a different version
+	 */
+	static Tree<Token> decode(byte[] bytes, int parserVersion) throws IOException {
+		Reader in = new Reader(Channels.newChannel(new ByteArrayInputStream(bytes)), bytes.length);
+		return read(in, parserVersion);
+	}
+
+	private static Token readToken(Reader in, String[] strings) throws IOException {
+		int type = in.readByte();
+		if (type < 0 || type >= TYPES.length) {
+			throw new IOException("Bad token type " + type);
+		}
+		if (TYPES[type] == Token.Type.NUMBER) {
+			return new Token(in.readDouble());
+		}
+		int index = in.readVarint();
+		if (index >= strings.length) {
+			throw new IOException("Bad string index " + index);
+		}
+		return Token.of(TYPES[type], strings[index]);
+	}
+
+	/**
+	 * Writes bytes to a channel through a buffer.
+	 */
+	private static final class Writer {
+		private final WritableByteChannel channel;
+		private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+		Writer(WritableByteChannel channel) {
+			this.channel = channel;
+		}
+
+		void writeByte(int b) throws IOException {
+			if (!buffer.hasRemaining()) drain();
+			buffer.put((byte) b);
+		}
+
+		void writeBytes(byte[] bytes) throws IOException {
+			int offset = 0;
+			while (offset < bytes.length) {
+				if (!buffer.hasRemaining()) drain();
+				int n = Math.min(buffer.remaining(), bytes.length - offset);
+				buffer.put(bytes, offset, n);
+				offset += n;
+			}
+		}
+
+		void writeVarint(int value) throws IOException {
+			while ((value & ~0x7F) != 0) {
+				writeByte((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			writeByte(value);
+		}
+
+		void writeDouble(double value) throws IOException {
+			if (buffer.remaining() < 8) drain();
+			buffer.putDouble(value);
+		}
+
+		void flush() throws IOException {
+			drain();
+		}
+
+		private void drain() throws IOException {
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			buffer.clear();
+		}
+	}
+
+	/**
+	 * Reads bytes from a channel through a buffer.
+	 */
+	private static final class Reader {
+		private final ReadableByteChannel channel;
+		private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		// The number of bytes that can be read, or Long.MAX_VALUE if not known,
+		// and the number taken from the channel so far
+		private final long size;
+		private long received;
+
+		Reader(ReadableByteChannel channel, long size) {
+			this.channel = channel;
+			this.size = size;
+			buffer.flip();
+		}
+
+		int readByte() throws IOException {
+			fill(1);
+			return buffer.get() & 0xFF;
+		}
+
+		byte[] readBytes(int length) throws IOException {
+			byte[] bytes = new byte[length];
+			int offset = 0;
+			while (offset < length) {
+				fill(1);
+				int n = Math.min(buffer.remaining(), length - offset);
+				buffer.get(bytes, offset, n);
+				offset += n;
+			}
+			return bytes;
+		}
+
+		int readVarint() throws IOException {
+			int value = 0;
+			for (int shift = 0; shift < 35; shift += 7) {
+				int b = readByte();
+				value |= (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) {
+					if (value < 0) break;
+					return value;
+				}
+			}
+			throw new IOException("Bad count");
+		}
+
+		/**
+		 * Reads the number of things that follow, each of which takes at least
+		 * one byte, so that there can't be more of them than bytes left.
+		 */
+		int readCount() throws IOException {
+			int count = readVarint();
+			if (count > size - received + buffer.remaining()) {
+				throw new IOException("Bad count " + count);
+			}
+			return count;
+		}
+
+		double readDouble() throws IOException {
+			fill(8);
+			return buffer.getDouble();
+		}
+
+		/**
+		 * Reads from the channel until at least the given number of bytes
+		 * are in the buffer.
+		 */
+		private void fill(int needed) throws IOException {
+			if (buffer.remaining() >= needed) return;
+			buffer.compact();
+			while (buffer.position() < needed) {
+				int n = channel.read(buffer);
+				if (n < 0) {
+					buffer.flip();
+					throw new EOFException("Saved program is cut short");
+				}
+				received += n;
+			}
+			buffer.flip();
+		}
+	}
+}
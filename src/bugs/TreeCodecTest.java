@@ -0,0 +1,168 @@
+package bugs;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import tree.Tree;
+
+public class TreeCodecTest {
+	private static final String PROGRAM = "Allbugs {\n"
+											+ "var total\n"
+										+ "}\n"
+										+ "Bug Sally {\n"
+											+ "var n, caf\u00e9\n"
+											+ "color red\n"
+											+ "loop {\n"
+												+ "move 2.5\n"
+												+ "turn -90\n"
+												+ "n = n + 0.1\n"
+												+ "exit if n >= 4\n"
+											+ "}\n"
+											+ "define f using a, b {\n"
+												+ "return a * (b + 1)\n"
+											+ "}\n"
+										+ "}\n";
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		Tree<Token> tree = ProgramCache.parse(PROGRAM);
+		Tree<Token> read = TreeCodec.decode(TreeCodec.encode(tree, 1), 1);
+		assertEquals(tree, read);
+		assertEquals(tree.toString(), read.toString());
+		// Shared Tokens are used again when a tree is read
+		assertSame(Token.of("loop"), read.getChild(1).getChild(0).getChild(3).getChild(1).getValue());
+	}
+
+	@Test
+	public void testNumbersAreExact() throws IOException {
+		double[] numbers = { 0, -0.0, 0.1, 1e-300, Double.MAX_VALUE, Double.NaN };
+		for (double number : numbers) {
+			Tree<Token> tree = new Tree<Token>(new Token(number));
+			Token token = TreeCodec.decode(TreeCodec.encode(tree, 1), 1).getValue();
+			assertEquals(Double.doubleToRawLongBits(number), Double.doubleToRawLongBits(token.number));
+		}
+	}
+
+	@Test
+	public void testStringsAreWrittenOnce() {
+		Tree<Token> one = new Tree<Token>(new Token(Token.Type.NAME, "somewhatLongName"));
+		Tree<Token> many = new Tree<Token>(Token.of("block"));
+		for (int i = 0; i < 100; i++) {
+			many.addChild(new Tree<Token>(new Token(Token.Type.NAME, "somewhatLongName")));
+		}
+		// Each repeated name takes only a type, an index and a child count
+		int growth = TreeCodec.encode(many, 1).length - TreeCodec.encode(one, 1).length;
+		assertTrue(growth < 100 * 4);
+	}
+
+	@Test
+	public void testWideAndDeepTrees() throws IOException {
+		Tree<Token> wide = new Tree<Token>(Token.of("block"));
+		for (int i = 0; i < 20000; i++) {
+			wide.addChild(new Tree<Token>(new Token(i)));
+		}
+		assertEquals(wide, TreeCodec.decode(TreeCodec.encode(wide, 1), 1));
+
+		// Too deep to write or read recursively
+		int depth = 200000;
+		Tree<Token> deep = new Tree<Token>(new Token(0));
+		for (int i = 1; i < depth; i++) {
+			deep = new Tree<Token>(Token.of("-"), deep);
+		}
+		Tree<Token> read = TreeCodec.decode(TreeCodec.encode(deep, 1), 1);
+		for (int i = 1; i < depth; i++) {
+			assertEquals(1, read.getNumberOfChildren());
+			read = read.getChild(0);
+		}
+		assertEquals(new Token(0), read.getValue());
+	}
+
+	@Test
+	public void testReadsFromSlowChannel() throws IOException {
+		Tree<Token> tree = ProgramCache.parse(PROGRAM);
+		final ByteBuffer bytes = ByteBuffer.wrap(TreeCodec.encode(tree, 1));
+		// A channel that gives one byte at a time
+		ReadableByteChannel slow = new ReadableByteChannel() {
+			public int read(ByteBuffer dst) {
+				if (!bytes.hasRemaining()) return -1;
+				dst.put(bytes.get());
+				return 1;
+			}
+			public boolean isOpen() { return true; }
+			public void close() {}
+		};
+		assertEquals(tree, TreeCodec.read(slow, 1));
+	}
+
+	@Test
+	public void testWritesToChannel() throws IOException {
+		Tree<Token> tree = ProgramCache.parse(PROGRAM);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		TreeCodec.write(tree, 3, Channels.newChannel(out));
+		assertArrayEquals(TreeCodec.encode(tree, 3), out.toByteArray());
+	}
+
+	@Test(expected=IOException.class)
+	public void testOtherParserVersion() throws IOException {
+		byte[] bytes = TreeCodec.encode(ProgramCache.parse(PROGRAM), 1);
+		TreeCodec.decode(bytes, 2);
+	}
+
+	@Test(expected=IOException.class)
+	public void testNotATree() throws IOException {
+		TreeCodec.decode("Bug Sally {\n}\n".getBytes("UTF-8"), 1);
+	}
+
+	@Test(expected=EOFException.class)
+	public void testCutShort() throws IOException {
+		byte[] bytes = TreeCodec.encode(ProgramCache.parse(PROGRAM), 1);
+		TreeCodec.decode(Arrays.copyOf(bytes, bytes.length - 1), 1);
+	}
+
+	@Test
+	public void testCountsLargerThanWhatIsLeft() throws IOException {
+		byte[] header = { 'B', 'U', 'G', 'T', 1, 1 };
+		byte[] huge = { (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07 };
+		byte[][] damaged = {
+			// The number of strings
+			concat(header, huge),
+			// The length of a string
+			concat(header, new byte[] { 1 }, huge, new byte[] { 'x' }),
+			// The number of a node's children
+			concat(header, new byte[] { 1, 1, 'x', (byte) Token.Type.NAME.ordinal(), 0 }, huge)
+		};
+		for (byte[] bytes : damaged) {
+			try {
+				TreeCodec.decode(bytes, 1);
+				fail();
+			} catch (IOException e) {
+				assertFalse(e instanceof EOFException);
+			}
+		}
+	}
+
+	@Test(expected=IOException.class)
+	public void testBadTokenType() throws IOException {
+		byte[] bytes = TreeCodec.encode(new Tree<Token>(new Token(Token.Type.NAME, "x")), 1);
+		// The root's type follows the header and the one-string table
+		bytes[bytes.length - 3] = 99;
+		TreeCodec.decode(bytes, 1);
+	}
+
+	private static byte[] concat(byte[]... parts) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (byte[] part : parts) {
+			out.write(part, 0, part.length);
+		}
+		return out.toByteArray();
+	}
+}
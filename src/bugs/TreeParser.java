@@ -64,7 +64,7 @@ public class TreeParser {
      */
     private static Token nextActualToken(PushbackStringTokenizer tokenizer) {
         String s = tokenizer.next();
-        return new Token(s);
+        return Token.of(s);
     }
 
     
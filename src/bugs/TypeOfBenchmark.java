@@ -0,0 +1,57 @@
+package bugs;
+
+/**
+ * Compares the time <code>Token.typeOf</code> takes with the time the
+ * regular expressions it replaced took, on the words of the sample
+ * programs' kind: names, keywords, pseudo keywords, numbers and symbols.
+ * <p>
+ * Usage: <code>java bugs.TypeOfBenchmark [iterations]</code>
+ *
+ * @author Anders Schneider
+ */
+public class TypeOfBenchmark {
+	private static final String[] WORDS = {
+		"Bug", "Sally", "move", "moveto", "turn", "list", "block", "call",
+		"assign", "var", "x", "count", "distance", "12", "3.5", ".25", "+",
+		"<=", "!=", "(", "{", "darkGray", "purple", "loop", "exit", "foo_bar2"
+	};
+
+	public static void main(String[] args) {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+
+		System.out.printf("%-8s %s%n", "version", "ns/word");
+		// The first two passes warm up the JIT compiler
+		for (int pass = 0; pass < 3; pass++) {
+			double regex = measure(iterations, true);
+			double direct = measure(iterations, false);
+			if (pass == 2) {
+				System.out.printf("%-8s %.1f%n", "regex", regex);
+				System.out.printf("%-8s %.1f%n", "typeOf", direct);
+			}
+		}
+	}
+
+	/**
+	 * Classifies every word the given number of times.
+	 *
+	 * @param iterations how many times to classify each word
+	 * @param byRegex whether to use the regular expressions
+	 * @return the average time per word, in nanoseconds
+	 */
+	private static double measure(int iterations, boolean byRegex) {
+		int checksum = 0;
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			for (int j = 0; j < WORDS.length; j++) {
+				Token.Type type = byRegex ? Token.typeOfByRegex(WORDS[j]) : Token.typeOf(WORDS[j]);
+				checksum += type.ordinal();
+			}
+		}
+		long elapsed = System.nanoTime() - start;
+		// Keeps the work from being optimized away
+		if (checksum == -1) {
+			System.out.println(checksum);
+		}
+		return elapsed / (double) iterations / WORDS.length;
+	}
+}
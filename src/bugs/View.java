@@ -2,8 +2,10 @@ package bugs;
 
 import java.awt.Color;
 import java.awt.Graphics;
+import java.awt.Graphics2D;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.awt.image.BufferedImage;
 import java.util.Iterator;
 import java.util.Observable;
 
@@ -15,6 +17,11 @@ public class View extends JPanel implements ActionListener {
 	Timer timer = new Timer(40, this);
 	Interpreter interpreter;
 	
+	// The lines drawn so far, so that each frame only has to draw new ones
+	private BufferedImage lines;
+	private CommandLog linesFrom;
+	private int linesDrawn;
+	
 	/**
 	 * View constructor
 	 * @param interpreter
@@ -38,16 +45,9 @@ public class View extends JPanel implements ActionListener {
 		}
 		
 		// Draw lines
-		for (int i = 0; i < interpreter.commands.size(); i++) {
-			Command command = interpreter.commands.get(i);
-			if (command == null) continue;
-			int x1 = (int) scaleX(command.x1);
-			int y1 = (int) scaleY(command.y1);
-			int x2 = (int) scaleX(command.x2);
-			int y2 = (int) scaleY(command.y2);
-			
-			g.setColor(command.color);
-			g.drawLine(x1, y1, x2, y2);
+		drawNewLines();
+		if (lines != null) {
+			g.drawImage(lines, 0, 0, null);
 		}
 		
 		// Draw bugs
@@ -77,6 +77,49 @@ public class View extends JPanel implements ActionListener {
 		}
 	}
 
+	/**
+	 * Draws the lines the Bugs have made since the last time this was called
+	 * onto the image of all the lines so far. The image is started over when
+	 * the size of the panel changes, or when a new program is loaded.
+	 */
+	private void drawNewLines() {
+		CommandLog log = interpreter.commands;
+		int width = this.getWidth();
+		int height = this.getHeight();
+		if (width <= 0 || height <= 0) {
+			return;
+		}
+		if (lines == null || lines.getWidth() != width || lines.getHeight() != height
+				|| log != linesFrom) {
+			lines = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+			linesFrom = log;
+			linesDrawn = 0;
+		}
+		
+		// The Bugs may add more lines while this is going on, but the
+		// cursor only reads the ones that had been made when it was made.
+		CommandLog.Cursor cursor = log.cursor(linesDrawn);
+		if (cursor.end() <= linesDrawn) {
+			return;
+		}
+		Graphics2D g = lines.createGraphics();
+		int rgb = 0;
+		while (cursor.next()) {
+			int x1 = (int) scaleX(cursor.x1());
+			int y1 = (int) scaleY(cursor.y1());
+			int x2 = (int) scaleX(cursor.x2());
+			int y2 = (int) scaleY(cursor.y2());
+			
+			if (cursor.index() == linesDrawn || cursor.rgb() != rgb) {
+				rgb = cursor.rgb();
+				g.setColor(new Color(rgb, true));
+			}
+			g.drawLine(x1, y1, x2, y2);
+		}
+		g.dispose();
+		linesDrawn = cursor.end();
+	}
+
 	private double scaleY(double y) {
 		return this.getHeight() * (y / 100);
 	}
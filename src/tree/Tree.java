@@ -1,7 +1,10 @@
 package tree;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 import java.util.StringTokenizer;
 
 /**
@@ -14,6 +17,8 @@ import java.util.StringTokenizer;
 public class Tree<V> implements Iterable<Tree<V>> {
     private V value;
     private ArrayList<Tree<V>> children;
+    private boolean frozen;
+    private int hash;
     
     /**
      * Constructs a Tree with the given value in the root node,
@@ -24,6 +29,7 @@ public class Tree<V> implements Iterable<Tree<V>> {
      * @throws IllegalArgumentException
      *         If the operation would create a circular Tree.
      */
+    @SafeVarargs
     public Tree(V value, Tree<V>... children) {
         this.value = value;
         this.children = new ArrayList<Tree<V>>(children.length);
@@ -32,12 +38,25 @@ public class Tree<V> implements Iterable<Tree<V>> {
         }
     }
     
+    /**
+     * Constructs a Tree with the given value in the root node,
+     * having the children in the given list, in order.
+     * 
+     * @param value The value to be put in the root.
+     * @param children The immediate children of the root.
+     */
+    public Tree(V value, List<Tree<V>> children) {
+        this.value = value;
+        this.children = new ArrayList<Tree<V>>(children);
+    }
+    
     /**
      * Sets the value in this node.
      * 
      * @param value The value to be stored in this node.
      */
     public void setValue(V value) {
+        checkNotFrozen();
         this.value = value;
     }
     
@@ -61,6 +80,7 @@ public class Tree<V> implements Iterable<Tree<V>> {
      *         If the operation would create a circular Tree.
      */
     public void addChild(int index, Tree<V> child) {
+        checkNotFrozen();
         if (child.contains(this)) {
             throw new IllegalArgumentException("Circular Tree");
         }
@@ -72,6 +92,7 @@ public class Tree<V> implements Iterable<Tree<V>> {
      * @param child The child to be added to this node.
      */
     public void addChild(Tree<V> child) {
+        checkNotFrozen();
         if (child.contains(this)) {
             throw new IllegalArgumentException("Circular Tree");
         }
@@ -86,6 +107,7 @@ public class Tree<V> implements Iterable<Tree<V>> {
      *         If the operation would create a circular Tree.
      */
     public void addChildren(Tree<V>... children) {
+        checkNotFrozen();
         for (Tree<V> child : children) {
             if (child.contains(this)) {
                 throw new IllegalArgumentException("Circular Tree");
@@ -121,9 +143,68 @@ public class Tree<V> implements Iterable<Tree<V>> {
      * @return An iterator for this node's immediate children.
      */
     public Iterator<Tree<V>> iterator() {
+        if (frozen) {
+            return Collections.unmodifiableList(children).iterator();
+        }
         return children.iterator();
     }
     
+    /**
+     * Makes this tree, and every subtree of it, unchangeable. The hash
+     * code of each node is worked out once, here, and kept. Any other
+     * tree that shares a subtree with this one can then no longer change
+     * that subtree either.
+     * 
+     * @return This tree.
+     */
+    public Tree<V> freeze() {
+        if (frozen) return this;
+        // Post-order, so that each node's children are frozen before it is
+        ArrayList<Tree<V>> nodes = new ArrayList<Tree<V>>();
+        ArrayList<Integer> next = new ArrayList<Integer>();
+        nodes.add(this);
+        next.add(0);
+        while (!nodes.isEmpty()) {
+            int top = nodes.size() - 1;
+            Tree<V> node = nodes.get(top);
+            int i = next.get(top);
+            if (i < node.children.size()) {
+                next.set(top, i + 1);
+                Tree<V> child = node.children.get(i);
+                if (!child.frozen) {
+                    nodes.add(child);
+                    next.add(0);
+                }
+            } else {
+                node.hash = node.computeHash();
+                node.frozen = true;
+                nodes.remove(top);
+                next.remove(top);
+            }
+        }
+        return this;
+    }
+    
+    /**
+     * Tests whether this tree has been frozen.
+     * 
+     * @return <code>true</code> if this tree can no longer be changed.
+     */
+    public boolean isFrozen() {
+        return frozen;
+    }
+    
+    /**
+     * Throws an exception if this tree is frozen.
+     * 
+     * @throws UnsupportedOperationException If this tree is frozen.
+     */
+    private void checkNotFrozen() {
+        if (frozen) {
+            throw new UnsupportedOperationException("Frozen Tree");
+        }
+    }
+    
     /**
      * Searchs this Tree for a node that is == to <code>node</code>,
      * and returns <code>true</code> if found, <code>false</code> otherwise.
@@ -133,6 +214,8 @@ public class Tree<V> implements Iterable<Tree<V>> {
      */
     boolean contains(Tree<V> node) {
         if (this == node) return true;
+        // Everything under a frozen node is frozen
+        if (frozen && !node.frozen) return false;
         for (Tree<V> child : children) {
             if (child.contains(node)) return true;
         }
@@ -148,34 +231,94 @@ public class Tree<V> implements Iterable<Tree<V>> {
      */
     @Override
     public String toString() {
-        if (children.size() == 0) {
-            return value.toString();
+        StringBuilder result = new StringBuilder();
+        try {
+            appendTo(result);
+        } catch (IOException e) {
+            throw new Error(e); // A StringBuilder never throws it
         }
-        String result = value + "(" + children.get(0);
-        for (int i = 1; i < children.size(); i++) {
-            result += " " + children.get(i);
+        return result.toString();
+    }
+    
+    /**
+     * Writes the one-line form of this tree, as returned by
+     * <code>toString()</code>, to <code>out</code>. The time taken is
+     * proportional to the length of the output, and the tree is walked
+     * without recursion, so it may be of any depth.
+     * 
+     * @param out Where the output is written.
+     * @throws IOException If <code>out</code> throws it.
+     */
+    public void appendTo(Appendable out) throws IOException {
+        // Each open node is on the stack, with the index of its next child
+        ArrayList<Tree<V>> nodes = new ArrayList<Tree<V>>();
+        ArrayList<Integer> next = new ArrayList<Integer>();
+        Tree<V> node = this;
+        while (true) {
+            out.append(String.valueOf(node.value));
+            if (node.children.size() > 0) {
+                out.append('(');
+                nodes.add(node);
+                next.add(0);
+            }
+            node = null;
+            while (node == null && !nodes.isEmpty()) {
+                int top = nodes.size() - 1;
+                Tree<V> parent = nodes.get(top);
+                int i = next.get(top);
+                if (i < parent.children.size()) {
+                    if (i > 0) out.append(' ');
+                    next.set(top, i + 1);
+                    node = parent.children.get(i);
+                } else {
+                    out.append(')');
+                    nodes.remove(top);
+                    next.remove(top);
+                }
+            }
+            if (node == null) return;
         }
-        return result + ")";
     }
     
     /**
      * Prints this tree as an indented structure.
      */
     public void print() {
-        print(this, "");
-    }   
+        try {
+            print(System.out);
+        } catch (IOException e) {
+            throw new Error(e); // A PrintStream never throws it
+        }
+    }
     
     /**
-     * Prints the given tree as an indented structure, with the
-     * given node indented by the given amount.
-     * @param node The root of the tree or subtree to be printed.
-     * @param indent The amount to indent the root.
+     * Writes this tree as an indented structure to <code>out</code>, one
+     * node to a line, each child indented three spaces more than its
+     * parent. The tree is walked without recursion, so it may be of any
+     * depth.
+     * 
+     * @param out Where the output is written.
+     * @throws IOException If <code>out</code> throws it.
      */
-    private static void print(Tree<?> node, String indent) {
-        if (node == null) return;
-        System.out.println(indent + node.value);
-        for (int i = 0; i < node.getNumberOfChildren(); i++) {
-            print(node.getChild(i), indent + "   ");
+    public void print(Appendable out) throws IOException {
+        String newline = System.getProperty("line.separator");
+        // Pre-order, with each node's children pushed last first
+        ArrayList<Tree<V>> nodes = new ArrayList<Tree<V>>();
+        ArrayList<Integer> depths = new ArrayList<Integer>();
+        nodes.add(this);
+        depths.add(0);
+        while (!nodes.isEmpty()) {
+            int top = nodes.size() - 1;
+            Tree<V> node = nodes.remove(top);
+            int depth = depths.remove(top);
+            for (int i = 0; i < depth; i++) {
+                out.append("   ");
+            }
+            out.append(String.valueOf(node.value)).append(newline);
+            for (int i = node.children.size() - 1; i >= 0; i--) {
+                nodes.add(node.children.get(i));
+                depths.add(depth + 1);
+            }
         }
     }
     
@@ -189,8 +332,10 @@ public class Tree<V> implements Iterable<Tree<V>> {
      */
     @Override
     public boolean equals(Object obj) {
+        if (this == obj) return true;
         if (!(obj instanceof Tree)) return false;
         Tree<?> that = (Tree<?>) obj;
+        if (this.frozen && that.frozen && this.hash != that.hash) return false;
         if (!equals(this.value, that.value)) return false;
         if (!equals(this.getNumberOfChildren(),
                     that.getNumberOfChildren())) return false;
@@ -200,6 +345,32 @@ public class Tree<V> implements Iterable<Tree<V>> {
         return true;
     }
     
+    /**
+     * Returns a hash code that depends on the values in this tree and on
+     * its shape, so that equal trees have equal hash codes. A frozen tree
+     * returns the hash code it worked out when it was frozen.
+     * 
+     * @return The hash code of this tree.
+     */
+    @Override
+    public int hashCode() {
+        return frozen ? hash : computeHash();
+    }
+    
+    /**
+     * Works out the hash code of this tree from its value and the hash
+     * codes of its children.
+     * 
+     * @return The hash code of this tree.
+     */
+    private int computeHash() {
+        int h = value == null ? 0 : value.hashCode();
+        for (Tree<V> child : children) {
+            h = 31 * h + child.hashCode();
+        }
+        return h;
+    }
+    
     /**
      * Tests whether two values are equal (either == or <code>equals(obj)</code>),
      * when one or both values may be <code>null</code>.
@@ -0,0 +1,94 @@
+package tree;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.WeakHashMap;
+
+/**
+ * Keeps one frozen copy of each distinct Tree that it is given, so that
+ * trees that are equal, or that have equal subtrees, can share them
+ * (hash-consing).
+ * <p>
+ * Because the subtrees of an interned tree are themselves interned, two
+ * interned trees are equal only if they are the same object, and testing
+ * a new tree against one that is already kept takes time proportional to
+ * its number of children, not to its size. A tree is kept only while
+ * something else still refers to it.
+ *
+ * @author Anders Schneider
+ * @param <V> The type of value that can be held in each Tree node.
+ */
+public class TreeInterner<V> {
+    private final WeakHashMap<Tree<V>, WeakReference<Tree<V>>> trees =
+        new WeakHashMap<Tree<V>, WeakReference<Tree<V>>>();
+
+    /**
+     * Returns a frozen tree equal to the given one. Each subtree of the
+     * result is the same object as any equal subtree of a tree that was
+     * interned before. The given tree is used, rather than copied, where
+     * it is already frozen; otherwise it is not changed.
+     *
+     * @param tree The tree to be interned.
+     * @return The interned tree.
+     */
+    public synchronized Tree<V> intern(Tree<V> tree) {
+        // Post-order, with the interned children of each open node so far
+        ArrayList<Tree<V>> nodes = new ArrayList<Tree<V>>();
+        ArrayList<ArrayList<Tree<V>>> interned = new ArrayList<ArrayList<Tree<V>>>();
+        ArrayList<Integer> next = new ArrayList<Integer>();
+        push(tree, nodes, interned, next);
+        Tree<V> result = null;
+        while (!nodes.isEmpty()) {
+            int top = nodes.size() - 1;
+            Tree<V> node = nodes.get(top);
+            int i = next.get(top);
+            if (i < node.getNumberOfChildren()) {
+                next.set(top, i + 1);
+                push(node.getChild(i), nodes, interned, next);
+                continue;
+            }
+            result = lookUp(node, interned.remove(top));
+            nodes.remove(top);
+            next.remove(top);
+            if (top > 0) {
+                interned.get(top - 1).add(result);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of distinct trees and subtrees that are kept.
+     *
+     * @return The number of trees kept.
+     */
+    public synchronized int size() {
+        return trees.size();
+    }
+
+    /**
+     * Returns the kept tree equal to the node with the given interned
+     * children, keeping a new one if there is none.
+     */
+    private Tree<V> lookUp(Tree<V> node, ArrayList<Tree<V>> children) {
+        boolean same = node.isFrozen();
+        for (int i = 0; same && i < children.size(); i++) {
+            same = children.get(i) == node.getChild(i);
+        }
+        Tree<V> candidate = same ? node : new Tree<V>(node.getValue(), children).freeze();
+        WeakReference<Tree<V>> kept = trees.get(candidate);
+        if (kept != null) {
+            Tree<V> existing = kept.get();
+            if (existing != null) return existing;
+        }
+        trees.put(candidate, new WeakReference<Tree<V>>(candidate));
+        return candidate;
+    }
+
+    private void push(Tree<V> node, ArrayList<Tree<V>> nodes,
+                      ArrayList<ArrayList<Tree<V>>> interned, ArrayList<Integer> next) {
+        nodes.add(node);
+        interned.add(new ArrayList<Tree<V>>(node.getNumberOfChildren()));
+        next.add(0);
+    }
+}
@@ -0,0 +1,63 @@
+package tree;
+
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class TreeInternerTest {
+    TreeInterner<String> interner;
+    
+    @Before
+    public void setUp() throws Exception {
+        interner = new TreeInterner<String>();
+    }
+    
+    @Test
+    public final void testEqualTreesAreShared() {
+        Tree<String> a = Tree.parse("f(x g(y z))");
+        Tree<String> b = Tree.parse("f(x g(y z))");
+        Tree<String> internedA = interner.intern(a);
+        assertEquals(a, internedA);
+        assertTrue(internedA.isFrozen());
+        assertFalse(a.isFrozen());
+        assertSame(internedA, interner.intern(b));
+        assertSame(internedA, interner.intern(internedA));
+    }
+    
+    @Test
+    public final void testEqualSubtreesAreShared() {
+        Tree<String> a = interner.intern(Tree.parse("plus(g(y z) g(y z))"));
+        assertSame(a.getChild(0), a.getChild(1));
+        
+        Tree<String> b = interner.intern(Tree.parse("times(x g(y z))"));
+        assertSame(a.getChild(0), b.getChild(1));
+        // plus, times, g, x, y and z
+        assertEquals(6, interner.size());
+    }
+    
+    @Test
+    public final void testFrozenTreeIsUsed() {
+        Tree<String> a = Tree.parse("f(x g(y z))").freeze();
+        assertSame(a, interner.intern(a));
+        assertSame(a, interner.intern(Tree.parse("f(x g(y z))")));
+        
+        // A frozen tree that doesn't share its subtrees is copied
+        Tree<String> b = Tree.parse("h(x)").freeze();
+        Tree<String> internedB = interner.intern(b);
+        assertEquals(b, internedB);
+        assertSame(a.getChild(0), internedB.getChild(0));
+    }
+    
+    @Test
+    public final void testDeepTree() {
+        Tree<String> deep = new Tree<String>("x");
+        for (int i = 0; i < 100000; i++) {
+            deep = new Tree<String>("-", deep);
+        }
+        Tree<String> interned = interner.intern(deep);
+        assertEquals(100001, interner.size());
+        assertTrue(interned.isFrozen());
+        assertEquals(deep.freeze().hashCode(), interned.hashCode());
+    }
+}
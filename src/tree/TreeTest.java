@@ -2,6 +2,8 @@ package tree;
 
 import static org.junit.Assert.*;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Iterator;
 
 import org.junit.Before;
@@ -45,6 +47,15 @@ public class TreeTest {
     public final void testTreeConstructor() {
         assertEquals(two, new Tree<String>("two"));
         assertEquals(five, new Tree<String>("five", six, seven, eight));
+
+        ArrayList<Tree<String>> children = new ArrayList<Tree<String>>();
+        children.add(six);
+        children.add(seven);
+        children.add(eight);
+        Tree<String> tree = new Tree<String>("five", children);
+        assertEquals(five, tree);
+        children.clear();
+        assertEquals(3, tree.getNumberOfChildren());
     }
     
     @Test
@@ -254,6 +265,99 @@ public class TreeTest {
                      squeezeOutUnnecessaryBlanks("  ( a (b c) ( (  d)e f    "));
     }
     
+    @Test
+    public final void testAppendTo() throws IOException {
+        StringBuilder out = new StringBuilder("> ");
+        one.appendTo(out);
+        assertEquals("> one(two three(four five(six seven eight)))", out.toString());
+        assertEquals("one(two three(four five(six seven eight)))", one.toString());
+        assertEquals("two", two.toString());
+    }
+    
+    @Test
+    public final void testPrint() throws IOException {
+        String nl = System.getProperty("line.separator");
+        StringBuilder out = new StringBuilder();
+        one.print(out);
+        assertEquals("one" + nl
+                     + "   two" + nl
+                     + "   three" + nl
+                     + "      four" + nl
+                     + "      five" + nl
+                     + "         six" + nl
+                     + "         seven" + nl
+                     + "         eight" + nl, out.toString());
+    }
+    
+    @Test
+    public final void testToStringOfLargeTrees() throws IOException {
+        // Too deep to walk recursively
+        int depth = 100000;
+        Tree<String> deep = new Tree<String>("x");
+        for (int i = 0; i < depth; i++) {
+            deep = new Tree<String>("-", deep);
+        }
+        String s = deep.toString();
+        assertEquals(depth * 3 + 1, s.length());
+        assertTrue(s.startsWith("-(-(-("));
+        assertEquals(2 * depth, s.indexOf("x)))"));
+        
+        Tree<String> wide = new Tree<String>("+");
+        for (int i = 0; i < depth; i++) {
+            wide.addChild(new Tree<String>("y"));
+        }
+        assertEquals(2 + 2 * depth, wide.toString().length());
+    }
+    
+    @Test
+    public final void testHashCode() {
+        assertEquals(tree1.hashCode(), tree2.hashCode());
+        assertEquals(one.hashCode(), tree1.hashCode());
+        assertFalse(one.hashCode() == three.hashCode());
+        assertFalse(new Tree<String>("a", new Tree<String>("b")).hashCode()
+                    == new Tree<String>("b", new Tree<String>("a")).hashCode());
+        int before = one.hashCode();
+        assertSame(one, one.freeze());
+        assertEquals(before, one.hashCode());
+    }
+    
+    @Test
+    public final void testFreeze() {
+        assertFalse(one.isFrozen());
+        one.freeze();
+        assertTrue(one.isFrozen());
+        assertTrue(five.isFrozen());
+        assertTrue(six.isFrozen());
+        assertEquals(tree1, one);
+        assertEquals(one, tree1);
+        assertFalse(one.equals(new Tree<String>("one", two, four).freeze()));
+        
+        // A frozen subtree can still be added to a tree that isn't frozen
+        Tree<String> zero = new Tree<String>("zero");
+        zero.addChild(five);
+        assertFalse(zero.isFrozen());
+    }
+    
+    @Test(expected=UnsupportedOperationException.class)
+    public final void testFrozenValue() {
+        one.freeze();
+        six.setValue("6");
+    }
+    
+    @Test(expected=UnsupportedOperationException.class)
+    public final void testFrozenChildren() {
+        one.freeze();
+        five.addChild(new Tree<String>("nine"));
+    }
+    
+    @Test(expected=UnsupportedOperationException.class)
+    public final void testFrozenIterator() {
+        one.freeze();
+        Iterator<Tree<String>> iter = one.iterator();
+        iter.next();
+        iter.remove();
+    }
+    
     // ----- Do not use the following for testing student programs! -----
     
     @Test